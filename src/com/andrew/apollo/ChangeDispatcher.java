@@ -0,0 +1,248 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/**
+ * Runs the side effects of the service's state changes (broadcasts, lock
+ * screen controls, play history, widgets) on a thread of their own.
+ * <p>
+ * Every side effect is a {@link Stage}. A change posted while a stage already
+ * has work waiting is folded into that work, so a burst of changes, like
+ * skipping through a few tracks, only runs each stage once, against the state
+ * the service is in by then. Stages with a delay gather everything posted
+ * within that window into one run.
+ */
+public final class ChangeDispatcher {
+
+    /**
+     * A side effect of a state change
+     */
+    public interface Stage {
+
+        /**
+         * Called on the dispatcher's thread
+         *
+         * @param changes The changes posted since the last run, in the order
+         *            they were first posted
+         */
+        public void apply(Set<String> changes);
+    }
+
+    private final Handler mHandler;
+
+    private final Object mRunLock = new Object();
+
+    private StageRunner[] mStages = new StageRunner[0];
+
+    private boolean mReleased = false;
+
+    /**
+     * Constructor of <code>ChangeDispatcher</code>
+     *
+     * @param name The name of the dispatcher's thread
+     */
+    public ChangeDispatcher(final String name) {
+        final HandlerThread thread = new HandlerThread(name,
+                android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Adds a stage. Stages run in the order they were added when their work
+     * is due at the same time.
+     *
+     * @param name The name the stage's counters are listed under
+     * @param delay How long to gather changes before running, in milliseconds
+     * @param stage The side effect
+     */
+    public synchronized void addStage(final String name, final long delay, final Stage stage) {
+        final StageRunner[] stages = new StageRunner[mStages.length + 1];
+        System.arraycopy(mStages, 0, stages, 0, mStages.length);
+        stages[mStages.length] = new StageRunner(name, delay, stage);
+        mStages = stages;
+    }
+
+    /**
+     * Posts a change to every stage
+     *
+     * @param what The change, one of the service's broadcast actions
+     */
+    public synchronized void post(final String what) {
+        if (mReleased) {
+            return;
+        }
+        for (final StageRunner stage : mStages) {
+            stage.post(what);
+        }
+    }
+
+    /**
+     * Drops any changes still waiting and ends the dispatcher's thread. If a
+     * stage is running this waits for it to finish, so nothing touches the
+     * service once this returns.
+     */
+    public void release() {
+        synchronized (this) {
+            mReleased = true;
+            mHandler.removeCallbacksAndMessages(null);
+        }
+        synchronized (mRunLock) {
+            mHandler.getLooper().quit();
+        }
+    }
+
+    /**
+     * Prints every stage's counters
+     *
+     * @param writer The writer to print to
+     */
+    public synchronized void dump(final PrintWriter writer) {
+        for (final StageRunner stage : mStages) {
+            stage.dump(writer);
+        }
+    }
+
+    /**
+     * Takes the changes gathered for a stage and runs it
+     *
+     * @param stage The stage that's due
+     */
+    private void run(final StageRunner stage) {
+        synchronized (mRunLock) {
+            final Set<String> changes;
+            final long posted;
+            synchronized (this) {
+                if (mReleased || stage.mPending.isEmpty()) {
+                    return;
+                }
+                changes = stage.mPending;
+                posted = stage.mFirstPosted;
+                stage.mPending = new LinkedHashSet<String>();
+            }
+            final long start = System.nanoTime();
+            try {
+                stage.mStage.apply(changes);
+            } catch (final RuntimeException e) {
+                // A failed side effect mustn't take the others down with it
+                synchronized (this) {
+                    stage.mFailures++;
+                }
+            }
+            final long end = System.nanoTime();
+            synchronized (this) {
+                stage.record(start - posted, end - start);
+            }
+        }
+    }
+
+    /**
+     * A stage, the changes waiting for it and its counters. Guarded by the
+     * dispatcher's lock.
+     */
+    private final class StageRunner implements Runnable {
+
+        private final String mName;
+
+        private final long mDelay;
+
+        private final Stage mStage;
+
+        private Set<String> mPending = new LinkedHashSet<String>();
+
+        private long mFirstPosted;
+
+        /* The changes posted and the runs they were folded into */
+        private long mPosted, mRuns, mFailures;
+
+        /* Time from the first change of a run being posted to the run starting */
+        private long mWaitTotal, mWaitMax;
+
+        /* Time spent in the stage itself */
+        private long mRunTotal, mRunMax, mRunLast;
+
+        /**
+         * Constructor of <code>StageRunner</code>
+         *
+         * @param name The name of the stage
+         * @param delay How long to gather changes before running
+         * @param stage The side effect
+         */
+        public StageRunner(final String name, final long delay, final Stage stage) {
+            mName = name;
+            mDelay = delay;
+            mStage = stage;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            ChangeDispatcher.this.run(this);
+        }
+
+        /**
+         * Adds a change, scheduling a run if none is waiting
+         *
+         * @param what The change
+         */
+        public void post(final String what) {
+            mPosted++;
+            if (mPending.isEmpty()) {
+                mFirstPosted = System.nanoTime();
+                if (mDelay > 0) {
+                    mHandler.postDelayed(this, mDelay);
+                } else {
+                    mHandler.post(this);
+                }
+            }
+            mPending.add(what);
+        }
+
+        /**
+         * Adds a run to the counters
+         *
+         * @param wait The time the run waited, in nanoseconds
+         * @param time The time the run took, in nanoseconds
+         */
+        public void record(final long wait, final long time) {
+            mRuns++;
+            mWaitTotal += wait;
+            mWaitMax = Math.max(mWaitMax, wait);
+            mRunTotal += time;
+            mRunMax = Math.max(mRunMax, time);
+            mRunLast = time;
+        }
+
+        /**
+         * Prints the counters
+         *
+         * @param writer The writer to print to
+         */
+        public void dump(final PrintWriter writer) {
+            final long runs = Math.max(1, mRuns);
+            writer.println("  " + mName + ": posted=" + mPosted + " runs=" + mRuns
+                    + " failures=" + mFailures);
+            writer.println("    wait avg=" + mWaitTotal / runs / 1000 + "us max=" + mWaitMax
+                    / 1000 + "us");
+            writer.println("    run avg=" + mRunTotal / runs / 1000 + "us max=" + mRunMax / 1000
+                    + "us last=" + mRunLast / 1000 + "us");
+        }
+    }
+}
@@ -11,11 +11,18 @@
 
 package com.andrew.apollo;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.Random;
-import java.util.TreeSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import android.annotation.SuppressLint;
 import android.app.PendingIntent;
@@ -47,10 +54,9 @@ import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.os.RemoteException;
 import android.os.SystemClock;
-import android.provider.BaseColumns;
 import android.provider.MediaStore;
-import android.provider.MediaStore.Audio.AudioColumns;
 import android.provider.MediaStore.MediaColumns;
+import android.util.Log;
 
 import com.andrew.apollo.appwidgets.AppWidgetLarge;
 import com.andrew.apollo.appwidgets.AppWidgetLargeAlternate;
@@ -58,13 +64,23 @@ import com.andrew.apollo.appwidgets.AppWidgetSmall;
 import com.andrew.apollo.appwidgets.RecentWidgetProvider;
 import com.andrew.apollo.cache.ImageCache;
 import com.andrew.apollo.cache.ImageFetcher;
+import com.andrew.apollo.cache.NowPlayingArtwork;
+import com.andrew.apollo.model.PlaybackState;
+import com.andrew.apollo.model.QueueChanges;
+import com.andrew.apollo.model.QueueSource;
+import com.andrew.apollo.model.TrackMetadata;
+import com.andrew.apollo.provider.AutoShuffleSource;
 import com.andrew.apollo.provider.FavoritesStore;
+import com.andrew.apollo.provider.QueueStore;
 import com.andrew.apollo.provider.RecentStore;
+import com.andrew.apollo.provider.TrackMetadataCache;
 import com.andrew.apollo.utils.ApolloUtils;
-import com.andrew.apollo.utils.Lists;
+import com.andrew.apollo.utils.QueueList;
 import com.andrew.apollo.utils.MusicUtils;
 import com.andrew.apollo.utils.PreferenceUtils;
+import com.andrew.apollo.utils.QueueChangeLog;
 import com.andrew.apollo.utils.SharedPreferencesCompat;
+import com.andrew.apollo.utils.ShuffleOrder;
 
 /**
  * A backbround {@link Service} used to keep music playing between activities
@@ -73,6 +89,8 @@ import com.andrew.apollo.utils.SharedPreferencesCompat;
 @SuppressLint("NewApi")
 public class MusicPlaybackService extends Service {
 
+    private static final String TAG = "MusicPlaybackService";
+
     private static final class CompatMediaPlayer extends MediaPlayer implements
             OnCompletionListener {
 
@@ -150,24 +168,34 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public void handleMessage(final Message msg) {
-            if (mService.get().isPlaying() || mService.get().mPausedByTransientLossOfFocus
-                    || mService.get().mServiceInUse
-                    || mService.get().mPlayerHandler.hasMessages(TRACK_ENDED)) {
-                return;
-            }
-            mService.get().saveQueue(true);
-            mService.get().stopSelf(mService.get().mServiceStartId);
+            // The queue is saved on the player thread, which owns it
+            mService.get().sendCommand(COMMAND_IDLE_STOP, 0, 0, null);
         }
     }
 
     private static final class MultiPlayer implements MediaPlayer.OnErrorListener,
             MediaPlayer.OnCompletionListener {
 
-        private CompatMediaPlayer mCurrentMediaPlayer = new CompatMediaPlayer();
+        /**
+         * Returned by {@link #finishPreparing(Preparation, boolean)} for the
+         * current track
+         */
+        public static final int CURRENT = 1;
+
+        /**
+         * Returned by {@link #finishPreparing(Preparation, boolean)} for the
+         * next track
+         */
+        public static final int NEXT = 2;
+
+        private volatile CompatMediaPlayer mCurrentMediaPlayer = new CompatMediaPlayer();
+
+        /* The preparations still running, null once a player is ready */
+        private volatile Preparation mCurrentPreparation, mNextPreparation;
 
         private Handler mHandler;
 
-        private boolean mIsInitialized = false;
+        private volatile boolean mIsInitialized = false;
 
         private CompatMediaPlayer mNextMediaPlayer;
 
@@ -206,12 +234,20 @@ public class MusicPlaybackService extends Service {
             return mIsInitialized;
         }
 
+        /**
+         * @return True while the current track is being prepared
+         */
+        public boolean isPreparing() {
+            return mCurrentPreparation != null;
+        }
+
         /**
          * {@inheritDoc}
          */
         @Override
         public void onCompletion(final MediaPlayer mp) {
-            if (mp == mCurrentMediaPlayer && mNextMediaPlayer != null) {
+            if (mp == mCurrentMediaPlayer && mNextMediaPlayer != null
+                    && mNextPreparation == null) {
                 mCurrentMediaPlayer.release();
                 mCurrentMediaPlayer = mNextMediaPlayer;
                 mNextMediaPlayer = null;
@@ -262,6 +298,7 @@ public class MusicPlaybackService extends Service {
          * Releases resources associated with this MediaPlayer object.
          */
         public void release() {
+            setNextDataSource(null);
             stop();
             mCurrentMediaPlayer.release();
         }
@@ -287,48 +324,119 @@ public class MusicPlaybackService extends Service {
         }
 
         /**
+         * Starts preparing a track as the current one, cancelling whatever
+         * was being prepared before. The handler is sent {@link #PREPARED} or
+         * {@link #PREPARE_FAILED} once it's done, see
+         * {@link #finishPreparing(Preparation, boolean)}.
+         * 
          * @param path The path of the file, or the http/rtsp URL of the stream
          *            you want to play
          */
         public void setDataSource(final String path) {
-            mIsInitialized = setDataSourceImpl(mCurrentMediaPlayer, path);
-            if (mIsInitialized) {
-                setNextDataSource(null);
-            }
+            setNextDataSource(null);
+            stop();
+            mCurrentPreparation = prepare(mCurrentMediaPlayer, path);
         }
 
         /**
+         * Starts preparing a player without waiting for it. The media server
+         * reads the file in the background and calls back when it's done, and
+         * a timeout is posted in case it never does.
+         * 
          * @param player The {@link MediaPlayer} to use
          * @param path The path of the file, or the http/rtsp URL of the stream
          *            you want to play
-         * @return True if the <code>player</code> has been prepared and is
-         *         ready to play, false otherwise
+         * @return The preparation, even if it failed straight away
          */
-        private boolean setDataSourceImpl(final MediaPlayer player, final String path) {
+        private Preparation prepare(final MediaPlayer player, final String path) {
+            final Preparation preparation = new Preparation();
             try {
                 player.reset();
-                player.setOnPreparedListener(null);
+                player.setOnPreparedListener(preparation);
+                player.setOnErrorListener(preparation);
                 if (path.startsWith("content://")) {
                     player.setDataSource(mService.get(), Uri.parse(path));
                 } else {
                     player.setDataSource(path);
                 }
                 player.setAudioStreamType(AudioManager.STREAM_MUSIC);
-                player.prepare();
-            } catch (final IOException todo) {
-                // TODO: notify the user why the file couldn't be opened
-                return false;
-            } catch (final IllegalArgumentException todo) {
-                // TODO: notify the user why the file couldn't be opened
-                return false;
+                player.prepareAsync();
+            } catch (final IOException e) {
+                return prepareFailed(preparation, path, e);
+            } catch (final IllegalArgumentException e) {
+                return prepareFailed(preparation, path, e);
+            } catch (final IllegalStateException e) {
+                return prepareFailed(preparation, path, e);
+            }
+            mHandler.sendMessageDelayed(mHandler.obtainMessage(PREPARE_FAILED, 1, 0, preparation),
+                    PREPARE_TIMEOUT);
+            return preparation;
+        }
+
+        /**
+         * Logs why a player couldn't start preparing and reports the failure
+         * like any other, so the service skips or retries the track
+         * 
+         * @param preparation The preparation that failed
+         * @param path The path of the file
+         * @param e Why it failed
+         * @return The preparation
+         */
+        private Preparation prepareFailed(final Preparation preparation, final String path,
+                final Exception e) {
+            Log.e(TAG, "prepare - " + path + " - " + e);
+            mHandler.obtainMessage(PREPARE_FAILED, 0, 0, preparation).sendToTarget();
+            return preparation;
+        }
+
+        /**
+         * Hands a player that finished preparing over to playback, or drops
+         * it if it failed. Called on the handler's thread.
+         * 
+         * @param preparation The preparation that ended
+         * @param prepared True if the player is ready, false if it failed or
+         *            took too long
+         * @return {@link #CURRENT} or {@link #NEXT} for the track it was
+         *         preparing, or 0 if it was cancelled since
+         */
+        public int finishPreparing(final Preparation preparation, final boolean prepared) {
+            mHandler.removeMessages(PREPARE_FAILED, preparation);
+            if (preparation == mCurrentPreparation) {
+                mCurrentPreparation = null;
+                if (prepared) {
+                    ready(mCurrentMediaPlayer);
+                    mIsInitialized = true;
+                } else {
+                    mCurrentMediaPlayer.reset();
+                }
+                return CURRENT;
+            } else if (preparation == mNextPreparation) {
+                mNextPreparation = null;
+                if (prepared && mIsInitialized) {
+                    ready(mNextMediaPlayer);
+                    mCurrentMediaPlayer.setNextMediaPlayer(mNextMediaPlayer);
+                } else {
+                    mNextMediaPlayer.release();
+                    mNextMediaPlayer = null;
+                }
+                return NEXT;
             }
+            return 0;
+        }
+
+        /**
+         * Listens to a prepared player and opens its audio effects session
+         * 
+         * @param player The {@link MediaPlayer} that's ready to play
+         */
+        private void ready(final MediaPlayer player) {
+            player.setOnPreparedListener(null);
             player.setOnCompletionListener(this);
             player.setOnErrorListener(this);
             final Intent mIntent = new Intent(AudioEffect.ACTION_OPEN_AUDIO_EFFECT_CONTROL_SESSION);
-            mIntent.putExtra(AudioEffect.EXTRA_AUDIO_SESSION, getAudioSessionId());
+            mIntent.putExtra(AudioEffect.EXTRA_AUDIO_SESSION, player.getAudioSessionId());
             mIntent.putExtra(AudioEffect.EXTRA_PACKAGE_NAME, mService.get().getPackageName());
             mService.get().sendBroadcast(mIntent);
-            return true;
         }
 
         /**
@@ -347,25 +455,26 @@ public class MusicPlaybackService extends Service {
          *            you want to play
          */
         public void setNextDataSource(final String path) {
-            mCurrentMediaPlayer.setNextMediaPlayer(null);
+            if (mIsInitialized) {
+                mCurrentMediaPlayer.setNextMediaPlayer(null);
+            }
+            if (mNextPreparation != null) {
+                mHandler.removeMessages(PREPARE_FAILED, mNextPreparation);
+                mNextPreparation = null;
+            }
             if (mNextMediaPlayer != null) {
                 mNextMediaPlayer.release();
                 mNextMediaPlayer = null;
             }
-            if (path == null) {
+            if (path == null || !mIsInitialized) {
                 return;
             }
+            // Prepared while the current track plays, it's only attached once
+            // it's ready
             mNextMediaPlayer = new CompatMediaPlayer();
             mNextMediaPlayer.setWakeMode(mService.get(), PowerManager.PARTIAL_WAKE_LOCK);
             mNextMediaPlayer.setAudioSessionId(getAudioSessionId());
-            if (setDataSourceImpl(mNextMediaPlayer, path)) {
-                mCurrentMediaPlayer.setNextMediaPlayer(mNextMediaPlayer);
-            } else {
-                if (mNextMediaPlayer != null) {
-                    mNextMediaPlayer.release();
-                    mNextMediaPlayer = null;
-                }
-            }
+            mNextPreparation = prepare(mNextMediaPlayer, path);
         }
 
         /**
@@ -385,12 +494,42 @@ public class MusicPlaybackService extends Service {
         }
 
         /**
-         * Resets the MediaPlayer to its uninitialized state.
+         * Resets the MediaPlayer to its uninitialized state, cancelling the
+         * preparation if there's one running.
          */
         public void stop() {
+            if (mCurrentPreparation != null) {
+                mHandler.removeMessages(PREPARE_FAILED, mCurrentPreparation);
+                mCurrentPreparation = null;
+            }
             mCurrentMediaPlayer.reset();
             mIsInitialized = false;
         }
+
+        /**
+         * A player being prepared. Its callbacks are handed to the handler,
+         * which ignores them if the preparation was cancelled by then.
+         */
+        private final class Preparation implements MediaPlayer.OnPreparedListener,
+                MediaPlayer.OnErrorListener {
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void onPrepared(final MediaPlayer mp) {
+                mHandler.obtainMessage(PREPARED, this).sendToTarget();
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public boolean onError(final MediaPlayer mp, final int what, final int extra) {
+                mHandler.obtainMessage(PREPARE_FAILED, 0, 0, this).sendToTarget();
+                return true;
+            }
+        }
     }
 
     private static final class MusicPlayerHandler extends Handler {
@@ -442,13 +581,9 @@ public class MusicPlaybackService extends Service {
                     }
                     break;
                 case TRACK_WENT_TO_NEXT:
-                    mService.get().mPlayPos = mService.get().mNextPlayPos;
-                    if (mService.get().mCursor != null) {
-                        mService.get().mCursor.close();
-                        mService.get().mCursor = null;
-                    }
-                    mService.get().mCursor = mService.get().getCursorForId(
-                            mService.get().mPlayList[mService.get().mPlayPos]);
+                    mService.get().moveToPosition(mService.get().mNextPlayPos);
+                    mService.get().setTrack(mService.get().mMetadataCache.get(
+                            mService.get().mPlayList.get(mService.get().mPlayPos)));
                     mService.get().notifyChange(META_CHANGED);
                     mService.get().buildNotification();
                     mService.get().setNextTrack();
@@ -464,6 +599,80 @@ public class MusicPlaybackService extends Service {
                 case RELEASE_WAKELOCK:
                     mService.get().mWakeLock.release();
                     break;
+                case AUTO_SHUFFLE_READY:
+                    mService.get().onAutoShuffleReady(msg.arg1 != 0);
+                    break;
+                case PREPARED:
+                    mService.get().onPrepareFinished((MultiPlayer.Preparation) msg.obj, true,
+                            false);
+                    break;
+                case PREPARE_FAILED:
+                    mService.get().onPrepareFinished((MultiPlayer.Preparation) msg.obj, false,
+                            msg.arg1 != 0);
+                    break;
+                case OPEN_RETRY:
+                    mService.get().retryOpen();
+                    break;
+                case COMMAND_OPEN:
+                    mService.get().open((long[]) msg.obj, msg.arg1);
+                    break;
+                case COMMAND_OPEN_FILE:
+                    mService.get().openFile((String) msg.obj);
+                    break;
+                case COMMAND_OPEN_SOURCE:
+                    mService.get().open((QueueSource) msg.obj);
+                    break;
+                case COMMAND_ENQUEUE:
+                    mService.get().enqueue((long[]) msg.obj, msg.arg1);
+                    break;
+                case COMMAND_PLAY:
+                    mService.get().play();
+                    break;
+                case COMMAND_PAUSE:
+                    mService.get().pause();
+                    break;
+                case COMMAND_STOP:
+                    mService.get().stop();
+                    break;
+                case COMMAND_NEXT:
+                    mService.get().gotoNext(true);
+                    break;
+                case COMMAND_PREV:
+                    mService.get().prev();
+                    break;
+                case COMMAND_SEEK:
+                    mService.get().seek((Long) msg.obj);
+                    break;
+                case COMMAND_SET_QUEUE_POSITION:
+                    mService.get().setQueuePosition(msg.arg1);
+                    break;
+                case COMMAND_MOVE_QUEUE_ITEM:
+                    mService.get().moveQueueItem(msg.arg1, msg.arg2);
+                    break;
+                case COMMAND_SET_SHUFFLE_MODE:
+                    mService.get().setShuffleMode(msg.arg1);
+                    break;
+                case COMMAND_SET_REPEAT_MODE:
+                    mService.get().setRepeatMode(msg.arg1);
+                    break;
+                case COMMAND_TOGGLE_FAVORITE:
+                    mService.get().toggleFavorite();
+                    break;
+                case COMMAND_INTENT:
+                    mService.get().handleCommandIntent((Intent) msg.obj);
+                    break;
+                case COMMAND_STORAGE:
+                    mService.get().handleStorageIntent((Intent) msg.obj);
+                    break;
+                case RESTORE_QUEUE:
+                    mService.get().restoreQueue();
+                    break;
+                case COMMAND_UNBIND:
+                    mService.get().onUnbound();
+                    break;
+                case COMMAND_IDLE_STOP:
+                    mService.get().stopIfIdle();
+                    break;
                 case FOCUSCHANGE:
                     switch (msg.arg1) {
                         case AudioManager.AUDIOFOCUS_LOSS:
@@ -524,7 +733,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public void enqueue(final long[] list, final int action) throws RemoteException {
-            mService.get().enqueue(list, action);
+            mService.get().sendCommand(COMMAND_ENQUEUE, action, 0, list);
         }
 
         /**
@@ -567,6 +776,14 @@ public class MusicPlaybackService extends Service {
             return mService.get().getAudioId();
         }
 
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public TrackMetadata getTrackMetadata() throws RemoteException {
+            return mService.get().getTrackMetadata();
+        }
+
         /**
          * {@inheritDoc}
          */
@@ -599,6 +816,30 @@ public class MusicPlaybackService extends Service {
             return mService.get().getQueue();
         }
 
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long[] getQueueSlice(final int offset, final int length) throws RemoteException {
+            return mService.get().getQueueSlice(offset, length);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public QueueChanges getQueueChangesSince(final int version) throws RemoteException {
+            return mService.get().getQueueChangesSince(version);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public QueueSource getQueueSource() throws RemoteException {
+            return mService.get().getQueueSource();
+        }
+
         /**
          * {@inheritDoc}
          */
@@ -607,6 +848,31 @@ public class MusicPlaybackService extends Service {
             return mService.get().getQueuePosition();
         }
 
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public PlaybackState getPlaybackState() throws RemoteException {
+            return mService.get().getPlaybackState();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void registerCallback(final IApolloCallback callback, final long positionInterval)
+                throws RemoteException {
+            mService.get().mPlaybackCallbacks.register(callback, positionInterval);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void unregisterCallback(final IApolloCallback callback) throws RemoteException {
+            mService.get().mPlaybackCallbacks.unregister(callback);
+        }
+
         /**
          * {@inheritDoc}
          */
@@ -652,7 +918,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public void moveQueueItem(final int from, final int to) throws RemoteException {
-            mService.get().moveQueueItem(from, to);
+            mService.get().sendCommand(COMMAND_MOVE_QUEUE_ITEM, from, to, null);
         }
 
         /**
@@ -660,7 +926,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public void next() throws RemoteException {
-            mService.get().gotoNext(true);
+            mService.get().sendCommand(COMMAND_NEXT, 0, 0, null);
         }
 
         /**
@@ -668,7 +934,15 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public void open(final long[] list, final int position) throws RemoteException {
-            mService.get().open(list, position);
+            mService.get().sendCommand(COMMAND_OPEN, position, 0, list);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void openSource(final QueueSource source) throws RemoteException {
+            mService.get().sendCommand(COMMAND_OPEN_SOURCE, 0, 0, source);
         }
 
         /**
@@ -676,7 +950,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public void openFile(final String path) throws RemoteException {
-            mService.get().openFile(path);
+            mService.get().sendCommand(COMMAND_OPEN_FILE, 0, 0, path);
         }
 
         /**
@@ -684,7 +958,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public void pause() throws RemoteException {
-            mService.get().pause();
+            mService.get().sendCommand(COMMAND_PAUSE, 0, 0, null);
         }
 
         /**
@@ -692,7 +966,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public void play() throws RemoteException {
-            mService.get().play();
+            mService.get().sendCommand(COMMAND_PLAY, 0, 0, null);
         }
 
         /**
@@ -708,7 +982,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public void prev() throws RemoteException {
-            mService.get().prev();
+            mService.get().sendCommand(COMMAND_PREV, 0, 0, null);
         }
 
         /**
@@ -724,7 +998,33 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public int removeTrack(final long id) throws RemoteException {
-            return mService.get().removeTrack(id);
+            return mService.get().runCommand(new Callable<Integer>() {
+
+                /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                public Integer call() {
+                    return mService.get().removeTrack(id);
+                }
+            });
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int removeTracksById(final long[] ids) throws RemoteException {
+            return mService.get().runCommand(new Callable<Integer>() {
+
+                /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                public Integer call() {
+                    return mService.get().removeTracksById(ids);
+                }
+            });
         }
 
         /**
@@ -732,7 +1032,16 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public int removeTracks(final int first, final int last) throws RemoteException {
-            return mService.get().removeTracks(first, last);
+            return mService.get().runCommand(new Callable<Integer>() {
+
+                /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                public Integer call() {
+                    return mService.get().removeTracks(first, last);
+                }
+            });
         }
 
         /**
@@ -740,7 +1049,10 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public long seek(final long position) throws RemoteException {
-            return mService.get().seek(position);
+            final MusicPlaybackService service = mService.get();
+            service.sendCommand(COMMAND_SEEK, 0, 0, position);
+            // Where it lands is worked out here, without waiting for the seek
+            return service.clampSeek(position);
         }
 
         /**
@@ -748,7 +1060,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public void setQueuePosition(final int index) throws RemoteException {
-            mService.get().setQueuePosition(index);
+            mService.get().sendCommand(COMMAND_SET_QUEUE_POSITION, index, 0, null);
         }
 
         /**
@@ -756,7 +1068,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public void setRepeatMode(final int repeatmode) throws RemoteException {
-            mService.get().setRepeatMode(repeatmode);
+            mService.get().sendCommand(COMMAND_SET_REPEAT_MODE, repeatmode, 0, null);
         }
 
         /**
@@ -764,7 +1076,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public void setShuffleMode(final int shufflemode) throws RemoteException {
-            mService.get().setShuffleMode(shufflemode);
+            mService.get().sendCommand(COMMAND_SET_SHUFFLE_MODE, shufflemode, 0, null);
         }
 
         /**
@@ -772,7 +1084,7 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public void stop() throws RemoteException {
-            mService.get().stop();
+            mService.get().sendCommand(COMMAND_STOP, 0, 0, null);
         }
 
         /**
@@ -780,18 +1092,14 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public void toggleFavorite() throws RemoteException {
-            mService.get().toggleFavorite();
+            mService.get().sendCommand(COMMAND_TOGGLE_FAVORITE, 0, 0, null);
         }
 
     }
 
     private static final class Shuffler {
 
-        private final LinkedList<Integer> mHistoryOfNumbers = new LinkedList<Integer>();
-
-        private int mPrevious;
-
-        private final TreeSet<Integer> mPreviousNumbers = new TreeSet<Integer>();
+        private int mPrevious = -1;
 
         private final Random mRandom = new Random();
 
@@ -802,230 +1110,398 @@ public class MusicPlaybackService extends Service {
             super();
         }
 
-        /**
-         * Removes old tracks and cleans up the history preparing for new tracks
-         * to be added to the mapping
-         */
-        private void cleanUpHistory() {
-            if (!mHistoryOfNumbers.isEmpty() && mHistoryOfNumbers.size() >= MAX_HISTORY_SIZE) {
-                for (int i = 0; i < Math.max(1, MAX_HISTORY_SIZE / 2); i++) {
-                    mPreviousNumbers.remove(mHistoryOfNumbers.removeFirst());
-                }
-            }
-        }
-
         /**
          * @param interval The length the queue
-         * @return The position of the next track to play
+         * @return A random position, never the same one twice in a row
          */
         public int nextInt(final int interval) {
             int next;
             do {
                 next = mRandom.nextInt(interval);
-            } while (next == mPrevious && interval > 1
-                    && !mPreviousNumbers.contains(Integer.valueOf(next)));
+            } while (next == mPrevious && interval > 1);
             mPrevious = next;
-            mHistoryOfNumbers.add(mPrevious);
-            mPreviousNumbers.add(mPrevious);
-            cleanUpHistory();
             return next;
         }
     }
 
-    public static final String CMDNAME = "command";
-
-    public static final String CMDNEXT = "next";
+    /**
+     * A queue read back from the last session, see
+     * {@link MusicPlaybackService#readQueue(int)}
+     */
+    private static final class RestoredQueue {
 
-    public static final String CMDNOTIF = "buttonId";
+        /* The saved queue, its first mSize tracks are the ones kept */
+        private final QueueStore.Snapshot mSnapshot;
 
-    public static final String CMDPAUSE = "pause";
+        private final int mSize;
 
-    public static final String CMDPLAY = "play";
+        private final int mPosition;
 
-    public static final String CMDPREVIOUS = "previous";
+        private final long mSeekPosition;
 
-    public static final String CMDSTOP = "stop";
+        /* The current track, read ahead so it can be shown straight away */
+        private final TrackMetadata mTrack;
 
-    public static final String CMDTOGGLEPAUSE = "togglepause";
+        /**
+         * Constructor of <code>RestoredQueue</code>
+         * 
+         * @param snapshot The saved queue
+         * @param size The number of tracks kept, 0 to clear the queue
+         * @param position The current position
+         * @param seekPosition Where to start the current track
+         * @param track The current track
+         */
+        public RestoredQueue(final QueueStore.Snapshot snapshot, final int size,
+                final int position, final long seekPosition, final TrackMetadata track) {
+            mSnapshot = snapshot;
+            mSize = size;
+            mPosition = position;
+            mSeekPosition = seekPosition;
+            mTrack = track;
+        }
+    }
 
     /**
-     * Indicates to fade the volume down
+     * Indicates party shuffle has tracks to pick from
      */
-    private static final int FADEDOWN = 6;
+    private static final int AUTO_SHUFFLE_READY = 8;
 
     /**
-     * Indicates to fade the volume back up
+     * Indicates a player is prepared
      */
-    private static final int FADEUP = 7;
+    private static final int PREPARED = 9;
 
     /**
-     * Indicates some sort of focus change, maybe a phone call
+     * Indicates a player failed to prepare, or took too long
      */
-    private static final int FOCUSCHANGE = 5;
+    private static final int PREPARE_FAILED = 10;
 
     /**
-     * Used to save the queue as reverse hexadecimal numbers, which we can
-     * generate faster than normal decimal or // hexadecimal numbers, which in
-     * turn allows us to save the playlist // more often without worrying too
-     * much about performance
+     * Indicates to try opening the current track again
      */
-    private static final char HEX_DIGITS[] = new char[] {
-            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
-    };
-
-    private static final int IDCOLIDX = 0;
+    private static final int OPEN_RETRY = 11;
 
     /**
-     * Idle time before stopping the foreground notfication (1 minute)
+     * Indicates a client opened a list. Commands like this one run one at a
+     * time on the player handler's thread, see
+     * {@link #sendCommand(int, int, int, Object)}.
      */
-    private static final int IDLE_DELAY = 60000;
+    private static final int COMMAND_OPEN = 12;
 
     /**
-     * Called to kill the notification while Apollo is in the foreground
+     * Indicates a client opened a file
      */
-    public static final String KILL_FOREGROUND = "com.andrew.apollo.killforeground";
+    private static final int COMMAND_OPEN_FILE = 13;
 
     /**
-     * Moves a list to the last position in the queue
+     * Indicates a client queued tracks
      */
-    public static final int LAST = 3;
+    private static final int COMMAND_ENQUEUE = 14;
 
     /**
-     * The max size allowed for the track history
+     * Indicates a client started playback
      */
-    private static final int MAX_HISTORY_SIZE = 100;
+    private static final int COMMAND_PLAY = 15;
 
     /**
-     * Indicates the meta data has changed in some way, like a track change
+     * Indicates a client paused playback
      */
-    public static final String META_CHANGED = "com.andrew.apollo.metachanged";
+    private static final int COMMAND_PAUSE = 16;
 
     /**
-     * Keeps a mapping of the track history
+     * Indicates a client stopped playback
      */
-    private static final LinkedList<Integer> mHistory = Lists.newLinkedList();
+    private static final int COMMAND_STOP = 17;
 
     /**
-     * Used to shuffle the tracks
+     * Indicates a client skipped to the next track
      */
-    private static final Shuffler mShuffler = new Shuffler();
+    private static final int COMMAND_NEXT = 18;
 
     /**
-     * Moves a list to the next position in the queue
+     * Indicates a client went back to the previous track
      */
-    public static final int NEXT = 2;
+    private static final int COMMAND_PREV = 19;
 
     /**
-     * Called to go to the next track
+     * Indicates a client seeked
      */
-    public static final String NEXT_ACTION = "com.andrew.apollo.next";
+    private static final int COMMAND_SEEK = 20;
 
     /**
-     * Moves a list to the front of the queue
+     * Indicates a client picked a track in the queue
      */
-    public static final int NOW = 1;
+    private static final int COMMAND_SET_QUEUE_POSITION = 21;
 
     /**
-     * Called to go to pause the playback
+     * Indicates a client moved a track in the queue
      */
-    public static final String PAUSE_ACTION = "com.andrew.apollo.pause";
+    private static final int COMMAND_MOVE_QUEUE_ITEM = 22;
 
     /**
-     * Indicates that the music has paused or resumed
+     * Indicates a client changed the shuffle mode
      */
-    public static final String PLAYSTATE_CHANGED = "com.andrew.apollo.playstatechanged";
+    private static final int COMMAND_SET_SHUFFLE_MODE = 23;
 
     /**
-     * Called to go to the previous track
+     * Indicates a client changed the repeat mode
      */
-    public static final String PREVIOUS_ACTION = "com.andrew.apollo.previous";
+    private static final int COMMAND_SET_REPEAT_MODE = 24;
 
     /**
-     * The columns used to retrieve any info from the current track
+     * Indicates a client toggled the current track as a favorite
      */
-    private static final String[] PROJECTION = new String[] {
-            "audio._id AS _id", MediaStore.Audio.Media.ARTIST, MediaStore.Audio.Media.ALBUM,
-            MediaStore.Audio.Media.TITLE, MediaStore.Audio.Media.DATA,
-            MediaStore.Audio.Media.MIME_TYPE, MediaStore.Audio.Media.ALBUM_ID,
-            MediaStore.Audio.Media.ARTIST_ID
-    };
+    private static final int COMMAND_TOGGLE_FAVORITE = 25;
 
     /**
-     * Indicates the queue has been updated
+     * Indicates an intent sent by a notification, a widget or the headset
+     * buttons
      */
-    public static final String QUEUE_CHANGED = "com.andrew.apollo.queuechanged";
+    private static final int COMMAND_INTENT = 26;
 
     /**
-     * Used to easily notify a list that it should refresh. i.e. A playlist
-     * changes
+     * Indicates the external storage was mounted or ejected
      */
-    public static final String REFRESH = "com.andrew.apollo.refresh";
+    private static final int COMMAND_STORAGE = 27;
 
     /**
-     * Indicates when the release the wake lock
+     * Indicates to bring the queue back from the last session
      */
-    private static final int RELEASE_WAKELOCK = 3;
+    private static final int RESTORE_QUEUE = 28;
 
     /**
-     * Called to change the repeat mode
+     * Indicates a client opened a {@link QueueSource}
      */
-    public static final String REPEAT_ACTION = "com.andrew.apollo.repeat";
+    private static final int COMMAND_OPEN_SOURCE = 29;
 
     /**
-     * Repeats all the tracks in a list
+     * Indicates the last client unbound
      */
-    public static final int REPEAT_ALL = 2;
+    private static final int COMMAND_UNBIND = 30;
 
     /**
-     * Repeats the current track in a list
+     * Indicates the service has been idle for a while and may stop
      */
-    public static final int REPEAT_CURRENT = 1;
+    private static final int COMMAND_IDLE_STOP = 31;
 
     /**
-     * Turns repeat off
+     * How long a client waits for a command that returns a result
      */
-    public static final int REPEAT_NONE = 0;
+    private static final long COMMAND_TIMEOUT = 5000;
 
     /**
-     * Indicates the repeat mode chaned
+     * How long a player may take to prepare before it's given up on
      */
-    public static final String REPEATMODE_CHANGED = "com.andrew.apollo.repeatmodechanged";
+    private static final long PREPARE_TIMEOUT = 10000;
 
     /**
-     * Indicates the player died
+     * How long to wait before opening another track after a failure, doubled
+     * for every failure in a row
      */
-    private static final int SERVER_DIED = 4;
+    private static final long OPEN_RETRY_DELAY = 100;
 
     /**
-     * Called to indicate a general service commmand. Used in
-     * {@link MediaButtonIntentReceiver}
+     * The longest wait before opening another track after a failure
      */
-    public static final String SERVICECMD = "com.andrew.apollo.musicservicecommand";
+    private static final long OPEN_RETRY_MAX_DELAY = 2000;
 
     /**
-     * Called to change the shuffle mode
+     * The most tracks in a row that may fail to open before giving up
      */
-    public static final String SHUFFLE_ACTION = "com.andrew.apollo.shuffle";
+    private static final int MAX_OPEN_FAILURES = 10;
 
     /**
-     * Party shuffle
+     * How long to gather track changes before updating the play history
      */
-    public static final int SHUFFLE_AUTO = 2;
+    private static final long HISTORY_BATCH_DELAY = 1000;
 
     /**
-     * Shuffles no songs, turns shuffling off
+     * How long to gather changes before saving the position
      */
-    public static final int SHUFFLE_NONE = 0;
+    private static final long QUEUE_BATCH_DELAY = 500;
 
     /**
-     * Shuffles all songs
+     * The number of upcoming tracks whose metadata is read ahead
      */
-    public static final int SHUFFLE_NORMAL = 1;
+    private static final int LOOKAHEAD = 10;
 
     /**
-     * Indicates the shuffle mode chaned
+     * The number of earlier tracks whose metadata is kept at hand
      */
-    public static final String SHUFFLEMODE_CHANGED = "com.andrew.apollo.shufflemodechanged";
+    private static final int LOOKBEHIND = 3;
+
+    /**
+     * How long to gather changes before updating the app-widgets
+     */
+    private static final long WIDGET_BATCH_DELAY = 250;
+
+    public static final String CMDNAME = "command";
+
+    public static final String CMDNEXT = "next";
+
+    public static final String CMDNOTIF = "buttonId";
+
+    public static final String CMDPAUSE = "pause";
+
+    public static final String CMDPLAY = "play";
+
+    public static final String CMDPREVIOUS = "previous";
+
+    public static final String CMDSTOP = "stop";
+
+    public static final String CMDTOGGLEPAUSE = "togglepause";
+
+    /**
+     * Indicates to fade the volume down
+     */
+    private static final int FADEDOWN = 6;
+
+    /**
+     * Indicates to fade the volume back up
+     */
+    private static final int FADEUP = 7;
+
+    /**
+     * Indicates some sort of focus change, maybe a phone call
+     */
+    private static final int FOCUSCHANGE = 5;
+
+    /**
+     * Idle time before stopping the foreground notfication (1 minute)
+     */
+    private static final int IDLE_DELAY = 60000;
+
+    /**
+     * Called to kill the notification while Apollo is in the foreground
+     */
+    public static final String KILL_FOREGROUND = "com.andrew.apollo.killforeground";
+
+    /**
+     * Moves a list to the last position in the queue
+     */
+    public static final int LAST = 3;
+
+    /**
+     * The max size allowed for the track history
+     */
+    private static final int MAX_HISTORY_SIZE = 100;
+
+    /**
+     * Indicates the meta data has changed in some way, like a track change
+     */
+    public static final String META_CHANGED = "com.andrew.apollo.metachanged";
+
+    /**
+     * Used to shuffle the tracks
+     */
+    private static final Shuffler mShuffler = new Shuffler();
+
+    /**
+     * Moves a list to the next position in the queue
+     */
+    public static final int NEXT = 2;
+
+    /**
+     * Called to go to the next track
+     */
+    public static final String NEXT_ACTION = "com.andrew.apollo.next";
+
+    /**
+     * Moves a list to the front of the queue
+     */
+    public static final int NOW = 1;
+
+    /**
+     * Called to go to pause the playback
+     */
+    public static final String PAUSE_ACTION = "com.andrew.apollo.pause";
+
+    /**
+     * Indicates that the music has paused or resumed
+     */
+    public static final String PLAYSTATE_CHANGED = "com.andrew.apollo.playstatechanged";
+
+    /**
+     * Called to go to the previous track
+     */
+    public static final String PREVIOUS_ACTION = "com.andrew.apollo.previous";
+
+    /**
+     * Indicates the queue has been updated
+     */
+    public static final String QUEUE_CHANGED = "com.andrew.apollo.queuechanged";
+
+    /**
+     * Used to easily notify a list that it should refresh. i.e. A playlist
+     * changes
+     */
+    public static final String REFRESH = "com.andrew.apollo.refresh";
+
+    /**
+     * Indicates when the release the wake lock
+     */
+    private static final int RELEASE_WAKELOCK = 3;
+
+    /**
+     * Called to change the repeat mode
+     */
+    public static final String REPEAT_ACTION = "com.andrew.apollo.repeat";
+
+    /**
+     * Repeats all the tracks in a list
+     */
+    public static final int REPEAT_ALL = 2;
+
+    /**
+     * Repeats the current track in a list
+     */
+    public static final int REPEAT_CURRENT = 1;
+
+    /**
+     * Turns repeat off
+     */
+    public static final int REPEAT_NONE = 0;
+
+    /**
+     * Indicates the repeat mode chaned
+     */
+    public static final String REPEATMODE_CHANGED = "com.andrew.apollo.repeatmodechanged";
+
+    /**
+     * Indicates the player died
+     */
+    private static final int SERVER_DIED = 4;
+
+    /**
+     * Called to indicate a general service commmand. Used in
+     * {@link MediaButtonIntentReceiver}
+     */
+    public static final String SERVICECMD = "com.andrew.apollo.musicservicecommand";
+
+    /**
+     * Called to change the shuffle mode
+     */
+    public static final String SHUFFLE_ACTION = "com.andrew.apollo.shuffle";
+
+    /**
+     * Party shuffle
+     */
+    public static final int SHUFFLE_AUTO = 2;
+
+    /**
+     * Shuffles no songs, turns shuffling off
+     */
+    public static final int SHUFFLE_NONE = 0;
+
+    /**
+     * Shuffles all songs
+     */
+    public static final int SHUFFLE_NORMAL = 1;
+
+    /**
+     * Indicates the shuffle mode chaned
+     */
+    public static final String SHUFFLEMODE_CHANGED = "com.andrew.apollo.shufflemodechanged";
 
     /**
      * Called to build the notification while Apollo is in the background
@@ -1089,7 +1565,32 @@ public class MusicPlaybackService extends Service {
      */
     private AudioManager mAudioManager;
 
-    private long[] mAutoShuffleList = null;
+    /**
+     * Picks the tracks for party shuffle
+     */
+    private AutoShuffleSource mAutoShuffleSource;
+
+    /**
+     * Runs the side effects of state changes
+     */
+    private ChangeDispatcher mChangeDispatcher;
+
+    /**
+     * Pushes state changes to registered clients
+     */
+    private PlaybackCallbacks mPlaybackCallbacks;
+
+    /**
+     * The queue's version and its latest edits, so clients can patch their
+     * copy of the queue rather than read it again
+     */
+    private final QueueChangeLog mQueueLog = new QueueChangeLog();
+
+    /**
+     * True if party shuffle was turned on and the queue should be replaced
+     * once its first tracks are in
+     */
+    private boolean mAutoShuffleStartPending = false;
 
     /**
      * Service stub
@@ -1106,10 +1607,16 @@ public class MusicPlaybackService extends Service {
     private int mCardId;
 
     /**
-     * The cursor used to retrieve info on the current track and run the
-     * necessary queries to play audio files
+     * The current track's metadata, {@link TrackMetadata#EMPTY} while no
+     * track is open
+     */
+    private volatile TrackMetadata mMetadata = TrackMetadata.EMPTY;
+
+    /**
+     * The metadata of the tracks around the current one, read ahead so
+     * changing tracks doesn't query the library
      */
-    private Cursor mCursor;
+    private TrackMetadataCache mMetadataCache;
 
     private DelayedHandler mDelayedStopHandler;
 
@@ -1133,6 +1640,12 @@ public class MusicPlaybackService extends Service {
      */
     private ImageFetcher mImageFetcher;
 
+    /**
+     * The artwork of the current and next track, sized for the notification,
+     * the lockscreen and the app-widgets
+     */
+    private NowPlayingArtwork mArtwork;
+
     private final BroadcastReceiver mIntentReceiver = new BroadcastReceiver() {
 
         /**
@@ -1140,80 +1653,14 @@ public class MusicPlaybackService extends Service {
          */
         @Override
         public void onReceive(final Context context, final Intent intent) {
-            final String action = intent.getAction();
-            final String command = intent.getStringExtra("command");
-            if (CMDNEXT.equals(command) || NEXT_ACTION.equals(action)) {
-                gotoNext(true);
-            } else if (CMDPREVIOUS.equals(command) || PREVIOUS_ACTION.equals(action)) {
-                if (position() < 2000) {
-                    prev();
-                } else {
-                    seek(0);
-                    play();
-                }
-            } else if (CMDTOGGLEPAUSE.equals(command) || TOGGLEPAUSE_ACTION.equals(action)) {
-                if (mIsSupposedToBePlaying) {
-                    pause();
-                    mPausedByTransientLossOfFocus = false;
-                } else {
-                    play();
-                }
-            } else if (CMDPAUSE.equals(command) || PAUSE_ACTION.equals(action)) {
-                pause();
-                mPausedByTransientLossOfFocus = false;
-            } else if (CMDPLAY.equals(command)) {
-                play();
-            } else if (CMDSTOP.equals(command) || STOP_ACTION.equals(action)) {
-                pause();
-                mPausedByTransientLossOfFocus = false;
-                seek(0);
-                killNotification();
-                mBuildNotification = false;
-            } else if (REPEAT_ACTION.equals(action)) {
-                cycleRepeat();
-            } else if (SHUFFLE_ACTION.equals(action)) {
-                cycleShuffle();
-            } else if (KILL_FOREGROUND.equals(action)) {
-                mBuildNotification = false;
-                killNotification();
-            } else if (START_BACKGROUND.equals(action)) {
-                mBuildNotification = true;
-                buildNotification();
-            } else if (UPDATE_LOCKSCREEN.equals(action)) {
-                mEnableLockscreenControls = intent.getBooleanExtra(UPDATE_LOCKSCREEN, true);
-                if (mEnableLockscreenControls) {
-                    setUpRemoteControlClient();
-                    // Update the controls according to the current playback
-                    notifyChange(PLAYSTATE_CHANGED);
-                    notifyChange(META_CHANGED);
-                } else {
-                    // Remove then unregister the conrols
-                    mRemoteControlClientCompat
-                            .setPlaybackState(RemoteControlClient.PLAYSTATE_STOPPED);
-                    RemoteControlHelper.unregisterRemoteControlClient(mAudioManager,
-                            mRemoteControlClientCompat);
-                }
-            } else if (AppWidgetSmall.CMDAPPWIDGETUPDATE.equals(command)) {
-                final int[] small = intent.getIntArrayExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS);
-                mAppWidgetSmall.performUpdate(MusicPlaybackService.this, small);
-            } else if (AppWidgetLarge.CMDAPPWIDGETUPDATE.equals(command)) {
-                final int[] large = intent.getIntArrayExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS);
-                mAppWidgetLarge.performUpdate(MusicPlaybackService.this, large);
-            } else if (AppWidgetLargeAlternate.CMDAPPWIDGETUPDATE.equals(command)) {
-                final int[] largeAlt = intent
-                        .getIntArrayExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS);
-                mAppWidgetLargeAlternate.performUpdate(MusicPlaybackService.this, largeAlt);
-            } else if (RecentWidgetProvider.CMDAPPWIDGETUPDATE.equals(command)) {
-                final int[] recent = intent.getIntArrayExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS);
-                mRecentWidgetProvider.performUpdate(MusicPlaybackService.this, recent);
-            }
+            mPlayerHandler.obtainMessage(COMMAND_INTENT, intent).sendToTarget();
         }
     };
 
     /**
      * Used to know if something should be playing or not
      */
-    private boolean mIsSupposedToBePlaying = false;
+    private volatile boolean mIsSupposedToBePlaying = false;
 
     private ComponentName mMediaButtonReceiverComponent;
 
@@ -1228,6 +1675,46 @@ public class MusicPlaybackService extends Service {
 
     private int mOpenFailedCounter = 0;
 
+    /**
+     * True to start playing once the current track is prepared
+     */
+    private boolean mPlayWhenPrepared = false;
+
+    /**
+     * True to prepare the next track once the current track is prepared
+     */
+    private boolean mOpenNextWhenPrepared = false;
+
+    /**
+     * Where to seek to once the current track is prepared, or -1
+     */
+    private volatile long mSeekWhenPrepared = -1;
+
+    /**
+     * True while the restored track is shown but not opened yet, it's
+     * opened once it's played
+     */
+    private volatile boolean mOpenOnPlay = false;
+
+    /* When onCreate() started, how long it took, how long the queue
+     * restore waited to start and how long it took, in milliseconds */
+    private long mCreateStart, mCreateTime, mRestoreWait, mRestoreTime;
+
+    /* The tracks dropped from the restored queue, gone from the library */
+    private int mDroppedTracks;
+
+    /**
+     * The last track that was tried again after timing out, so it's only
+     * tried once more
+     */
+    private long mRetriedAudioId = -1;
+
+    /**
+     * True while the track of the restored queue is opening, the queue is
+     * dropped if it can't be
+     */
+    private boolean mOpeningRestoredQueue = false;
+
     /**
      * Used to track what type of audio focus loss caused the playback to pause
      */
@@ -1240,11 +1727,31 @@ public class MusicPlaybackService extends Service {
 
     private MusicPlayerHandler mPlayerHandler;
 
-    private long[] mPlayList = null;
+    /**
+     * The queue. A queue opened from a {@link QueueSource} is read from its
+     * query as it's played, an edited one is kept in a tree of chunks so
+     * edits anywhere in a long queue don't shift every track after them.
+     */
+    private final QueueList mPlayList = new QueueList();
 
-    private int mPlayListLen = 0;
+    /**
+     * A copy of the queue for {@link #getQueue()}, dropped whenever the
+     * queue changes and made again on the next read
+     */
+    private volatile long[] mQueueSnapshot;
 
-    private int mPlayPos = -1;
+    /**
+     * The list the queue was opened from, until the queue is edited
+     */
+    private volatile QueueSource mQueueSource;
+
+    /**
+     * The order the queue is played in when it's shuffled, patched along with
+     * every edit to the queue
+     */
+    private final ShuffleOrder mShuffleOrder = new ShuffleOrder(MAX_HISTORY_SIZE);
+
+    private volatile int mPlayPos = -1;
 
     /**
      * Settings used to save and retrieve the queue and history
@@ -1254,7 +1761,12 @@ public class MusicPlaybackService extends Service {
     /**
      * Used to indicate if the queue can be saved
      */
-    private boolean mQueueIsSaveable = true;
+    private boolean mQueueIsSaveable = false;
+
+    /**
+     * Saves and restores the queue and shuffle history
+     */
+    private QueueStore mQueueStore;
 
     /**
      * Recently listened database
@@ -1271,16 +1783,16 @@ public class MusicPlaybackService extends Service {
      */
     private RemoteControlClientCompat mRemoteControlClientCompat;
 
-    private int mRepeatMode = REPEAT_NONE;
+    private volatile int mRepeatMode = REPEAT_NONE;
 
     /**
      * Used to know when the service is active
      */
-    private boolean mServiceInUse = false;
+    private volatile boolean mServiceInUse = false;
 
-    private int mServiceStartId = -1;
+    private volatile int mServiceStartId = -1;
 
-    private int mShuffleMode = SHUFFLE_NONE;
+    private volatile int mShuffleMode = SHUFFLE_NONE;
 
     private BroadcastReceiver mUnmountReceiver = null;
 
@@ -1296,28 +1808,43 @@ public class MusicPlaybackService extends Service {
      * @param position The position to place the tracks
      */
     private void addToPlayList(final long[] list, int position) {
-        final int addlen = list.length;
+        mQueueSource = null;
         if (position < 0) {
-            mPlayListLen = 0;
+            mPlayList.clear();
+            mShuffleOrder.reset(0);
+            mQueueLog.reset();
             position = 0;
+            if (mQueueIsSaveable) {
+                mQueueStore.logClear();
+            }
         }
-        ensurePlayListCapacity(mPlayListLen + addlen);
-        if (position > mPlayListLen) {
-            position = mPlayListLen;
+        if (position > mPlayList.size()) {
+            position = mPlayList.size();
         }
-
-        final int tailsize = mPlayListLen - position;
-        for (int i = tailsize; i > 0; i--) {
-            mPlayList[position + i] = mPlayList[position + i - addlen];
+        mPlayList.insert(position, list);
+        mShuffleOrder.insert(position, list.length);
+        mQueueLog.insert(position, list.length);
+        if (mQueueIsSaveable) {
+            mQueueStore.logInsert(position, list, mPlayList.size());
         }
-
-        for (int i = 0; i < addlen; i++) {
-            mPlayList[position + i] = list[i];
+        if (mPlayList.size() == 0) {
+            setTrack(null);
+            notifyChange(META_CHANGED);
         }
-        mPlayListLen += addlen;
-        if (mPlayListLen == 0) {
-            mCursor.close();
-            mCursor = null;
+    }
+
+    /**
+     * Replaces the playlist with the tracks of a query
+     * 
+     * @param cursor The query, with the audio IDs in its first column
+     */
+    private void addToPlayList(final Cursor cursor) {
+        mPlayList.setCursor(cursor);
+        mShuffleOrder.reset(mPlayList.size());
+        mQueueLog.reset();
+        mQueueLog.insert(0, mPlayList.size());
+        if (mPlayList.size() == 0) {
+            setTrack(null);
             notifyChange(META_CHANGED);
         }
     }
@@ -1329,13 +1856,107 @@ public class MusicPlaybackService extends Service {
         if (mBuildNotification || ApolloUtils.isApplicationSentToBackground(this)) {
             try {
                 mNotificationHelper.buildNotification(getAlbumName(), getArtistName(),
-                        getTrackName(), getAlbumId(), getAlbumArt());
+                        getTrackName(), getAlbumId(), getAlbumArt(NowPlayingArtwork.SIZE_SMALL),
+                        getAlbumArt(NowPlayingArtwork.SIZE_LARGE));
             } catch (final IllegalStateException parcelBitmap) {
                 parcelBitmap.printStackTrace();
             }
         }
     }
 
+    /**
+     * Carries out a command sent by a notification, a widget, the headset
+     * buttons or another app. Runs on the player handler's thread.
+     * 
+     * @param intent The command
+     */
+    private void handleCommandIntent(final Intent intent) {
+        final String action = intent.getAction();
+        final String command = intent.getStringExtra("command");
+        if (CMDNEXT.equals(command) || NEXT_ACTION.equals(action)) {
+            gotoNext(true);
+        } else if (CMDPREVIOUS.equals(command) || PREVIOUS_ACTION.equals(action)) {
+            if (position() < 2000) {
+                prev();
+            } else {
+                seek(0);
+                play();
+            }
+        } else if (CMDTOGGLEPAUSE.equals(command) || TOGGLEPAUSE_ACTION.equals(action)) {
+            if (mIsSupposedToBePlaying) {
+                pause();
+                mPausedByTransientLossOfFocus = false;
+            } else {
+                play();
+            }
+        } else if (CMDPAUSE.equals(command) || PAUSE_ACTION.equals(action)) {
+            pause();
+            mPausedByTransientLossOfFocus = false;
+        } else if (CMDPLAY.equals(command)) {
+            play();
+        } else if (CMDSTOP.equals(command) || STOP_ACTION.equals(action)) {
+            pause();
+            mPausedByTransientLossOfFocus = false;
+            seek(0);
+            killNotification();
+            mBuildNotification = false;
+        } else if (REPEAT_ACTION.equals(action)) {
+            cycleRepeat();
+        } else if (SHUFFLE_ACTION.equals(action)) {
+            cycleShuffle();
+        } else if (KILL_FOREGROUND.equals(action)) {
+            mBuildNotification = false;
+            killNotification();
+        } else if (START_BACKGROUND.equals(action)) {
+            mBuildNotification = true;
+            buildNotification();
+        } else if (UPDATE_LOCKSCREEN.equals(action)) {
+            mEnableLockscreenControls = intent.getBooleanExtra(UPDATE_LOCKSCREEN, true);
+            if (mEnableLockscreenControls) {
+                setUpRemoteControlClient();
+                // Update the controls according to the current playback
+                notifyChange(PLAYSTATE_CHANGED);
+                notifyChange(META_CHANGED);
+            } else {
+                // Remove then unregister the conrols
+                mRemoteControlClientCompat
+                        .setPlaybackState(RemoteControlClient.PLAYSTATE_STOPPED);
+                RemoteControlHelper.unregisterRemoteControlClient(mAudioManager,
+                        mRemoteControlClientCompat);
+            }
+        } else if (AppWidgetSmall.CMDAPPWIDGETUPDATE.equals(command)) {
+            final int[] small = intent.getIntArrayExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS);
+            mAppWidgetSmall.performUpdate(this, small);
+        } else if (AppWidgetLarge.CMDAPPWIDGETUPDATE.equals(command)) {
+            final int[] large = intent.getIntArrayExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS);
+            mAppWidgetLarge.performUpdate(this, large);
+        } else if (AppWidgetLargeAlternate.CMDAPPWIDGETUPDATE.equals(command)) {
+            final int[] largeAlt = intent.getIntArrayExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS);
+            mAppWidgetLargeAlternate.performUpdate(this, largeAlt);
+        } else if (RecentWidgetProvider.CMDAPPWIDGETUPDATE.equals(command)) {
+            final int[] recent = intent.getIntArrayExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS);
+            mRecentWidgetProvider.performUpdate(this, recent);
+        }
+    }
+
+    /**
+     * Closes or reopens the queue when the external storage is ejected or
+     * mounted. Runs on the player handler's thread.
+     * 
+     * @param intent The storage broadcast
+     */
+    private void handleStorageIntent(final Intent intent) {
+        final String action = intent.getAction();
+        if (action.equals(Intent.ACTION_MEDIA_EJECT)) {
+            saveQueue(true);
+            mQueueIsSaveable = false;
+            closeExternalStorageFiles(intent.getData().getPath());
+        } else if (action.equals(Intent.ACTION_MEDIA_MOUNTED)) {
+            mMediaMountedCount++;
+            reloadQueue();
+        }
+    }
+
     /**
      * Called when we receive a ACTION_MEDIA_EJECT notification.
      * 
@@ -1386,23 +2007,21 @@ public class MusicPlaybackService extends Service {
             removeTracks(0, mPlayPos - 9);
             notify = true;
         }
-        final int toAdd = 7 - (mPlayListLen - (mPlayPos < 0 ? -1 : mPlayPos));
+        final int toAdd = 7 - (mPlayList.size() - (mPlayPos < 0 ? -1 : mPlayPos));
         for (int i = 0; i < toAdd; i++) {
-            int lookback = mHistory.size();
-            int idx = -1;
-            while (true) {
-                idx = mShuffler.nextInt(mAutoShuffleList.length);
-                if (!wasRecentlyUsed(idx, lookback)) {
-                    break;
-                }
-                lookback /= 2;
+            final long id = mAutoShuffleSource.next();
+            if (id < 0) {
+                break;
+            }
+            mPlayList.add(id);
+            mShuffleOrder.insert(mPlayList.size() - 1, 1);
+            mQueueLog.insert(mPlayList.size() - 1, 1);
+            mQueueSource = null;
+            if (mQueueIsSaveable) {
+                mQueueStore.logInsert(mPlayList.size() - 1, new long[] {
+                    id
+                }, mPlayList.size());
             }
-            mHistory.add(idx);
-            if (mHistory.size() > MAX_HISTORY_SIZE) {
-                mHistory.remove(0);
-            }
-            ensurePlayListCapacity(mPlayListLen + 1);
-            mPlayList[mPlayListLen++] = mAutoShuffleList[idx];
             notify = true;
         }
         if (notify) {
@@ -1430,14 +2049,14 @@ public class MusicPlaybackService extends Service {
      */
     public void enqueue(final long[] list, final int action) {
         synchronized (this) {
-            if (action == NEXT && mPlayPos + 1 < mPlayListLen) {
+            if (action == NEXT && mPlayPos + 1 < mPlayList.size()) {
                 addToPlayList(list, mPlayPos + 1);
                 notifyChange(QUEUE_CHANGED);
             } else {
                 addToPlayList(list, Integer.MAX_VALUE);
                 notifyChange(QUEUE_CHANGED);
                 if (action == NOW) {
-                    mPlayPos = mPlayListLen - list.length;
+                    moveToPosition(mPlayList.size() - list.length);
                     openCurrentAndNext();
                     play();
                     notifyChange(META_CHANGED);
@@ -1454,34 +2073,13 @@ public class MusicPlaybackService extends Service {
     }
 
     /**
-     * Makes sure the playlist has enough space to hold all of the songs
-     * 
-     * @param size The size of the playlist
-     */
-    private void ensurePlayListCapacity(final int size) {
-        if (mPlayList == null || size > mPlayList.length) {
-            // reallocate at 2x requested size so we don't
-            // need to grow and copy the array for every
-            // insert
-            final long[] newlist = new long[size * 2];
-            final int len = mPlayList != null ? mPlayList.length : mPlayListLen;
-            for (int i = 0; i < len; i++) {
-                newlist[i] = mPlayList[i];
-            }
-            mPlayList = newlist;
-        }
-        // FIXME: shrink the array when the needed size is much smaller
-        // than the allocated size
-    }
-
-    /**
-     * @return The album art for the current album.
+     * @param size Where the artwork is shown, one of the
+     *            {@link NowPlayingArtwork} <code>SIZE_</code> constants
+     * @return The album art for the current album, scaled to fit
      */
-    public Bitmap getAlbumArt() {
+    public Bitmap getAlbumArt(final int size) {
         // Return the cached artwork
-        final Bitmap bitmap = mImageFetcher.getArtwork(getAlbumName(),
-                String.valueOf(getAlbumId()), getArtistName());
-        return bitmap;
+        return mArtwork.get(mMetadata, size);
     }
 
     /**
@@ -1490,12 +2088,7 @@ public class MusicPlaybackService extends Service {
      * @return The current song album ID
      */
     public long getAlbumId() {
-        synchronized (this) {
-            if (mCursor == null) {
-                return -1;
-            }
-            return mCursor.getLong(mCursor.getColumnIndexOrThrow(AudioColumns.ALBUM_ID));
-        }
+        return mMetadata.mAlbumId;
     }
 
     /**
@@ -1504,26 +2097,16 @@ public class MusicPlaybackService extends Service {
      * @return The current song album Name
      */
     public String getAlbumName() {
-        synchronized (this) {
-            if (mCursor == null) {
-                return null;
-            }
-            return mCursor.getString(mCursor.getColumnIndexOrThrow(AudioColumns.ALBUM));
-        }
+        return mMetadata.mAlbumName;
     }
 
     /**
      * Returns the artist ID
      * 
      * @return The current song artist ID
-     */
-    public long getArtistId() {
-        synchronized (this) {
-            if (mCursor == null) {
-                return -1;
-            }
-            return mCursor.getLong(mCursor.getColumnIndexOrThrow(AudioColumns.ARTIST_ID));
-        }
+     */
+    public long getArtistId() {
+        return mMetadata.mArtistId;
     }
 
     /**
@@ -1532,12 +2115,7 @@ public class MusicPlaybackService extends Service {
      * @return The current song artist name
      */
     public String getArtistName() {
-        synchronized (this) {
-            if (mCursor == null) {
-                return null;
-            }
-            return mCursor.getString(mCursor.getColumnIndexOrThrow(AudioColumns.ARTIST));
-        }
+        return mMetadata.mArtistName;
     }
 
     /**
@@ -1546,23 +2124,30 @@ public class MusicPlaybackService extends Service {
      * @return The current track ID
      */
     public long getAudioId() {
-        synchronized (this) {
-            if (mPlayPos >= 0 && mPlayer.isInitialized()) {
-                return mPlayList[mPlayPos];
-            }
+        if (mPlayer.isInitialized() || mPlayer.isPreparing() || mOpenOnPlay) {
+            return mMetadata.mAudioId;
         }
         return -1;
     }
 
+    /**
+     * Returns the metadata of the current track. It's read once when the
+     * track is opened, so this never waits on the service.
+     * 
+     * @return The current track's metadata, {@link TrackMetadata#EMPTY} if
+     *         there is none
+     */
+    public TrackMetadata getTrackMetadata() {
+        return mMetadata;
+    }
+
     /**
      * Returns the audio session ID
      * 
      * @return The current media player audio session ID
      */
     public int getAudioSessionId() {
-        synchronized (this) {
-            return mPlayer.getAudioSessionId();
-        }
+        return mPlayer.getAudioSessionId();
     }
 
     /**
@@ -1582,17 +2167,55 @@ public class MusicPlaybackService extends Service {
     }
 
     /**
-     * @param lid The list ID
-     * @return The cursor used for a specific ID
+     * Publishes the metadata of the current track
+     * 
+     * @param metadata The new track's metadata, or null if there is none
      */
-    private Cursor getCursorForId(final long lid) {
-        final String id = String.valueOf(lid);
-        final Cursor c = getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                PROJECTION, "_id=" + id, null, null);
-        if (c != null) {
-            c.moveToFirst();
+    private void setTrack(final TrackMetadata metadata) {
+        mMetadata = metadata != null ? metadata : TrackMetadata.EMPTY;
+    }
+
+    /**
+     * Collects the IDs of the tracks that are likely to play next or be
+     * skipped back to, in the order they're likely to be needed
+     * 
+     * @return The IDs, the next track's first
+     */
+    private long[] getLookaheadIds() {
+        final int size = mPlayList.size();
+        if (mPlayPos < 0 || size == 0) {
+            return new long[0];
+        }
+        final long[] ids = new long[LOOKAHEAD + LOOKBEHIND + 1];
+        int count = 0;
+        if (mNextPlayPos >= 0 && mNextPlayPos < size) {
+            ids[count++] = mPlayList.get(mNextPlayPos);
+        }
+        final boolean shuffle = mShuffleMode == SHUFFLE_NORMAL;
+        for (int i = 1; i <= LOOKAHEAD; i++) {
+            int pos;
+            if (shuffle) {
+                pos = mShuffleOrder.peek(i);
+            } else if (mRepeatMode == REPEAT_ALL) {
+                pos = (mPlayPos + i) % size;
+            } else {
+                pos = mPlayPos + i;
+            }
+            if (pos < 0 || pos >= size) {
+                break;
+            }
+            ids[count++] = mPlayList.get(pos);
+        }
+        for (int i = 1; i <= LOOKBEHIND; i++) {
+            final int pos = shuffle ? mShuffleOrder.peekPrevious(i) : mPlayPos - i;
+            if (pos < 0 || pos >= size) {
+                break;
+            }
+            ids[count++] = mPlayList.get(pos);
         }
-        return c;
+        final long[] result = new long[count];
+        System.arraycopy(ids, 0, result, 0, count);
+        return result;
     }
 
     /**
@@ -1616,57 +2239,20 @@ public class MusicPlaybackService extends Service {
             }
             return mPlayPos;
         } else if (mShuffleMode == SHUFFLE_NORMAL) {
-            if (mPlayPos >= 0) {
-                mHistory.add(mPlayPos);
-            }
-            if (mHistory.size() > MAX_HISTORY_SIZE) {
-                mHistory.remove(0);
-            }
-            final int numTracks = mPlayListLen;
-            final int[] tracks = new int[numTracks];
-            for (int i = 0; i < numTracks; i++) {
-                tracks[i] = i;
-            }
-
-            final int numHistory = mHistory.size();
-            int numUnplayed = numTracks;
-            for (int i = 0; i < numHistory; i++) {
-                final int idx = mHistory.get(i).intValue();
-                if (idx < numTracks && tracks[idx] >= 0) {
-                    numUnplayed--;
-                    tracks[idx] = -1;
-                }
-            }
-            if (numUnplayed <= 0) {
+            int next = mShuffleOrder.peekNext();
+            if (next < 0) {
+                // Every track has been played once
                 if (mRepeatMode == REPEAT_ALL || force) {
-                    numUnplayed = numTracks;
-                    for (int i = 0; i < numTracks; i++) {
-                        tracks[i] = i;
-                    }
-                } else {
-                    return -1;
-                }
-            }
-            int skip = 0;
-            if (mShuffleMode == SHUFFLE_NORMAL || mShuffleMode == SHUFFLE_AUTO) {
-                skip = mShuffler.nextInt(numUnplayed);
-            }
-            int cnt = -1;
-            while (true) {
-                while (tracks[++cnt] < 0) {
-                    ;
-                }
-                skip--;
-                if (skip < 0) {
-                    break;
+                    mShuffleOrder.newPass();
+                    next = mShuffleOrder.peekNext();
                 }
             }
-            return cnt;
+            return next;
         } else if (mShuffleMode == SHUFFLE_AUTO) {
             doAutoShuffleUpdate();
             return mPlayPos + 1;
         } else {
-            if (mPlayPos >= mPlayListLen - 1) {
+            if (mPlayPos >= mPlayList.size() - 1) {
                 if (mRepeatMode == REPEAT_NONE && !force) {
                     return -1;
                 } else if (mRepeatMode == REPEAT_ALL || force) {
@@ -1685,28 +2271,74 @@ public class MusicPlaybackService extends Service {
      * @return The path to the current song
      */
     public String getPath() {
-        synchronized (this) {
-            if (mCursor == null) {
-                return null;
-            }
-            return mCursor.getString(mCursor.getColumnIndexOrThrow(MediaColumns.DATA));
-        }
+        return mMetadata.mPath;
+    }
+
+    /**
+     * @return The list the queue was opened from, or null if the queue was
+     *         opened from a list of IDs or edited since
+     */
+    public QueueSource getQueueSource() {
+        return mQueueSource;
     }
 
     /**
-     * Returns the queue
+     * Returns the queue. The copy is shared by every caller until the queue
+     * changes, so it mustn't be modified.
      * 
      * @return The queue as a long[]
      */
     public long[] getQueue() {
-        synchronized (this) {
-            final int len = mPlayListLen;
-            final long[] list = new long[len];
-            for (int i = 0; i < len; i++) {
-                list[i] = mPlayList[i];
+        long[] queue = mQueueSnapshot;
+        if (queue == null) {
+            synchronized (this) {
+                queue = mPlayList.toArray();
+                mQueueSnapshot = queue;
             }
-            return list;
         }
+        return queue;
+    }
+
+    /**
+     * Returns part of the queue
+     * 
+     * @param offset The position of the first track
+     * @param length The most tracks to return
+     * @return The IDs of the tracks, fewer than asked for if the queue ends
+     *         first
+     */
+    public long[] getQueueSlice(final int offset, final int length) {
+        synchronized (this) {
+            final int from = Math.max(0, Math.min(offset, mPlayList.size()));
+            final int count = Math.max(0, Math.min(length, mPlayList.size() - from));
+            final long[] slice = new long[count];
+            mPlayList.copyTo(from, slice, 0, count);
+            return slice;
+        }
+    }
+
+    /**
+     * Returns the edits made to the queue since a version
+     * 
+     * @param version The version the client has
+     * @return The edits since then, or a reload if they aren't known
+     */
+    public QueueChanges getQueueChangesSince(final int version) {
+        synchronized (this) {
+            return new QueueChanges(mQueueLog.getVersion(), mPlayList.size(),
+                    mQueueLog.getChangesSince(version));
+        }
+    }
+
+    /**
+     * Returns the position, duration, play state, queue position and modes in
+     * one go, for anything that polls them
+     * 
+     * @return The current playback state
+     */
+    public PlaybackState getPlaybackState() {
+        return new PlaybackState(position(), duration(), mIsSupposedToBePlaying, mPlayPos,
+                mQueueLog.getVersion(), mRepeatMode, mShuffleMode);
     }
 
     /**
@@ -1715,9 +2347,7 @@ public class MusicPlaybackService extends Service {
      * @return the current position in the queue
      */
     public int getQueuePosition() {
-        synchronized (this) {
-            return mPlayPos;
-        }
+        return mPlayPos;
     }
 
     /**
@@ -1744,12 +2374,7 @@ public class MusicPlaybackService extends Service {
      * @return The current song name
      */
     public String getTrackName() {
-        synchronized (this) {
-            if (mCursor == null) {
-                return null;
-            }
-            return mCursor.getString(mCursor.getColumnIndexOrThrow(MediaColumns.TITLE));
-        }
+        return mMetadata.mTrackName;
     }
 
     /**
@@ -1780,7 +2405,7 @@ public class MusicPlaybackService extends Service {
      */
     public void gotoNext(final boolean force) {
         synchronized (this) {
-            if (mPlayListLen <= 0) {
+            if (mPlayList.size() <= 0) {
                 return;
             }
             final int pos = getNextPosition(force);
@@ -1792,9 +2417,8 @@ public class MusicPlaybackService extends Service {
                 }
                 return;
             }
-            mPlayPos = pos;
             stop(false);
-            mPlayPos = pos;
+            moveToPosition(pos);
             openCurrentAndNext();
             play();
             notifyChange(META_CHANGED);
@@ -1806,10 +2430,8 @@ public class MusicPlaybackService extends Service {
      */
     public boolean isFavorite() {
         if (mFavoritesCache != null) {
-            synchronized (this) {
-                final Long id = mFavoritesCache.getSongId(getAudioId());
-                return id != null ? true : false;
-            }
+            final Long id = mFavoritesCache.getSongId(getAudioId());
+            return id != null ? true : false;
         }
         return false;
     }
@@ -1828,37 +2450,6 @@ public class MusicPlaybackService extends Service {
         stopForeground(true);
     }
 
-    /**
-     * Creates a shuffled playlist used for party mode
-     */
-    private boolean makeAutoShuffleList() {
-        Cursor cursor = null;
-        try {
-            cursor = getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                    new String[] {
-                        BaseColumns._ID
-                    }, AudioColumns.IS_MUSIC + "=1", null, null);
-            if (cursor == null || cursor.getCount() == 0) {
-                return false;
-            }
-            final int len = cursor.getCount();
-            final long[] list = new long[len];
-            for (int i = 0; i < len; i++) {
-                cursor.moveToNext();
-                list[i] = cursor.getLong(0);
-            }
-            mAutoShuffleList = list;
-            return true;
-        } catch (final RuntimeException e) {
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-                cursor = null;
-            }
-        }
-        return false;
-    }
-
     /**
      * Moves an item in the queue from one position to another
      * 
@@ -1867,72 +2458,290 @@ public class MusicPlaybackService extends Service {
      */
     public void moveQueueItem(int index1, int index2) {
         synchronized (this) {
-            if (index1 >= mPlayListLen) {
-                index1 = mPlayListLen - 1;
+            mQueueSource = null;
+            if (index1 >= mPlayList.size()) {
+                index1 = mPlayList.size() - 1;
             }
-            if (index2 >= mPlayListLen) {
-                index2 = mPlayListLen - 1;
+            if (index2 >= mPlayList.size()) {
+                index2 = mPlayList.size() - 1;
             }
+            mShuffleOrder.move(index1, index2);
+            mQueueLog.move(index1, index2);
             if (index1 < index2) {
-                final long tmp = mPlayList[index1];
-                for (int i = index1; i < index2; i++) {
-                    mPlayList[i] = mPlayList[i + 1];
-                }
-                mPlayList[index2] = tmp;
+                mPlayList.move(index1, index2);
                 if (mPlayPos == index1) {
                     mPlayPos = index2;
                 } else if (mPlayPos >= index1 && mPlayPos <= index2) {
                     mPlayPos--;
                 }
-            } else if (index2 < index1) {
-                final long tmp = mPlayList[index1];
-                for (int i = index1; i > index2; i--) {
-                    mPlayList[i] = mPlayList[i - 1];
+                if (mQueueIsSaveable) {
+                    mQueueStore.logMove(index1, index2, mPlayList.size());
                 }
-                mPlayList[index2] = tmp;
+            } else if (index2 < index1) {
+                mPlayList.move(index1, index2);
                 if (mPlayPos == index1) {
                     mPlayPos = index2;
                 } else if (mPlayPos >= index2 && mPlayPos <= index1) {
                     mPlayPos++;
                 }
+                if (mQueueIsSaveable) {
+                    mQueueStore.logMove(index1, index2, mPlayList.size());
+                }
             }
             notifyChange(QUEUE_CHANGED);
         }
     }
 
+    /**
+     * Moves on to another track in the queue. When shuffling, the track that
+     * was playing is remembered so {@link #prev()} can go back to it.
+     * 
+     * @param position The position of the track to play
+     */
+    private void moveToPosition(final int position) {
+        if (mShuffleMode == SHUFFLE_NORMAL && position != mPlayPos) {
+            mShuffleOrder.advance(mPlayPos, position);
+        }
+        mPlayPos = position;
+    }
+
+    /**
+     * Called once party shuffle has tracks to pick from, or has found there
+     * are none
+     * 
+     * @param hasTracks True if there are tracks to pick from
+     */
+    private void onAutoShuffleReady(final boolean hasTracks) {
+        synchronized (this) {
+            if (mShuffleMode != SHUFFLE_AUTO) {
+                return;
+            }
+            if (!hasTracks) {
+                mAutoShuffleStartPending = false;
+                mAutoShuffleSource.stop();
+                mShuffleMode = SHUFFLE_NONE;
+                saveQueue(false);
+                notifyChange(SHUFFLEMODE_CHANGED);
+                return;
+            }
+            if (mAutoShuffleStartPending) {
+                mAutoShuffleStartPending = false;
+                mPlayList.clear();
+                mShuffleOrder.reset(0);
+                mQueueLog.reset();
+                if (mQueueIsSaveable) {
+                    mQueueStore.logClear();
+                }
+                doAutoShuffleUpdate();
+                mPlayPos = 0;
+                openCurrentAndNext();
+                play();
+                notifyChange(META_CHANGED);
+            } else {
+                // The restored queue holds the last few picks, keep them out
+                // of the next ones
+                for (int i = 0; i < mPlayList.size(); i++) {
+                    mAutoShuffleSource.markPlayed(mPlayList.get(i));
+                }
+                doAutoShuffleUpdate();
+            }
+        }
+    }
+
     /**
      * Notify the change-receivers that something has changed.
      */
     private void notifyChange(final String what) {
-        final Intent intent = new Intent(what);
-        sendStickyBroadcast(intent);
+        if (QUEUE_CHANGED.equals(what)) {
+            mQueueSnapshot = null;
+        }
+        // The side effects run on the dispatcher's thread, see
+        // setUpChangeDispatcher()
+        mChangeDispatcher.post(what);
+    }
 
-        // Update the lockscreen controls
-        updateRemoteControlClient(what);
+    /**
+     * Queues a command on the player handler's thread. Everything that
+     * changes the playback state or the queue runs there one command at a
+     * time, so a binder thread never waits on a command running elsewhere,
+     * and the getters read published state without waiting at all. The
+     * caller returns before the command has run, so a getter called right
+     * after it may not see its effect yet, see {@link IApolloService}.
+     * 
+     * @param what The command
+     * @param arg1 The command's first argument
+     * @param arg2 The command's second argument
+     * @param obj The command's argument object
+     */
+    private void sendCommand(final int what, final int arg1, final int arg2, final Object obj) {
+        mPlayerHandler.obtainMessage(what, arg1, arg2, obj).sendToTarget();
+    }
 
-        if (what.equals(META_CHANGED)) {
-            // Increase the play count for favorite songs.
-            if (mFavoritesCache.getSongId(getAudioId()) != null) {
-                mFavoritesCache.addSongId(getAudioId(), getTrackName(), getAlbumName(),
-                        getArtistName());
+    /**
+     * Runs a command on the player handler's thread and waits for its
+     * result, for the few commands whose callers need one
+     * 
+     * @param command The command
+     * @return The command's result, or -1 if it didn't run in time. A
+     *         command that timed out stays queued and still runs.
+     */
+    private int runCommand(final Callable<Integer> command) {
+        final FutureTask<Integer> task = new FutureTask<Integer>(command);
+        if (Looper.myLooper() == mPlayerHandler.getLooper()) {
+            task.run();
+        } else if (!mPlayerHandler.post(task)) {
+            return -1;
+        }
+        try {
+            return task.get(COMMAND_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
-            // Add the track to the recently played list.
-            mRecentsCache.addAlbumId(getAlbumId(), getAlbumName(), getArtistName(),
-                    MusicUtils.getSongCountForAlbum(this, getAlbumName()),
-                    MusicUtils.getReleaseDateForAlbum(this, getAlbumName()));
-        } else if (what.equals(QUEUE_CHANGED)) {
-            saveQueue(true);
-        } else {
-            saveQueue(false);
+        } catch (final TimeoutException e) {
+            // The player thread is busy or the service is going away
         }
+        return -1;
+    }
+
+    /**
+     * Sets up the side effects of {@link #notifyChange(String)}. Each one
+     * runs against the latest state once a burst of changes is over, rather
+     * than once per change on the thread that made it.
+     */
+    private void setUpChangeDispatcher() {
+        mChangeDispatcher = new ChangeDispatcher("ChangeDispatcher");
+
+        // Let everyone else know
+        mChangeDispatcher.addStage("broadcast", 0, new ChangeDispatcher.Stage() {
+
+            @Override
+            public void apply(final Set<String> changes) {
+                for (final String what : changes) {
+                    sendStickyBroadcast(new Intent(what));
+                }
+            }
+        });
+
+        // Tell the clients that registered a callback
+        mChangeDispatcher.addStage("callbacks", 0, new ChangeDispatcher.Stage() {
+
+            @Override
+            public void apply(final Set<String> changes) {
+                mPlaybackCallbacks.notifyChange(changes);
+            }
+        });
+
+        // Update the lockscreen controls
+        mChangeDispatcher.addStage("remote-control", 0, new ChangeDispatcher.Stage() {
+
+            @Override
+            public void apply(final Set<String> changes) {
+                for (final String what : changes) {
+                    updateRemoteControlClient(what);
+                }
+            }
+        });
+
+        // Read the metadata of the tracks around the current one
+        mChangeDispatcher.addStage("prefetch", 0, new ChangeDispatcher.Stage() {
+
+            @Override
+            public void apply(final Set<String> changes) {
+                if (!changes.contains(META_CHANGED) && !changes.contains(QUEUE_CHANGED)
+                        && !changes.contains(SHUFFLEMODE_CHANGED)
+                        && !changes.contains(REPEATMODE_CHANGED)) {
+                    return;
+                }
+                final long[] ids;
+                final long nextId;
+                synchronized (MusicPlaybackService.this) {
+                    ids = getLookaheadIds();
+                    nextId = mNextPlayPos >= 0 && mNextPlayPos < mPlayList.size() ? mPlayList
+                            .get(mNextPlayPos) : -1;
+                }
+                mMetadataCache.prefetch(ids);
+
+                // Keep only the current and next track's artwork, and have
+                // the next one's ready before it starts
+                final TrackMetadata next = nextId >= 0 ? mMetadataCache.get(nextId) : null;
+                mArtwork.retain(mMetadata.mAlbumId, next != null ? next.mAlbumId : -1);
+                mArtwork.prefetch(next);
+            }
+        });
+
+        // Update the play counts and the recently played list
+        mChangeDispatcher.addStage("history", HISTORY_BATCH_DELAY, new ChangeDispatcher.Stage() {
+
+            @Override
+            public void apply(final Set<String> changes) {
+                if (changes.contains(META_CHANGED)) {
+                    updateHistory();
+                }
+            }
+        });
+
+        // Save the position, the queue edits themselves are journaled as
+        // they happen
+        mChangeDispatcher.addStage("queue", QUEUE_BATCH_DELAY, new ChangeDispatcher.Stage() {
+
+            @Override
+            public void apply(final Set<String> changes) {
+                synchronized (MusicPlaybackService.this) {
+                    saveQueue(false);
+                }
+            }
+        });
 
         // Update the app-widgets
-        mAppWidgetSmall.notifyChange(this, what);
-        mAppWidgetLarge.notifyChange(this, what);
-        mAppWidgetLargeAlternate.notifyChange(this, what);
-        if (ApolloUtils.hasHoneycomb()) {
-            mRecentWidgetProvider.notifyChange(this, what);
+        mChangeDispatcher.addStage("widgets", WIDGET_BATCH_DELAY, new ChangeDispatcher.Stage() {
+
+            @Override
+            public void apply(final Set<String> changes) {
+                // Each widget updates once per batch, with only what it shows
+                // that changed
+                mAppWidgetSmall.notifyChange(MusicPlaybackService.this, changes);
+                mAppWidgetLarge.notifyChange(MusicPlaybackService.this, changes);
+                mAppWidgetLargeAlternate.notifyChange(MusicPlaybackService.this, changes);
+                if (ApolloUtils.hasHoneycomb()) {
+                    mRecentWidgetProvider.notifyChange(MusicPlaybackService.this, changes);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds the current track to the favorites play counts and its album to
+     * the recently played list
+     */
+    private void updateHistory() {
+        final TrackMetadata metadata = mMetadata;
+        if (metadata == TrackMetadata.EMPTY) {
+            return;
+        }
+        // Increase the play count for favorite songs.
+        if (mFavoritesCache.getSongId(metadata.mAudioId) != null) {
+            mFavoritesCache.addSongId(metadata.mAudioId, metadata.mTrackName,
+                    metadata.mAlbumName, metadata.mArtistName);
         }
+        // Add the track to the recently played list.
+        mRecentsCache.addAlbumId(metadata.mAlbumId, metadata.mAlbumName, metadata.mArtistName,
+                MusicUtils.getSongCountForAlbum(this, metadata.mAlbumName),
+                MusicUtils.getReleaseDateForAlbum(this, metadata.mAlbumName));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void dump(final FileDescriptor fd, final PrintWriter writer, final String[] args) {
+        writer.println("Startup:");
+        writer.println("  onCreate=" + mCreateTime + "ms restore wait=" + mRestoreWait
+                + "ms restore=" + mRestoreTime + "ms dropped tracks=" + mDroppedTracks);
+        writer.println("Change dispatcher stages:");
+        mChangeDispatcher.dump(writer);
     }
 
     /**
@@ -1951,6 +2760,7 @@ public class MusicPlaybackService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
+        mCreateStart = SystemClock.elapsedRealtime();
 
         // Initialize the favorites and recents databases
         mRecentsCache = RecentStore.getInstance(this);
@@ -1963,6 +2773,7 @@ public class MusicPlaybackService extends Service {
         mImageFetcher = ImageFetcher.getInstance(this);
         // Initialize the image cache
         mImageFetcher.setImageCache(ImageCache.getInstance(this));
+        mArtwork = new NowPlayingArtwork(this, mImageFetcher);
 
         // Start up the thread running the service. Note that we create a
         // separate thread because the service normally runs in the process's
@@ -1976,6 +2787,15 @@ public class MusicPlaybackService extends Service {
         mPlayerHandler = new MusicPlayerHandler(this, thread.getLooper());
         mDelayedStopHandler = new DelayedHandler(this);
 
+        // Initialize the client callbacks, sent from the player's thread
+        mPlaybackCallbacks = new PlaybackCallbacks(this, thread.getLooper());
+
+        // Initialize the track metadata, read ahead in the background
+        mMetadataCache = new TrackMetadataCache(this);
+
+        // Initialize the side effects of state changes
+        setUpChangeDispatcher();
+
         // Initialze the audio manager and register any headset controls for
         // playback
         mAudioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
@@ -1990,7 +2810,12 @@ public class MusicPlaybackService extends Service {
 
         // Initialize the preferences
         mPreferences = getSharedPreferences("Service", 0);
-        mCardId = getCardId();
+
+        // Initialize the queue file
+        mQueueStore = new QueueStore(this);
+
+        // Initialize the party shuffle source, it reads the library lazily
+        mAutoShuffleSource = new AutoShuffleSource(this, MAX_HISTORY_SIZE);
 
         registerExternalStorageListener();
 
@@ -2019,10 +2844,9 @@ public class MusicPlaybackService extends Service {
         mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, getClass().getName());
         mWakeLock.setReferenceCounted(false);
 
-        // Bring the queue back
-        reloadQueue();
-        notifyChange(QUEUE_CHANGED);
-        notifyChange(META_CHANGED);
+        // Bring the queue back in the background
+        mPlayerHandler.sendEmptyMessage(RESTORE_QUEUE);
+        mCreateTime = SystemClock.elapsedRealtime() - mCreateStart;
 
         // Listen for the idle state
         final Message message = mDelayedStopHandler.obtainMessage();
@@ -2044,6 +2868,11 @@ public class MusicPlaybackService extends Service {
             sendBroadcast(audioEffectsIntent);
         }
 
+        // Stop the side effects before the state they read goes away. A stage
+        // that is running, like the queue save, finishes first.
+        mChangeDispatcher.release();
+        mPlaybackCallbacks.release();
+
         // Release the player
         mPlayer.release();
         mPlayer = null;
@@ -2057,11 +2886,16 @@ public class MusicPlaybackService extends Service {
         mDelayedStopHandler.removeCallbacksAndMessages(null);
         mPlayerHandler.removeCallbacksAndMessages(null);
 
-        // Close the cursor
-        if (mCursor != null) {
-            mCursor.close();
-            mCursor = null;
-        }
+        // Stop watching the library for party shuffle
+        mAutoShuffleSource.release();
+
+        // Close the query the queue is read from, if it still is
+        mPlayList.clear();
+
+        // Forget the current track and stop reading ahead
+        setTrack(null);
+        mMetadataCache.release();
+        mArtwork.clear();
 
         // Unregister the mount listener
         unregisterReceiver(mIntentReceiver);
@@ -2091,60 +2925,7 @@ public class MusicPlaybackService extends Service {
         mServiceStartId = startId;
         mDelayedStopHandler.removeCallbacksAndMessages(null);
         if (intent != null) {
-            final String action = intent.getAction();
-            final String command = intent.getStringExtra("command");
-            if (CMDNEXT.equals(command) || NEXT_ACTION.equals(action)) {
-                gotoNext(true);
-            } else if (CMDPREVIOUS.equals(command) || PREVIOUS_ACTION.equals(action)) {
-                if (position() < 2000) {
-                    prev();
-                } else {
-                    seek(0);
-                    play();
-                }
-            } else if (CMDTOGGLEPAUSE.equals(command) || TOGGLEPAUSE_ACTION.equals(action)) {
-                if (mIsSupposedToBePlaying) {
-                    pause();
-                    mPausedByTransientLossOfFocus = false;
-                } else {
-                    play();
-                }
-            } else if (CMDPAUSE.equals(command) || PAUSE_ACTION.equals(action)) {
-                pause();
-                mPausedByTransientLossOfFocus = false;
-            } else if (CMDPLAY.equals(command)) {
-                play();
-            } else if (CMDSTOP.equals(command) || STOP_ACTION.equals(action)) {
-                pause();
-                mPausedByTransientLossOfFocus = false;
-                seek(0);
-                killNotification();
-                mBuildNotification = false;
-            } else if (REPEAT_ACTION.equals(action)) {
-                cycleRepeat();
-            } else if (SHUFFLE_ACTION.equals(action)) {
-                cycleShuffle();
-            } else if (KILL_FOREGROUND.equals(action)) {
-                mBuildNotification = false;
-                killNotification();
-            } else if (START_BACKGROUND.equals(action)) {
-                mBuildNotification = true;
-                buildNotification();
-            } else if (UPDATE_LOCKSCREEN.equals(action)) {
-                mEnableLockscreenControls = intent.getBooleanExtra(UPDATE_LOCKSCREEN, true);
-                if (mEnableLockscreenControls) {
-                    setUpRemoteControlClient();
-                    // Update the controls according to the current playback
-                    notifyChange(PLAYSTATE_CHANGED);
-                    notifyChange(META_CHANGED);
-                } else {
-                    // Remove then unregister the conrols
-                    mRemoteControlClientCompat
-                            .setPlaybackState(RemoteControlClient.PLAYSTATE_STOPPED);
-                    RemoteControlHelper.unregisterRemoteControlClient(mAudioManager,
-                            mRemoteControlClientCompat);
-                }
-            }
+            mPlayerHandler.obtainMessage(COMMAND_INTENT, intent).sendToTarget();
         }
 
         // Make sure the service will shut down on its own if it was
@@ -2161,25 +2942,47 @@ public class MusicPlaybackService extends Service {
     @Override
     public boolean onUnbind(final Intent intent) {
         mServiceInUse = false;
+        // The queue is saved on the player thread, which owns it
+        sendCommand(COMMAND_UNBIND, 0, 0, null);
+        return true;
+    }
+
+    /**
+     * Saves the queue once the last client unbound, and stops the service
+     * now or after a while if nothing is playing. Runs on the player thread.
+     */
+    private void onUnbound() {
         saveQueue(true);
 
         if (mIsSupposedToBePlaying || mPausedByTransientLossOfFocus) {
             // Something is currently playing, or will be playing once
             // an in-progress action requesting audio focus ends, so don't stop
             // the service now.
-            return true;
+            return;
 
             // If there is a playlist but playback is paused, then wait a while
             // before stopping the service, so that pause/resume isn't slow.
             // Also delay stopping the service if we're transitioning between
             // tracks.
-        } else if (mPlayListLen > 0 || mPlayerHandler.hasMessages(TRACK_ENDED)) {
+        } else if (mPlayList.size() > 0 || mPlayerHandler.hasMessages(TRACK_ENDED)) {
             final Message msg = mDelayedStopHandler.obtainMessage();
             mDelayedStopHandler.sendMessageDelayed(msg, IDLE_DELAY);
-            return true;
+            return;
         }
         stopSelf(mServiceStartId);
-        return true;
+    }
+
+    /**
+     * Saves the queue and stops the service, unless something is playing or
+     * a client is bound again. Runs on the player thread.
+     */
+    private void stopIfIdle() {
+        if (isPlaying() || mPausedByTransientLossOfFocus || mServiceInUse
+                || mPlayerHandler.hasMessages(TRACK_ENDED)) {
+            return;
+        }
+        saveQueue(true);
+        stopSelf(mServiceStartId);
     }
 
     /**
@@ -2188,38 +2991,104 @@ public class MusicPlaybackService extends Service {
      * @param list The list of tracks to open
      * @param position The position to start playback at
      */
-    public void open(final long[] list, final int position) {
+    public void open(final long[] list, final int position) {
+        synchronized (this) {
+            if (mShuffleMode == SHUFFLE_AUTO) {
+                mShuffleMode = SHUFFLE_NORMAL;
+                mAutoShuffleStartPending = false;
+                mAutoShuffleSource.stop();
+            }
+            final long oldId = getAudioId();
+            if (!isQueue(list)) {
+                addToPlayList(list, -1);
+                notifyChange(QUEUE_CHANGED);
+            }
+            openAt(position, oldId);
+        }
+    }
+
+    /**
+     * Opens the tracks a {@link QueueSource} describes for playback, so the
+     * list is never built by the client or sent over Binder. The query runs
+     * here, before the lock is taken, and the queue keeps its cursor: IDs are
+     * read a page at a time as they're needed, and the whole list is only
+     * read when the queue is edited.
+     * 
+     * @param source The list to open
+     */
+    public void open(final QueueSource source) {
+        Cursor cursor = null;
+        if (!source.isSameList(mQueueSource)) {
+            cursor = MusicUtils.makeQueueSourceCursor(this, source);
+            if (cursor == null) {
+                return;
+            }
+            // Counts the rows and fills the first page
+            cursor.getCount();
+        }
         synchronized (this) {
             if (mShuffleMode == SHUFFLE_AUTO) {
                 mShuffleMode = SHUFFLE_NORMAL;
+                mAutoShuffleStartPending = false;
+                mAutoShuffleSource.stop();
             }
             final long oldId = getAudioId();
-            final int listlength = list.length;
-            boolean newlist = true;
-            if (mPlayListLen == listlength) {
-                newlist = false;
-                for (int i = 0; i < listlength; i++) {
-                    if (list[i] != mPlayList[i]) {
-                        newlist = true;
-                        break;
-                    }
-                }
-            }
-            if (newlist) {
-                addToPlayList(list, -1);
+            boolean replaced = false;
+            if (cursor != null && source.isSameList(mQueueSource)) {
+                // Opened again while the query ran
+                cursor.close();
+            } else if (cursor != null) {
+                addToPlayList(cursor);
                 notifyChange(QUEUE_CHANGED);
+                replaced = true;
             }
-            if (position >= 0) {
-                mPlayPos = position;
-            } else {
-                mPlayPos = mShuffler.nextInt(mPlayListLen);
+            mQueueSource = source;
+            if (mPlayList.size() > 0) {
+                openAt(source.mPosition < mPlayList.size() ? source.mPosition : 0, oldId);
             }
-            mHistory.clear();
-            openCurrentAndNext();
-            if (oldId != getAudioId()) {
-                notifyChange(META_CHANGED);
+            if (replaced) {
+                saveQueue(true);
+            }
+        }
+    }
+
+    /**
+     * @param list A list of track IDs
+     * @return True if the queue holds exactly those tracks, in that order
+     */
+    private boolean isQueue(final long[] list) {
+        if (mPlayList.size() != list.length) {
+            return false;
+        }
+        for (int i = 0; i < list.length; i++) {
+            if (list[i] != mPlayList.get(i)) {
+                return false;
             }
         }
+        return true;
+    }
+
+    /**
+     * Starts a freshly opened queue
+     * 
+     * @param position The position to start at, or -1 for a random one
+     * @param oldId The ID of the track that was playing before
+     */
+    private void openAt(final int position, final long oldId) {
+        if (position >= 0) {
+            mPlayPos = position;
+        } else {
+            mPlayPos = mShuffler.nextInt(mPlayList.size());
+        }
+        mShuffleOrder.clearHistory();
+        mShuffleOrder.reset(mPlayList.size());
+        if (mShuffleMode == SHUFFLE_NORMAL) {
+            mShuffleOrder.setCurrent(mPlayPos);
+        }
+        openCurrentAndNext();
+        if (oldId != getAudioId()) {
+            notifyChange(META_CHANGED);
+        }
     }
 
     /**
@@ -2240,61 +3109,157 @@ public class MusicPlaybackService extends Service {
      */
     private void openCurrentAndMaybeNext(final boolean openNext) {
         synchronized (this) {
-            if (mCursor != null) {
-                mCursor.close();
-                mCursor = null;
-            }
+            // Opening a track cancels any retry that's still waiting
+            mPlayerHandler.removeMessages(OPEN_RETRY);
+            mOpeningRestoredQueue = false;
+            setTrack(null);
 
-            if (mPlayListLen == 0) {
+            if (mPlayList.size() == 0) {
                 return;
             }
             stop(false);
 
-            mCursor = getCursorForId(mPlayList[mPlayPos]);
-            while (true) {
-                if (mCursor != null
-                        && mCursor.getCount() != 0
-                        && openFile(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI + "/"
-                                + mCursor.getLong(IDCOLIDX))) {
-                    break;
-                }
-                // if we get here then opening the file failed. We can close the
-                // cursor now, because
-                // we're either going to create a new one next, or stop trying
-                if (mCursor != null) {
-                    mCursor.close();
-                    mCursor = null;
-                }
-                if (mOpenFailedCounter++ < 10 && mPlayListLen > 1) {
-                    final int pos = getNextPosition(false);
-                    if (pos < 0) {
-                        gotoIdleState();
-                        if (mIsSupposedToBePlaying) {
-                            mIsSupposedToBePlaying = false;
-                            notifyChange(PLAYSTATE_CHANGED);
-                        }
-                        return;
-                    }
-                    mPlayPos = pos;
-                    stop(false);
-                    mPlayPos = pos;
-                    mCursor = getCursorForId(mPlayList[mPlayPos]);
-                } else {
-                    mOpenFailedCounter = 0;
-                    gotoIdleState();
-                    if (mIsSupposedToBePlaying) {
-                        mIsSupposedToBePlaying = false;
-                        notifyChange(PLAYSTATE_CHANGED);
-                    }
-                    return;
-                }
+            mOpenNextWhenPrepared = openNext;
+            setTrack(mMetadataCache.get(mPlayList.get(mPlayPos)));
+            if (mMetadata == TrackMetadata.EMPTY) {
+                // The track isn't in the library anymore
+                onOpenFailed(false);
+                return;
+            }
+            openFile(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI + "/" + mMetadata.mAudioId);
+        }
+    }
+
+    /**
+     * Called on the player handler's thread when a player is done preparing.
+     * Starts the current track if playback was asked for meanwhile and
+     * prepares the next one while it plays.
+     * 
+     * @param preparation The preparation that ended
+     * @param prepared True if the player is ready, false if it failed
+     * @param timedOut True if the player took too long to prepare
+     */
+    private void onPrepareFinished(final MultiPlayer.Preparation preparation,
+            final boolean prepared, final boolean timedOut) {
+        synchronized (this) {
+            if (mPlayer.finishPreparing(preparation, prepared) != MultiPlayer.CURRENT) {
+                return;
+            }
+            if (!prepared) {
+                onOpenFailed(timedOut);
+                return;
+            }
+            mOpenFailedCounter = 0;
+            mRetriedAudioId = -1;
+            mOpeningRestoredQueue = false;
+            if (mSeekWhenPrepared > 0 && mSeekWhenPrepared < duration()) {
+                seek(mSeekWhenPrepared);
             }
-            if (openNext) {
+            mSeekWhenPrepared = -1;
+            if (mOpenNextWhenPrepared) {
+                mOpenNextWhenPrepared = false;
                 setNextTrack();
             }
+            if (mPlayWhenPrepared) {
+                mPlayWhenPrepared = false;
+                play();
+            }
+            // The position and duration are known now
+            notifyChange(PLAYSTATE_CHANGED);
+        }
+    }
+
+    /**
+     * Called when the current track couldn't be opened. A track that timed
+     * out is tried once more, otherwise the next one is, after a wait that
+     * grows with every failure in a row, until {@link #MAX_OPEN_FAILURES}.
+     * 
+     * @param timedOut True if the track took too long to prepare
+     */
+    private void onOpenFailed(final boolean timedOut) {
+        final long audioId = mMetadata.mAudioId;
+        if (timedOut && audioId >= 0 && audioId != mRetriedAudioId) {
+            // A slow card or stream may just need another go, the restored
+            // queue and the position to seek to are kept for it
+            mRetriedAudioId = audioId;
+            mPlayerHandler.sendEmptyMessageDelayed(OPEN_RETRY, getOpenRetryDelay());
+            return;
+        }
+        if (mOpeningRestoredQueue) {
+            // The restored queue is stale, start afresh
+            mOpeningRestoredQueue = false;
+            mPlayList.clear();
+            mShuffleOrder.reset(0);
+            mQueueLog.reset();
+            if (mQueueIsSaveable) {
+                mQueueStore.logClear();
+            }
+            setTrack(null);
+            notifyChange(QUEUE_CHANGED);
+            notifyChange(META_CHANGED);
+            return;
+        }
+        setTrack(null);
+        mFileToPlay = null;
+        if (mOpenFailedCounter++ < MAX_OPEN_FAILURES && mPlayList.size() > 1) {
+            final int pos = getNextPosition(false);
+            if (pos >= 0) {
+                // Skip the broken track without adding it to the history, the
+                // next one starts from the beginning
+                mSeekWhenPrepared = -1;
+                mPlayPos = pos;
+                if (mShuffleMode == SHUFFLE_NORMAL) {
+                    mShuffleOrder.setCurrent(pos);
+                }
+                mPlayerHandler.sendEmptyMessageDelayed(OPEN_RETRY, getOpenRetryDelay());
+                return;
+            }
+        } else {
+            mOpenFailedCounter = 0;
+        }
+        mPlayWhenPrepared = false;
+        gotoIdleState();
+        if (mIsSupposedToBePlaying) {
+            mIsSupposedToBePlaying = false;
+            notifyChange(PLAYSTATE_CHANGED);
+        }
+        notifyChange(META_CHANGED);
+    }
+
+    /**
+     * @return How long to wait before opening a track again, given the
+     *         failures so far
+     */
+    private long getOpenRetryDelay() {
+        return Math.min(OPEN_RETRY_MAX_DELAY, OPEN_RETRY_DELAY << Math.min(mOpenFailedCounter, 8));
+    }
+
+    /**
+     * Opens the current track again after a failure, keeping what was asked
+     * of the one that failed
+     */
+    private void retryOpen() {
+        synchronized (this) {
+            // Opening resets these, carry them over to the new attempt
+            final boolean play = mPlayWhenPrepared;
+            final long seekpos = mSeekWhenPrepared;
+            final boolean restored = mOpeningRestoredQueue;
+            openCurrentAndMaybeNext(mOpenNextWhenPrepared);
+            mPlayWhenPrepared = play;
+            mSeekWhenPrepared = seekpos;
+            mOpeningRestoredQueue = restored && mPlayer.isPreparing();
+            notifyChange(META_CHANGED);
         }
     }
 
+    /**
+     * @return True while the current track is being prepared or is about to
+     *         be opened again
+     */
+    private boolean isOpening() {
+        return mPlayer.isPreparing() || mPlayerHandler.hasMessages(OPEN_RETRY);
+    }
+
     /**
      * Called to open a new file as the current track and prepare the next for
      * playback
@@ -2304,9 +3269,12 @@ public class MusicPlaybackService extends Service {
     }
 
     /**
-     * Opens a file and prepares it for playback
+     * Opens a file and starts preparing it for playback. Failures are
+     * handled once the player reports back, see
+     * {@link #onPrepareFinished(MultiPlayer.Preparation, boolean, boolean)}.
      * 
      * @param path The path of the file to open
+     * @return True if the file is being prepared
      */
     public boolean openFile(final String path) {
         synchronized (this) {
@@ -2314,8 +3282,8 @@ public class MusicPlaybackService extends Service {
                 return false;
             }
 
-            // If mCursor is null, try to associate path with a database cursor
-            if (mCursor == null) {
+            // If no track is open, try to associate path with a library track
+            if (mMetadata == TrackMetadata.EMPTY) {
                 final ContentResolver resolver = getContentResolver();
                 Uri uri;
                 String where;
@@ -2332,17 +3300,27 @@ public class MusicPlaybackService extends Service {
                     };
                 }
                 try {
-                    mCursor = resolver.query(uri, PROJECTION, where, selectionArgs, null);
-                    if (mCursor != null) {
-                        if (mCursor.getCount() == 0) {
-                            mCursor.close();
-                            mCursor = null;
+                    final Cursor cursor = resolver.query(uri, TrackMetadataCache.PROJECTION,
+                            where, selectionArgs, null);
+                    if (cursor != null) {
+                        if (cursor.getCount() == 0) {
+                            cursor.close();
                         } else {
-                            mCursor.moveToNext();
-                            ensurePlayListCapacity(1);
-                            mPlayListLen = 1;
-                            mPlayList[0] = mCursor.getLong(IDCOLIDX);
+                            cursor.moveToNext();
+                            setTrack(TrackMetadataCache.read(cursor));
+                            cursor.close();
+                            mPlayList.clear();
+                            mPlayList.add(mMetadata.mAudioId);
+                            mShuffleOrder.reset(1);
+                            mQueueLog.reset();
                             mPlayPos = 0;
+                            if (mQueueIsSaveable) {
+                                mQueueStore.logClear();
+                                mQueueStore.logInsert(0, new long[] {
+                                    mPlayList.get(0)
+                                }, 1);
+                            }
+                            notifyChange(QUEUE_CHANGED);
                         }
                     }
                 } catch (final UnsupportedOperationException ex) {
@@ -2350,12 +3328,7 @@ public class MusicPlaybackService extends Service {
             }
             mFileToPlay = path;
             mPlayer.setDataSource(mFileToPlay);
-            if (mPlayer.isInitialized()) {
-                mOpenFailedCounter = 0;
-                return true;
-            }
-            stop(true);
-            return false;
+            return true;
         }
     }
 
@@ -2365,6 +3338,7 @@ public class MusicPlaybackService extends Service {
     public void pause() {
         synchronized (this) {
             mPlayerHandler.removeMessages(FADEUP);
+            mPlayWhenPrepared = false;
             if (mIsSupposedToBePlaying) {
                 mPlayer.pause();
                 gotoIdleState();
@@ -2401,7 +3375,15 @@ public class MusicPlaybackService extends Service {
                 notifyChange(PLAYSTATE_CHANGED);
             }
 
-        } else if (mPlayListLen <= 0) {
+        } else if (mOpenOnPlay) {
+            openRestoredQueue();
+            if (isOpening()) {
+                mPlayWhenPrepared = true;
+            }
+        } else if (isOpening()) {
+            // Starts once the track is prepared
+            mPlayWhenPrepared = true;
+        } else if (mPlayList.size() <= 0) {
             setShuffleMode(SHUFFLE_AUTO);
         }
     }
@@ -2414,6 +3396,9 @@ public class MusicPlaybackService extends Service {
     public long position() {
         if (mPlayer.isInitialized()) {
             return mPlayer.position();
+        } else if (mOpenOnPlay) {
+            // Where the restored track will start
+            return Math.max(0, mSeekWhenPrepared);
         }
         return -1;
     }
@@ -2425,17 +3410,16 @@ public class MusicPlaybackService extends Service {
         synchronized (this) {
             if (mShuffleMode == SHUFFLE_NORMAL) {
                 // Go to previously-played track and remove it from the history
-                final int histsize = mHistory.size();
-                if (histsize == 0) {
+                final int pos = mShuffleOrder.previous();
+                if (pos < 0) {
                     return;
                 }
-                final Integer pos = mHistory.remove(histsize - 1);
-                mPlayPos = pos.intValue();
+                mPlayPos = pos;
             } else {
                 if (mPlayPos > 0) {
                     mPlayPos--;
                 } else {
-                    mPlayPos = mPlayListLen - 1;
+                    mPlayPos = mPlayList.size() - 1;
                 }
             }
             stop(false);
@@ -2467,19 +3451,7 @@ public class MusicPlaybackService extends Service {
                  */
                 @Override
                 public void onReceive(final Context context, final Intent intent) {
-                    final String action = intent.getAction();
-                    if (action.equals(Intent.ACTION_MEDIA_EJECT)) {
-                        saveQueue(true);
-                        mQueueIsSaveable = false;
-                        closeExternalStorageFiles(intent.getData().getPath());
-                    } else if (action.equals(Intent.ACTION_MEDIA_MOUNTED)) {
-                        mMediaMountedCount++;
-                        mCardId = getCardId();
-                        reloadQueue();
-                        mQueueIsSaveable = true;
-                        notifyChange(QUEUE_CHANGED);
-                        notifyChange(META_CHANGED);
-                    }
+                    mPlayerHandler.obtainMessage(COMMAND_STORAGE, intent).sendToTarget();
                 }
             };
             final IntentFilter filter = new IntentFilter();
@@ -2491,121 +3463,154 @@ public class MusicPlaybackService extends Service {
     }
 
     /**
-     * Reloads the queue as the user left it the last time they stopped using
-     * Apollo
-     */
-    private void reloadQueue() {
-        String q = null;
-        int id = mCardId;
-        if (mPreferences.contains("cardid")) {
-            id = mPreferences.getInt("cardid", ~mCardId);
-        }
-        if (id == mCardId) {
-            q = mPreferences.getString("queue", "");
-        }
-        int qlen = q != null ? q.length() : 0;
-        if (qlen > 1) {
-            int plen = 0;
-            int n = 0;
-            int shift = 0;
-            for (int i = 0; i < qlen; i++) {
-                final char c = q.charAt(i);
-                if (c == ';') {
-                    ensurePlayListCapacity(plen + 1);
-                    mPlayList[plen] = n;
-                    plen++;
-                    n = 0;
-                    shift = 0;
-                } else {
-                    if (c >= '0' && c <= '9') {
-                        n += c - '0' << shift;
-                    } else if (c >= 'a' && c <= 'f') {
-                        n += 10 + c - 'a' << shift;
-                    } else {
-                        plen = 0;
-                        break;
-                    }
-                    shift += 4;
+     * Reads the queue as the user left it the last time they stopped using
+     * Apollo. Only the file and the library are read, nothing is changed, so
+     * it runs without the lock.
+     * 
+     * @param cardId The ID of the card the queue has to come from
+     * @return The queue, empty if it has to be cleared, or null if there's
+     *         nothing to restore
+     */
+    private RestoredQueue readQueue(final int cardId) {
+        QueueStore.Snapshot snapshot = mQueueStore.load();
+        if (snapshot == null) {
+            snapshot = mQueueStore.migrate(mPreferences, cardId);
+        }
+        if (snapshot == null || snapshot.mCardId != cardId) {
+            return null;
+        }
+        final long[] queue = snapshot.mQueue;
+        if (queue.length == 0) {
+            return null;
+        }
+        int pos = snapshot.mPosition;
+        if (pos < 0 || pos >= queue.length) {
+            return new RestoredQueue(snapshot, 0, -1, -1, null);
+        }
+        long seekpos = snapshot.mSeekPosition;
+
+        // Drop the tracks that left the library since, checked in bulk.
+        // Finding none at all means the library isn't ready, the tracks are
+        // checked again as they're opened.
+        int size = queue.length;
+        final long[] existing = mMetadataCache.findExisting(queue);
+        if (existing != null && existing.length > 0) {
+            size = 0;
+            int newPos = -1;
+            for (int i = 0; i < queue.length; i++) {
+                if (i == pos) {
+                    newPos = size;
+                }
+                if (Arrays.binarySearch(existing, queue[i]) >= 0) {
+                    queue[size++] = queue[i];
+                } else if (i == pos) {
+                    seekpos = 0;
                 }
             }
-            mPlayListLen = plen;
-            final int pos = mPreferences.getInt("curpos", 0);
-            if (pos < 0 || pos >= mPlayListLen) {
-                mPlayListLen = 0;
-                return;
-            }
-            mPlayPos = pos;
-            Cursor mCursor = getContentResolver().query(
-                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, new String[] {
-                        "_id"
-                    }, "_id=" + mPlayList[mPlayPos], null, null);
-            if (mCursor == null || mCursor.getCount() == 0) {
-                SystemClock.sleep(3000);
-                mCursor = getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                        PROJECTION, "_id=" + mPlayList[mPlayPos], null, null);
-            }
-            if (mCursor != null) {
-                mCursor.close();
-                mCursor = null;
-            }
-            mOpenFailedCounter = 20;
-            openCurrentAndNext();
-            if (!mPlayer.isInitialized()) {
-                mPlayListLen = 0;
-                return;
+            if (size == 0) {
+                return new RestoredQueue(snapshot, 0, -1, -1, null);
             }
+            pos = Math.min(newPos, size - 1);
+        }
+        return new RestoredQueue(snapshot, size, pos, seekpos, mMetadataCache.get(queue[pos]));
+    }
 
-            final long seekpos = mPreferences.getLong("seekpos", 0);
-            seek(seekpos >= 0 && seekpos < duration() ? seekpos : 0);
-
-            int repmode = mPreferences.getInt("repeatmode", REPEAT_NONE);
-            if (repmode != REPEAT_ALL && repmode != REPEAT_CURRENT) {
-                repmode = REPEAT_NONE;
-            }
-            mRepeatMode = repmode;
-
-            int shufmode = mPreferences.getInt("shufflemode", SHUFFLE_NONE);
-            if (shufmode != SHUFFLE_AUTO && shufmode != SHUFFLE_NORMAL) {
-                shufmode = SHUFFLE_NONE;
-            }
-            if (shufmode != SHUFFLE_NONE) {
-                q = mPreferences.getString("history", "");
-                qlen = q != null ? q.length() : 0;
-                if (qlen > 1) {
-                    plen = 0;
-                    n = 0;
-                    shift = 0;
-                    mHistory.clear();
-                    for (int i = 0; i < qlen; i++) {
-                        final char c = q.charAt(i);
-                        if (c == ';') {
-                            if (n >= mPlayListLen) {
-                                mHistory.clear();
-                                break;
-                            }
-                            mHistory.add(n);
-                            n = 0;
-                            shift = 0;
-                        } else {
-                            if (c >= '0' && c <= '9') {
-                                n += c - '0' << shift;
-                            } else if (c >= 'a' && c <= 'f') {
-                                n += 10 + c - 'a' << shift;
-                            } else {
-                                mHistory.clear();
-                                break;
-                            }
-                            shift += 4;
-                        }
-                    }
-                }
-            }
-            if (shufmode == SHUFFLE_AUTO) {
-                if (!makeAutoShuffleList()) {
-                    shufmode = SHUFFLE_NONE;
-                }
+    /**
+     * Makes a queue read by {@link #readQueue(int)} the current one. Must be
+     * called with the lock held.
+     * 
+     * @param restored The queue, or null to leave the current one
+     */
+    private void installQueue(final RestoredQueue restored) {
+        mQueueLog.reset();
+        if (restored == null) {
+            return;
+        }
+        if (restored.mSize == 0) {
+            mPlayList.clear();
+            mShuffleOrder.reset(0);
+            return;
+        }
+        final QueueStore.Snapshot snapshot = restored.mSnapshot;
+        final int size = restored.mSize;
+        mDroppedTracks = snapshot.mQueue.length - size;
+        mPlayList.setAll(snapshot.mQueue, size);
+        mShuffleOrder.reset(size);
+        mPlayPos = restored.mPosition;
+
+        int repmode = mPreferences.getInt("repeatmode", REPEAT_NONE);
+        if (repmode != REPEAT_ALL && repmode != REPEAT_CURRENT) {
+            repmode = REPEAT_NONE;
+        }
+        mRepeatMode = repmode;
+
+        int shufmode = mPreferences.getInt("shufflemode", SHUFFLE_NONE);
+        if (shufmode != SHUFFLE_AUTO && shufmode != SHUFFLE_NORMAL) {
+            shufmode = SHUFFLE_NONE;
+        }
+        if (shufmode == SHUFFLE_NORMAL) {
+            if (size == snapshot.mQueue.length) {
+                mShuffleOrder.restore(mPlayList.size(), snapshot.mShuffleOrder,
+                        snapshot.mShuffleCursor, snapshot.mHistory);
             }
-            mShuffleMode = shufmode;
+            mShuffleOrder.setCurrent(mPlayPos);
+        }
+        if (shufmode == SHUFFLE_AUTO) {
+            // Keep the restored queue, it's topped up once the library has
+            // been read
+            mAutoShuffleStartPending = false;
+            mAutoShuffleSource.start(mPlayerHandler, AUTO_SHUFFLE_READY);
+        }
+        mShuffleMode = shufmode;
+
+        // Show the track, but only open it once it's played
+        stop(false);
+        setTrack(restored.mTrack);
+        mSeekWhenPrepared = restored.mSeekPosition > 0 ? restored.mSeekPosition : -1;
+        mOpenOnPlay = true;
+    }
+
+    /**
+     * Brings the queue back from the last session. The card, the file and
+     * the library are read before the lock is taken, so the getters never
+     * wait on them, and the lock is only held to install the queue.
+     */
+    private void reloadQueue() {
+        final int cardId = getCardId();
+        final RestoredQueue restored = readQueue(cardId);
+        synchronized (this) {
+            mCardId = cardId;
+            installQueue(restored);
+            mQueueIsSaveable = true;
+            saveQueue(true);
+        }
+        notifyChange(QUEUE_CHANGED);
+        notifyChange(META_CHANGED);
+    }
+
+    /**
+     * Brings the queue back from the last session. Runs on the player
+     * handler's thread so the service is up straight away, commands sent
+     * meanwhile wait behind it.
+     */
+    private void restoreQueue() {
+        final long start = SystemClock.elapsedRealtime();
+        reloadQueue();
+        mRestoreWait = start - mCreateStart;
+        mRestoreTime = SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * Opens the restored track when it's first played, at the position it
+     * was left at
+     */
+    private void openRestoredQueue() {
+        final long seekpos = mSeekWhenPrepared;
+        mOpenFailedCounter = 0;
+        openCurrentAndNext();
+        mOpeningRestoredQueue = mPlayer.isPreparing();
+        if (seekpos > 0) {
+            seek(seekpos);
         }
     }
 
@@ -2616,18 +3621,91 @@ public class MusicPlaybackService extends Service {
      * @return how many instances of the track were removed
      */
     public int removeTrack(final long id) {
-        int numremoved = 0;
+        return removeTracksById(new long[] {
+            id
+        });
+    }
+
+    /**
+     * Removes all instances of the given tracks from the queue in one pass.
+     * If the current track is removed, playback moves to the next track left
+     * after it.
+     * 
+     * @param ids The IDs of the tracks to remove
+     * @return The number of tracks removed
+     */
+    public int removeTracksById(final long[] ids) {
+        if (ids == null || ids.length == 0) {
+            return 0;
+        }
+        final long[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        final int numremoved;
         synchronized (this) {
-            for (int i = 0; i < mPlayListLen; i++) {
-                if (mPlayList[i] == id) {
-                    numremoved += removeTracksInternal(i, i);
-                    i--;
+            final long[] queue = mPlayList.toArray();
+            // map[i] is the new position of position i, or -1 if it's removed
+            final int[] map = new int[queue.length];
+            int size = 0;
+            for (int i = 0; i < queue.length; i++) {
+                if (Arrays.binarySearch(sorted, queue[i]) >= 0) {
+                    map[i] = -1;
+                } else {
+                    map[i] = size;
+                    queue[size++] = queue[i];
+                }
+            }
+            numremoved = queue.length - size;
+            if (numremoved == 0) {
+                return 0;
+            }
+
+            // Log each run of removed tracks, the last one first so the
+            // positions of the runs before it still hold
+            int length = queue.length;
+            for (int last = map.length - 1; last >= 0; last--) {
+                if (map[last] >= 0) {
+                    continue;
+                }
+                int first = last;
+                while (first > 0 && map[first - 1] < 0) {
+                    first--;
+                }
+                length -= last - first + 1;
+                if (mQueueIsSaveable) {
+                    mQueueStore.logRemove(first, last, length);
+                }
+                mQueueLog.remove(first, last);
+                last = first;
+            }
+            mPlayList.setAll(queue, size);
+            mShuffleOrder.remove(map);
+            mQueueSource = null;
+
+            boolean gotonext = false;
+            if (mPlayPos >= 0 && mPlayPos < map.length) {
+                if (map[mPlayPos] < 0) {
+                    // The first track left after the current one
+                    int next = mPlayPos;
+                    while (next < map.length && map[next] < 0) {
+                        next++;
+                    }
+                    mPlayPos = next < map.length ? map[next] : size;
+                    gotonext = true;
+                } else {
+                    mPlayPos = map[mPlayPos];
+                }
+            }
+            if (gotonext) {
+                openAfterRemoval();
+            } else if (mNextPlayPos >= 0 && mNextPlayPos < map.length) {
+                if (map[mNextPlayPos] < 0) {
+                    setNextTrack();
+                } else {
+                    mNextPlayPos = map[mNextPlayPos];
                 }
             }
         }
-        if (numremoved > 0) {
-            notifyChange(QUEUE_CHANGED);
-        }
+        notifyChange(QUEUE_CHANGED);
         return numremoved;
     }
 
@@ -2663,8 +3741,8 @@ public class MusicPlaybackService extends Service {
                 return 0;
             } else if (first < 0) {
                 first = 0;
-            } else if (last >= mPlayListLen) {
-                last = mPlayListLen - 1;
+            } else if (last >= mPlayList.size()) {
+                last = mPlayList.size() - 1;
             }
 
             boolean gotonext = false;
@@ -2674,91 +3752,79 @@ public class MusicPlaybackService extends Service {
             } else if (mPlayPos > last) {
                 mPlayPos -= last - first + 1;
             }
-            final int num = mPlayListLen - last - 1;
-            for (int i = 0; i < num; i++) {
-                mPlayList[first + i] = mPlayList[last + 1 + i];
+            mPlayList.removeRange(first, last + 1);
+            mQueueLog.remove(first, last);
+            mQueueSource = null;
+            mShuffleOrder.remove(first, last);
+            if (mQueueIsSaveable) {
+                mQueueStore.logRemove(first, last, mPlayList.size());
             }
-            mPlayListLen -= last - first + 1;
 
             if (gotonext) {
-                if (mPlayListLen == 0) {
-                    stop(true);
-                    mPlayPos = -1;
-                    if (mCursor != null) {
-                        mCursor.close();
-                        mCursor = null;
-                    }
-                } else {
-                    if (mPlayPos >= mPlayListLen) {
-                        mPlayPos = 0;
-                    }
-                    final boolean wasPlaying = isPlaying();
-                    stop(false);
-                    openCurrentAndNext();
-                    if (wasPlaying) {
-                        play();
-                    }
-                }
-                notifyChange(META_CHANGED);
+                openAfterRemoval();
             }
             return last - first + 1;
         }
     }
 
+    /**
+     * Opens the track that took the place of the current one after it was
+     * removed from the queue, or stops if the queue is empty
+     */
+    private void openAfterRemoval() {
+        if (mPlayList.size() == 0) {
+            stop(true);
+            mPlayPos = -1;
+            setTrack(null);
+        } else {
+            if (mPlayPos >= mPlayList.size()) {
+                mPlayPos = 0;
+            }
+            if (mShuffleMode == SHUFFLE_NORMAL) {
+                mShuffleOrder.setCurrent(mPlayPos);
+            }
+            final boolean wasPlaying = isPlaying();
+            stop(false);
+            openCurrentAndNext();
+            if (wasPlaying) {
+                play();
+            }
+        }
+        notifyChange(META_CHANGED);
+    }
+
     /**
      * Saves the queue
      * 
-     * @param full True if the queue is full
+     * @param full True to write the whole queue and shuffle history, false to
+     *            only record the current position
      */
     private void saveQueue(final boolean full) {
         if (!mQueueIsSaveable) {
             return;
         }
 
-        final SharedPreferences.Editor editor = mPreferences.edit();
+        final long seekpos = position();
         if (full) {
-            final StringBuilder q = new StringBuilder();
-            int len = mPlayListLen;
-            for (int i = 0; i < len; i++) {
-                long n = mPlayList[i];
-                if (n < 0) {
-                    continue;
-                } else if (n == 0) {
-                    q.append("0;");
-                } else {
-                    while (n != 0) {
-                        final int digit = (int) (n & 0xf);
-                        n >>>= 4;
-                        q.append(HEX_DIGITS[digit]);
-                    }
-                    q.append(";");
-                }
-            }
-            editor.putString("queue", q.toString());
-            editor.putInt("cardid", mCardId);
-            if (mShuffleMode != SHUFFLE_NONE) {
-                len = mHistory.size();
-                q.setLength(0);
-                for (int i = 0; i < len; i++) {
-                    int n = mHistory.get(i);
-                    if (n == 0) {
-                        q.append("0;");
-                    } else {
-                        while (n != 0) {
-                            final int digit = n & 0xf;
-                            n >>>= 4;
-                            q.append(HEX_DIGITS[digit]);
-                        }
-                        q.append(";");
-                    }
-                }
-                editor.putString("history", q.toString());
+            int[] history = null;
+            int[] order = null;
+            if (mShuffleMode == SHUFFLE_NORMAL) {
+                history = mShuffleOrder.getHistory();
+                order = mShuffleOrder.getOrder();
+            }
+            if (mPlayList.isBackedByCursor() && mQueueSource != null) {
+                // The store reads the IDs itself rather than this thread
+                // reading them all
+                mQueueStore.saveAsync(mCardId, mQueueSource, history, order,
+                        mShuffleOrder.getCursor(), mPlayPos, seekpos);
+            } else {
+                mQueueStore.saveAsync(mCardId, mPlayList.toArray(), history, order,
+                        mShuffleOrder.getCursor(), mPlayPos, seekpos);
             }
+        } else {
+            mQueueStore.logPosition(mPlayPos, seekpos, mPlayList.size());
         }
-        editor.putInt("curpos", mPlayPos);
-        if (mPlayer.isInitialized()) {
-            editor.putLong("seekpos", mPlayer.position());
-        }
+        final SharedPreferences.Editor editor = mPreferences.edit();
         editor.putInt("repeatmode", mRepeatMode);
         editor.putInt("shufflemode", mShuffleMode);
         SharedPreferencesCompat.apply(editor);
@@ -2770,14 +3836,33 @@ public class MusicPlaybackService extends Service {
      * @param position The time to seek to
      * @return The time to play the track at
      */
-    public long seek(long position) {
+    public long seek(final long position) {
+        final long whereto = clampSeek(position);
+        if (mPlayer.isInitialized()) {
+            return mPlayer.seek(whereto);
+        } else if (whereto >= 0) {
+            mSeekWhenPrepared = whereto;
+        }
+        return whereto;
+    }
+
+    /**
+     * Works out where a seek lands without making it, from the published
+     * state, so a binder thread can answer before the seek has run
+     * 
+     * @param position The offset in milliseconds to seek to
+     * @return The offset the seek lands on, or -1 if there's nothing to seek
+     *         in
+     */
+    private long clampSeek(final long position) {
         if (mPlayer.isInitialized()) {
             if (position < 0) {
-                position = 0;
-            } else if (position > mPlayer.duration()) {
-                position = mPlayer.duration();
+                return 0;
             }
-            return mPlayer.seek(position);
+            return Math.min(position, mPlayer.duration());
+        } else if (isOpening() || mOpenOnPlay) {
+            // Where the track will start once it's prepared
+            return Math.max(0, position);
         }
         return -1;
     }
@@ -2797,9 +3882,14 @@ public class MusicPlaybackService extends Service {
      * Sets the track track to be played
      */
     private void setNextTrack() {
+        if (!mPlayer.isInitialized()) {
+            // It's prepared once the current track is
+            mOpenNextWhenPrepared = true;
+            return;
+        }
         mNextPlayPos = getNextPosition(false);
-        if (mNextPlayPos >= 0 && mPlayList != null) {
-            final long id = mPlayList[mNextPlayPos];
+        if (mNextPlayPos >= 0 && mNextPlayPos < mPlayList.size()) {
+            final long id = mPlayList.get(mNextPlayPos);
             mPlayer.setNextDataSource(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI + "/" + id);
         }
     }
@@ -2812,7 +3902,7 @@ public class MusicPlaybackService extends Service {
     public void setQueuePosition(final int index) {
         synchronized (this) {
             stop(false);
-            mPlayPos = index;
+            moveToPosition(index);
             openCurrentAndNext();
             play();
             notifyChange(META_CHANGED);
@@ -2843,22 +3933,30 @@ public class MusicPlaybackService extends Service {
      */
     public void setShuffleMode(final int shufflemode) {
         synchronized (this) {
-            if (mShuffleMode == shufflemode && mPlayListLen > 0) {
+            if (mShuffleMode == shufflemode && mPlayList.size() > 0) {
                 return;
             }
             mShuffleMode = shufflemode;
+            if (mShuffleMode != SHUFFLE_NORMAL) {
+                // Only a shuffled queue keeps the permutation, the edits
+                // don't have to patch it until shuffle is on again
+                mShuffleOrder.reset(mPlayList.size());
+            }
             if (mShuffleMode == SHUFFLE_AUTO) {
-                if (makeAutoShuffleList()) {
-                    mPlayListLen = 0;
-                    doAutoShuffleUpdate();
-                    mPlayPos = 0;
-                    openCurrentAndNext();
-                    play();
-                    notifyChange(META_CHANGED);
-                    return;
-                } else {
-                    mShuffleMode = SHUFFLE_NONE;
-                }
+                // The library is read on another thread, the queue is
+                // replaced in onAutoShuffleReady()
+                mAutoShuffleStartPending = true;
+                mAutoShuffleSource.start(mPlayerHandler, AUTO_SHUFFLE_READY);
+                saveQueue(false);
+                notifyChange(SHUFFLEMODE_CHANGED);
+                return;
+            }
+            mAutoShuffleStartPending = false;
+            mAutoShuffleSource.stop();
+            if (mShuffleMode == SHUFFLE_NORMAL) {
+                // Start a fresh pass from the current track
+                mShuffleOrder.reset(mPlayList.size());
+                mShuffleOrder.setCurrent(mPlayPos);
             }
             saveQueue(false);
             notifyChange(SHUFFLEMODE_CHANGED);
@@ -2903,14 +4001,14 @@ public class MusicPlaybackService extends Service {
      * @param remove_status_icon True to go to the idle state, false otherwise
      */
     private void stop(final boolean remove_status_icon) {
-        if (mPlayer.isInitialized()) {
+        if (mPlayer.isInitialized() || mPlayer.isPreparing()) {
             mPlayer.stop();
         }
+        mPlayWhenPrepared = false;
+        mSeekWhenPrepared = -1;
+        mOpenOnPlay = false;
         mFileToPlay = null;
-        if (mCursor != null) {
-            mCursor.close();
-            mCursor = null;
-        }
+        setTrack(null);
         if (remove_status_icon) {
             gotoIdleState();
         } else {
@@ -2956,28 +4054,9 @@ public class MusicPlaybackService extends Service {
                         .putLong(MediaMetadataRetriever.METADATA_KEY_DURATION, duration())
                         .putBitmap(
                                 RemoteControlClientCompat.MetadataEditorCompat.METADATA_KEY_ARTWORK,
-                                getAlbumArt()).apply();
-            }
-        }
-    }
-
-    /**/
-    private boolean wasRecentlyUsed(final int idx, int lookbacksize) {
-        if (lookbacksize == 0) {
-            return false;
-        }
-        final int histsize = mHistory.size();
-        if (histsize < lookbacksize) {
-            lookbacksize = histsize;
-        }
-        final int maxidx = histsize - 1;
-        for (int i = 0; i < lookbacksize; i++) {
-            final long entry = mHistory.get(maxidx - i);
-            if (entry == idx) {
-                return true;
+                                getAlbumArt(NowPlayingArtwork.SIZE_LOCKSCREEN)).apply();
             }
         }
-        return false;
     }
 
 }
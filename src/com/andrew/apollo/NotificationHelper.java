@@ -79,7 +79,8 @@ public class NotificationHelper {
      * Call this to build the {@link Notification}.
      */
     public void buildNotification(final String albumName, final String artistName,
-            final String trackName, final Long albumId, final Bitmap albumArt) {
+            final String trackName, final Long albumId, final Bitmap albumArt,
+            final Bitmap expandedArt) {
 
         // Default notfication layout
         mNotificationTemplate = new RemoteViews(mService.getPackageName(),
@@ -104,7 +105,7 @@ public class NotificationHelper {
                 // Control playback from the notification
                 initExpandedPlaybackActions();
                 // Set up the expanded content view
-                initExpandedLayout(trackName, albumName, artistName, albumArt);
+                initExpandedLayout(trackName, albumName, artistName, expandedArt);
             }
             mService.startForeground(APOLLO_MUSIC_SERVICE, mNotification);
         } else {
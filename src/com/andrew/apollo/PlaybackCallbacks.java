@@ -0,0 +1,266 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo;
+
+import java.util.Set;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import com.andrew.apollo.model.PlaybackState;
+
+/**
+ * Pushes state changes and position ticks to the clients that registered an
+ * {@link IApolloCallback}, so they don't have to poll the service.
+ * <p>
+ * Each client asks for position ticks at its own interval, or none at all.
+ * Ticks only run while something is playing and someone wants them, at the
+ * shortest interval asked for, and are lined up with the next full second of
+ * the track so a time counter never lags. Everything is sent from one thread,
+ * which {@link RemoteCallbackList} requires.
+ */
+public final class PlaybackCallbacks {
+
+    /**
+     * The shortest interval position ticks are sent at, in milliseconds
+     */
+    private static final long MIN_TICK_INTERVAL = 20;
+
+    private final MusicPlaybackService mService;
+
+    private final Handler mHandler;
+
+    private final RemoteCallbackList<IApolloCallback> mCallbacks =
+            new RemoteCallbackList<IApolloCallback>();
+
+    /**
+     * Sends the position to the clients that are due a tick
+     */
+    private final Runnable mTick = new Runnable() {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            sendTick();
+        }
+    };
+
+    /* True while mTick is posted */
+    private boolean mTicking = false;
+
+    /**
+     * Constructor of <code>PlaybackCallbacks</code>
+     *
+     * @param service The service whose state is sent
+     * @param looper The looper to send from
+     */
+    public PlaybackCallbacks(final MusicPlaybackService service, final Looper looper) {
+        mService = service;
+        mHandler = new Handler(looper);
+    }
+
+    /**
+     * Adds a client. It's sent the current track and state straight away.
+     *
+     * @param callback The client's callback
+     * @param positionInterval How often the client wants the position while
+     *            playing, in milliseconds, or 0 for never
+     */
+    public void register(final IApolloCallback callback, final long positionInterval) {
+        if (callback == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void run() {
+                // Registering again replaces the interval
+                mCallbacks.unregister(callback);
+                mCallbacks.register(callback, new Subscriber(positionInterval));
+                try {
+                    callback.onMetaChanged(mService.getTrackMetadata());
+                    callback.onPlaybackStateChanged(mService.getPlaybackState());
+                } catch (final RemoteException e) {
+                    // The client died, RemoteCallbackList drops it
+                }
+                scheduleTick();
+            }
+        });
+    }
+
+    /**
+     * Removes a client
+     *
+     * @param callback The client's callback
+     */
+    public void unregister(final IApolloCallback callback) {
+        if (callback == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void run() {
+                mCallbacks.unregister(callback);
+                scheduleTick();
+            }
+        });
+    }
+
+    /**
+     * Sends the changes that came out of a burst of
+     * {@link MusicPlaybackService#notifyChange(String)} calls, as one delta
+     * of each kind
+     *
+     * @param changes The changes, the service's broadcast actions
+     */
+    public void notifyChange(final Set<String> changes) {
+        final boolean meta = changes.contains(MusicPlaybackService.META_CHANGED);
+        final boolean queue = changes.contains(MusicPlaybackService.QUEUE_CHANGED);
+        final boolean state = meta || queue
+                || changes.contains(MusicPlaybackService.PLAYSTATE_CHANGED)
+                || changes.contains(MusicPlaybackService.REPEATMODE_CHANGED)
+                || changes.contains(MusicPlaybackService.SHUFFLEMODE_CHANGED);
+        if (!state) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void run() {
+                final PlaybackState playbackState = mService.getPlaybackState();
+                final int count = mCallbacks.beginBroadcast();
+                for (int i = 0; i < count; i++) {
+                    final IApolloCallback callback = mCallbacks.getBroadcastItem(i);
+                    try {
+                        if (meta) {
+                            callback.onMetaChanged(mService.getTrackMetadata());
+                        }
+                        if (queue) {
+                            callback.onQueueChanged(playbackState.mQueueVersion);
+                        }
+                        callback.onPlaybackStateChanged(playbackState);
+                    } catch (final RemoteException e) {
+                        // The client died, RemoteCallbackList drops it
+                    }
+                }
+                mCallbacks.finishBroadcast();
+                // Playback may have started or stopped
+                scheduleTick();
+            }
+        });
+    }
+
+    /**
+     * Drops every client and stops the ticks
+     */
+    public void release() {
+        mHandler.removeCallbacksAndMessages(null);
+        mCallbacks.kill();
+    }
+
+    /**
+     * Sends the position to every client whose interval has passed, then
+     * schedules the next tick
+     */
+    private void sendTick() {
+        mTicking = false;
+        if (!mService.isPlaying()) {
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        final long position = mService.position();
+        final long duration = mService.duration();
+        final int count = mCallbacks.beginBroadcast();
+        for (int i = 0; i < count; i++) {
+            final Subscriber subscriber = (Subscriber) mCallbacks.getBroadcastCookie(i);
+            // Give a little slack so a tick that's a few ms early still counts
+            if (subscriber.mInterval <= 0
+                    || now - subscriber.mLastTick < subscriber.mInterval - MIN_TICK_INTERVAL) {
+                continue;
+            }
+            subscriber.mLastTick = now;
+            try {
+                mCallbacks.getBroadcastItem(i).onPositionChanged(position, duration);
+            } catch (final RemoteException e) {
+                // The client died, RemoteCallbackList drops it
+            }
+        }
+        mCallbacks.finishBroadcast();
+        scheduleTick();
+    }
+
+    /**
+     * Posts the next tick if something is playing and a client wants ticks,
+     * otherwise stops them
+     */
+    private void scheduleTick() {
+        long interval = Long.MAX_VALUE;
+        final int count = mCallbacks.beginBroadcast();
+        for (int i = 0; i < count; i++) {
+            final Subscriber subscriber = (Subscriber) mCallbacks.getBroadcastCookie(i);
+            if (subscriber.mInterval > 0) {
+                interval = Math.min(interval, subscriber.mInterval);
+            }
+        }
+        mCallbacks.finishBroadcast();
+
+        if (interval == Long.MAX_VALUE || !mService.isPlaying()) {
+            mHandler.removeCallbacks(mTick);
+            mTicking = false;
+            return;
+        }
+        if (mTicking) {
+            return;
+        }
+        // Tick at the next full second of the track if that comes first
+        final long position = mService.position();
+        long delay = interval;
+        if (position >= 0) {
+            delay = Math.min(delay, 1000 - position % 1000);
+        }
+        mHandler.postDelayed(mTick, Math.max(MIN_TICK_INTERVAL, delay));
+        mTicking = true;
+    }
+
+    /**
+     * The tick interval a client asked for and when it last got one
+     */
+    private static final class Subscriber {
+
+        private final long mInterval;
+
+        private long mLastTick;
+
+        /**
+         * Constructor of <code>Subscriber</code>
+         *
+         * @param interval How often the client wants the position, or 0
+         */
+        public Subscriber(final long interval) {
+            mInterval = interval > 0 ? Math.max(MIN_TICK_INTERVAL, interval) : 0;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo.adapters;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+
+import com.andrew.apollo.loaders.NowPlayingCursor;
+import com.andrew.apollo.loaders.NowPlayingCursor.OnRowsLoadedListener;
+import com.andrew.apollo.ui.MusicHolder;
+import com.andrew.apollo.ui.fragments.QueueFragment;
+
+/**
+ * This {@link BaseAdapter} is used to show the queue in {@link QueueFragment}.
+ * The rows are read straight from a {@link NowPlayingCursor}, which only
+ * reads the pages that are shown, so nothing is copied out of it up front.
+ */
+public class QueueAdapter extends BaseAdapter implements OnRowsLoadedListener {
+
+    /**
+     * Number of views (TextView)
+     */
+    private static final int VIEW_TYPE_COUNT = 1;
+
+    /**
+     * The resource Id of the layout to inflate
+     */
+    private final int mLayoutId;
+
+    private final Context mContext;
+
+    /**
+     * The queue, or null if it isn't loaded
+     */
+    private NowPlayingCursor mCursor;
+
+    /**
+     * Constructor of <code>QueueAdapter</code>
+     *
+     * @param context The {@link Context} to use.
+     * @param layoutId The resource Id of the view to inflate.
+     */
+    public QueueAdapter(final Context context, final int layoutId) {
+        mContext = context;
+        mLayoutId = layoutId;
+    }
+
+    /**
+     * Shows another queue
+     *
+     * @param cursor The queue, or null to show nothing
+     * @return The queue that was shown before, or null
+     */
+    public NowPlayingCursor swapCursor(final NowPlayingCursor cursor) {
+        final NowPlayingCursor old = mCursor;
+        if (old != null) {
+            old.setOnRowsLoadedListener(null);
+        }
+        mCursor = cursor;
+        if (mCursor != null) {
+            mCursor.setOnRowsLoadedListener(this);
+        }
+        notifyDataSetChanged();
+        return old;
+    }
+
+    /**
+     * @return The queue shown, or null if it isn't loaded
+     */
+    public NowPlayingCursor getCursor() {
+        return mCursor;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getCount() {
+        return mCursor != null ? mCursor.getCount() : 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object getItem(final int position) {
+        return mCursor != null && mCursor.moveToPosition(position) ? mCursor : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getItemId(final int position) {
+        return mCursor != null ? mCursor.getTrackId(position) : -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public View getView(final int position, View convertView, final ViewGroup parent) {
+        // Recycle ViewHolder's items
+        MusicHolder holder;
+        if (convertView == null) {
+            convertView = LayoutInflater.from(mContext).inflate(mLayoutId, parent, false);
+            holder = new MusicHolder(convertView);
+            // Hide the third line of text
+            holder.mLineThree.get().setVisibility(View.GONE);
+            convertView.setTag(holder);
+        } else {
+            holder = (MusicHolder) convertView.getTag();
+        }
+
+        // Blank until the row's page is read
+        final boolean hasRow = mCursor != null && mCursor.moveToPosition(position);
+        // Set each song name (line one)
+        holder.mLineOne.get().setText(hasRow ? mCursor.getString(1) : null);
+        // Set the album name (line two)
+        holder.mLineTwo.get().setText(hasRow ? mCursor.getString(3) : null);
+        return convertView;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getViewTypeCount() {
+        return VIEW_TYPE_COUNT;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onRowsLoaded() {
+        notifyDataSetChanged();
+    }
+}
@@ -20,13 +20,11 @@ import android.widget.ArrayAdapter;
 import com.andrew.apollo.model.Song;
 import com.andrew.apollo.ui.MusicHolder;
 import com.andrew.apollo.ui.MusicHolder.DataHolder;
-import com.andrew.apollo.ui.fragments.QueueFragment;
 import com.andrew.apollo.ui.fragments.SongFragment;
 
 /**
  * This {@link ArrayAdapter} is used to display all of the songs on a user's
- * device for {@link SongFragment}. It is also used to show the queue in
- * {@link QueueFragment}.
+ * device for {@link SongFragment}.
  * 
  * @author Andrew Neal (andrewdneal@gmail.com)
  */
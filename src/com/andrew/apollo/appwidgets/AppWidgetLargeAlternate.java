@@ -11,6 +11,8 @@
 
 package com.andrew.apollo.appwidgets;
 
+import java.util.Set;
+
 import android.annotation.SuppressLint;
 import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
@@ -23,6 +25,7 @@ import android.widget.RemoteViews;
 
 import com.andrew.apollo.MusicPlaybackService;
 import com.andrew.apollo.R;
+import com.andrew.apollo.cache.NowPlayingArtwork;
 import com.andrew.apollo.ui.activities.AudioPlayerActivity;
 import com.andrew.apollo.ui.activities.HomeActivity;
 import com.andrew.apollo.utils.ApolloUtils;
@@ -39,6 +42,11 @@ public class AppWidgetLargeAlternate extends AppWidgetProvider {
 
     private static AppWidgetLargeAlternate mInstance;
 
+    /**
+     * What the widgets show, so updates only carry what changed
+     */
+    private final AppWidgetState mState = new AppWidgetState();
+
     public static synchronized AppWidgetLargeAlternate getInstance() {
         if (mInstance == null) {
             mInstance = new AppWidgetLargeAlternate();
@@ -54,7 +62,7 @@ public class AppWidgetLargeAlternate extends AppWidgetProvider {
         final RemoteViews appWidgetViews = new RemoteViews(context.getPackageName(),
                 R.layout.app_widget_large_alternate);
         linkButtons(context, appWidgetViews, false);
-        pushUpdate(context, appWidgetIds, appWidgetViews);
+        pushUpdate(context, appWidgetIds, appWidgetViews, false);
     }
 
     /**
@@ -129,15 +137,15 @@ public class AppWidgetLargeAlternate extends AppWidgetProvider {
     }
 
     /**
-     * Handle a change notification coming over from
-     * {@link MusicPlaybackService}
+     * Handle the changes coming over from {@link MusicPlaybackService}, once
+     * per batch
      */
-    public void notifyChange(final MusicPlaybackService service, final String what) {
+    public void notifyChange(final MusicPlaybackService service, final Set<String> changes) {
         if (hasInstances(service)) {
-            if (MusicPlaybackService.META_CHANGED.equals(what)
-                    || MusicPlaybackService.PLAYSTATE_CHANGED.equals(what)
-                    || MusicPlaybackService.REPEATMODE_CHANGED.equals(what)
-                    || MusicPlaybackService.SHUFFLEMODE_CHANGED.equals(what)) {
+            if (changes.contains(MusicPlaybackService.META_CHANGED)
+                    || changes.contains(MusicPlaybackService.PLAYSTATE_CHANGED)
+                    || changes.contains(MusicPlaybackService.REPEATMODE_CHANGED)
+                    || changes.contains(MusicPlaybackService.SHUFFLEMODE_CHANGED)) {
                 performUpdate(service, null);
             }
         }
@@ -159,89 +167,133 @@ public class AppWidgetLargeAlternate extends AppWidgetProvider {
     }
 
     /**
-     * Update all active widget instances by pushing changes
+     * Update all active widget instances by pushing changes. Only the views
+     * that changed since the last update are sent, unless the update is for
+     * given widgets or the launcher can't merge partial updates.
      */
-    public void performUpdate(final MusicPlaybackService service, final int[] appWidgetIds) {
+    public synchronized void performUpdate(final MusicPlaybackService service,
+            final int[] appWidgetIds) {
+        // Build the notification
+        if (ApolloUtils.isApplicationSentToBackground(service)) {
+            service.mBuildNotification = true;
+        }
+
+        final boolean full = appWidgetIds != null || mState.isEmpty();
+        RemoteViews appWidgetView = buildUpdate(service, full);
+        if (!mState.hasChanged()) {
+            return;
+        }
+        final boolean partial = !full && ApolloUtils.hasHoneycomb();
+        if (!full && !partial) {
+            appWidgetView = buildUpdate(service, true);
+        }
+
+        // Update the app-widget
+        pushUpdate(service, appWidgetIds, appWidgetView, partial);
+    }
+
+    /**
+     * Sets the views that changed since the last update
+     *
+     * @param service The service to read the state from
+     * @param full True to set every view
+     * @return The views to push
+     */
+    private RemoteViews buildUpdate(final MusicPlaybackService service, final boolean full) {
         final RemoteViews appWidgetView = new RemoteViews(service.getPackageName(),
                 R.layout.app_widget_large_alternate);
+        mState.begin(full);
 
         final CharSequence trackName = service.getTrackName();
         final CharSequence artistName = service.getArtistName();
         final CharSequence albumName = service.getAlbumName();
-        final Bitmap bitmap = service.getAlbumArt();
+        final Bitmap bitmap = service.getAlbumArt(NowPlayingArtwork.SIZE_ALTERNATE);
 
         // Set the titles and artwork
-        appWidgetView.setTextViewText(R.id.app_widget_large_alternate_line_one, trackName);
-        appWidgetView.setTextViewText(R.id.app_widget_large_alternate_line_two, artistName);
-        appWidgetView.setTextViewText(R.id.app_widget_large_alternate_line_three, albumName);
-        appWidgetView.setImageViewBitmap(R.id.app_widget_large_alternate_image, bitmap);
+        if (mState.changed(R.id.app_widget_large_alternate_line_one, trackName)) {
+            appWidgetView.setTextViewText(R.id.app_widget_large_alternate_line_one, trackName);
+        }
+        if (mState.changed(R.id.app_widget_large_alternate_line_two, artistName)) {
+            appWidgetView.setTextViewText(R.id.app_widget_large_alternate_line_two, artistName);
+        }
+        if (mState.changed(R.id.app_widget_large_alternate_line_three, albumName)) {
+            appWidgetView.setTextViewText(R.id.app_widget_large_alternate_line_three, albumName);
+        }
+        if (mState.changed(R.id.app_widget_large_alternate_image, bitmap)) {
+            appWidgetView.setImageViewBitmap(R.id.app_widget_large_alternate_image, bitmap);
+        }
 
         // Set correct drawable for pause state
         final boolean isPlaying = service.isPlaying();
-        if (isPlaying) {
-            appWidgetView.setImageViewResource(R.id.app_widget_large_alternate_play,
-                    R.drawable.btn_playback_pause);
-            if (ApolloUtils.hasJellyBean()) {
-                appWidgetView.setContentDescription(R.id.app_widget_large_alternate_play,
-                        service.getString(R.string.accessibility_pause));
-            }
-        } else {
-            appWidgetView.setImageViewResource(R.id.app_widget_large_alternate_play,
-                    R.drawable.btn_playback_play);
-            if (ApolloUtils.hasJellyBean()) {
-                appWidgetView.setContentDescription(R.id.app_widget_large_alternate_play,
-                        service.getString(R.string.accessibility_play));
+        if (mState.changed(R.id.app_widget_large_alternate_play, isPlaying)) {
+            if (isPlaying) {
+                appWidgetView.setImageViewResource(R.id.app_widget_large_alternate_play,
+                        R.drawable.btn_playback_pause);
+                if (ApolloUtils.hasJellyBean()) {
+                    appWidgetView.setContentDescription(R.id.app_widget_large_alternate_play,
+                            service.getString(R.string.accessibility_pause));
+                }
+            } else {
+                appWidgetView.setImageViewResource(R.id.app_widget_large_alternate_play,
+                        R.drawable.btn_playback_play);
+                if (ApolloUtils.hasJellyBean()) {
+                    appWidgetView.setContentDescription(R.id.app_widget_large_alternate_play,
+                            service.getString(R.string.accessibility_play));
+                }
             }
+            // Link actions buttons to intents
+            linkButtons(service, appWidgetView, isPlaying);
         }
 
         // Set the correct drawable for the repeat state
-        switch (service.getRepeatMode()) {
-            case MusicPlaybackService.REPEAT_ALL:
-                appWidgetView.setImageViewResource(R.id.app_widget_large_alternate_repeat,
-                        R.drawable.btn_playback_repeat_all);
-                break;
-            case MusicPlaybackService.REPEAT_CURRENT:
-                appWidgetView.setImageViewResource(R.id.app_widget_large_alternate_repeat,
-                        R.drawable.btn_playback_repeat_one);
-                break;
-            default:
-                appWidgetView.setImageViewResource(R.id.app_widget_large_alternate_repeat,
-                        R.drawable.btn_playback_repeat);
-                break;
+        final int repeatMode = service.getRepeatMode();
+        if (mState.changed(R.id.app_widget_large_alternate_repeat, repeatMode)) {
+            switch (repeatMode) {
+                case MusicPlaybackService.REPEAT_ALL:
+                    appWidgetView.setImageViewResource(R.id.app_widget_large_alternate_repeat,
+                            R.drawable.btn_playback_repeat_all);
+                    break;
+                case MusicPlaybackService.REPEAT_CURRENT:
+                    appWidgetView.setImageViewResource(R.id.app_widget_large_alternate_repeat,
+                            R.drawable.btn_playback_repeat_one);
+                    break;
+                default:
+                    appWidgetView.setImageViewResource(R.id.app_widget_large_alternate_repeat,
+                            R.drawable.btn_playback_repeat);
+                    break;
+            }
         }
 
         // Set the correct drawable for the shuffle state
-        switch (service.getShuffleMode()) {
-            case MusicPlaybackService.SHUFFLE_NONE:
-                appWidgetView.setImageViewResource(R.id.app_widget_large_alternate_shuffle,
-                        R.drawable.btn_playback_shuffle);
-                break;
-            case MusicPlaybackService.SHUFFLE_AUTO:
-                appWidgetView.setImageViewResource(R.id.app_widget_large_alternate_shuffle,
-                        R.drawable.btn_playback_shuffle_all);
-                break;
-            default:
-                appWidgetView.setImageViewResource(R.id.app_widget_large_alternate_shuffle,
-                        R.drawable.btn_playback_shuffle_all);
-                break;
+        final int shuffleMode = service.getShuffleMode();
+        if (mState.changed(R.id.app_widget_large_alternate_shuffle, shuffleMode)) {
+            switch (shuffleMode) {
+                case MusicPlaybackService.SHUFFLE_NONE:
+                    appWidgetView.setImageViewResource(R.id.app_widget_large_alternate_shuffle,
+                            R.drawable.btn_playback_shuffle);
+                    break;
+                case MusicPlaybackService.SHUFFLE_AUTO:
+                    appWidgetView.setImageViewResource(R.id.app_widget_large_alternate_shuffle,
+                            R.drawable.btn_playback_shuffle_all);
+                    break;
+                default:
+                    appWidgetView.setImageViewResource(R.id.app_widget_large_alternate_shuffle,
+                            R.drawable.btn_playback_shuffle_all);
+                    break;
+            }
         }
 
-        // Link actions buttons to intents
-        linkButtons(service, appWidgetView, isPlaying);
-
-        // Update the app-widget
-        pushUpdate(service, appWidgetIds, appWidgetView);
-
-        // Build the notification
-        if (ApolloUtils.isApplicationSentToBackground(service)) {
-            service.mBuildNotification = true;
-        }
+        return appWidgetView;
     }
 
-    private void pushUpdate(final Context context, final int[] appWidgetIds, final RemoteViews views) {
+    private void pushUpdate(final Context context, final int[] appWidgetIds,
+            final RemoteViews views, final boolean partial) {
         final AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
         if (appWidgetIds != null) {
             appWidgetManager.updateAppWidget(appWidgetIds, views);
+        } else if (partial) {
+            appWidgetManager.partiallyUpdateAppWidget(appWidgetManager
+                    .getAppWidgetIds(new ComponentName(context, getClass())), views);
         } else {
             appWidgetManager.updateAppWidget(new ComponentName(context, getClass()), views);
         }
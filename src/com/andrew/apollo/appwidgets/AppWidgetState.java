@@ -0,0 +1,76 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo.appwidgets;
+
+import android.util.SparseArray;
+
+/**
+ * What an app-widget last showed, so an update only has to carry the views
+ * that changed since. Values are compared with {@link Object#equals(Object)},
+ * which for bitmaps means the same instance, as the service hands out.
+ */
+final class AppWidgetState {
+
+    /* The last value pushed, by view ID */
+    private final SparseArray<Object> mValues = new SparseArray<Object>();
+
+    /* True if every value counts as changed until the next begin() */
+    private boolean mFull;
+
+    private boolean mChanged;
+
+    /**
+     * Starts comparing an update
+     *
+     * @param full True if the update replaces everything, so every value
+     *            counts as changed
+     */
+    public void begin(final boolean full) {
+        mFull = full;
+        mChanged = false;
+        if (full) {
+            mValues.clear();
+        }
+    }
+
+    /**
+     * Records the value a view is about to show
+     *
+     * @param viewId The view
+     * @param value What it shows
+     * @return True if the view has to be set
+     */
+    public boolean changed(final int viewId, final Object value) {
+        final Object last = mValues.get(viewId);
+        if (!mFull && (last == null ? value == null : last.equals(value))
+                && mValues.indexOfKey(viewId) >= 0) {
+            return false;
+        }
+        mValues.put(viewId, value);
+        mChanged = true;
+        return true;
+    }
+
+    /**
+     * @return True if any view changed since {@link #begin(boolean)}
+     */
+    public boolean hasChanged() {
+        return mChanged;
+    }
+
+    /**
+     * @return True if nothing was pushed yet, so the next update has to be a
+     *         full one
+     */
+    public boolean isEmpty() {
+        return mValues.size() == 0;
+    }
+}
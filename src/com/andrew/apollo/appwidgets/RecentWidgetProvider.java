@@ -11,6 +11,8 @@
 
 package com.andrew.apollo.appwidgets;
 
+import java.util.Set;
+
 import android.annotation.TargetApi;
 import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
@@ -72,6 +74,11 @@ public class RecentWidgetProvider extends AppWidgetProvider {
 
     private RemoteViews mViews;
 
+    /**
+     * What the widgets show, so updates only carry what changed
+     */
+    private final AppWidgetState mState = new AppWidgetState();
+
     /**
      * Constructor of <code>RecentWidgetProvider</code>
      */
@@ -151,14 +158,15 @@ public class RecentWidgetProvider extends AppWidgetProvider {
     }
 
     /**
-     * Handle a change notification coming over from
-     * {@link MusicPlaybackService}
+     * Handle the changes coming over from {@link MusicPlaybackService}, once
+     * per batch
      */
-    public void notifyChange(final MusicPlaybackService service, final String what) {
+    public void notifyChange(final MusicPlaybackService service, final Set<String> changes) {
         if (hasInstances(service)) {
-            if (MusicPlaybackService.PLAYSTATE_CHANGED.equals(what)) {
+            if (changes.contains(MusicPlaybackService.PLAYSTATE_CHANGED)) {
                 performUpdate(service, null);
-            } else if (MusicPlaybackService.META_CHANGED.equals(what)) {
+            }
+            if (changes.contains(MusicPlaybackService.META_CHANGED)) {
                 synchronized (service) {
                     sWorkerQueue.post(new Runnable() {
                         @Override
@@ -263,13 +271,26 @@ public class RecentWidgetProvider extends AppWidgetProvider {
     }
 
     /**
-     * Update all active widget instances by pushing changes
+     * Update all active widget instances by pushing changes. Only the play
+     * button changes here, so unless the update is for given widgets it's
+     * only sent when the play state changed, as a partial update.
      */
-    public void performUpdate(final MusicPlaybackService service, final int[] appWidgetIds) {
+    public synchronized void performUpdate(final MusicPlaybackService service,
+            final int[] appWidgetIds) {
+        // Build the notification
+        if (ApolloUtils.isApplicationSentToBackground(service)) {
+            service.mBuildNotification = true;
+        }
+
+        final boolean full = appWidgetIds != null || mState.isEmpty();
         mViews = new RemoteViews(service.getPackageName(), R.layout.app_widget_recents);
+        mState.begin(full);
 
         /* Set correct drawable for pause state */
         final boolean isPlaying = service.isPlaying();
+        if (!mState.changed(R.id.app_widget_recents_play, isPlaying)) {
+            return;
+        }
         if (isPlaying) {
             mViews.setImageViewResource(R.id.app_widget_recents_play, R.drawable.btn_playback_pause);
         } else {
@@ -280,18 +301,17 @@ public class RecentWidgetProvider extends AppWidgetProvider {
         linkButtons(service, mViews, isPlaying);
 
         // Update the app-widget
-        pushUpdate(service, appWidgetIds, mViews);
-
-        // Build the notification
-        if (ApolloUtils.isApplicationSentToBackground(service)) {
-            service.mBuildNotification = true;
-        }
+        pushUpdate(service, appWidgetIds, mViews, !full);
     }
 
-    private void pushUpdate(final Context context, final int[] appWidgetIds, final RemoteViews views) {
+    private void pushUpdate(final Context context, final int[] appWidgetIds,
+            final RemoteViews views, final boolean partial) {
         final AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
         if (appWidgetIds != null) {
             appWidgetManager.updateAppWidget(appWidgetIds, views);
+        } else if (partial) {
+            appWidgetManager.partiallyUpdateAppWidget(appWidgetManager
+                    .getAppWidgetIds(new ComponentName(context, this.getClass())), views);
         } else {
             appWidgetManager.updateAppWidget(new ComponentName(context, this.getClass()), views);
         }
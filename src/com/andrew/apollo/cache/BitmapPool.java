@@ -0,0 +1,205 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo.cache;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import com.andrew.apollo.utils.ApolloUtils;
+
+/**
+ * Bitmaps that nothing uses anymore, kept so a decode of the same size can
+ * draw into one through {@link BitmapFactory.Options#inBitmap} rather than
+ * allocate a new one. They're kept by size and config, up to a budget of
+ * their own, and the oldest go first.
+ * <p>
+ * A bitmap may only be put here once nothing will draw it again.
+ */
+public final class BitmapPool {
+
+    /* The bitmaps of each size and config, the newest first */
+    private final HashMap<String, LinkedList<Bitmap>> mBuckets =
+            new HashMap<String, LinkedList<Bitmap>>();
+
+    /* Every bitmap in the pool, the oldest first */
+    private final LinkedList<Bitmap> mOrder = new LinkedList<Bitmap>();
+
+    private final int mMaxSize;
+
+    private int mSize;
+
+    private int mRequestCount;
+
+    private int mHitCount;
+
+    private int mPutCount;
+
+    private int mDropCount;
+
+    /**
+     * Constructor of <code>BitmapPool</code>
+     *
+     * @param maxSize The most bytes the pooled bitmaps may take
+     */
+    public BitmapPool(final int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Adds a bitmap nothing uses anymore. Bitmaps that can't be decoded into
+     * are dropped.
+     *
+     * @param bitmap The bitmap
+     */
+    public synchronized void put(final Bitmap bitmap) {
+        if (bitmap == null || !canReuse(bitmap)) {
+            mDropCount++;
+            return;
+        }
+        final int size = ImageCache.MemoryCache.getBitmapSize(bitmap);
+        if (size > mMaxSize) {
+            mDropCount++;
+            return;
+        }
+        final String key = keyOf(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        LinkedList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new LinkedList<Bitmap>();
+            mBuckets.put(key, bucket);
+        }
+        bucket.addFirst(bitmap);
+        mOrder.addLast(bitmap);
+        mSize += size;
+        mPutCount++;
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Takes a bitmap out of the pool
+     *
+     * @param width The width it must have
+     * @param height The height it must have
+     * @param config The config it must have
+     * @return The bitmap, or null if there's none that size
+     */
+    public synchronized Bitmap get(final int width, final int height, final Bitmap.Config config) {
+        mRequestCount++;
+        final LinkedList<Bitmap> bucket = mBuckets.get(keyOf(width, height, config));
+        if (bucket == null || bucket.isEmpty()) {
+            return null;
+        }
+        final Bitmap bitmap = bucket.removeFirst();
+        mOrder.remove(bitmap);
+        mSize -= ImageCache.MemoryCache.getBitmapSize(bitmap);
+        mHitCount++;
+        return bitmap;
+    }
+
+    /**
+     * Sets up a decode to draw into a pooled bitmap, if there's one the size
+     * of the image, and to return a bitmap that can be pooled once it's no
+     * longer used. Call after decoding the bounds with
+     * {@link BitmapFactory.Options#inJustDecodeBounds}, and before the
+     * decode.
+     *
+     * @param options The decode's options, with the bounds and the sample
+     *            size set
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public void prepare(final BitmapFactory.Options options) {
+        options.inJustDecodeBounds = false;
+        if (!ApolloUtils.hasHoneycomb()) {
+            return;
+        }
+        options.inMutable = true;
+        // Up to Jelly Bean the bitmap must be exactly the size decoded, which
+        // is only known when the image isn't sampled down
+        if (options.inSampleSize <= 1 && options.outWidth > 0 && options.outHeight > 0) {
+            options.inBitmap = get(options.outWidth, options.outHeight,
+                    options.inPreferredConfig);
+        }
+    }
+
+    /**
+     * Called when a decode prepared with {@link #prepare} couldn't draw into
+     * the pooled bitmap. The bitmap goes back to the pool and the decode can
+     * be tried again without it.
+     *
+     * @param options The decode's options
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public void unprepare(final BitmapFactory.Options options) {
+        if (ApolloUtils.hasHoneycomb() && options.inBitmap != null) {
+            final Bitmap bitmap = options.inBitmap;
+            options.inBitmap = null;
+            put(bitmap);
+        }
+    }
+
+    /**
+     * Drops the oldest bitmaps until the rest fit a size
+     *
+     * @param maxSize The most bytes to keep
+     */
+    public synchronized void trimToSize(final int maxSize) {
+        while (mSize > maxSize && !mOrder.isEmpty()) {
+            final Bitmap bitmap = mOrder.removeFirst();
+            final String key = keyOf(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            final LinkedList<Bitmap> bucket = mBuckets.get(key);
+            bucket.remove(bitmap);
+            if (bucket.isEmpty()) {
+                mBuckets.remove(key);
+            }
+            mSize -= ImageCache.MemoryCache.getBitmapSize(bitmap);
+            mDropCount++;
+        }
+    }
+
+    /**
+     * Drops every pooled bitmap
+     */
+    public void evictAll() {
+        trimToSize(-1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString() {
+        final int hitPercent = mRequestCount != 0 ? 100 * mHitCount / mRequestCount : 0;
+        return "BitmapPool[size=" + mSize + ",maxSize=" + mMaxSize + ",requests="
+                + mRequestCount + ",hits=" + mHitCount + ",hitRate=" + hitPercent + "%,puts="
+                + mPutCount + ",drops=" + mDropCount + "]";
+    }
+
+    /**
+     * @param bitmap A bitmap
+     * @return True if a decode can draw into it
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static boolean canReuse(final Bitmap bitmap) {
+        return ApolloUtils.hasHoneycomb() && bitmap.isMutable() && !bitmap.isRecycled()
+                && bitmap.getConfig() != null;
+    }
+
+    /**
+     * @return The key of the bucket for a size and config
+     */
+    private static String keyOf(final int width, final int height, final Bitmap.Config config) {
+        return width + "x" + height + ":" + config;
+    }
+}
@@ -17,8 +17,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.WeakHashMap;
 
 import org.holoeverywhere.app.Activity;
 import org.holoeverywhere.app.Fragment;
@@ -33,12 +35,17 @@ import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Build.VERSION;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
 import android.os.StatFs;
 import android.support.v4.app.FragmentActivity;
@@ -70,13 +77,30 @@ public final class ImageCache {
             return bitmap.getRowBytes() * bitmap.getHeight();
         }
 
+        /**
+         * The cache whose pool gets the bitmaps that are dropped, or null
+         */
+        private final ImageCache mImageCache;
+
         /**
          * Constructor of <code>MemoryCache</code>
          * 
          * @param maxSize The allowed size of the {@link LruCache}
          */
         public MemoryCache(final int maxSize) {
+            this(maxSize, null);
+        }
+
+        /**
+         * Constructor of <code>MemoryCache</code>
+         * 
+         * @param maxSize The allowed size of the {@link LruCache}
+         * @param imageCache The cache whose pool gets the bitmaps that are
+         *            dropped
+         */
+        public MemoryCache(final int maxSize, final ImageCache imageCache) {
             super(maxSize);
+            mImageCache = imageCache;
         }
 
         /**
@@ -87,6 +111,17 @@ public final class ImageCache {
             return getBitmapSize(paramBitmap);
         }
 
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void entryRemoved(final boolean evicted, final String key,
+                final Bitmap oldValue, final Bitmap newValue) {
+            if (mImageCache != null && oldValue != newValue) {
+                mImageCache.onRemovedFromMemCache(oldValue);
+            }
+        }
+
     }
 
     /**
@@ -166,6 +201,30 @@ public final class ImageCache {
      */
     private static final float MEM_CACHE_DIVIDER = 0.25f;
 
+    /**
+     * The shorter sides, in pixels, that smaller copies of an image are
+     * cached at, so a list row doesn't decode the full image
+     */
+    private static final int[] VARIANT_SIZES = new int[] {
+            128, 256, 512
+    };
+
+    /**
+     * The file the smallest variants are mapped from, always on internal
+     * storage: a mapped file on a card that is pulled takes the process down
+     */
+    private static final String THUMBNAIL_STORE_NAME = "ThumbnailStore";
+
+    /**
+     * Separates the key of an image from the size of a variant
+     */
+    private static final String VARIANT_SEPARATOR = "@";
+
+    /**
+     * Bitmap pool size as a percent of device memory class
+     */
+    private static final float BITMAP_POOL_DIVIDER = 0.0625f;
+
     private static ImageCache sInstance;
 
     private static final String TAG = ImageCache.class.getSimpleName();
@@ -348,9 +407,51 @@ public final class ImageCache {
     private MemoryCache mLruCache;
 
     /**
-     * Used to temporarily pause the disk cache while scrolling
+     * Bitmaps dropped from the memory cache, for decodes to reuse
+     */
+    private BitmapPool mBitmapPool;
+
+    /**
+     * The smallest variants as raw pixels, or null if the file can't be
+     * mapped
      */
-    public boolean mPauseDiskAccess = false;
+    private ThumbnailStore mThumbnails;
+
+    /**
+     * How many views show each bitmap the {@link ImageWorker} set. A bitmap
+     * only goes to the pool once none does. Weak, so a view that is thrown
+     * away without letting go only keeps its bitmap out of the pool. Also
+     * guards {@link #mRetired} and {@link #mShared}.
+     */
+    private final WeakHashMap<Bitmap, Integer> mDisplayed = new WeakHashMap<Bitmap, Integer>();
+
+    /**
+     * Bitmaps dropped from the memory cache while a view still showed them
+     */
+    private final WeakHashMap<Bitmap, Boolean> mRetired = new WeakHashMap<Bitmap, Boolean>();
+
+    /**
+     * Bitmaps handed out to code that doesn't say when it's done with them,
+     * so they're never pooled
+     */
+    private final WeakHashMap<Bitmap, Boolean> mShared = new WeakHashMap<Bitmap, Boolean>();
+
+    /**
+     * Used to temporarily pause the disk cache while scrolling. Guarded by
+     * {@link #mPauseLock}, volatile so it can be read without it.
+     */
+    private volatile boolean mPauseDiskAccess = false;
+
+    /**
+     * The threads waiting for the disk cache to resume wait on this
+     */
+    private final Object mPauseLock = new Object();
+
+    /**
+     * How many times a thread waited for the disk cache to resume, and for
+     * how long in total, in nanoseconds
+     */
+    private long mPauseWaits, mPauseWaitTime;
 
     /**
      * Constructor of <code>ImageCache</code>
@@ -376,8 +477,23 @@ public final class ImageCache {
         addBitmapToMemCache(data, bitmap);
 
         // Add to disk cache
+        addBitmapToDiskCache(data, bitmap);
+    }
+
+    /**
+     * Called to add a new image to the disk cache only, for an image that
+     * is only shown smaller for now
+     * 
+     * @param data The key identifier
+     * @param bitmap The {@link Bitmap} to cache
+     */
+    public void addBitmapToDiskCache(final String data, final Bitmap bitmap) {
+        if (data == null || bitmap == null) {
+            return;
+        }
+        final String key = hashKeyForDisk(data);
+        putThumbnail(key, bitmap);
         if (mDiskCache != null) {
-            final String key = hashKeyForDisk(data);
             OutputStream out = null;
             try {
                 final DiskLruCache.Snapshot snapshot = mDiskCache.get(key);
@@ -421,7 +537,7 @@ public final class ImageCache {
             return;
         }
         // Add to memory cache
-        if (getBitmapFromMemCache(data) == null) {
+        if (mLruCache != null && mLruCache.get(data) == null) {
             mLruCache.put(data, bitmap);
         }
     }
@@ -443,6 +559,9 @@ public final class ImageCache {
                 } catch (final IOException e) {
                     Log.e(TAG, "clearCaches - " + e);
                 }
+                if (mThumbnails != null) {
+                    mThumbnails.clear();
+                }
                 // Clear the memory cache
                 evictAll();
                 return null;
@@ -470,6 +589,10 @@ public final class ImageCache {
                         Log.e(TAG, "close - " + e);
                     }
                 }
+                if (mThumbnails != null) {
+                    mThumbnails.close();
+                    mThumbnails = null;
+                }
                 return null;
             }
         }, (Void[]) null);
@@ -483,6 +606,9 @@ public final class ImageCache {
         if (mLruCache != null) {
             mLruCache.evictAll();
         }
+        if (mBitmapPool != null) {
+            mBitmapPool.evictAll();
+        }
         System.gc();
     }
 
@@ -517,21 +643,62 @@ public final class ImageCache {
      * @return The artwork for an album
      */
     public final Bitmap getArtworkFromFile(final Context context, final String albumId) {
+        return share(decodeArtworkFromFile(context, albumId));
+    }
+
+    /**
+     * Decodes the artwork for an album from the user's device, into a pooled
+     * bitmap if there's one the same size
+     * 
+     * @param context The {@link Context} to use
+     * @param albumID The ID of the album to find artwork for
+     * @return The artwork for an album, which nothing else refers to yet
+     */
+    public final Bitmap decodeArtworkFromFile(final Context context, final String albumId) {
+        return decodeArtworkFromFile(context, albumId, 0);
+    }
+
+    /**
+     * Decodes the artwork for an album from the user's device, scaled down to
+     * a variant size
+     * 
+     * @param context The {@link Context} to use
+     * @param albumID The ID of the album to find artwork for
+     * @param size The variant size, see {@link #getVariantSize(int)}, or 0
+     *            for the full image
+     * @return The artwork for an album, which nothing else refers to yet
+     */
+    public final Bitmap decodeArtworkFromFile(final Context context, final String albumId,
+            final int size) {
         if (TextUtils.isEmpty(albumId)) {
             return null;
         }
         Bitmap artwork = null;
-        while (mPauseDiskAccess) {
-            // Pause for a moment
-        }
+        waitUntilResumed();
         try {
             final Uri uri = ContentUris.withAppendedId(mArtworkUri, Long.valueOf(albumId));
-            final ParcelFileDescriptor parcelFileDescriptor = context.getContentResolver()
-                    .openFileDescriptor(uri, "r");
-            if (parcelFileDescriptor != null) {
-                final FileDescriptor fileDescriptor = parcelFileDescriptor.getFileDescriptor();
-                artwork = BitmapFactory.decodeFileDescriptor(fileDescriptor);
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            if (size > 0) {
+                options.inPreferredConfig = Bitmap.Config.RGB_565;
+            }
+            if (size > 0 || ApolloUtils.hasHoneycomb()) {
+                // Read the size first, to sample it down and to find a bitmap
+                // to decode into
+                options.inJustDecodeBounds = true;
+                decodeArtwork(context, uri, options);
+                if (size > 0) {
+                    options.inSampleSize = getVariantSampleSize(options, size);
+                }
+                mBitmapPool.prepare(options);
+            }
+            try {
+                artwork = decodeArtwork(context, uri, options);
+            } catch (final IllegalArgumentException e) {
+                // The pooled bitmap couldn't be decoded into
+                mBitmapPool.unprepare(options);
+                artwork = decodeArtwork(context, uri, options);
             }
+            artwork = createVariant(artwork, size, true);
         } catch (final IllegalStateException e) {
             // Log.e(TAG, "IllegalStateExcetpion - getArtworkFromFile - ", e);
         } catch (final FileNotFoundException e) {
@@ -543,6 +710,33 @@ public final class ImageCache {
         return artwork;
     }
 
+    /**
+     * Decodes the artwork for an album from the media provider
+     * 
+     * @param context The {@link Context} to use
+     * @param uri The artwork's {@link Uri}
+     * @param options The decode's options
+     * @return The artwork, or null if there is none or only the bounds were
+     *         decoded
+     */
+    private static Bitmap decodeArtwork(final Context context, final Uri uri,
+            final BitmapFactory.Options options) throws FileNotFoundException {
+        final ParcelFileDescriptor parcelFileDescriptor = context.getContentResolver()
+                .openFileDescriptor(uri, "r");
+        if (parcelFileDescriptor == null) {
+            return null;
+        }
+        try {
+            final FileDescriptor fileDescriptor = parcelFileDescriptor.getFileDescriptor();
+            return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        } finally {
+            try {
+                parcelFileDescriptor.close();
+            } catch (final IOException ignored) {
+            }
+        }
+    }
+
     /**
      * Fetches a cached image from the disk cache
      * 
@@ -556,41 +750,130 @@ public final class ImageCache {
 
         // Check in the memory cache here to avoid going to the disk cache less
         // often
-        if (getBitmapFromMemCache(data) != null) {
-            return getBitmapFromMemCache(data);
+        final Bitmap lruBitmap = getBitmapFromMemCache(data);
+        if (lruBitmap != null) {
+            return lruBitmap;
         }
+        return share(decodeFromDiskCache(data));
+    }
 
-        while (mPauseDiskAccess) {
-            // Pause for moment
+    /**
+     * Decodes an image from the disk cache, into a pooled bitmap if there's
+     * one the same size
+     * 
+     * @param data Unique identifier for which item to get
+     * @return The {@link Bitmap} if found in cache, which nothing else refers
+     *         to yet, null otherwise
+     */
+    public final Bitmap decodeFromDiskCache(final String data) {
+        return decodeFromDiskCache(data, 0);
+    }
+
+    /**
+     * Decodes an image from the disk cache, scaled down to a variant size.
+     * The entries are JPEGs, so a variant is decoded as RGB_565.
+     * 
+     * @param data Unique identifier for which item to get
+     * @param size The variant size, see {@link #getVariantSize(int)}, or 0
+     *            for the full image
+     * @return The {@link Bitmap} if found in cache, which nothing else refers
+     *         to yet, null otherwise
+     */
+    public final Bitmap decodeFromDiskCache(final String data, final int size) {
+        if (data == null) {
+            return null;
         }
+        waitUntilResumed();
         final String key = hashKeyForDisk(data);
+        final ThumbnailStore thumbnails = mThumbnails;
+        if (size > 0 && size <= ThumbnailStore.SIDE && thumbnails != null) {
+            // The smallest variants are copied, not decoded
+            final Bitmap thumbnail = thumbnails.get(key, mBitmapPool);
+            if (thumbnail != null) {
+                return thumbnail;
+            }
+        }
         if (mDiskCache != null) {
-            InputStream inputStream = null;
             try {
-                final DiskLruCache.Snapshot snapshot = mDiskCache.get(key);
-                if (snapshot != null) {
-                    inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
-                    if (inputStream != null) {
-                        final Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-                        if (bitmap != null) {
-                            return bitmap;
-                        }
+                final BitmapFactory.Options options = new BitmapFactory.Options();
+                if (size > 0) {
+                    options.inPreferredConfig = Bitmap.Config.RGB_565;
+                }
+                if (size > 0 || ApolloUtils.hasHoneycomb()) {
+                    // Read the size first, to sample it down and to find a
+                    // bitmap to decode into
+                    options.inJustDecodeBounds = true;
+                    decodeDiskEntry(key, options);
+                    if (size > 0) {
+                        options.inSampleSize = getVariantSampleSize(options, size);
                     }
+                    mBitmapPool.prepare(options);
                 }
-            } catch (final IOException e) {
-                Log.e(TAG, "getBitmapFromDiskCache - " + e);
-            } finally {
+                Bitmap bitmap;
                 try {
-                    if (inputStream != null) {
-                        inputStream.close();
-                    }
-                } catch (final IOException e) {
+                    bitmap = decodeDiskEntry(key, options);
+                } catch (final IllegalArgumentException e) {
+                    // The pooled bitmap couldn't be decoded into
+                    mBitmapPool.unprepare(options);
+                    bitmap = decodeDiskEntry(key, options);
                 }
+                if (size > 0 && options.inSampleSize <= 1) {
+                    // The entry is a variant itself, copy it for next time
+                    putThumbnail(key, bitmap);
+                }
+                return createVariant(bitmap, size, true);
+            } catch (final IOException e) {
+                Log.e(TAG, "getBitmapFromDiskCache - " + e);
             }
         }
         return null;
     }
 
+    /**
+     * Copies a variant into the thumbnail store, if it's small enough
+     * 
+     * @param key The hashed key
+     * @param bitmap The variant, may be null
+     */
+    private void putThumbnail(final String key, final Bitmap bitmap) {
+        final ThumbnailStore thumbnails = mThumbnails;
+        if (thumbnails != null && ThumbnailStore.fits(bitmap)) {
+            thumbnails.put(key, bitmap);
+        }
+    }
+
+    /**
+     * Decodes an entry of the disk cache
+     * 
+     * @param key The entry's hashed key
+     * @param options The decode's options
+     * @return The image, or null if there is none or only the bounds were
+     *         decoded
+     */
+    private Bitmap decodeDiskEntry(final String key, final BitmapFactory.Options options)
+            throws IOException {
+        final DiskLruCache diskCache = mDiskCache;
+        final DiskLruCache.Snapshot snapshot = diskCache != null ? diskCache.get(key) : null;
+        if (snapshot == null) {
+            return null;
+        }
+        InputStream inputStream = null;
+        try {
+            inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
+            if (inputStream == null) {
+                return null;
+            }
+            return BitmapFactory.decodeStream(inputStream, null, options);
+        } finally {
+            try {
+                if (inputStream != null) {
+                    inputStream.close();
+                }
+            } catch (final IOException e) {
+            }
+        }
+    }
+
     /**
      * Fetches a cached image from the memory cache
      * 
@@ -602,14 +885,203 @@ public final class ImageCache {
             return null;
         }
         if (mLruCache != null) {
-            final Bitmap lruBitmap = mLruCache.get(data);
-            if (lruBitmap != null) {
-                return lruBitmap;
+            synchronized (mDisplayed) {
+                return share(mLruCache.get(data));
             }
         }
         return null;
     }
 
+    /**
+     * Fetches a cached image from the memory cache to show it, counting it as
+     * shown until {@link #releaseBitmap(Bitmap)}
+     * 
+     * @param data Unique identifier for which item to get
+     * @return The {@link Bitmap} if found in cache, null otherwise
+     */
+    public final Bitmap retainFromMemCache(final String data) {
+        if (data == null || mLruCache == null) {
+            return null;
+        }
+        synchronized (mDisplayed) {
+            final Bitmap lruBitmap = mLruCache.get(data);
+            retainBitmap(lruBitmap);
+            return lruBitmap;
+        }
+    }
+
+    /**
+     * Counts a bitmap as shown once more, so it isn't pooled. Retain a bitmap
+     * before adding it to the memory cache, or before showing one taken from
+     * it.
+     * 
+     * @param bitmap The bitmap, may be null
+     */
+    public void retainBitmap(final Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        synchronized (mDisplayed) {
+            final Integer count = mDisplayed.get(bitmap);
+            mDisplayed.put(bitmap, count != null ? count + 1 : 1);
+        }
+    }
+
+    /**
+     * Counts a bitmap as shown once less. It goes to the pool if it was
+     * dropped from the memory cache and nothing shows it anymore.
+     * 
+     * @param bitmap The bitmap, may be null
+     */
+    public void releaseBitmap(final Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        synchronized (mDisplayed) {
+            final Integer count = mDisplayed.get(bitmap);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                mDisplayed.put(bitmap, count - 1);
+                return;
+            }
+            mDisplayed.remove(bitmap);
+            if (mRetired.remove(bitmap) != null && !mShared.containsKey(bitmap)) {
+                mBitmapPool.put(bitmap);
+            }
+        }
+    }
+
+    /**
+     * Marks a bitmap as handed to code that doesn't say when it's done with
+     * it, so it's never pooled
+     * 
+     * @param bitmap The bitmap, may be null
+     * @return The bitmap
+     */
+    public Bitmap share(final Bitmap bitmap) {
+        if (bitmap != null) {
+            synchronized (mDisplayed) {
+                mShared.put(bitmap, Boolean.TRUE);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * @param side The larger side, in pixels, of the view an image is shown
+     *            in
+     * @return The smallest variant size that covers the view, or 0 if only
+     *         the full image does
+     */
+    public static int getVariantSize(final int side) {
+        for (final int size : VARIANT_SIZES) {
+            if (side <= size) {
+                return size;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param data The key of the full image
+     * @param size A variant size, or 0 for the full image
+     * @return The key the variant is cached under
+     */
+    public static String getVariantKey(final String data, final int size) {
+        return size > 0 ? data + VARIANT_SEPARATOR + size : data;
+    }
+
+    /**
+     * Picks the largest power of two to sample an image down by that still
+     * leaves its shorter side at least a variant size, so
+     * {@link #createVariant(Bitmap, int, boolean)} only ever scales down to
+     * the exact size, never up.
+     * 
+     * @param options The options the bounds were decoded into
+     * @param size The variant size
+     * @return The sample size to decode with
+     */
+    private static int getVariantSampleSize(final BitmapFactory.Options options, final int size) {
+        final int shorter = Math.min(options.outWidth, options.outHeight);
+        int sampleSize = 1;
+        while (shorter / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Scales an image down so its shorter side is a variant size. Images
+     * without transparency are drawn as RGB_565. Images that are small enough
+     * already are returned as they are.
+     * 
+     * @param source The image, may be null
+     * @param size The variant size, or 0 for the full image
+     * @param poolSource True if nothing else refers to the source, so it can
+     *            go to the pool once it's scaled
+     * @return The variant
+     */
+    public Bitmap createVariant(final Bitmap source, final int size, final boolean poolSource) {
+        if (source == null || size <= 0) {
+            return source;
+        }
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final float scale = (float) size / Math.min(width, height);
+        if (scale >= 1f) {
+            return source;
+        }
+        final int scaledWidth = Math.max(1, Math.round(width * scale));
+        final int scaledHeight = Math.max(1, Math.round(height * scale));
+        final Bitmap.Config config = source.hasAlpha() ? Bitmap.Config.ARGB_8888
+                : Bitmap.Config.RGB_565;
+        Bitmap variant = mBitmapPool.get(scaledWidth, scaledHeight, config);
+        if (variant == null) {
+            try {
+                variant = Bitmap.createBitmap(scaledWidth, scaledHeight, config);
+            } catch (final OutOfMemoryError ignored) {
+                // Show the larger image rather than nothing
+                return source;
+            }
+        } else if (source.hasAlpha()) {
+            variant.eraseColor(Color.TRANSPARENT);
+        }
+        new Canvas(variant).drawBitmap(source, null, new Rect(0, 0, scaledWidth, scaledHeight),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+        if (poolSource) {
+            mBitmapPool.put(source);
+        }
+        return variant;
+    }
+
+    /**
+     * @return The pool of bitmaps for decodes to reuse
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * Pools a bitmap dropped from the memory cache, or marks it to be pooled
+     * once no view shows it
+     * 
+     * @param bitmap The bitmap
+     */
+    private void onRemovedFromMemCache(final Bitmap bitmap) {
+        synchronized (mDisplayed) {
+            if (mShared.containsKey(bitmap)) {
+                return;
+            }
+            if (mDisplayed.containsKey(bitmap)) {
+                mRetired.put(bitmap, Boolean.TRUE);
+                return;
+            }
+            mBitmapPool.put(bitmap);
+        }
+    }
+
     /**
      * Tries to return the album art from memory cache and disk cache, before
      * calling {@code #getArtworkFromFile(Context, String)} again
@@ -701,6 +1173,11 @@ public final class ImageCache {
                 }
             }
         }
+        // Set up the thumbnail store, the list rows work without it
+        if (mThumbnails == null) {
+            mThumbnails = ThumbnailStore.open(new File(context.getCacheDir(),
+                    THUMBNAIL_STORE_NAME));
+        }
     }
 
     /**
@@ -714,7 +1191,9 @@ public final class ImageCache {
                 .getSystemService(Context.ACTIVITY_SERVICE);
         final int lruCacheSize = Math.round(MEM_CACHE_DIVIDER * activityManager.getMemoryClass()
                 * 1024 * 1024);
-        mLruCache = new MemoryCache(lruCacheSize);
+        mBitmapPool = new BitmapPool(Math.round(BITMAP_POOL_DIVIDER
+                * activityManager.getMemoryClass() * 1024 * 1024));
+        mLruCache = new MemoryCache(lruCacheSize, this);
 
         // Release some memory as needed
         if (ApolloUtils.hasICS()) {
@@ -745,6 +1224,7 @@ public final class ImageCache {
                         evictAll();
                     } else if (level >= TRIM_MEMORY_BACKGROUND) {
                         mLruCache.trimToSize(mLruCache.size() / 2);
+                        mBitmapPool.evictAll();
                     }
                 }
             });
@@ -765,18 +1245,26 @@ public final class ImageCache {
         if (key == null) {
             return;
         }
-        // Remove the Lru entry
-        if (mLruCache != null) {
-            mLruCache.remove(key);
-        }
+        // Remove the image and every smaller copy of it
+        for (int i = -1; i < VARIANT_SIZES.length; i++) {
+            final String data = getVariantKey(key, i < 0 ? 0 : VARIANT_SIZES[i]);
+            // Remove the Lru entry
+            if (mLruCache != null) {
+                mLruCache.remove(data);
+            }
 
-        try {
-            // Remove the disk entry
-            if (mDiskCache != null) {
-                mDiskCache.remove(hashKeyForDisk(key));
+            try {
+                // Remove the disk entry
+                final String diskKey = hashKeyForDisk(data);
+                if (mDiskCache != null) {
+                    mDiskCache.remove(diskKey);
+                }
+                if (mThumbnails != null) {
+                    mThumbnails.remove(diskKey);
+                }
+            } catch (final IOException e) {
+                Log.e(TAG, "remove - " + e);
             }
-        } catch (final IOException e) {
-            Log.e(TAG, "remove - " + e);
         }
         flush();
     }
@@ -788,7 +1276,70 @@ public final class ImageCache {
      * @param pause True to temporarily pause the disk cache, false otherwise.
      */
     public void setPauseDiskCache(final boolean pause) {
-        mPauseDiskAccess = pause;
+        synchronized (mPauseLock) {
+            mPauseDiskAccess = pause;
+            if (!pause) {
+                mPauseLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return How many times a thread waited for the disk cache to resume
+     */
+    public long getPauseWaitCount() {
+        synchronized (mPauseLock) {
+            return mPauseWaits;
+        }
+    }
+
+    /**
+     * @return How long threads waited for the disk cache to resume in total,
+     *         in milliseconds
+     */
+    public long getPauseWaitTime() {
+        synchronized (mPauseLock) {
+            return mPauseWaitTime / 1000000;
+        }
+    }
+
+    /**
+     * Parks the calling thread while the disk cache is paused. The main
+     * thread is what resumes it, so it never waits.
+     */
+    private void waitUntilResumed() {
+        if (!mPauseDiskAccess || Looper.myLooper() == Looper.getMainLooper()) {
+            return;
+        }
+        synchronized (mPauseLock) {
+            if (!mPauseDiskAccess) {
+                return;
+            }
+            final long start = System.nanoTime();
+            while (mPauseDiskAccess) {
+                try {
+                    mPauseLock.wait();
+                } catch (final InterruptedException e) {
+                    // Read the disk anyway rather than lose the interrupt
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            mPauseWaits++;
+            mPauseWaitTime += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Writes how often and how long threads waited for the disk cache to
+     * resume
+     *
+     * @param prefix The indent to write each line with
+     * @param writer The {@link PrintWriter} to write to
+     */
+    public void dump(final String prefix, final PrintWriter writer) {
+        writer.println(prefix + "Image cache: pause waits=" + getPauseWaitCount() + " waited="
+                + getPauseWaitTime() + "ms");
     }
 
 }
@@ -34,6 +34,7 @@ import com.andrew.apollo.lastfm.Artist;
 import com.andrew.apollo.lastfm.Image;
 import com.andrew.apollo.lastfm.ImageSize;
 import com.andrew.apollo.lastfm.PaginatedResult;
+import com.andrew.apollo.model.TrackMetadata;
 import com.andrew.apollo.utils.ApolloUtils;
 import com.andrew.apollo.utils.MusicUtils;
 import com.andrew.apollo.utils.PreferenceUtils;
@@ -115,6 +116,20 @@ public class ImageFetcher extends ImageWorker {
      *         requested width and height
      */
     public static Bitmap decodeSampledBitmapFromFile(final String filename) {
+        return decodeSampledBitmapFromFile(filename, null);
+    }
+
+    /**
+     * Decode and sample down a {@link Bitmap} from a file, into a pooled
+     * bitmap if there's one the size of the result
+     * 
+     * @param filename The full path of the file to decode
+     * @param pool The {@link BitmapPool} to decode into, may be null
+     * @return A {@link Bitmap} sampled down from the original with the same
+     *         aspect ratio
+     */
+    public static Bitmap decodeSampledBitmapFromFile(final String filename,
+            final BitmapPool pool) {
 
         // First decode with inJustDecodeBounds=true to check dimensions
         final BitmapFactory.Options options = new BitmapFactory.Options();
@@ -127,7 +142,17 @@ public class ImageFetcher extends ImageWorker {
 
         // Decode bitmap with inSampleSize set
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeFile(filename, options);
+        if (pool == null) {
+            return BitmapFactory.decodeFile(filename, options);
+        }
+        pool.prepare(options);
+        try {
+            return BitmapFactory.decodeFile(filename, options);
+        } catch (final IllegalArgumentException e) {
+            // The pooled bitmap couldn't be decoded into
+            pool.unprepare(options);
+            return BitmapFactory.decodeFile(filename, options);
+        }
     }
 
     /**
@@ -308,17 +333,24 @@ public class ImageFetcher extends ImageWorker {
      * Used to fetch the current artist image.
      */
     public void loadCurrentArtistImage(final ImageView imageView) {
-        loadImage(MusicUtils.getArtistName(), MusicUtils.getArtistName(), null, null, imageView,
-                ImageType.ARTIST);
+        final String artistName = MusicUtils.getTrackMetadata().mArtistName;
+        loadImage(artistName, artistName, null, null, imageView, ImageType.ARTIST);
     }
 
     /**
      * Used to fetch the current artwork.
      */
     public void loadCurrentArtwork(final ImageView imageView) {
-        loadImage(MusicUtils.getAlbumName() + Config.ALBUM_ART_SUFFIX, MusicUtils.getArtistName(),
-                MusicUtils.getAlbumName(), String.valueOf(MusicUtils.getCurrentAlbumId()),
-                imageView, ImageType.ALBUM);
+        loadTrackArtwork(MusicUtils.getTrackMetadata(), imageView);
+    }
+
+    /**
+     * Used to fetch the artwork of a track the service already sent.
+     */
+    public void loadTrackArtwork(final TrackMetadata metadata, final ImageView imageView) {
+        loadImage(metadata.mAlbumName + Config.ALBUM_ART_SUFFIX, metadata.mArtistName,
+                metadata.mAlbumName, String.valueOf(metadata.mAlbumId), imageView,
+                ImageType.ALBUM);
     }
 
     /**
@@ -332,7 +364,8 @@ public class ImageFetcher extends ImageWorker {
         final File file = downloadBitmapToFile(mContext, url, DEFAULT_HTTP_CACHE_DIR);
         if (file != null) {
             // Return a sampled down version
-            final Bitmap bitmap = decodeSampledBitmapFromFile(file.toString());
+            final Bitmap bitmap = decodeSampledBitmapFromFile(file.toString(),
+                    mImageCache != null ? mImageCache.getBitmapPool() : null);
             file.delete();
             if (bitmap != null) {
                 return bitmap;
@@ -402,6 +435,7 @@ public class ImageFetcher extends ImageWorker {
      * @param pause True to temporarily pause the disk cache, false otherwise.
      */
     public void setPauseDiskCache(final boolean pause) {
+        setPauseWork(pause);
         if (mImageCache != null) {
             mImageCache.setPauseDiskCache(pause);
         }
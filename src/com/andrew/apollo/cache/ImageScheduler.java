@@ -0,0 +1,161 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo.cache;
+
+import java.util.LinkedList;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Runs the image loads on a few background threads of its own, newest first.
+ * The rows that were bound last are the ones on screen, so they're loaded
+ * before the ones that scrolled by, and jobs that are no longer wanted can be
+ * taken back out before they start. While paused, nothing new is started.
+ */
+final class ImageScheduler {
+
+    private static final String TAG = ImageScheduler.class.getSimpleName();
+
+    /**
+     * The most threads loading at once
+     */
+    private static final int MAX_THREADS = 3;
+
+    /**
+     * How long an idle thread waits for work before it stops, in milliseconds
+     */
+    private static final long KEEP_ALIVE = 30000;
+
+    /* The jobs waiting to start, the newest first */
+    private final LinkedList<Runnable> mJobs = new LinkedList<Runnable>();
+
+    private int mThreadCount;
+
+    private int mIdleCount;
+
+    private boolean mPaused;
+
+    /**
+     * Adds a job ahead of every waiting one. A job that is already waiting is
+     * moved to the front.
+     *
+     * @param job The job
+     */
+    public synchronized void execute(final Runnable job) {
+        mJobs.remove(job);
+        mJobs.addFirst(job);
+        if (mIdleCount > 0) {
+            notify();
+        }
+        if (mJobs.size() > mIdleCount && mThreadCount < MAX_THREADS) {
+            mThreadCount++;
+            new Worker(mThreadCount).start();
+        }
+    }
+
+    /**
+     * Moves a job ahead of every waiting one if it's still waiting. A job
+     * that started or already finished isn't added again.
+     *
+     * @param job The job
+     * @return True if it was waiting
+     */
+    public synchronized boolean promote(final Runnable job) {
+        if (!mJobs.remove(job)) {
+            return false;
+        }
+        mJobs.addFirst(job);
+        return true;
+    }
+
+    /**
+     * Takes a job back out if it hasn't started
+     *
+     * @param job The job
+     * @return True if it was waiting, false if it started or never was added
+     */
+    public synchronized boolean cancel(final Runnable job) {
+        return mJobs.remove(job);
+    }
+
+    /**
+     * @param paused True to hold off starting jobs, while the user is
+     *            scrolling, false to start them again
+     */
+    public synchronized void setPaused(final boolean paused) {
+        mPaused = paused;
+        if (!paused) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits for the next job
+     *
+     * @return The job, or null if the thread has been idle long enough to
+     *         stop
+     */
+    private synchronized Runnable take() {
+        long idleSince = -1;
+        while (mPaused || mJobs.isEmpty()) {
+            final long now = System.currentTimeMillis();
+            if (idleSince < 0) {
+                idleSince = now;
+            } else if (!mPaused && now - idleSince >= KEEP_ALIVE) {
+                mThreadCount--;
+                return null;
+            }
+            mIdleCount++;
+            try {
+                wait(KEEP_ALIVE);
+            } catch (final InterruptedException ignored) {
+                // Check for work again
+            } finally {
+                mIdleCount--;
+            }
+        }
+        return mJobs.removeFirst();
+    }
+
+    /**
+     * Runs jobs until it has been idle for {@link #KEEP_ALIVE}
+     */
+    private final class Worker extends Thread {
+
+        /**
+         * Constructor of <code>Worker</code>
+         *
+         * @param number The thread's number, for its name
+         */
+        public Worker(final int number) {
+            super("ImageScheduler #" + number);
+            setDaemon(true);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            Runnable job;
+            while ((job = take()) != null) {
+                try {
+                    job.run();
+                } catch (final RuntimeException e) {
+                    // Keep the thread for the next job
+                    Log.e(TAG, "run - " + e);
+                }
+            }
+        }
+    }
+}
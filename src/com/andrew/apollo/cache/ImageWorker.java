@@ -12,6 +12,8 @@
 package com.andrew.apollo.cache;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 import android.content.Context;
 import android.content.res.Resources;
@@ -21,11 +23,15 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.DisplayMetrics;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 
 import com.andrew.apollo.R;
 import com.andrew.apollo.utils.ApolloUtils;
+import com.andrew.apollo.utils.Lists;
 import com.andrew.apollo.utils.ThemeUtils;
 
 /**
@@ -39,55 +45,106 @@ public abstract class ImageWorker {
     /**
      * A custom {@link BitmapDrawable} that will be attached to the
      * {@link ImageView} while the work is in progress. Contains a reference to
-     * the actual worker task, so that it can be stopped if a new binding is
-     * required, and makes sure that only the last started worker process can
-     * bind its result, independently of the finish order.
+     * the actual request, so that the view can leave it if a new binding is
+     * required, and makes sure that only the last request made for the view
+     * can bind its result, independently of the finish order.
      */
     private static final class AsyncDrawable extends ColorDrawable {
 
-        private final WeakReference<BitmapWorkerTask> mBitmapWorkerTaskReference;
+        private final WeakReference<BitmapRequest> mBitmapRequestReference;
 
         /**
          * Constructor of <code>AsyncDrawable</code>
          */
         public AsyncDrawable(final Resources res, final Bitmap bitmap,
-                final BitmapWorkerTask mBitmapWorkerTask) {
+                final BitmapRequest bitmapRequest) {
             super(Color.TRANSPARENT);
-            mBitmapWorkerTaskReference = new WeakReference<BitmapWorkerTask>(mBitmapWorkerTask);
+            mBitmapRequestReference = new WeakReference<BitmapRequest>(bitmapRequest);
         }
 
         /**
-         * @return The {@link BitmapWorkerTask} associated with this drawable
+         * @return The {@link BitmapRequest} associated with this drawable
          */
-        public BitmapWorkerTask getBitmapWorkerTask() {
-            return mBitmapWorkerTaskReference.get();
+        public BitmapRequest getBitmapRequest() {
+            return mBitmapRequestReference.get();
         }
     }
 
     /**
-     * The actual {@link AsyncTask} that will process the image.
+     * A {@link BitmapDrawable} of a bitmap from the cache. The cache counts it
+     * as shown, so it isn't pooled, until the view is bound again.
      */
-    private final class BitmapWorkerTask extends AsyncTask<String, Void, TransitionDrawable> {
+    private static final class ShownBitmapDrawable extends BitmapDrawable {
 
         /**
-         * The album ID used to find the corresponding artwork
+         * Constructor of <code>ShownBitmapDrawable</code>
          */
-        private String mAlbumId;
+        public ShownBitmapDrawable(final Resources res, final Bitmap bitmap) {
+            super(res, bitmap);
+        }
+    }
+
+    /**
+     * A {@link TransitionDrawable} fading in a bitmap from the cache. The
+     * cache counts it as shown, so it isn't pooled, until the view is bound
+     * again.
+     */
+    private static final class ShownTransitionDrawable extends TransitionDrawable {
+
+        private final Bitmap mBitmap;
 
         /**
-         * Album name parm
+         * Constructor of <code>ShownTransitionDrawable</code>
          */
-        private String mAlbumName;
+        public ShownTransitionDrawable(final Drawable[] layers, final Bitmap bitmap) {
+            super(layers);
+            mBitmap = bitmap;
+        }
+
+        /**
+         * @return The bitmap faded in
+         */
+        public Bitmap getBitmap() {
+            return mBitmap;
+        }
+    }
+
+    /**
+     * Loads one image for every {@link ImageView} waiting on it. The views
+     * join and leave on the main thread, the image is processed on the
+     * scheduler's, and the result is handed back on the main thread.
+     */
+    private final class BitmapRequest implements Runnable {
+
+        /**
+         * The key used to store cached entries
+         */
+        private final String mKey;
+
+        /**
+         * The key of the full image the entry is scaled down from
+         */
+        private final String mSourceKey;
+
+        /**
+         * The variant size, or 0 for the full image
+         */
+        private final int mSize;
 
         /**
          * Artist name param
          */
-        private String mArtistName;
+        private final String mArtistName;
+
+        /**
+         * Album name parm
+         */
+        private final String mAlbumName;
 
         /**
-         * The {@link ImageView} used to set the result
+         * The album ID used to find the corresponding artwork
          */
-        private final WeakReference<ImageView> mImageReference;
+        private final String mAlbumId;
 
         /**
          * Type of URL to download
@@ -95,121 +152,199 @@ public abstract class ImageWorker {
         private final ImageType mImageType;
 
         /**
-         * The key used to store cached entries
+         * The {@link ImageView}s waiting for the result
+         */
+        private final ArrayList<WeakReference<ImageView>> mImageReferences = Lists
+                .newArrayList();
+
+        /**
+         * Set once the request was cancelled or handed out its result, so a
+         * view bound to the same image again has to start a new one
+         */
+        private boolean mFinished;
+
+        /**
+         * Set once a scheduler thread took the request, so it's only ever run
+         * once however many views join it
          */
-        private String mKey;
+        private volatile boolean mStarted;
 
         /**
-         * The URL of an image to download
+         * Constructor of <code>BitmapRequest</code>
+         * 
+         * @param key The unique identifier for the image
+         * @param size The variant size, or 0 for the full image
+         * @param artistName The artist name for the Last.fm API
+         * @param albumName The album name for the Last.fm API
+         * @param albumId The album art index, to check for missing artwork
+         * @param imageType The type of image URL to fetch for
          */
-        private String mUrl;
+        public BitmapRequest(final String key, final int size, final String artistName,
+                final String albumName, final String albumId, final ImageType imageType) {
+            mKey = ImageCache.getVariantKey(key, size);
+            mSourceKey = key;
+            mSize = size;
+            mArtistName = artistName;
+            mAlbumName = albumName;
+            mAlbumId = albumId;
+            mImageType = imageType;
+        }
 
         /**
-         * Constructor of <code>BitmapWorkerTask</code>
+         * Adds a view to the ones waiting for the result
          * 
-         * @param imageView The {@link ImageView} to use.
-         * @param imageType The type of image URL to fetch for.
+         * @param imageView The {@link ImageView} to set the result on
          */
         @SuppressWarnings("deprecation")
-        public BitmapWorkerTask(final ImageView imageView, final ImageType imageType) {
+        public void attach(final ImageView imageView) {
+            releaseShownBitmap(imageView);
             imageView.setBackgroundDrawable(mDefaultArtwork);
-            mImageReference = new WeakReference<ImageView>(imageView);
-            mImageType = imageType;
+            imageView.setImageDrawable(new AsyncDrawable(mResources, mDefault, this));
+            mImageReferences.add(new WeakReference<ImageView>(imageView));
         }
 
         /**
-         * {@inheritDoc}
+         * Removes a view from the ones waiting for the result, cancelling
+         * the request if it was the last one
+         * 
+         * @param imageView The {@link ImageView} that no longer wants it
          */
-        @Override
-        protected TransitionDrawable doInBackground(final String... params) {
-            // Define the key
-            mKey = params[0];
-
-            // The result
-            Bitmap bitmap = null;
-
-            // Wait here if work is paused and the task is not cancelled. This
-            // shouldn't even occur because this isn't executing while the user
-            // is scrolling, but just in case.
-            while (isScrolling() && !isCancelled()) {
-                cancel(true);
+        public void detach(final ImageView imageView) {
+            for (int i = mImageReferences.size() - 1; i >= 0; i--) {
+                final ImageView waiting = mImageReferences.get(i).get();
+                if (waiting == null || waiting == imageView) {
+                    mImageReferences.remove(i);
+                }
             }
-
-            // First, check the disk cache for the image
-            if (mKey != null && mImageCache != null && !isCancelled()
-                    && getAttachedImageView() != null) {
-                bitmap = mImageCache.getCachedBitmap(mKey);
+            if (mImageReferences.isEmpty()) {
+                cancel();
             }
+        }
 
-            // Define the album id now
-            mAlbumId = params[3];
+        /**
+         * Drops the request if it hasn't started. One that has is left to
+         * finish, its result is cached and other views can still join it.
+         */
+        public void cancel() {
+            if (sScheduler.cancel(this)) {
+                mFinished = true;
+                if (sRequests.get(mKey) == this) {
+                    sRequests.remove(mKey);
+                }
+            }
+        }
 
-            // Second, if we're fetching artwork, check the device for the image
-            if (bitmap == null && mImageType.equals(ImageType.ALBUM) && mAlbumId != null
-                    && mKey != null && !isCancelled() && getAttachedImageView() != null
-                    && mImageCache != null) {
-                bitmap = mImageCache.getCachedArtwork(mContext, mKey, mAlbumId);
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            if (mStarted) {
+                return;
             }
+            mStarted = true;
+            // The result, held as shown until it's handed to the views
+            Bitmap result = null;
+            try {
+                Bitmap bitmap = null;
+                boolean inMemCache = false;
+
+                // First, check the memory and disk caches for the image
+                if (mImageCache != null) {
+                    bitmap = mImageCache.retainFromMemCache(mKey);
+                    inMemCache = bitmap != null;
+                    if (bitmap == null) {
+                        bitmap = mImageCache.decodeFromDiskCache(mKey, mSize);
+                    }
+                }
 
-            // Third, by now we need to download the image
-            if (bitmap == null && ApolloUtils.isOnline(mContext) && !isCancelled()
-                    && getAttachedImageView() != null) {
-                // Now define what the artist name, album name, and url are.
-                mArtistName = params[1];
-                mAlbumName = params[2];
-                mUrl = processImageUrl(mArtistName, mAlbumName, mImageType);
-                if (mUrl != null) {
-                    bitmap = processBitmap(mUrl);
+                // A smaller copy is scaled down from the full image if it's cached
+                if (bitmap == null && mSize > 0 && mImageCache != null) {
+                    final Bitmap source = mImageCache.retainFromMemCache(mSourceKey);
+                    if (source == null) {
+                        bitmap = mImageCache.decodeFromDiskCache(mSourceKey, mSize);
+                    } else {
+                        bitmap = mImageCache.createVariant(source, mSize, false);
+                        if (bitmap == source) {
+                            // Small enough already, show the cached one
+                            inMemCache = true;
+                        } else {
+                            mImageCache.releaseBitmap(source);
+                        }
+                    }
                 }
-            }
 
-            // Fourth, add the new image to the cache
-            if (bitmap != null && mKey != null && mImageCache != null) {
-                addBitmapToCache(mKey, bitmap);
-            }
+                // Second, if we're fetching artwork, check the device for the image
+                if (bitmap == null && mImageType.equals(ImageType.ALBUM) && mAlbumId != null
+                        && mImageCache != null) {
+                    bitmap = mImageCache.decodeArtworkFromFile(mContext, mAlbumId, mSize);
+                }
 
-            // Add the second layer to the transiation drawable
-            if (bitmap != null) {
-                final BitmapDrawable layerTwo = new BitmapDrawable(mResources, bitmap);
-                layerTwo.setFilterBitmap(false);
-                layerTwo.setDither(false);
-                mArrayDrawable[1] = layerTwo;
-
-                // Finally, return the image
-                final TransitionDrawable result = new TransitionDrawable(mArrayDrawable);
-                result.setCrossFadeEnabled(true);
-                result.startTransition(FADE_IN_TIME);
-                return result;
-            }
-            return null;
-        }
+                // Third, by now we need to download the image
+                if (bitmap == null && ApolloUtils.isOnline(mContext)) {
+                    final String url = processImageUrl(mArtistName, mAlbumName, mImageType);
+                    if (url != null) {
+                        bitmap = processBitmap(url);
+                    }
+                    if (bitmap != null && mSize > 0 && mImageCache != null) {
+                        // Keep the full image for the larger views
+                        mImageCache.addBitmapToDiskCache(mSourceKey, bitmap);
+                        bitmap = mImageCache.createVariant(bitmap, mSize, true);
+                    }
+                }
 
-        /**
-         * @return The {@link ImageView} associated with this task as long as
-         *         the ImageView's task still points to this task as well.
-         *         Returns null otherwise.
-         */
-        private final ImageView getAttachedImageView() {
-            final ImageView imageView = mImageReference.get();
-            final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
-            if (this == bitmapWorkerTask) {
-                return imageView;
+                // Fourth, add the new image to the cache
+                if (bitmap != null && !inMemCache && mImageCache != null) {
+                    mImageCache.retainBitmap(bitmap);
+                    mImageCache.addBitmapToCache(mKey, bitmap);
+                }
+
+                result = bitmap;
+            } finally {
+                // Hand the image to the views, even if the load failed, so
+                // they don't wait on this request forever
+                final Bitmap delivered = result;
+                sHandler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        deliver(delivered);
+                    }
+                });
             }
-            return null;
         }
 
         /**
-         * {@inheritDoc}
+         * Sets the result on every view still waiting for it. Runs on the
+         * main thread.
+         * 
+         * @param bitmap The image, or null if there was none
          */
-        @Override
-        protected void onPostExecute(TransitionDrawable result) {
-            if (isCancelled()) {
-                result = null;
+        private void deliver(final Bitmap bitmap) {
+            mFinished = true;
+            if (sRequests.get(mKey) == this) {
+                sRequests.remove(mKey);
             }
-            final ImageView imageView = getAttachedImageView();
-            if (result != null && imageView != null) {
-                imageView.setImageDrawable(result);
+            for (final WeakReference<ImageView> reference : mImageReferences) {
+                final ImageView imageView = reference.get();
+                if (bitmap != null && imageView != null && getBitmapRequest(imageView) == this) {
+                    // Add the second layer to the transiation drawable
+                    final BitmapDrawable layerTwo = new BitmapDrawable(mResources, bitmap);
+                    layerTwo.setFilterBitmap(false);
+                    layerTwo.setDither(false);
+                    final TransitionDrawable drawable = new ShownTransitionDrawable(
+                            new Drawable[] {
+                                    mCurrentDrawable, layerTwo
+                            }, bitmap);
+                    drawable.setCrossFadeEnabled(true);
+                    drawable.startTransition(FADE_IN_TIME);
+                    retainBitmap(bitmap);
+                    imageView.setImageDrawable(drawable);
+                }
             }
+            mImageReferences.clear();
+            // Let go of the request's own hold
+            releaseBitmap(bitmap);
         }
     }
 
@@ -226,14 +361,32 @@ public abstract class ImageWorker {
     private static final int FADE_IN_TIME = 200;
 
     /**
-     * Calls {@code cancel()} in the worker task
+     * Runs the requests, newest first
+     */
+    private static final ImageScheduler sScheduler = new ImageScheduler();
+
+    /**
+     * The requests that haven't finished, by key, so views that want the
+     * same image share one. Only touched on the main thread.
+     */
+    private static final HashMap<String, BitmapRequest> sRequests =
+            new HashMap<String, BitmapRequest>();
+
+    /**
+     * Hands the results back on the main thread
+     */
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Takes a view off the request it's waiting on, which is cancelled if no
+     * other view wants it
      * 
      * @param imageView the {@link ImageView} to use
      */
     public static final void cancelWork(final ImageView imageView) {
-        final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
-        if (bitmapWorkerTask != null) {
-            bitmapWorkerTask.cancel(true);
+        final BitmapRequest bitmapRequest = getBitmapRequest(imageView);
+        if (bitmapRequest != null) {
+            bitmapRequest.detach(imageView);
         }
     }
 
@@ -243,11 +396,11 @@ public abstract class ImageWorker {
      * progress deals with the same data. The work is not stopped in that case.
      */
     public static final boolean executePotentialWork(final Object data, final ImageView imageView) {
-        final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
-        if (bitmapWorkerTask != null) {
-            final Object bitmapData = bitmapWorkerTask.mKey;
-            if (bitmapData == null || !bitmapData.equals(data)) {
-                bitmapWorkerTask.cancel(true);
+        final BitmapRequest bitmapRequest = getBitmapRequest(imageView);
+        if (bitmapRequest != null) {
+            final Object bitmapData = bitmapRequest.mKey;
+            if (bitmapData == null || !bitmapData.equals(data) || bitmapRequest.mFinished) {
+                bitmapRequest.detach(imageView);
             } else {
                 // The same work is already in progress
                 return false;
@@ -256,30 +409,39 @@ public abstract class ImageWorker {
         return true;
     }
 
+    /**
+     * @param imageView Any {@link ImageView}
+     * @return The cached bitmap the view shows, or null if it shows none
+     */
+    private static final Bitmap getShownBitmap(final ImageView imageView) {
+        final Drawable drawable = imageView.getDrawable();
+        if (drawable instanceof ShownBitmapDrawable) {
+            return ((ShownBitmapDrawable) drawable).getBitmap();
+        } else if (drawable instanceof ShownTransitionDrawable) {
+            return ((ShownTransitionDrawable) drawable).getBitmap();
+        }
+        return null;
+    }
+
     /**
      * Used to determine if the current image drawable has an instance of
-     * {@link BitmapWorkerTask}
+     * {@link BitmapRequest}
      * 
      * @param imageView Any {@link ImageView}.
-     * @return Retrieve the currently active work task (if any) associated with
-     *         this {@link ImageView}. null if there is no such task.
+     * @return Retrieve the request (if any) associated with this
+     *         {@link ImageView}. null if there is no such request.
      */
-    private static final BitmapWorkerTask getBitmapWorkerTask(final ImageView imageView) {
+    private static final BitmapRequest getBitmapRequest(final ImageView imageView) {
         if (imageView != null) {
             final Drawable drawable = imageView.getDrawable();
             if (drawable instanceof AsyncDrawable) {
                 final AsyncDrawable asyncDrawable = (AsyncDrawable) drawable;
-                return asyncDrawable.getBitmapWorkerTask();
+                return asyncDrawable.getBitmapRequest();
             }
         }
         return null;
     }
 
-    /**
-     * Layer drawable used to cross fade the result from the worker
-     */
-    private final Drawable[] mArrayDrawable;
-
     /**
      * The Context to use
      */
@@ -325,12 +487,9 @@ public abstract class ImageWorker {
         // No filter and no dither makes things much quicker
         mDefaultArtwork.setFilterBitmap(false);
         mDefaultArtwork.setDither(false);
-        // Create the transparent layer for the transition drawable
+        // Create the transparent layer for the transition drawable, the
+        // result is faded in over it
         mCurrentDrawable = new ColorDrawable(mResources.getColor(R.color.transparent));
-        // A transparent image (layer 0) and the new result (layer 1)
-        mArrayDrawable = new Drawable[2];
-        mArrayDrawable[0] = mCurrentDrawable;
-        // XXX The second layer is set in the worker task.
     }
 
     /**
@@ -341,7 +500,8 @@ public abstract class ImageWorker {
      */
     public void addBitmapToCache(final String key, final Bitmap bitmap) {
         if (mImageCache != null) {
-            mImageCache.addBitmapToCache(key, bitmap);
+            // The caller keeps it too, so it's never pooled
+            mImageCache.addBitmapToCache(key, mImageCache.share(bitmap));
         }
     }
 
@@ -399,26 +559,93 @@ public abstract class ImageWorker {
         if (key == null || mImageCache == null || imageView == null) {
             return;
         }
+        // Views smaller than the full image show a copy scaled down to fit
+        final int size = getVariantSize(imageView);
+        final String variantKey = ImageCache.getVariantKey(key, size);
+
         // First, check the memory for the image
-        final Bitmap lruBitmap = mImageCache.getBitmapFromMemCache(key);
-        if (lruBitmap != null && imageView != null) {
+        final Bitmap lruBitmap = mImageCache.retainFromMemCache(variantKey);
+        if (lruBitmap != null) {
             // Bitmap found in memory cache
-            imageView.setImageBitmap(lruBitmap);
-        } else if (executePotentialWork(key, imageView) && imageView != null && !isScrolling()) {
-            // Otherwise run the worker task
-            final BitmapWorkerTask bitmapWorkerTask = new BitmapWorkerTask(imageView, imageType);
-            final AsyncDrawable asyncDrawable = new AsyncDrawable(mResources, mDefault,
-                    bitmapWorkerTask);
-            imageView.setImageDrawable(asyncDrawable);
-            // Don't execute the BitmapWorkerTask while scrolling
-            if (isScrolling()) {
-                cancelWork(imageView);
+            cancelWork(imageView);
+            releaseShownBitmap(imageView);
+            imageView.setImageDrawable(new ShownBitmapDrawable(mResources, lruBitmap));
+        } else if (executePotentialWork(variantKey, imageView)) {
+            // Otherwise wait on the request for the image, joining one that
+            // is already on its way. Either way it goes to the front, this
+            // view was bound last so it's on screen.
+            BitmapRequest bitmapRequest = sRequests.get(variantKey);
+            if (bitmapRequest == null) {
+                bitmapRequest = new BitmapRequest(key, size, artistName, albumName, albumId,
+                        imageType);
+                sRequests.put(variantKey, bitmapRequest);
+                bitmapRequest.attach(imageView);
+                sScheduler.execute(bitmapRequest);
             } else {
-                ApolloUtils.execute(false, bitmapWorkerTask, key, artistName, albumName, albumId);
+                bitmapRequest.attach(imageView);
+                // One that started already only has to be waited on
+                if (!bitmapRequest.mStarted) {
+                    sScheduler.promote(bitmapRequest);
+                }
             }
         }
     }
 
+    /**
+     * Picks the variant size for a view from its layout size, or its size on
+     * screen once it's measured. A side that is neither is at most the
+     * screen's shorter side, which the square artwork is limited to.
+     * 
+     * @param imageView The {@link ImageView}
+     * @return The variant size, or 0 for the full image
+     */
+    private int getVariantSize(final ImageView imageView) {
+        final ViewGroup.LayoutParams params = imageView.getLayoutParams();
+        final DisplayMetrics metrics = mResources.getDisplayMetrics();
+        final int screenSide = Math.min(metrics.widthPixels, metrics.heightPixels);
+        int width = params != null && params.width > 0 ? params.width : imageView.getWidth();
+        int height = params != null && params.height > 0 ? params.height : imageView
+                .getHeight();
+        if (width <= 0) {
+            width = screenSide;
+        }
+        if (height <= 0) {
+            height = screenSide;
+        }
+        return ImageCache.getVariantSize(Math.max(width, height));
+    }
+
+    /**
+     * Counts a bitmap as shown once more
+     * 
+     * @param bitmap The bitmap, may be null
+     */
+    private void retainBitmap(final Bitmap bitmap) {
+        if (mImageCache != null) {
+            mImageCache.retainBitmap(bitmap);
+        }
+    }
+
+    /**
+     * Counts a bitmap as shown once less, so it can go to the pool
+     * 
+     * @param bitmap The bitmap, may be null
+     */
+    private void releaseBitmap(final Bitmap bitmap) {
+        if (mImageCache != null) {
+            mImageCache.releaseBitmap(bitmap);
+        }
+    }
+
+    /**
+     * Lets go of the cached bitmap a view shows, before it's bound again
+     * 
+     * @param imageView The {@link ImageView}
+     */
+    private void releaseShownBitmap(final ImageView imageView) {
+        releaseBitmap(getShownBitmap(imageView));
+    }
+
     /**
      * Subclasses should override this to define any processing or work that
      * must happen to produce the final {@link Bitmap}. This will be executed in
@@ -442,6 +669,14 @@ public abstract class ImageWorker {
     protected abstract String processImageUrl(String artistName, String albumName,
             ImageType imageType);
 
+    /**
+     * @param pause True to hold off starting new requests while the user is
+     *            scrolling, false to start them again
+     */
+    public void setPauseWork(final boolean pause) {
+        sScheduler.setPaused(pause);
+    }
+
     /**
      * Set the {@link ImageCache} object to use with this ImageWorker.
      * 
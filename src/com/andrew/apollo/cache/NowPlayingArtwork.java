@@ -0,0 +1,204 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo.cache;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.DisplayMetrics;
+
+import com.andrew.apollo.R;
+import com.andrew.apollo.model.TrackMetadata;
+
+/**
+ * The artwork of the current and the next track, as shown by the
+ * notification, the lockscreen and the app-widgets. Each album's artwork is
+ * decoded once and scaled to the size every one of them draws it at, so they
+ * share one decode and only send as many pixels over Binder as they show.
+ * Artwork without transparency is kept as RGB_565.
+ * <p>
+ * Decodes run outside the lock, so drawing the current track's artwork never
+ * waits on the next one's being prefetched. An album without artwork is
+ * remembered as such for as long as it's held, so it isn't looked up again
+ * for every notification.
+ */
+public final class NowPlayingArtwork {
+
+    /**
+     * The notification, and the small app-widget
+     */
+    public static final int SIZE_SMALL = 0;
+
+    /**
+     * The expanded notification, and the large app-widget
+     */
+    public static final int SIZE_LARGE = 1;
+
+    /**
+     * The alternate large app-widget
+     */
+    public static final int SIZE_ALTERNATE = 2;
+
+    /**
+     * The lockscreen, as large as the screen is wide
+     */
+    public static final int SIZE_LOCKSCREEN = 3;
+
+    /* The dimensions of the sizes that are set by a layout */
+    private static final int[] DIMENS = new int[] {
+            R.dimen.notification_big_icon_width, R.dimen.notification_expanded_height,
+            R.dimen.app_widget_large_alternate_artwork_size
+    };
+
+    /* The current album's, the next album's and one that is on its way out */
+    private static final int MAX_ALBUMS = 3;
+
+    /* Held for an album that has no artwork */
+    private static final Bitmap[] NO_ARTWORK = new Bitmap[0];
+
+    private final ImageFetcher mFetcher;
+
+    /* The pixel size of each variant, by SIZE_ constant */
+    private final int[] mSizes = new int[SIZE_LOCKSCREEN + 1];
+
+    /* The variants of each album's artwork, or NO_ARTWORK, by album ID */
+    private final LruCache<Long, Bitmap[]> mVariants = new LruCache<Long, Bitmap[]>(MAX_ALBUMS);
+
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /**
+     * Constructor of <code>NowPlayingArtwork</code>
+     *
+     * @param context The {@link Context} to use
+     * @param fetcher The {@link ImageFetcher} the artwork is read with
+     */
+    public NowPlayingArtwork(final Context context, final ImageFetcher fetcher) {
+        mFetcher = fetcher;
+        final Resources resources = context.getResources();
+        for (int i = 0; i < DIMENS.length; i++) {
+            mSizes[i] = resources.getDimensionPixelSize(DIMENS[i]);
+        }
+        final DisplayMetrics metrics = resources.getDisplayMetrics();
+        mSizes[SIZE_LOCKSCREEN] = Math.min(metrics.widthPixels, metrics.heightPixels);
+    }
+
+    /**
+     * Returns a track's artwork, decoding it first if it isn't held
+     *
+     * @param track The track
+     * @param size One of the <code>SIZE_</code> constants
+     * @return The artwork, scaled to fit the size
+     */
+    public Bitmap get(final TrackMetadata track, final int size) {
+        final Bitmap[] variants = getVariants(track);
+        return variants != null ? variants[size] : null;
+    }
+
+    /**
+     * Decodes the artwork of a track that is about to play, so it's ready
+     * when the track starts
+     *
+     * @param track The track, may be null
+     */
+    public void prefetch(final TrackMetadata track) {
+        if (track != null) {
+            getVariants(track);
+        }
+    }
+
+    /**
+     * Lets go of the artwork of every album other than the given ones. The
+     * bitmaps aren't recycled, a notification may still parcel them.
+     *
+     * @param currentAlbumId The album ID of the current track
+     * @param nextAlbumId The album ID of the next track
+     */
+    public synchronized void retain(final long currentAlbumId, final long nextAlbumId) {
+        for (final Long albumId : mVariants.snapshot().keySet()) {
+            if (albumId != currentAlbumId && albumId != nextAlbumId) {
+                mVariants.remove(albumId);
+            }
+        }
+    }
+
+    /**
+     * Lets go of all the artwork
+     */
+    public void clear() {
+        mVariants.evictAll();
+    }
+
+    /**
+     * @param track The track
+     * @return Every variant of the track's artwork, decoding it if it isn't
+     *         held
+     */
+    private Bitmap[] getVariants(final TrackMetadata track) {
+        synchronized (this) {
+            final Bitmap[] variants = mVariants.get(track.mAlbumId);
+            if (variants != null) {
+                return variants != NO_ARTWORK ? variants : null;
+            }
+        }
+        final Bitmap source = mFetcher.getArtwork(track.mAlbumName,
+                String.valueOf(track.mAlbumId), track.mArtistName);
+        Bitmap[] variants = NO_ARTWORK;
+        if (source != null) {
+            variants = new Bitmap[mSizes.length];
+            for (int i = 0; i < mSizes.length; i++) {
+                variants[i] = scale(source, mSizes[i]);
+            }
+        }
+        synchronized (this) {
+            // Another thread may have decoded it meanwhile, keep the first
+            final Bitmap[] decoded = mVariants.get(track.mAlbumId);
+            if (decoded != null) {
+                variants = decoded;
+            } else {
+                mVariants.put(track.mAlbumId, variants);
+            }
+        }
+        return variants != NO_ARTWORK ? variants : null;
+    }
+
+    /**
+     * Scales a bitmap to fit a square. The source may be shared with the
+     * image cache, so it's never changed or recycled here.
+     *
+     * @param source The bitmap to scale
+     * @param size The side of the square
+     * @return The scaled bitmap, RGB_565 if the source has no transparency
+     */
+    private Bitmap scale(final Bitmap source, final int size) {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final float scale = Math.min(1f,
+                Math.min((float) size / width, (float) size / height));
+        final int scaledWidth = Math.max(1, Math.round(width * scale));
+        final int scaledHeight = Math.max(1, Math.round(height * scale));
+        try {
+            if (source.hasAlpha()) {
+                return Bitmap.createScaledBitmap(source, scaledWidth, scaledHeight, true);
+            }
+            final Bitmap scaled = Bitmap.createBitmap(scaledWidth, scaledHeight,
+                    Bitmap.Config.RGB_565);
+            new Canvas(scaled).drawBitmap(source, null,
+                    new Rect(0, 0, scaledWidth, scaledHeight), mPaint);
+            return scaled;
+        } catch (final OutOfMemoryError ignored) {
+            // Fall back to the source rather than showing nothing
+            return source;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * The smallest thumbnails, kept as raw RGB_565 pixels in fixed-size slots of
+ * one memory-mapped file. A thumbnail is copied straight into a bitmap, with
+ * no JPEG to decode, which is what a list row that misses the memory cache
+ * mostly needs.
+ * <p>
+ * Each slot starts with the disk cache key it holds, the thumbnail's size and
+ * its place in the order of use, so the index is read back from the file when
+ * it's opened. Like the {@link DiskLruCache}, the least recently used slot is
+ * reused first, and the {@link ImageCache} removes a slot when it removes the
+ * key from the disk cache. A hit only moves the slot up in memory, so reading
+ * never dirties a page; the order is written back when the store is closed.
+ * <p>
+ * The file has to be on internal storage, a mapped file on a card that goes
+ * away faults the process.
+ */
+final class ThumbnailStore {
+
+    private static final String TAG = ThumbnailStore.class.getSimpleName();
+
+    /**
+     * The largest width and height a thumbnail may have
+     */
+    public static final int SIDE = 128;
+
+    /**
+     * The number of slots
+     */
+    private static final int SLOT_COUNT = 256;
+
+    /* Marks the file, and changes whenever the layout does */
+    private static final int MAGIC = 0x41544c31;
+
+    /* The magic, the side and the slot count */
+    private static final int FILE_HEADER_SIZE = 12;
+
+    /* The hex MD5 key, padded with zeros */
+    private static final int KEY_SIZE = 32;
+
+    /* The key, the width and height as shorts, and the order of use as a long */
+    private static final int SLOT_HEADER_SIZE = KEY_SIZE + 2 + 2 + 8;
+
+    private static final int PIXELS_SIZE = SIDE * SIDE * 2;
+
+    private static final int SLOT_SIZE = SLOT_HEADER_SIZE + PIXELS_SIZE;
+
+    private final RandomAccessFile mFile;
+
+    private final MappedByteBuffer mBuffer;
+
+    /* The slot of each key, the least recently used first */
+    private final LinkedHashMap<String, Integer> mSlots = new LinkedHashMap<String, Integer>(
+            SLOT_COUNT, 0.75f, true);
+
+    /* The slots that hold nothing */
+    private final LinkedList<Integer> mFreeSlots = new LinkedList<Integer>();
+
+    /* Counts up on every write of the order, so the slots can be put back in it */
+    private long mSequence;
+
+    /**
+     * Constructor of <code>ThumbnailStore</code>
+     *
+     * @param file The opened file
+     * @param buffer The file, mapped
+     */
+    private ThumbnailStore(final RandomAccessFile file, final MappedByteBuffer buffer) {
+        mFile = file;
+        mBuffer = buffer;
+        if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != SIDE
+                || mBuffer.getInt(8) != SLOT_COUNT) {
+            format();
+        } else {
+            readIndex();
+        }
+    }
+
+    /**
+     * Opens the store, creating the file if there isn't one
+     *
+     * @param file The file to keep the thumbnails in
+     * @return The store, or null if the file can't be mapped
+     */
+    public static ThumbnailStore open(final File file) {
+        RandomAccessFile randomAccessFile = null;
+        try {
+            final File parent = file.getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            final long size = FILE_HEADER_SIZE + (long) SLOT_SIZE * SLOT_COUNT;
+            randomAccessFile.setLength(size);
+            final MappedByteBuffer buffer = randomAccessFile.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, size);
+            return new ThumbnailStore(randomAccessFile, buffer);
+        } catch (final IOException e) {
+            Log.e(TAG, "open - " + e);
+            DiskLruCache.closeQuietly(randomAccessFile);
+            return null;
+        }
+    }
+
+    /**
+     * @param bitmap A bitmap
+     * @return True if it can be kept here
+     */
+    public static boolean fits(final Bitmap bitmap) {
+        return bitmap != null && bitmap.getConfig() == Bitmap.Config.RGB_565
+                && bitmap.getWidth() <= SIDE && bitmap.getHeight() <= SIDE
+                && bitmap.getRowBytes() * bitmap.getHeight() <= PIXELS_SIZE;
+    }
+
+    /**
+     * Copies a thumbnail into a bitmap
+     *
+     * @param key The disk cache key
+     * @param pool The pool to take a bitmap of the right size from, may be
+     *            null
+     * @return The thumbnail, which nothing else refers to yet, or null if
+     *         it's not kept here
+     */
+    public synchronized Bitmap get(final String key, final BitmapPool pool) {
+        final Integer slot = mSlots.get(key);
+        if (slot == null) {
+            return null;
+        }
+        final int offset = offsetOf(slot);
+        final int width = mBuffer.getShort(offset + KEY_SIZE);
+        final int height = mBuffer.getShort(offset + KEY_SIZE + 2);
+        Bitmap bitmap = pool != null ? pool.get(width, height, Bitmap.Config.RGB_565) : null;
+        try {
+            if (bitmap == null) {
+                bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+            }
+            bitmap.copyPixelsFromBuffer(pixelsOf(offset, bitmap.getRowBytes() * height));
+        } catch (final RuntimeException e) {
+            // The slot doesn't match the bitmap, don't hand it out again
+            Log.e(TAG, "get - " + e);
+            remove(key);
+            return null;
+        } catch (final OutOfMemoryError ignored) {
+            return null;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Keeps a thumbnail, in the slot that was used least recently if none is
+     * free. Bitmaps that don't {@link #fits(Bitmap)} are ignored.
+     *
+     * @param key The disk cache key
+     * @param bitmap The thumbnail
+     */
+    public synchronized void put(final String key, final Bitmap bitmap) {
+        if (key == null || key.length() > KEY_SIZE || !fits(bitmap)) {
+            return;
+        }
+        Integer slot = mSlots.get(key);
+        if (slot == null) {
+            if (!mFreeSlots.isEmpty()) {
+                slot = mFreeSlots.removeFirst();
+            } else {
+                final Iterator<Map.Entry<String, Integer>> eldest = mSlots.entrySet()
+                        .iterator();
+                slot = eldest.next().getValue();
+                eldest.remove();
+            }
+        }
+        final int offset = offsetOf(slot);
+        // Clear the key first, so a slot that is half written is never read
+        mBuffer.put(offset, (byte) 0);
+        bitmap.copyPixelsToBuffer(pixelsOf(offset, bitmap.getRowBytes() * bitmap.getHeight()));
+        mBuffer.putShort(offset + KEY_SIZE, (short) bitmap.getWidth());
+        mBuffer.putShort(offset + KEY_SIZE + 2, (short) bitmap.getHeight());
+        mBuffer.putLong(offset + KEY_SIZE + 4, mSequence++);
+        for (int i = KEY_SIZE - 1; i >= 0; i--) {
+            mBuffer.put(offset + i, i < key.length() ? (byte) key.charAt(i) : 0);
+        }
+        mSlots.put(key, slot);
+    }
+
+    /**
+     * Frees the slot of a key
+     *
+     * @param key The disk cache key
+     */
+    public synchronized void remove(final String key) {
+        final Integer slot = mSlots.remove(key);
+        if (slot != null) {
+            mBuffer.put(offsetOf(slot), (byte) 0);
+            mFreeSlots.add(slot);
+        }
+    }
+
+    /**
+     * Frees every slot
+     */
+    public synchronized void clear() {
+        format();
+    }
+
+    /**
+     * Writes the thumbnails and the order they were used in out and closes
+     * the file. The store can't be used afterwards.
+     */
+    public synchronized void close() {
+        // The least recently used first, so they're read back in this order
+        for (final Integer slot : mSlots.values()) {
+            mBuffer.putLong(offsetOf(slot) + KEY_SIZE + 4, mSequence++);
+        }
+        mBuffer.force();
+        DiskLruCache.closeQuietly(mFile);
+    }
+
+    /**
+     * Writes the file header and marks every slot free
+     */
+    private void format() {
+        mSlots.clear();
+        mFreeSlots.clear();
+        mSequence = 0;
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, SIDE);
+        mBuffer.putInt(8, SLOT_COUNT);
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            mBuffer.put(offsetOf(slot), (byte) 0);
+            mFreeSlots.add(slot);
+        }
+    }
+
+    /**
+     * Reads the keys back from the slots, in the order they were last used
+     */
+    private void readIndex() {
+        final long[] uses = new long[SLOT_COUNT];
+        final String[] keys = new String[SLOT_COUNT];
+        int count = 0;
+        final char[] key = new char[KEY_SIZE];
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            final int offset = offsetOf(slot);
+            int length = 0;
+            while (length < KEY_SIZE && mBuffer.get(offset + length) != 0) {
+                key[length] = (char) mBuffer.get(offset + length);
+                length++;
+            }
+            if (length == 0) {
+                mFreeSlots.add(slot);
+                continue;
+            }
+            keys[slot] = new String(key, 0, length);
+            final long sequence = mBuffer.getLong(offset + KEY_SIZE + 4);
+            mSequence = Math.max(mSequence, sequence + 1);
+            // The last use in the high bits, the slot in the low ones
+            uses[count++] = sequence * SLOT_COUNT + slot;
+        }
+        Arrays.sort(uses, 0, count);
+        for (int i = 0; i < count; i++) {
+            final int slot = (int) (uses[i] % SLOT_COUNT);
+            mSlots.put(keys[slot], slot);
+        }
+    }
+
+    /**
+     * @param slot A slot
+     * @return Where it starts in the file
+     */
+    private static int offsetOf(final int slot) {
+        return FILE_HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * @param offset Where a slot starts
+     * @param length The number of pixel bytes
+     * @return A view of the slot's pixels
+     */
+    private ByteBuffer pixelsOf(final int offset, final int length) {
+        final ByteBuffer pixels = mBuffer.duplicate();
+        pixels.position(offset + SLOT_HEADER_SIZE);
+        pixels.limit(offset + SLOT_HEADER_SIZE + length);
+        return pixels;
+    }
+}
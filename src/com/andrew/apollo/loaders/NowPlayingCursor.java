@@ -1,25 +1,36 @@
-
 package com.andrew.apollo.loaders;
 
 import static com.andrew.apollo.utils.MusicUtils.mService;
 
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.database.AbstractCursor;
 import android.database.Cursor;
+import android.os.AsyncTask;
 import android.os.RemoteException;
 import android.provider.BaseColumns;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Audio.AudioColumns;
 
+import com.andrew.apollo.cache.LruCache;
+import com.andrew.apollo.model.QueueChanges;
 import com.andrew.apollo.utils.ApolloUtils;
 import com.andrew.apollo.utils.MusicUtils;
+import com.andrew.apollo.utils.QueueChangeLog;
 
 /**
  * A custom {@link Cursor} used to return the queue and allow for easy dragging
  * and dropping of the items in it.
+ * <p>
+ * Only the queue's IDs are held up front. The titles, artists and albums are
+ * read a page, about a screen of rows, at a time as rows are visited,
+ * together with the next page in the direction the cursor is moving, and only
+ * the most recently used pages are kept. A list reads its rows straight from
+ * here, so a long queue never has all of its rows read.
  */
 @SuppressLint("NewApi")
 public class NowPlayingCursor extends AbstractCursor {
@@ -35,52 +46,105 @@ public class NowPlayingCursor extends AbstractCursor {
             AudioColumns.ALBUM
     };
 
+    /* The number of rows read in one query, about a screen of them */
+    private static final int PAGE_SIZE = 20;
+
+    /* The number of pages kept */
+    private static final int MAX_PAGES = 8;
+
+    /* The number of IDs read from the service in one call */
+    private static final int SLICE_SIZE = 1000;
+
+    /* How often to read the queue again if it changes while it's read */
+    private static final int MAX_ATTEMPTS = 3;
+
+    /* The most new IDs read when patching the queue, more reloads it */
+    private static final int MAX_PATCHED_ROWS = SLICE_SIZE;
+
+    /* The row of a track that is no longer in the library */
+    private static final String[] MISSING_ROW = new String[3];
+
+    /**
+     * Called when rows that were left blank have been read
+     */
+    public interface OnRowsLoadedListener {
+
+        /**
+         * Called on the main thread once a page of rows has been read
+         */
+        public void onRowsLoaded();
+    }
+
     private final Context mContext;
 
+    /**
+     * The title, artist and album of the rows read so far, by track ID,
+     * shared with the cursors patched from this one
+     */
+    private final LruCache<Long, String[]> mRows;
+
+    /**
+     * The tracks whose rows are being read in the background
+     */
+    private final HashSet<Long> mLoading = new HashSet<Long>();
+
+    /**
+     * Edits made here that the service hasn't reported back yet, packed as
+     * {@link QueueChangeLog} does
+     */
+    private final LinkedList<int[]> mPendingOps = new LinkedList<int[]>();
+
+    private OnRowsLoadedListener mListener;
+
     private int mCurPos;
 
-    private long[] mCursorIndexes;
+    private String[] mCurRow;
 
     private long[] mNowPlaying;
 
-    private Cursor mQueueCursor;
-
     private int mSize;
 
+    private int mQueueVersion;
+
     /**
      * Constructor of <code>NowPlayingCursor</code>
-     * 
+     *
      * @param context The {@link Context} to use
      */
     public NowPlayingCursor(final Context context) {
-        mContext = context;
-        makeNowPlayingCursor();
+        this(context, null);
     }
 
     /**
-     * {@inheritDoc}
+     * Constructor of <code>NowPlayingCursor</code> that brings another
+     * cursor's queue up to date. The edits made since it was read are
+     * patched in if the service still has them, and the rows read so far
+     * are shared, otherwise the whole queue is read again. Like any other
+     * read this calls the service, so it belongs on a background thread.
+     *
+     * @param context The {@link Context} to use
+     * @param previous The cursor to bring up to date, or null to read the
+     *            whole queue
      */
-    @Override
-    public void close() {
-        try {
-            if (mQueueCursor != null) {
-                mQueueCursor.close();
-                mQueueCursor = null;
-            }
-        } catch (final Exception close) {
+    public NowPlayingCursor(final Context context, final NowPlayingCursor previous) {
+        mContext = context;
+        mRows = previous != null ? previous.mRows : new LruCache<Long, String[]>(PAGE_SIZE
+                * MAX_PAGES);
+        if (previous == null || !patch(previous)) {
+            makeNowPlayingCursor();
+            // The top of the list is what's shown first
+            requestPage(0, 1);
         }
-        super.close();
     }
 
     /**
      * {@inheritDoc}
      */
-    @SuppressWarnings("deprecation")
     @Override
-    public void deactivate() {
-        if (mQueueCursor != null) {
-            mQueueCursor.deactivate();
-        }
+    public void close() {
+        // The rows may be shared, they go with the last cursor using them
+        mCurRow = null;
+        super.close();
     }
 
     /**
@@ -104,7 +168,7 @@ public class NowPlayingCursor extends AbstractCursor {
      */
     @Override
     public double getDouble(final int column) {
-        return mQueueCursor.getDouble(column);
+        return getLong(column);
     }
 
     /**
@@ -112,7 +176,7 @@ public class NowPlayingCursor extends AbstractCursor {
      */
     @Override
     public float getFloat(final int column) {
-        return mQueueCursor.getFloat(column);
+        return getLong(column);
     }
 
     /**
@@ -120,12 +184,7 @@ public class NowPlayingCursor extends AbstractCursor {
      */
     @Override
     public int getInt(final int column) {
-        try {
-            return mQueueCursor.getInt(column);
-        } catch (final Exception ignored) {
-            onChange(true);
-            return 0;
-        }
+        return (int) getLong(column);
     }
 
     /**
@@ -133,10 +192,12 @@ public class NowPlayingCursor extends AbstractCursor {
      */
     @Override
     public long getLong(final int column) {
+        if (column == 0) {
+            return getCurrentId();
+        }
         try {
-            return mQueueCursor.getLong(column);
-        } catch (final Exception ignored) {
-            onChange(true);
+            return Long.parseLong(getString(column));
+        } catch (final NumberFormatException ignored) {
             return 0;
         }
     }
@@ -146,7 +207,7 @@ public class NowPlayingCursor extends AbstractCursor {
      */
     @Override
     public short getShort(final int column) {
-        return mQueueCursor.getShort(column);
+        return (short) getLong(column);
     }
 
     /**
@@ -154,12 +215,13 @@ public class NowPlayingCursor extends AbstractCursor {
      */
     @Override
     public String getString(final int column) {
-        try {
-            return mQueueCursor.getString(column);
-        } catch (final Exception ignored) {
-            onChange(true);
-            return "";
+        if (column == 0) {
+            return String.valueOf(getCurrentId());
         }
+        if (mCurRow == null || column < 0 || column > mCurRow.length) {
+            return null;
+        }
+        return mCurRow[column - 1];
     }
 
     /**
@@ -168,7 +230,10 @@ public class NowPlayingCursor extends AbstractCursor {
     @Override
     public int getType(final int column) {
         if (ApolloUtils.hasHoneycomb()) {
-            return mQueueCursor.getType(column);
+            if (column == 0) {
+                return FIELD_TYPE_INTEGER;
+            }
+            return isNull(column) ? FIELD_TYPE_NULL : FIELD_TYPE_STRING;
         }
         return 0;
     }
@@ -178,66 +243,372 @@ public class NowPlayingCursor extends AbstractCursor {
      */
     @Override
     public boolean isNull(final int column) {
-        return mQueueCursor.isNull(column);
+        return column != 0 && getString(column) == null;
     }
 
     /**
-     * Actually makes the queue
+     * @return The version of the queue the rows are from, or -1 if it isn't
+     *         known
+     */
+    public int getQueueVersion() {
+        return mQueueVersion;
+    }
+
+    /**
+     * Sets the listener told when blank rows have been read. Once it's set,
+     * rows are read in the background instead of when they're visited, so
+     * the cursor must only be moved on the main thread.
+     *
+     * @param listener The listener, or null to read rows when they're visited
+     */
+    public void setOnRowsLoadedListener(final OnRowsLoadedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param position A position in the queue
+     * @return The ID of the track there, without reading its row, or -1 if
+     *         there isn't one
+     */
+    public long getTrackId(final int position) {
+        if (position < 0 || position >= mSize) {
+            return -1;
+        }
+        return mNowPlaying[position];
+    }
+
+    /**
+     * Copies another cursor's queue and patches it with the edits made since.
+     * Edits made through that cursor are already in it and are skipped. Only
+     * the IDs of new tracks are read, their rows are read like any other when
+     * they're visited.
+     *
+     * @param previous The cursor to bring up to date
+     * @return True if the queue was patched, false if it has to be loaded
+     *         again
+     */
+    private boolean patch(final NowPlayingCursor previous) {
+        final long[] nowPlaying;
+        final int previousSize;
+        final int previousVersion;
+        final LinkedList<int[]> pendingOps;
+        synchronized (previous) {
+            previousSize = previous.mSize;
+            previousVersion = previous.mQueueVersion;
+            if (previousVersion < 0) {
+                return false;
+            }
+            // The list may edit the other cursor meanwhile
+            nowPlaying = new long[previousSize];
+            System.arraycopy(previous.mNowPlaying, 0, nowPlaying, 0, previousSize);
+            pendingOps = new LinkedList<int[]>(previous.mPendingOps);
+        }
+        final QueueChanges changes = MusicUtils.getQueueChanges(previousVersion);
+        if (changes == null || changes.isReloadNeeded()) {
+            return false;
+        }
+        final int[] ops = changes.mOps;
+        int capacity = previousSize;
+        for (int i = 0; i < ops.length; i += 3) {
+            if (ops[i] == QueueChangeLog.OP_INSERT) {
+                capacity += ops[i + 2];
+            }
+        }
+        // New tracks are -1 until their IDs are read below
+        final long[] queue = new long[capacity];
+        System.arraycopy(nowPlaying, 0, queue, 0, previousSize);
+        int size = previousSize;
+        for (int i = 0; i < ops.length; i += 3) {
+            final int op = ops[i];
+            final int first = ops[i + 1];
+            final int second = ops[i + 2];
+            final int[] pending = pendingOps.peek();
+            if (pending != null) {
+                if (pending[0] != op || pending[1] != first || pending[2] != second) {
+                    return false;
+                }
+                pendingOps.poll();
+                continue;
+            }
+            switch (op) {
+                case QueueChangeLog.OP_INSERT:
+                    if (first < 0 || first > size || second < 0) {
+                        return false;
+                    }
+                    System.arraycopy(queue, first, queue, first + second, size - first);
+                    Arrays.fill(queue, first, first + second, -1);
+                    size += second;
+                    break;
+                case QueueChangeLog.OP_REMOVE:
+                    if (first < 0 || first > second || second >= size) {
+                        return false;
+                    }
+                    System.arraycopy(queue, second + 1, queue, first, size - second - 1);
+                    size -= second - first + 1;
+                    break;
+                case QueueChangeLog.OP_MOVE:
+                    if (first < 0 || first >= size || second < 0 || second >= size) {
+                        return false;
+                    }
+                    final long id = queue[first];
+                    if (first < second) {
+                        System.arraycopy(queue, first + 1, queue, first, second - first);
+                    } else {
+                        System.arraycopy(queue, second, queue, second + 1, first - second);
+                    }
+                    queue[second] = id;
+                    break;
+                default:
+                    return false;
+            }
+        }
+        // Edits the service hasn't made yet leave this queue shorter
+        int length = changes.mLength;
+        for (final int[] pending : pendingOps) {
+            if (pending[0] == QueueChangeLog.OP_REMOVE) {
+                length -= pending[2] - pending[1] + 1;
+            }
+        }
+        if (size != length) {
+            return false;
+        }
+
+        // Read the IDs of the new tracks
+        int firstNew = -1;
+        int lastNew = -1;
+        for (int i = 0; i < size; i++) {
+            if (queue[i] < 0) {
+                if (firstNew < 0) {
+                    firstNew = i;
+                }
+                lastNew = i;
+            }
+        }
+        if (firstNew >= 0) {
+            // The positions only line up with the service's when it has made
+            // every edit made here
+            if (!pendingOps.isEmpty() || lastNew - firstNew >= MAX_PATCHED_ROWS) {
+                return false;
+            }
+            final long[] ids = MusicUtils.getQueueSlice(firstNew, lastNew - firstNew + 1);
+            // The IDs only line up if the queue hasn't moved on meanwhile
+            final QueueChanges check = MusicUtils.getQueueChanges(changes.mVersion);
+            if (ids.length != lastNew - firstNew + 1 || check == null
+                    || check.mVersion != changes.mVersion) {
+                return false;
+            }
+            for (int i = firstNew; i <= lastNew; i++) {
+                if (queue[i] < 0) {
+                    queue[i] = ids[i - firstNew];
+                }
+            }
+        }
+
+        mCurPos = -1;
+        mNowPlaying = queue;
+        mSize = size;
+        mQueueVersion = changes.mVersion;
+        mPendingOps.addAll(pendingOps);
+        return true;
+    }
+
+    /**
+     * Moves a row, and the track in the queue
+     *
+     * @param from The position to move from
+     * @param to The position to move to
+     */
+    public synchronized void moveItem(final int from, final int to) {
+        if (from < 0 || from >= mSize || to < 0 || to >= mSize) {
+            return;
+        }
+        if (from != to) {
+            final long id = mNowPlaying[from];
+            if (from < to) {
+                System.arraycopy(mNowPlaying, from + 1, mNowPlaying, from, to - from);
+            } else {
+                System.arraycopy(mNowPlaying, to, mNowPlaying, to + 1, from - to);
+            }
+            mNowPlaying[to] = id;
+            mPendingOps.add(new int[] {
+                    QueueChangeLog.OP_MOVE, from, to
+            });
+            onMove(-1, mCurPos);
+        }
+        MusicUtils.moveQueueItem(from, to);
+    }
+
+    /**
+     * Actually makes the queue. The IDs are read a slice at a time, and read
+     * again if the queue changes meanwhile.
      */
     private void makeNowPlayingCursor() {
-        mQueueCursor = null;
-        mNowPlaying = MusicUtils.getQueue();
-        mSize = mNowPlaying.length;
-        if (mSize == 0) {
+        mCurRow = null;
+        mCurPos = -1;
+        mNowPlaying = new long[0];
+        mSize = 0;
+        mQueueVersion = -1;
+        mPendingOps.clear();
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            final QueueChanges before = MusicUtils.getQueueChanges(-1);
+            if (before == null) {
+                return;
+            }
+            final long[] queue = new long[before.mLength];
+            int size = 0;
+            while (size < queue.length) {
+                final long[] slice = MusicUtils.getQueueSlice(size, Math.min(SLICE_SIZE,
+                        queue.length - size));
+                if (slice.length == 0) {
+                    break;
+                }
+                System.arraycopy(slice, 0, queue, size, slice.length);
+                size += slice.length;
+            }
+            mNowPlaying = queue;
+            mSize = size;
+            final QueueChanges after = MusicUtils.getQueueChanges(before.mVersion);
+            if (after != null && after.mVersion == before.mVersion && size == queue.length) {
+                mQueueVersion = before.mVersion;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return The ID of the track at the current position, or -1 if there
+     *         isn't one
+     */
+    private long getCurrentId() {
+        return getTrackId(mCurPos);
+    }
+
+    /**
+     * Reads the rows of the page a position is in, and the next page in the
+     * direction the cursor is moving, in one query. With a listener set the
+     * query runs in the background and the rows are blank until it's done.
+     *
+     * @param position The position to read
+     * @param direction Which way the cursor is moving, negative for back
+     */
+    private void requestPage(final int position, final int direction) {
+        int first = position / PAGE_SIZE * PAGE_SIZE;
+        int last = Math.min(mSize, first + PAGE_SIZE);
+        if (direction < 0) {
+            first = Math.max(0, first - PAGE_SIZE);
+        } else {
+            last = Math.min(mSize, last + PAGE_SIZE);
+        }
+
+        final long[] ids = new long[Math.max(0, last - first)];
+        int count = 0;
+        for (int i = first; i < last; i++) {
+            final Long id = mNowPlaying[i];
+            if (mRows.get(id) == null && !mLoading.contains(id)) {
+                ids[count++] = id;
+            }
+        }
+        if (count == 0) {
             return;
         }
+        final long[] page = new long[count];
+        System.arraycopy(ids, 0, page, 0, count);
 
+        if (mListener == null) {
+            readRows(page);
+            return;
+        }
+        for (final long id : page) {
+            mLoading.add(id);
+        }
+        ApolloUtils.execute(false, new AsyncTask<Void, Void, Void>() {
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            protected Void doInBackground(final Void... unused) {
+                readRows(page);
+                return null;
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            protected void onPostExecute(final Void result) {
+                for (final long id : page) {
+                    mLoading.remove(id);
+                }
+                if (isClosed()) {
+                    return;
+                }
+                onMove(-1, mCurPos);
+                if (mListener != null) {
+                    mListener.onRowsLoaded();
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the rows of a few tracks in one query. Tracks that are no longer
+     * in the library are removed from the queue by the service, and the
+     * removal comes back as an edit like any other, so the positions here
+     * never shift under a reader.
+     *
+     * @param ids The IDs of the tracks
+     */
+    private void readRows(final long[] ids) {
         final StringBuilder selection = new StringBuilder();
         selection.append(BaseColumns._ID + " IN (");
-        for (int i = 0; i < mSize; i++) {
-            selection.append(mNowPlaying[i]);
-            if (i < mSize - 1) {
+        for (int i = 0; i < ids.length; i++) {
+            selection.append(ids[i]);
+            if (i < ids.length - 1) {
                 selection.append(",");
             }
         }
         selection.append(")");
 
-        mQueueCursor = mContext.getContentResolver().query(
-                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, PROJECTION, selection.toString(),
-                null, BaseColumns._ID);
-
-        if (mQueueCursor == null) {
-            mSize = 0;
+        final Cursor cursor;
+        try {
+            cursor = mContext.getContentResolver().query(
+                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, PROJECTION,
+                    selection.toString(), null, null);
+        } catch (final RuntimeException e) {
+            // The storage went away, the rows are left blank
             return;
         }
-
-        final int playlistSize = mQueueCursor.getCount();
-        mCursorIndexes = new long[playlistSize];
-        mQueueCursor.moveToFirst();
-        final int columnIndex = mQueueCursor.getColumnIndexOrThrow(BaseColumns._ID);
-        for (int i = 0; i < playlistSize; i++) {
-            mCursorIndexes[i] = mQueueCursor.getLong(columnIndex);
-            mQueueCursor.moveToNext();
+        if (cursor == null) {
+            return;
         }
-        mQueueCursor.moveToFirst();
-        mCurPos = -1;
-
-        int removed = 0;
-        for (int i = mNowPlaying.length - 1; i >= 0; i--) {
-            final long trackId = mNowPlaying[i];
-            final int cursorIndex = Arrays.binarySearch(mCursorIndexes, trackId);
-            if (cursorIndex < 0) {
-                removed += MusicUtils.removeTrack(trackId);
+        final long[] found = new long[cursor.getCount()];
+        try {
+            for (int i = 0; i < found.length && cursor.moveToNext(); i++) {
+                found[i] = cursor.getLong(0);
+                mRows.put(found[i], new String[] {
+                        cursor.getString(1), cursor.getString(2), cursor.getString(3)
+                });
             }
+        } finally {
+            cursor.close();
         }
-        if (removed > 0) {
-            mNowPlaying = MusicUtils.getQueue();
-            mSize = mNowPlaying.length;
-            if (mSize == 0) {
-                mCursorIndexes = null;
-                return;
+        Arrays.sort(found);
+
+        // Drop the tracks that were deleted from the library
+        final long[] missing = new long[ids.length];
+        int missingCount = 0;
+        for (final long id : ids) {
+            if (Arrays.binarySearch(found, id) < 0) {
+                mRows.put(id, MISSING_ROW);
+                missing[missingCount++] = id;
             }
         }
+        if (missingCount > 0) {
+            final long[] removed = new long[missingCount];
+            System.arraycopy(missing, 0, removed, 0, missingCount);
+            MusicUtils.removeTracksById(removed);
+        }
     }
 
     /**
@@ -245,27 +616,34 @@ public class NowPlayingCursor extends AbstractCursor {
      */
     @Override
     public boolean onMove(final int oldPosition, final int newPosition) {
-        if (oldPosition == newPosition) {
-            return true;
-        }
-
-        if (mNowPlaying == null || mCursorIndexes == null || newPosition >= mNowPlaying.length) {
+        if (mNowPlaying == null || newPosition < 0 || newPosition >= mSize) {
+            mCurRow = null;
             return false;
         }
 
-        final long id = mNowPlaying[newPosition];
-        final int cursorIndex = Arrays.binarySearch(mCursorIndexes, id);
-        mQueueCursor.moveToPosition(cursorIndex);
+        String[] row = mRows.get(mNowPlaying[newPosition]);
+        if (row == null) {
+            requestPage(newPosition, newPosition - oldPosition);
+            // Blank until the page is read, unless it was read right here
+            row = mRows.get(mNowPlaying[newPosition]);
+        }
         mCurPos = newPosition;
+        mCurRow = row;
         return true;
     };
 
     /**
+     * Removes a row, and the track from the queue
+     *
      * @param which The position to remove
      * @return True if sucessfull, false othersise
      */
-    public boolean removeItem(final int which) {
+    public synchronized boolean removeItem(final int which) {
+        if (which < 0 || which >= mSize) {
+            return false;
+        }
         try {
+            // -1 means the removal is still queued, it happens all the same
             if (mService.removeTracks(which, which) == 0) {
                 return false;
             }
@@ -275,17 +653,64 @@ public class NowPlayingCursor extends AbstractCursor {
                 mNowPlaying[i] = mNowPlaying[i + 1];
                 i++;
             }
+            mPendingOps.add(new int[] {
+                    QueueChangeLog.OP_REMOVE, which, which
+            });
             onMove(-1, mCurPos);
         } catch (final RemoteException ignored) {
         }
         return true;
     }
 
+    /**
+     * Removes every row of a track, and the track from the queue
+     *
+     * @param id The ID of the track
+     * @return The number of rows removed
+     */
+    public synchronized int removeTrack(final long id) {
+        int removed = 0;
+        // Each run of the track, the last one first, as the service logs it
+        for (int last = mSize - 1; last >= 0; last--) {
+            if (mNowPlaying[last] != id) {
+                continue;
+            }
+            int first = last;
+            while (first > 0 && mNowPlaying[first - 1] == id) {
+                first--;
+            }
+            System.arraycopy(mNowPlaying, last + 1, mNowPlaying, first, mSize - last - 1);
+            mSize -= last - first + 1;
+            removed += last - first + 1;
+            mPendingOps.add(new int[] {
+                    QueueChangeLog.OP_REMOVE, first, last
+            });
+            last = first;
+        }
+        if (removed > 0) {
+            onMove(-1, mCurPos);
+        }
+        // The removal waits for the service, so it's made off the main thread
+        ApolloUtils.execute(false, new AsyncTask<Long, Void, Void>() {
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            protected Void doInBackground(final Long... ids) {
+                MusicUtils.removeTrack(ids[0]);
+                return null;
+            }
+        }, Long.valueOf(id));
+        return removed;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public boolean requery() {
+        mRows.evictAll();
         makeNowPlayingCursor();
         return true;
     }
@@ -11,21 +11,18 @@
 
 package com.andrew.apollo.loaders;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import android.content.Context;
 import android.database.Cursor;
 
-import com.andrew.apollo.model.Song;
-import com.andrew.apollo.utils.Lists;
-
 /**
- * Used to return the current playlist or queue.
+ * Used to return the current playlist or queue. The {@link NowPlayingCursor}
+ * is handed over as it is, and the list reads its rows from it a page at a
+ * time. When the content changes, the cursor delivered last is patched into
+ * a new one in the background rather than the whole queue read again.
  * 
  * @author Andrew Neal (andrewdneal@gmail.com)
  */
-public class QueueLoader extends WrappedAsyncTaskLoader<List<Song>> {
+public class QueueLoader extends WrappedAsyncTaskLoader<NowPlayingCursor> {
 
     /**
      * Creates the {@link Cursor} used to run the query.
@@ -39,14 +36,9 @@ public class QueueLoader extends WrappedAsyncTaskLoader<List<Song>> {
     }
 
     /**
-     * The {@link Cursor} used to run the query.
-     */
-    private NowPlayingCursor mCursor;
-
-    /**
-     * The result
+     * The {@link Cursor} delivered last, which the next load patches
      */
-    private final ArrayList<Song> mSongList = Lists.newArrayList();
+    private volatile NowPlayingCursor mCursor;
 
     /**
      * Constructor of <code>QueueLoader</code>
@@ -61,36 +53,62 @@ public class QueueLoader extends WrappedAsyncTaskLoader<List<Song>> {
      * {@inheritDoc}
      */
     @Override
-    public List<Song> loadInBackground() {
-        // Create the Cursor
-        mCursor = new NowPlayingCursor(getContext());
-        // Gather the data
-        if (mCursor != null && mCursor.moveToFirst()) {
-            do {
-                // Copy the song Id
-                final String id = mCursor.getString(0);
-
-                // Copy the song name
-                final String songName = mCursor.getString(1);
-
-                // Copy the artist name
-                final String artist = mCursor.getString(2);
+    public NowPlayingCursor loadInBackground() {
+        return new NowPlayingCursor(getContext(), mCursor);
+    }
 
-                // Copy the album name
-                final String album = mCursor.getString(3);
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void deliverResult(final NowPlayingCursor cursor) {
+        if (isReset()) {
+            // An asynchronous query came in while the loader is stopped
+            if (cursor != null) {
+                cursor.close();
+            }
+            return;
+        }
+        final NowPlayingCursor old = mCursor;
+        mCursor = cursor;
+        super.deliverResult(cursor);
+        // The list has moved on to the new one
+        if (old != null && old != cursor && !old.isClosed()) {
+            old.close();
+        }
+    }
 
-                // Create a new song
-                final Song song = new Song(id, songName, artist, album, null);
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onCanceled(final NowPlayingCursor cursor) {
+        if (cursor != null && !cursor.isClosed()) {
+            cursor.close();
+        }
+    }
 
-                // Add everything up
-                mSongList.add(song);
-            } while (mCursor.moveToNext());
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onStartLoading() {
+        super.onStartLoading();
+        // The queue changed while the list was stopped
+        if (takeContentChanged()) {
+            forceLoad();
         }
-        // Close the cursor
-        if (mCursor != null) {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onReset() {
+        super.onReset();
+        if (mCursor != null && !mCursor.isClosed()) {
             mCursor.close();
-            mCursor = null;
         }
-        return mSongList;
+        mCursor = null;
     }
 }
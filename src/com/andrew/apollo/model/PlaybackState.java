@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo.model;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * Everything the playback controls and the progress bar show, read from the
+ * service in one call.
+ */
+public final class PlaybackState implements Parcelable {
+
+    /**
+     * The state when the service isn't there
+     */
+    public static final PlaybackState EMPTY = new PlaybackState(-1, -1, false, -1, 0, 0, 0);
+
+    /**
+     * The position in the current track, in milliseconds
+     */
+    public final long mPosition;
+
+    /**
+     * The duration of the current track, in milliseconds
+     */
+    public final long mDuration;
+
+    /**
+     * True if the service is playing
+     */
+    public final boolean mIsPlaying;
+
+    /**
+     * The position in the queue
+     */
+    public final int mQueuePosition;
+
+    /**
+     * Changes whenever the queue does
+     */
+    public final int mQueueVersion;
+
+    /**
+     * The repeat mode
+     */
+    public final int mRepeatMode;
+
+    /**
+     * The shuffle mode
+     */
+    public final int mShuffleMode;
+
+    /**
+     * Constructor of <code>PlaybackState</code>
+     * 
+     * @param position The position in the current track
+     * @param duration The duration of the current track
+     * @param isPlaying True if the service is playing
+     * @param queuePosition The position in the queue
+     * @param queueVersion The version of the queue
+     * @param repeatMode The repeat mode
+     * @param shuffleMode The shuffle mode
+     */
+    public PlaybackState(final long position, final long duration, final boolean isPlaying,
+            final int queuePosition, final int queueVersion, final int repeatMode,
+            final int shuffleMode) {
+        mPosition = position;
+        mDuration = duration;
+        mIsPlaying = isPlaying;
+        mQueuePosition = queuePosition;
+        mQueueVersion = queueVersion;
+        mRepeatMode = repeatMode;
+        mShuffleMode = shuffleMode;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeToParcel(final Parcel dest, final int flags) {
+        dest.writeLong(mPosition);
+        dest.writeLong(mDuration);
+        dest.writeInt(mIsPlaying ? 1 : 0);
+        dest.writeInt(mQueuePosition);
+        dest.writeInt(mQueueVersion);
+        dest.writeInt(mRepeatMode);
+        dest.writeInt(mShuffleMode);
+    }
+
+    public static final Parcelable.Creator<PlaybackState> CREATOR = new Parcelable.Creator<PlaybackState>() {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public PlaybackState createFromParcel(final Parcel source) {
+            return new PlaybackState(source.readLong(), source.readLong(), source.readInt() != 0,
+                    source.readInt(), source.readInt(), source.readInt(), source.readInt());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public PlaybackState[] newArray(final int size) {
+            return new PlaybackState[size];
+        }
+    };
+}
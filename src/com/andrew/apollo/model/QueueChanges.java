@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo.model;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.andrew.apollo.utils.QueueChangeLog;
+
+/**
+ * The edits made to the queue since a version a client had, read from the
+ * service in one call.
+ */
+public final class QueueChanges implements Parcelable {
+
+    /**
+     * The version of the queue the edits lead up to
+     */
+    public final int mVersion;
+
+    /**
+     * The length of the queue at that version
+     */
+    public final int mLength;
+
+    /**
+     * The edits, packed as {@link QueueChangeLog} does, or null if the client
+     * has to read the whole queue again
+     */
+    public final int[] mOps;
+
+    /**
+     * Constructor of <code>QueueChanges</code>
+     *
+     * @param version The version of the queue
+     * @param length The length of the queue
+     * @param ops The edits, or null if the queue has to be reloaded
+     */
+    public QueueChanges(final int version, final int length, final int[] ops) {
+        mVersion = version;
+        mLength = length;
+        mOps = ops;
+    }
+
+    /**
+     * @return True if the queue has to be read again rather than patched
+     */
+    public boolean isReloadNeeded() {
+        return mOps == null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeToParcel(final Parcel dest, final int flags) {
+        dest.writeInt(mVersion);
+        dest.writeInt(mLength);
+        dest.writeIntArray(mOps);
+    }
+
+    public static final Parcelable.Creator<QueueChanges> CREATOR = new Parcelable.Creator<QueueChanges>() {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public QueueChanges createFromParcel(final Parcel source) {
+            return new QueueChanges(source.readInt(), source.readInt(), source.createIntArray());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public QueueChanges[] newArray(final int size) {
+            return new QueueChanges[size];
+        }
+    };
+}
@@ -0,0 +1,143 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo.model;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.text.TextUtils;
+
+/**
+ * Describes a list of tracks to play, like a whole album or the entire
+ * library, instead of listing them. The service reads the tracks itself, so a
+ * large list never has to be built in the app and sent over Binder.
+ */
+public final class QueueSource implements Parcelable {
+
+    /**
+     * Every song in the library
+     */
+    public static final int TYPE_ALL_SONGS = 0;
+
+    /**
+     * The songs of an album
+     */
+    public static final int TYPE_ALBUM = 1;
+
+    /**
+     * The songs of an artist
+     */
+    public static final int TYPE_ARTIST = 2;
+
+    /**
+     * The songs of a genre
+     */
+    public static final int TYPE_GENRE = 3;
+
+    /**
+     * The songs of a user playlist
+     */
+    public static final int TYPE_PLAYLIST = 4;
+
+    /**
+     * The songs added in the last four weeks
+     */
+    public static final int TYPE_LAST_ADDED = 5;
+
+    /**
+     * The songs marked as favorites
+     */
+    public static final int TYPE_FAVORITES = 6;
+
+    /**
+     * What kind of list this is, one of the <code>TYPE_</code> constants
+     */
+    public final int mType;
+
+    /**
+     * The ID of the album, artist, genre or playlist, unused otherwise
+     */
+    public final long mId;
+
+    /**
+     * The sort order of the list, or null for the usual order of its type
+     */
+    public final String mSortOrder;
+
+    /**
+     * The position to start playing at, or -1 to start at a random track
+     */
+    public final int mPosition;
+
+    /**
+     * Constructor of <code>QueueSource</code>
+     *
+     * @param type What kind of list this is
+     * @param id The ID of the album, artist, genre or playlist
+     * @param sortOrder The sort order, or null for the usual one
+     * @param position The position to start playing at, or -1 for a random
+     *            track
+     */
+    public QueueSource(final int type, final long id, final String sortOrder, final int position) {
+        mType = type;
+        mId = id;
+        mSortOrder = sortOrder;
+        mPosition = position;
+    }
+
+    /**
+     * @param other Another source, may be null
+     * @return True if both sources describe the same list, wherever they
+     *         start playing it
+     */
+    public boolean isSameList(final QueueSource other) {
+        return other != null && mType == other.mType && mId == other.mId
+                && TextUtils.equals(mSortOrder, other.mSortOrder);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeToParcel(final Parcel dest, final int flags) {
+        dest.writeInt(mType);
+        dest.writeLong(mId);
+        dest.writeString(mSortOrder);
+        dest.writeInt(mPosition);
+    }
+
+    public static final Parcelable.Creator<QueueSource> CREATOR = new Parcelable.Creator<QueueSource>() {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public QueueSource createFromParcel(final Parcel source) {
+            return new QueueSource(source.readInt(), source.readLong(), source.readString(),
+                    source.readInt());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public QueueSource[] newArray(final int size) {
+            return new QueueSource[size];
+        }
+    };
+}
@@ -0,0 +1,137 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo.model;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * The metadata of the track that is playing. It never changes once it's
+ * created, so the service hands out the same instance to any thread without
+ * locking and replaces it when the track changes.
+ */
+public final class TrackMetadata implements Parcelable {
+
+    /**
+     * The metadata when nothing is playing
+     */
+    public static final TrackMetadata EMPTY = new TrackMetadata(-1, -1, -1, null, null, null,
+            null);
+
+    /**
+     * The unique Id of the track
+     */
+    public final long mAudioId;
+
+    /**
+     * The Id of the track's artist
+     */
+    public final long mArtistId;
+
+    /**
+     * The Id of the track's album
+     */
+    public final long mAlbumId;
+
+    /**
+     * The track name
+     */
+    public final String mTrackName;
+
+    /**
+     * The track artist
+     */
+    public final String mArtistName;
+
+    /**
+     * The track album
+     */
+    public final String mAlbumName;
+
+    /**
+     * The path to the track
+     */
+    public final String mPath;
+
+    /**
+     * Constructor of <code>TrackMetadata</code>
+     * 
+     * @param audioId The Id of the track
+     * @param artistId The Id of the artist
+     * @param albumId The Id of the album
+     * @param trackName The name of the track
+     * @param artistName The track artist
+     * @param albumName The track album
+     * @param path The path to the track
+     */
+    public TrackMetadata(final long audioId, final long artistId, final long albumId,
+            final String trackName, final String artistName, final String albumName,
+            final String path) {
+        mAudioId = audioId;
+        mArtistId = artistId;
+        mAlbumId = albumId;
+        mTrackName = trackName;
+        mArtistName = artistName;
+        mAlbumName = albumName;
+        mPath = path;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void writeToParcel(final Parcel dest, final int flags) {
+        dest.writeLong(mAudioId);
+        dest.writeLong(mArtistId);
+        dest.writeLong(mAlbumId);
+        dest.writeString(mTrackName);
+        dest.writeString(mArtistName);
+        dest.writeString(mAlbumName);
+        dest.writeString(mPath);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return mTrackName;
+    }
+
+    public static final Parcelable.Creator<TrackMetadata> CREATOR = new Parcelable.Creator<TrackMetadata>() {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public TrackMetadata createFromParcel(final Parcel source) {
+            return new TrackMetadata(source.readLong(), source.readLong(), source.readLong(),
+                    source.readString(), source.readString(), source.readString(),
+                    source.readString());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public TrackMetadata[] newArray(final int size) {
+            return new TrackMetadata[size];
+        }
+    };
+}
@@ -0,0 +1,626 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo.provider;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.BaseColumns;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Audio.AudioColumns;
+
+import com.andrew.apollo.utils.PartyShuffler;
+
+/**
+ * Feeds party shuffle from the music in the {@link MediaStore}.
+ * <p>
+ * Only a sample of about {@link #POOL_SIZE} tracks is held. It's read on a
+ * background thread as windows of {@link #WINDOW_SIZE} tracks in ID order.
+ * The range of IDs is split into equal stretches and one window starts at a
+ * random ID in each, so even the first window read is a random one and the
+ * sample covers the whole library. Whoever started the source is told as
+ * soon as the first window is in, the rest keeps loading behind it.
+ * <p>
+ * The sample is drawn again every {@link #RESAMPLE_PICKS} picks, so a long
+ * session gets around the library. Tracks that were picked recently are
+ * carried over to the new sample if they still exist, so they stay held back.
+ * <p>
+ * While the source is started it watches the {@link MediaStore} and applies
+ * each change to the sample. When the change names a track, that track is
+ * looked up and added or removed. Otherwise the tracks in the sample are
+ * checked and the missing ones dropped, and tracks with IDs past the highest
+ * one seen, which is where new tracks go, are added.
+ */
+public class AutoShuffleSource {
+
+    private static final String TAG = "AutoShuffleSource";
+
+    /* The most tracks held at once */
+    private static final int POOL_SIZE = 500;
+
+    /* How many tracks in ID order are read per query */
+    private static final int WINDOW_SIZE = 25;
+
+    /* How many picks a sample is used for */
+    private static final int RESAMPLE_PICKS = 100;
+
+    /* How long to wait for the library to settle after a change */
+    private static final long CHANGE_DELAY = 2000;
+
+    /* Favorites played at least this often weigh more */
+    private static final int HEAVY_PLAYS = 10;
+
+    /* Albums played within this window (one week) weigh more */
+    private static final long RECENT_WINDOW = 7L * 24 * 60 * 60 * 1000;
+
+    private static final String SELECTION = AudioColumns.IS_MUSIC + "=1";
+
+    /* The MediaProvider's query parameter for the most rows to return */
+    private static final String LIMIT = "limit";
+
+    private static final String[] PROJECTION = new String[] {
+            BaseColumns._ID, AudioColumns.ALBUM_ID
+    };
+
+    private final Context mContext;
+
+    private final Handler mHandler;
+
+    private final Random mRandom = new Random();
+
+    /* Guarded by itself, it's read by the service and written here */
+    private final PartyShuffler mShuffler;
+
+    /* Picks since the sample was last drawn, guarded by mShuffler */
+    private int mPicks = 0;
+
+    private final ContentObserver mObserver;
+
+    private boolean mObserving = false;
+
+    /* Told once the first tracks are in, then cleared */
+    private Handler mTarget;
+
+    private int mWhat;
+
+    /* The fields below are only touched on the source's own thread */
+
+    /* Favorites, sorted by ID, and how much each one adds to the weight */
+    private long[] mFavoriteIds = new long[0];
+
+    private int[] mFavoriteBonus = new int[0];
+
+    /* Albums played recently, sorted */
+    private long[] mRecentAlbums = new long[0];
+
+    /* The highest ID seen so far */
+    private long mMaxId = -1;
+
+    /* The tracks that changed since the changes were last applied */
+    private final HashSet<Long> mChangedIds = new HashSet<Long>();
+
+    /* True if a change didn't say which track it was about */
+    private boolean mChangedUnknown = false;
+
+    private final Runnable mRefresh = new Runnable() {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            refresh();
+        }
+    };
+
+    private final Runnable mApplyChanges = new Runnable() {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            applyChanges();
+        }
+    };
+
+    /**
+     * Constructor of <code>AutoShuffleSource</code>
+     *
+     * @param context The {@link Context} to use
+     * @param recentSize The number of recently picked tracks to hold back
+     */
+    public AutoShuffleSource(final Context context, final int recentSize) {
+        mContext = context.getApplicationContext();
+        mShuffler = new PartyShuffler(recentSize);
+        final HandlerThread thread = new HandlerThread(TAG,
+                android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        mObserver = new ContentObserver(mHandler) {
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void onChange(final boolean selfChange) {
+                onChange(selfChange, null);
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void onChange(final boolean selfChange, final Uri uri) {
+                // Only called with the URI from Jelly Bean on
+                final long id = getTrackId(uri);
+                if (id >= 0) {
+                    mChangedIds.add(id);
+                } else {
+                    mChangedUnknown = true;
+                }
+                mHandler.removeCallbacks(mApplyChanges);
+                mHandler.postDelayed(mApplyChanges, CHANGE_DELAY);
+            }
+        };
+    }
+
+    /**
+     * Starts drawing a sample of the library and keeps watching it for
+     * changes. Returns right away.
+     *
+     * @param target The {@link Handler} to tell once there are tracks to pick
+     *            from. The message's <code>arg1</code> is 1 if there are
+     *            tracks, 0 if the library is empty or couldn't be read.
+     * @param what The <code>what</code> of the message to send
+     */
+    public synchronized void start(final Handler target, final int what) {
+        mTarget = target;
+        mWhat = what;
+        if (!mObserving) {
+            mContext.getContentResolver().registerContentObserver(
+                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, mObserver);
+            mObserving = true;
+        }
+        mHandler.removeCallbacks(mRefresh);
+        mHandler.post(mRefresh);
+    }
+
+    /**
+     * Stops watching the library. The sample drawn so far is kept.
+     */
+    public synchronized void stop() {
+        mTarget = null;
+        if (mObserving) {
+            mContext.getContentResolver().unregisterContentObserver(mObserver);
+            mObserving = false;
+        }
+        mHandler.removeCallbacks(mRefresh);
+        mHandler.removeCallbacks(mApplyChanges);
+    }
+
+    /**
+     * Stops watching the library and ends the source's thread
+     */
+    public void release() {
+        stop();
+        mHandler.getLooper().quit();
+    }
+
+    /**
+     * Picks a track and holds it back from the next picks for a while
+     *
+     * @return The audio ID of the track, or -1 if no tracks have been read
+     */
+    public long next() {
+        synchronized (mShuffler) {
+            if (++mPicks >= RESAMPLE_PICKS) {
+                mPicks = 0;
+                mHandler.removeCallbacks(mRefresh);
+                mHandler.post(mRefresh);
+            }
+            return mShuffler.next();
+        }
+    }
+
+    /**
+     * Holds a track back from the next picks, as if it had just been picked
+     *
+     * @param id The audio ID of the track
+     */
+    public void markPlayed(final long id) {
+        synchronized (mShuffler) {
+            mShuffler.markPlayed(id);
+        }
+    }
+
+    /**
+     * Draws a new sample of the library, keeping the recently picked tracks
+     * that are still in it. Runs on the source's own thread.
+     */
+    private void refresh() {
+        // Whatever changed is in the new sample
+        mHandler.removeCallbacks(mApplyChanges);
+        mChangedIds.clear();
+        mChangedUnknown = false;
+        try {
+            final int count = queryCount();
+            final long[] bounds = queryIdBounds();
+            if (count < 0 || bounds == null) {
+                notifyTarget();
+                return;
+            }
+            loadWeights();
+            final long[] recent;
+            final int size;
+            synchronized (mShuffler) {
+                size = mShuffler.size();
+                recent = mShuffler.getRecent();
+                mShuffler.beginUpdate();
+            }
+            if (size > 0) {
+                // The old sample can be picked from until the new one is in
+                notifyTarget();
+            }
+            if (!loadTracks(recent)) {
+                notifyTarget();
+                return;
+            }
+            if (count <= POOL_SIZE) {
+                // Small enough to hold it all
+                long after = Long.MIN_VALUE;
+                long[] ids;
+                do {
+                    ids = loadWindow(after);
+                    if (ids == null) {
+                        notifyTarget();
+                        return;
+                    }
+                    if (ids.length > 0) {
+                        after = ids[ids.length - 1];
+                    }
+                } while (ids.length == WINDOW_SIZE);
+            } else {
+                // One window from each stretch of IDs, starting with a random
+                // stretch
+                final int windows = POOL_SIZE / WINDOW_SIZE;
+                final long span = bounds[1] - bounds[0] + 1;
+                final int first = mRandom.nextInt(windows);
+                for (int i = 0; i < windows; i++) {
+                    final int window = (first + i) % windows;
+                    final long start = bounds[0] + span * window / windows;
+                    final long end = bounds[0] + span * (window + 1) / windows;
+                    final long from = start + (long) (mRandom.nextDouble() * (end - start));
+                    if (loadWindow(from - 1) == null) {
+                        notifyTarget();
+                        return;
+                    }
+                }
+            }
+            synchronized (mShuffler) {
+                mShuffler.endUpdate();
+            }
+            mMaxId = bounds[1];
+            notifyTarget();
+        } catch (final RuntimeException e) {
+            // The storage went away while it was being read
+            notifyTarget();
+        }
+    }
+
+    /**
+     * Applies the changes to the library since they were last applied to the
+     * sample. Runs on the source's own thread.
+     */
+    private void applyChanges() {
+        try {
+            if (mChangedUnknown) {
+                // Drop what's gone, add what's new
+                final long[] held;
+                synchronized (mShuffler) {
+                    held = mShuffler.getIds();
+                }
+                final long[] found = queryTracks(held);
+                if (found != null) {
+                    Arrays.sort(found);
+                    synchronized (mShuffler) {
+                        for (final long id : held) {
+                            if (Arrays.binarySearch(found, id) < 0) {
+                                mShuffler.remove(id);
+                            }
+                        }
+                    }
+                }
+                final long[] added = loadWindow(mMaxId);
+                if (added != null && added.length > 0) {
+                    mMaxId = Math.max(mMaxId, added[added.length - 1]);
+                }
+            } else if (!mChangedIds.isEmpty()) {
+                final long[] changed = new long[mChangedIds.size()];
+                int count = 0;
+                for (final Long id : mChangedIds) {
+                    changed[count++] = id;
+                }
+                // Puts the ones still in the library, drops the rest
+                final long[] found = load(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                        inIds(changed), null, null);
+                if (found != null) {
+                    Arrays.sort(found);
+                    synchronized (mShuffler) {
+                        for (final long id : changed) {
+                            if (Arrays.binarySearch(found, id) < 0) {
+                                mShuffler.remove(id);
+                            }
+                        }
+                    }
+                    for (final long id : found) {
+                        mMaxId = Math.max(mMaxId, id);
+                    }
+                }
+            }
+        } catch (final RuntimeException e) {
+            // The storage went away, the next change or sample catches up
+        }
+        mChangedIds.clear();
+        mChangedUnknown = false;
+    }
+
+    /**
+     * Adds the {@link #WINDOW_SIZE} tracks with the lowest IDs after an ID to
+     * the sample, and tells the target once there are tracks
+     *
+     * @param after The ID to start after
+     * @return The IDs read, in order, or null if the library couldn't be read
+     */
+    private long[] loadWindow(final long after) {
+        final long[] ids = load(limit(WINDOW_SIZE), SELECTION + " AND " + BaseColumns._ID
+                + ">?", new String[] {
+            String.valueOf(after)
+        }, BaseColumns._ID);
+        if (ids != null) {
+            notifyTarget();
+        }
+        return ids;
+    }
+
+    /**
+     * Adds the tracks that are still in the library to the sample
+     *
+     * @param ids The audio IDs of the tracks
+     * @return True if the library could be read
+     */
+    private boolean loadTracks(final long[] ids) {
+        return ids.length == 0
+                || load(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, inIds(ids), null, null) != null;
+    }
+
+    /**
+     * @param ids Audio IDs
+     * @return The ones that are music still in the library, or null if the
+     *         library couldn't be read
+     */
+    private long[] queryTracks(final long[] ids) {
+        if (ids.length == 0) {
+            return ids;
+        }
+        Cursor cursor = mContext.getContentResolver().query(
+                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, new String[] {
+                    BaseColumns._ID
+                }, inIds(ids), null, null);
+        if (cursor == null) {
+            return null;
+        }
+        final long[] found = new long[cursor.getCount()];
+        for (int i = 0; i < found.length && cursor.moveToNext(); i++) {
+            found[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        cursor = null;
+        return found;
+    }
+
+    /**
+     * Adds the tracks a query returns to the sample
+     *
+     * @param uri The URI to query
+     * @param selection The selection of the query
+     * @param selectionArgs The arguments of the selection, may be null
+     * @param sortOrder The sort order of the query, may be null
+     * @return The IDs read, or null if the library couldn't be read
+     */
+    private long[] load(final Uri uri, final String selection, final String[] selectionArgs,
+            final String sortOrder) {
+        Cursor cursor = mContext.getContentResolver().query(uri, PROJECTION, selection,
+                selectionArgs, sortOrder);
+        if (cursor == null) {
+            return null;
+        }
+        final int count = cursor.getCount();
+        final long[] ids = new long[count];
+        final int[] weights = new int[count];
+        for (int i = 0; i < count && cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+            weights[i] = getWeight(ids[i], cursor.getLong(1));
+        }
+        cursor.close();
+        cursor = null;
+        synchronized (mShuffler) {
+            for (int i = 0; i < count; i++) {
+                mShuffler.put(ids[i], weights[i]);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return The lowest and highest music IDs, an empty range if there is no
+     *         music, or null if the library couldn't be read
+     */
+    private long[] queryIdBounds() {
+        final long[] bounds = new long[] {
+                0, -1
+        };
+        final String[] orders = new String[] {
+                BaseColumns._ID + " ASC", BaseColumns._ID + " DESC"
+        };
+        for (int i = 0; i < orders.length; i++) {
+            Cursor cursor = mContext.getContentResolver().query(limit(1), new String[] {
+                BaseColumns._ID
+            }, SELECTION, null, orders[i]);
+            if (cursor == null) {
+                return null;
+            }
+            if (cursor.moveToFirst()) {
+                bounds[i] = cursor.getLong(0);
+            }
+            cursor.close();
+            cursor = null;
+        }
+        return bounds;
+    }
+
+    /**
+     * @return The number of music tracks in the library, or -1 if the library
+     *         couldn't be read
+     */
+    private int queryCount() {
+        Cursor cursor = mContext.getContentResolver().query(
+                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, new String[] {
+                    "count(*)"
+                }, SELECTION, null, null);
+        if (cursor == null) {
+            return -1;
+        }
+        final int count = cursor.moveToFirst() ? cursor.getInt(0) : -1;
+        cursor.close();
+        cursor = null;
+        return count;
+    }
+
+    /**
+     * Reads the play counts of the favorites and the recently played albums
+     * the weights are based on
+     */
+    private void loadWeights() {
+        Cursor favorites = null;
+        try {
+            favorites = FavoritesStore.getInstance(mContext).getPlayCounts();
+            if (favorites != null) {
+                final int count = favorites.getCount();
+                final long[] ids = new long[count];
+                final int[] bonus = new int[count];
+                for (int i = 0; i < count && favorites.moveToNext(); i++) {
+                    ids[i] = favorites.getLong(0);
+                    bonus[i] = favorites.getLong(1) >= HEAVY_PLAYS ? 2 : 1;
+                }
+                mFavoriteIds = ids;
+                mFavoriteBonus = bonus;
+            }
+        } catch (final RuntimeException e) {
+            // Weigh the tracks without play counts
+        } finally {
+            if (favorites != null) {
+                favorites.close();
+                favorites = null;
+            }
+        }
+        try {
+            mRecentAlbums = RecentStore.getInstance(mContext).getAlbumIdsPlayedSince(
+                    System.currentTimeMillis() - RECENT_WINDOW);
+        } catch (final RuntimeException e) {
+            // Weigh the tracks without recent albums
+        }
+    }
+
+    /**
+     * Weighs a track. Favorites weigh more, more so if they are played often,
+     * and so do tracks from albums played in the last week.
+     *
+     * @param id The audio ID of the track
+     * @param albumId The album ID of the track
+     * @return The weight of the track
+     */
+    private int getWeight(final long id, final long albumId) {
+        int weight = 1;
+        final int favorite = Arrays.binarySearch(mFavoriteIds, id);
+        if (favorite >= 0) {
+            weight += mFavoriteBonus[favorite];
+        }
+        if (Arrays.binarySearch(mRecentAlbums, albumId) >= 0) {
+            weight++;
+        }
+        return weight;
+    }
+
+    /**
+     * @param count The most rows to return
+     * @return The music URI, limited to that many rows
+     */
+    private static Uri limit(final int count) {
+        return MediaStore.Audio.Media.EXTERNAL_CONTENT_URI.buildUpon()
+                .appendQueryParameter(LIMIT, String.valueOf(count)).build();
+    }
+
+    /**
+     * @param ids Audio IDs
+     * @return A selection for the music among them
+     */
+    private static String inIds(final long[] ids) {
+        final StringBuilder selection = new StringBuilder(SELECTION);
+        selection.append(" AND ").append(BaseColumns._ID).append(" IN (");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append(ids[i]);
+        }
+        selection.append(')');
+        return selection.toString();
+    }
+
+    /**
+     * @param uri The URI of a change, may be null
+     * @return The audio ID it's about, or -1 if it's not about one track
+     */
+    private static long getTrackId(final Uri uri) {
+        if (uri == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(uri.getLastPathSegment());
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Tells the target that tracks can be picked, once per call to
+     * {@link #start(Handler, int)}
+     */
+    private synchronized void notifyTarget() {
+        if (mTarget == null) {
+            return;
+        }
+        final int size;
+        synchronized (mShuffler) {
+            size = mShuffler.size();
+        }
+        mTarget.obtainMessage(mWhat, size > 0 ? 1 : 0, 0).sendToTarget();
+        mTarget = null;
+    }
+}
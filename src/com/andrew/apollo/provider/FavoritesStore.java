@@ -158,6 +158,21 @@ public class FavoritesStore extends SQLiteOpenHelper {
         return (long) 0;
     }
 
+    /**
+     * Used to retrieve the play count of every favorite at once
+     * 
+     * @return A {@link Cursor} of song Ids and play counts, sorted by song Id.
+     *         The caller is responsible for closing it.
+     */
+    public Cursor getPlayCounts() {
+        final SQLiteDatabase database = getReadableDatabase();
+        final String[] projection = new String[] {
+                FavoriteColumns.ID, FavoriteColumns.PLAYCOUNT
+        };
+        return database.query(FavoriteColumns.NAME, projection, null, null, null, null,
+                FavoriteColumns.ID + " ASC", null);
+    }
+
     /**
      * Used to retrieve a single song Id from our database
      * 
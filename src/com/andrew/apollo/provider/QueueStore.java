@@ -0,0 +1,999 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo.provider;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.andrew.apollo.model.QueueSource;
+import com.andrew.apollo.utils.MusicUtils;
+import com.andrew.apollo.utils.SharedPreferencesCompat;
+import com.andrew.apollo.utils.ShuffleOrder;
+
+/**
+ * Persists the playback queue and shuffle history in a small binary file
+ * instead of the hexadecimal strings Apollo used to keep in
+ * {@link SharedPreferences}.
+ * <p>
+ * The snapshot file is laid out as a fixed header, the queue as
+ * little-endian 64-bit audio IDs, the shuffle history as little-endian 32-bit
+ * positions, the shuffle order and its cursor if there is one, and a trailing
+ * CRC32 of everything before it. Writes go to a
+ * temporary file that is renamed over the old one, so a crash never leaves a
+ * half written queue behind.
+ * <p>
+ * Edits made after a snapshot are appended to a journal as small records
+ * (insert, move, remove, position) instead of rewriting the whole queue.
+ * Records are batched in memory and written by a background thread at most
+ * once every {@link #BATCH_WINDOW} milliseconds. Once the journal grows past
+ * {@link #COMPACT_THRESHOLD} bytes it is folded back into a new snapshot.
+ */
+public class QueueStore {
+
+    private static final String TAG = "QueueStore";
+
+    /* Name of the queue file */
+    public static final String FILENAME = "queue.bin";
+
+    /* Name of the journal file */
+    public static final String JOURNAL_FILENAME = "queue.journal";
+
+    /* "APQS" read as a little-endian int */
+    private static final int MAGIC = 0x53515041;
+
+    /* "APQJ" read as a little-endian int */
+    private static final int JOURNAL_MAGIC = 0x4a515041;
+
+    /* Version constant to increment when the file layout changes */
+    private static final int VERSION = 3;
+
+    /* Version 2 files are read as version 3 files without a shuffle order */
+    private static final int MIN_VERSION = 2;
+
+    /* Version of the journal layout */
+    private static final int JOURNAL_VERSION = 2;
+
+    /*
+     * magic, version, card ID, generation, queue length, history length,
+     * position, shuffle order length, seek position
+     */
+    private static final int HEADER_SIZE = 8 * 4 + 8;
+
+    /* magic, version, generation */
+    private static final int JOURNAL_HEADER_SIZE = 3 * 4;
+
+    /* The CRC32 is stored as a long */
+    private static final int TRAILER_SIZE = 8;
+
+    /* How long edits are batched before they're written */
+    private static final long BATCH_WINDOW = 500;
+
+    /* How large the journal may grow before it's compacted */
+    private static final int COMPACT_THRESHOLD = 256 * 1024;
+
+    /* How much room is added for IDs when a query reads more than it counted */
+    private static final int SOURCE_CHUNK_SIZE = 1000;
+
+    /* Journal record types */
+    private static final int OP_CLEAR = 1;
+
+    private static final int OP_INSERT = 2;
+
+    private static final int OP_MOVE = 3;
+
+    private static final int OP_REMOVE = 4;
+
+    private static final int OP_POSITION = 5;
+
+    /* Legacy keys used by the string based queue */
+    private static final String LEGACY_QUEUE = "queue";
+
+    private static final String LEGACY_HISTORY = "history";
+
+    private static final String LEGACY_CARDID = "cardid";
+
+    private static final String LEGACY_CURPOS = "curpos";
+
+    private static final String LEGACY_SEEKPOS = "seekpos";
+
+    /**
+     * The queue as it was read back from disk
+     */
+    public static final class Snapshot {
+
+        /* The ID of the card the queue was saved against */
+        public final int mCardId;
+
+        /* The audio IDs in the queue */
+        public final long[] mQueue;
+
+        /* The shuffle history, as queue positions */
+        public final int[] mHistory;
+
+        /* The shuffle order, as queue positions, or null */
+        public final int[] mShuffleOrder;
+
+        /* The slot of the current track in the shuffle order */
+        public final int mShuffleCursor;
+
+        /* The position in the queue */
+        public final int mPosition;
+
+        /* The position in the current track, or -1 if unknown */
+        public final long mSeekPosition;
+
+        /**
+         * Constructor of <code>Snapshot</code>
+         * 
+         * @param cardId The ID of the card the queue belongs to
+         * @param queue The audio IDs in the queue
+         * @param history The shuffle history
+         * @param shuffleOrder The shuffle order, may be null
+         * @param shuffleCursor The slot of the current track in the shuffle
+         *            order
+         * @param position The position in the queue
+         * @param seekPosition The position in the current track
+         */
+        public Snapshot(final int cardId, final long[] queue, final int[] history,
+                final int[] shuffleOrder, final int shuffleCursor, final int position,
+                final long seekPosition) {
+            mCardId = cardId;
+            mQueue = queue;
+            mHistory = history;
+            mShuffleOrder = shuffleOrder;
+            mShuffleCursor = shuffleCursor;
+            mPosition = position;
+            mSeekPosition = seekPosition;
+        }
+    }
+
+    private final Context mContext;
+
+    private final File mFile;
+
+    private final File mTempFile;
+
+    private final File mJournalFile;
+
+    private final Handler mHandler;
+
+    /* Guards the pending snapshot and journal records */
+    private final Object mPendingLock = new Object();
+
+    private Snapshot mPendingSnapshot;
+
+    /* The list to read the pending snapshot's queue from, or null */
+    private QueueSource mPendingSource;
+
+    private ByteBuffer mPendingOps = newOpsBuffer(256);
+
+    /* Offset of the last pending position record, or -1 */
+    private int mLastPositionOffset = -1;
+
+    private boolean mFlushScheduled = false;
+
+    /* Generation of the snapshot on disk, the journal must match it */
+    private int mGeneration = 0;
+
+    /* Length of the valid part of the journal, or 0 if it needs a header */
+    private long mJournalLength = 0;
+
+    private final Runnable mFlush = new Runnable() {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Constructor of <code>QueueStore</code>
+     * 
+     * @param context The {@link Context} to use
+     */
+    public QueueStore(final Context context) {
+        mContext = context.getApplicationContext();
+        mFile = new File(context.getFilesDir(), FILENAME);
+        mTempFile = new File(context.getFilesDir(), FILENAME + ".tmp");
+        mJournalFile = new File(context.getFilesDir(), JOURNAL_FILENAME);
+        final HandlerThread thread = new HandlerThread(TAG,
+                android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * @return True if a queue file has been written, false otherwise
+     */
+    public boolean exists() {
+        return mFile.exists();
+    }
+
+    /**
+     * Saves the whole queue on the store's own thread and starts a new
+     * journal. Only the most recent request is written if several are posted
+     * before the thread gets to them.
+     * 
+     * @param cardId The ID of the card the queue belongs to
+     * @param queue The audio IDs to save. The array must not be modified by
+     *            the caller afterwards.
+     * @param history The shuffle history to save, may be null
+     * @param shuffleOrder The shuffle order to save, may be null
+     * @param shuffleCursor The slot of the current track in the shuffle order
+     * @param position The position in the queue
+     * @param seekPosition The position in the current track, or -1
+     */
+    public void saveAsync(final int cardId, final long[] queue, final int[] history,
+            final int[] shuffleOrder, final int shuffleCursor, final int position,
+            final long seekPosition) {
+        synchronized (mPendingLock) {
+            mPendingSnapshot = new Snapshot(cardId, queue, history, shuffleOrder,
+                    shuffleCursor, position, seekPosition);
+            mPendingSource = null;
+            // Anything logged so far is part of the snapshot
+            mPendingOps.clear();
+            mLastPositionOffset = -1;
+            mHandler.removeCallbacks(mFlush);
+            mHandler.post(mFlush);
+            mFlushScheduled = true;
+        }
+    }
+
+    /**
+     * Saves a queue that is still the list a {@link QueueSource} describes.
+     * The store reads the IDs from the library on its own thread, so the
+     * caller never holds them all.
+     * 
+     * @param cardId The ID of the card the queue belongs to
+     * @param source The list the queue holds
+     * @param history The shuffle history to save, may be null
+     * @param shuffleOrder The shuffle order to save, may be null
+     * @param shuffleCursor The slot of the current track in the shuffle order
+     * @param position The position in the queue
+     * @param seekPosition The position in the current track, or -1
+     */
+    public void saveAsync(final int cardId, final QueueSource source, final int[] history,
+            final int[] shuffleOrder, final int shuffleCursor, final int position,
+            final long seekPosition) {
+        synchronized (mPendingLock) {
+            saveAsync(cardId, (long[]) null, history, shuffleOrder, shuffleCursor, position,
+                    seekPosition);
+            mPendingSource = source;
+        }
+    }
+
+    /**
+     * Records that the queue was emptied
+     */
+    public void logClear() {
+        synchronized (mPendingLock) {
+            beginOp(OP_CLEAR, 0, 0);
+            endOp();
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Records that tracks were inserted into the queue
+     * 
+     * @param position The position the tracks were inserted at
+     * @param list The audio IDs that were inserted
+     * @param queueLength The length of the queue after the insert
+     */
+    public void logInsert(final int position, final long[] list, final int queueLength) {
+        synchronized (mPendingLock) {
+            beginOp(OP_INSERT, queueLength, 8 + list.length * 8);
+            mPendingOps.putInt(position);
+            mPendingOps.putInt(list.length);
+            for (int i = 0; i < list.length; i++) {
+                mPendingOps.putLong(list[i]);
+            }
+            endOp();
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Records that a track was moved within the queue
+     * 
+     * @param from The position the track was moved from
+     * @param to The position the track was moved to
+     * @param queueLength The length of the queue
+     */
+    public void logMove(final int from, final int to, final int queueLength) {
+        synchronized (mPendingLock) {
+            beginOp(OP_MOVE, queueLength, 8);
+            mPendingOps.putInt(from);
+            mPendingOps.putInt(to);
+            endOp();
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Records that a range of tracks was removed from the queue
+     * 
+     * @param first The first position removed
+     * @param last The last position removed
+     * @param queueLength The length of the queue after the removal
+     */
+    public void logRemove(final int first, final int last, final int queueLength) {
+        synchronized (mPendingLock) {
+            beginOp(OP_REMOVE, queueLength, 8);
+            mPendingOps.putInt(first);
+            mPendingOps.putInt(last);
+            endOp();
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Records the position in the queue and in the current track. If the last
+     * pending record is also a position it is overwritten rather than
+     * appended to.
+     * 
+     * @param position The position in the queue
+     * @param seekPosition The position in the current track, or -1 to keep
+     *            the last saved one
+     * @param queueLength The length of the queue
+     */
+    public void logPosition(final int position, final long seekPosition, final int queueLength) {
+        synchronized (mPendingLock) {
+            if (mLastPositionOffset >= 0) {
+                mPendingOps.position(mLastPositionOffset);
+            }
+            final int offset = mPendingOps.position();
+            beginOp(OP_POSITION, queueLength, 12);
+            mPendingOps.putInt(position);
+            mPendingOps.putLong(seekPosition);
+            endOp();
+            mLastPositionOffset = offset;
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Writes the pending snapshot and journal records right away instead of
+     * waiting for the batch window to close.
+     */
+    public void flushAsync() {
+        synchronized (mPendingLock) {
+            if (mFlushScheduled) {
+                mHandler.removeCallbacks(mFlush);
+                mHandler.post(mFlush);
+            }
+        }
+    }
+
+    /**
+     * Starts a journal record, growing the pending buffer if needed
+     * 
+     * @param op The record type
+     * @param queueLength The length of the queue after the record is applied
+     * @param payload The size of the payload in bytes
+     */
+    private void beginOp(final int op, final int queueLength, final int payload) {
+        // op, queue length, payload, crc
+        final int needed = 4 + 4 + payload + 4;
+        if (mPendingOps.remaining() < needed) {
+            final ByteBuffer grown = newOpsBuffer(Math.max(mPendingOps.capacity() * 2,
+                    mPendingOps.position() + needed));
+            mPendingOps.flip();
+            grown.put(mPendingOps);
+            mPendingOps = grown;
+        }
+        mLastPositionOffset = -1;
+        mPendingOps.mark();
+        mPendingOps.putInt(op);
+        mPendingOps.putInt(queueLength);
+    }
+
+    /**
+     * Finishes a journal record by appending the CRC32 of its contents
+     */
+    private void endOp() {
+        final int end = mPendingOps.position();
+        mPendingOps.reset();
+        final int start = mPendingOps.position();
+        mPendingOps.position(end);
+        final CRC32 crc = new CRC32();
+        crc.update(mPendingOps.array(), start, end - start);
+        mPendingOps.putInt((int) crc.getValue());
+    }
+
+    /**
+     * Posts a flush once the batch window closes, unless one is already
+     * pending
+     */
+    private void scheduleFlush() {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlush, BATCH_WINDOW);
+        }
+    }
+
+    /**
+     * Writes the pending snapshot and journal records. Runs on the store's
+     * own thread.
+     */
+    private void flush() {
+        Snapshot snapshot;
+        final QueueSource source;
+        byte[] ops = null;
+        synchronized (mPendingLock) {
+            snapshot = mPendingSnapshot;
+            source = mPendingSource;
+            mPendingSnapshot = null;
+            mPendingSource = null;
+            if (mPendingOps.position() > 0) {
+                ops = new byte[mPendingOps.position()];
+                System.arraycopy(mPendingOps.array(), 0, ops, 0, ops.length);
+                mPendingOps.clear();
+            }
+            mLastPositionOffset = -1;
+            mFlushScheduled = false;
+        }
+        if (snapshot != null && source != null) {
+            final long[] queue = readQueueSource(source);
+            if (queue == null) {
+                // The library can't be read, keep the last queue on disk
+                Log.w(TAG, "Unable to read the queue from the library");
+                return;
+            }
+            snapshot = new Snapshot(snapshot.mCardId, queue, snapshot.mHistory,
+                    snapshot.mShuffleOrder, snapshot.mShuffleCursor, snapshot.mPosition,
+                    snapshot.mSeekPosition);
+        }
+        synchronized (this) {
+            if (snapshot != null) {
+                save(snapshot);
+            }
+            if (ops != null) {
+                appendJournal(ops);
+            }
+            if (mJournalLength > COMPACT_THRESHOLD) {
+                final Snapshot compacted = load();
+                if (compacted != null) {
+                    save(compacted);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the IDs of the tracks a {@link QueueSource} describes
+     * 
+     * @param source The list to read
+     * @return The IDs in order, or null if the library can't be read
+     */
+    private long[] readQueueSource(final QueueSource source) {
+        final Cursor cursor = MusicUtils.makeQueueSourceCursor(mContext, source);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            long[] list = new long[Math.max(0, cursor.getCount())];
+            int count = 0;
+            while (cursor.moveToNext()) {
+                // The count is a hint, the cursor may still grow
+                if (count == list.length) {
+                    final long[] grown = new long[list.length + SOURCE_CHUNK_SIZE];
+                    System.arraycopy(list, 0, grown, 0, count);
+                    list = grown;
+                }
+                list[count++] = cursor.getLong(0);
+            }
+            if (count < list.length) {
+                final long[] trimmed = new long[count];
+                System.arraycopy(list, 0, trimmed, 0, count);
+                list = trimmed;
+            }
+            return list;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Writes the queue to disk on the calling thread and starts a new journal
+     * 
+     * @param snapshot The queue to save
+     * @return True if the queue was written, false otherwise
+     */
+    private synchronized boolean save(final Snapshot snapshot) {
+        final long[] queue = snapshot.mQueue;
+        final int[] history = snapshot.mHistory;
+        final int queueLen = queue != null ? queue.length : 0;
+        final int historyLen = history != null ? history.length : 0;
+        final int[] order = snapshot.mShuffleOrder;
+        final int orderLen = order != null && order.length == queueLen ? order.length : 0;
+        final int generation = mGeneration + 1;
+        final int bodySize = HEADER_SIZE + queueLen * 8 + historyLen * 4
+                + (orderLen > 0 ? orderLen * 4 + 4 : 0);
+        final ByteBuffer buffer = ByteBuffer.allocate(bodySize + TRAILER_SIZE);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(snapshot.mCardId);
+        buffer.putInt(generation);
+        buffer.putInt(queueLen);
+        buffer.putInt(historyLen);
+        buffer.putInt(snapshot.mPosition);
+        buffer.putInt(orderLen);
+        buffer.putLong(snapshot.mSeekPosition);
+        if (queueLen > 0) {
+            buffer.asLongBuffer().put(queue, 0, queueLen);
+            buffer.position(buffer.position() + queueLen * 8);
+        }
+        if (historyLen > 0) {
+            buffer.asIntBuffer().put(history, 0, historyLen);
+            buffer.position(buffer.position() + historyLen * 4);
+        }
+        if (orderLen > 0) {
+            buffer.asIntBuffer().put(order, 0, orderLen);
+            buffer.position(buffer.position() + orderLen * 4);
+            buffer.putInt(snapshot.mShuffleCursor);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, bodySize);
+        buffer.putLong(crc.getValue());
+        buffer.flip();
+
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(mTempFile);
+            final FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!mTempFile.renameTo(mFile)) {
+                Log.w(TAG, "Unable to replace " + mFile);
+                return false;
+            }
+            // The old journal belongs to the previous generation, so it is
+            // ignored even if we die before getting rid of it
+            mGeneration = generation;
+            mJournalLength = 0;
+            mJournalFile.delete();
+            return true;
+        } catch (final IOException e) {
+            Log.w(TAG, "Unable to save the queue", e);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (final IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends records to the journal, writing its header first if needed
+     * 
+     * @param ops The encoded records
+     */
+    private void appendJournal(final byte[] ops) {
+        if (!mFile.exists()) {
+            // There's nothing to apply the records to
+            return;
+        }
+        RandomAccessFile journal = null;
+        try {
+            journal = new RandomAccessFile(mJournalFile, "rw");
+            if (mJournalLength == 0) {
+                final ByteBuffer header = ByteBuffer.allocate(JOURNAL_HEADER_SIZE);
+                header.order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(JOURNAL_MAGIC);
+                header.putInt(JOURNAL_VERSION);
+                header.putInt(mGeneration);
+                journal.setLength(0);
+                journal.write(header.array());
+                mJournalLength = JOURNAL_HEADER_SIZE;
+            } else if (journal.length() != mJournalLength) {
+                // Drop a torn record left behind by a crash
+                journal.setLength(mJournalLength);
+            }
+            journal.seek(mJournalLength);
+            journal.write(ops);
+            journal.getFD().sync();
+            mJournalLength += ops.length;
+        } catch (final IOException e) {
+            Log.w(TAG, "Unable to append to the journal", e);
+        } finally {
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (final IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the queue back from disk, replaying any journal records written
+     * after the snapshot
+     * 
+     * @return The saved queue, or null if there isn't one or it's corrupt
+     */
+    public synchronized Snapshot load() {
+        final ByteBuffer buffer = readFully(mFile);
+        if (buffer == null || buffer.limit() < HEADER_SIZE + TRAILER_SIZE) {
+            return null;
+        }
+        final long size = buffer.limit();
+        if (buffer.getInt() != MAGIC) {
+            return null;
+        }
+        final int version = buffer.getInt();
+        if (version < MIN_VERSION || version > VERSION) {
+            return null;
+        }
+        final int cardId = buffer.getInt();
+        final int generation = buffer.getInt();
+        final int queueLen = buffer.getInt();
+        final int historyLen = buffer.getInt();
+        final int position = buffer.getInt();
+        // Version 2 always wrote 0 here
+        final int orderLen = buffer.getInt();
+        final long seekPosition = buffer.getLong();
+        final long bodySize = HEADER_SIZE + queueLen * 8L + historyLen * 4L
+                + (orderLen > 0 ? orderLen * 4L + 4 : 0);
+        if (queueLen < 0 || historyLen < 0 || (orderLen != 0 && orderLen != queueLen)
+                || bodySize + TRAILER_SIZE != size) {
+            return null;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, (int) bodySize);
+        if (crc.getValue() != buffer.getLong((int) bodySize)) {
+            Log.w(TAG, "Checksum mismatch, ignoring the saved queue");
+            return null;
+        }
+
+        final long[] queue = new long[queueLen];
+        buffer.asLongBuffer().get(queue);
+        buffer.position(buffer.position() + queueLen * 8);
+        final int[] history = new int[historyLen];
+        buffer.asIntBuffer().get(history);
+        buffer.position(buffer.position() + historyLen * 4);
+        int[] order = null;
+        int cursor = -1;
+        if (orderLen > 0) {
+            order = new int[orderLen];
+            buffer.asIntBuffer().get(order);
+            buffer.position(buffer.position() + orderLen * 4);
+            cursor = buffer.getInt();
+        }
+        mGeneration = generation;
+        return replayJournal(new Snapshot(cardId, queue, history, order, cursor, position,
+                seekPosition));
+    }
+
+    /**
+     * Applies the journal to a snapshot. Replay stops at the first record that
+     * is torn, corrupt or doesn't agree with the queue it's applied to.
+     * 
+     * @param snapshot The snapshot the journal was written against
+     * @return The snapshot with the journal applied
+     */
+    private Snapshot replayJournal(final Snapshot snapshot) {
+        mJournalLength = 0;
+        final ByteBuffer buffer = readFully(mJournalFile);
+        if (buffer == null || buffer.limit() < JOURNAL_HEADER_SIZE
+                || buffer.getInt() != JOURNAL_MAGIC || buffer.getInt() != JOURNAL_VERSION
+                || buffer.getInt() != mGeneration) {
+            return snapshot;
+        }
+        mJournalLength = JOURNAL_HEADER_SIZE;
+
+        long[] queue = snapshot.mQueue;
+        int len = queue.length;
+        int position = snapshot.mPosition;
+        long seekPosition = snapshot.mSeekPosition;
+        boolean edited = false;
+        // A saved shuffle order is patched along with the queue, which also
+        // keeps its history valid
+        ShuffleOrder order = null;
+        if (snapshot.mShuffleOrder != null) {
+            order = new ShuffleOrder(Math.max(snapshot.mHistory.length, 1));
+            order.restore(len, snapshot.mShuffleOrder, snapshot.mShuffleCursor,
+                    snapshot.mHistory);
+        }
+        final CRC32 crc = new CRC32();
+        while (buffer.remaining() >= 12) {
+            final int start = buffer.position();
+            final int op = buffer.getInt();
+            final int queueLength = buffer.getInt();
+            int payload;
+            switch (op) {
+                case OP_CLEAR:
+                    payload = 0;
+                    break;
+                case OP_INSERT:
+                    payload = -1;
+                    if (buffer.remaining() >= 8) {
+                        final int count = buffer.getInt(start + 12);
+                        if (count >= 0 && count <= buffer.remaining() / 8) {
+                            payload = 8 + count * 8;
+                        }
+                    }
+                    break;
+                case OP_MOVE:
+                case OP_REMOVE:
+                    payload = 8;
+                    break;
+                case OP_POSITION:
+                    payload = 12;
+                    break;
+                default:
+                    payload = -1;
+                    break;
+            }
+            if (payload < 0 || buffer.remaining() < payload + 4) {
+                break;
+            }
+            crc.reset();
+            crc.update(buffer.array(), start, 8 + payload);
+            if (buffer.getInt(start + 8 + payload) != (int) crc.getValue()) {
+                break;
+            }
+
+            boolean valid = true;
+            switch (op) {
+                case OP_CLEAR:
+                    len = 0;
+                    edited = true;
+                    if (order != null) {
+                        order.reset(0);
+                        order.clearHistory();
+                    }
+                    break;
+                case OP_INSERT: {
+                    final int at = buffer.getInt();
+                    final int count = buffer.getInt();
+                    if (at < 0 || at > len) {
+                        valid = false;
+                        break;
+                    }
+                    if (len + count > queue.length) {
+                        final long[] grown = new long[Math.max(queue.length * 2, len + count)];
+                        System.arraycopy(queue, 0, grown, 0, len);
+                        queue = grown;
+                    }
+                    System.arraycopy(queue, at, queue, at + count, len - at);
+                    buffer.asLongBuffer().get(queue, at, count);
+                    len += count;
+                    edited = true;
+                    if (order != null) {
+                        order.insert(at, count);
+                    }
+                    break;
+                }
+                case OP_MOVE: {
+                    final int from = buffer.getInt();
+                    final int to = buffer.getInt();
+                    if (from < 0 || from >= len || to < 0 || to >= len) {
+                        valid = false;
+                        break;
+                    }
+                    final long tmp = queue[from];
+                    if (from < to) {
+                        System.arraycopy(queue, from + 1, queue, from, to - from);
+                    } else {
+                        System.arraycopy(queue, to, queue, to + 1, from - to);
+                    }
+                    queue[to] = tmp;
+                    edited = true;
+                    if (order != null) {
+                        order.move(from, to);
+                    }
+                    break;
+                }
+                case OP_REMOVE: {
+                    final int first = buffer.getInt();
+                    final int last = buffer.getInt();
+                    if (first < 0 || last < first || last >= len) {
+                        valid = false;
+                        break;
+                    }
+                    System.arraycopy(queue, last + 1, queue, first, len - last - 1);
+                    len -= last - first + 1;
+                    edited = true;
+                    if (order != null) {
+                        order.remove(first, last);
+                    }
+                    break;
+                }
+                case OP_POSITION: {
+                    position = buffer.getInt();
+                    final long seek = buffer.getLong();
+                    if (seek >= 0) {
+                        seekPosition = seek;
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+            if (!valid || len != queueLength) {
+                Log.w(TAG, "Journal doesn't match the queue, ignoring the rest of it");
+                break;
+            }
+            buffer.position(start + 8 + payload + 4);
+            mJournalLength = buffer.position();
+        }
+
+        long[] result = queue;
+        if (len != queue.length) {
+            result = new long[len];
+            System.arraycopy(queue, 0, result, 0, len);
+        }
+        if (order != null) {
+            return new Snapshot(snapshot.mCardId, result, order.getHistory(),
+                    order.getOrder(), order.getCursor(), position, seekPosition);
+        }
+        // Without an order to patch, positions in the history can't be
+        // trusted once the queue changes
+        final int[] history = edited ? new int[0] : snapshot.mHistory;
+        return new Snapshot(snapshot.mCardId, result, history, null, -1, position,
+                seekPosition);
+    }
+
+    /**
+     * Converts the queue Apollo used to keep in {@link SharedPreferences} into
+     * a {@link Snapshot}, writes it to the queue file and then removes the
+     * old keys.
+     * 
+     * @param preferences The preferences the queue used to be saved in
+     * @param defaultCardId The card ID to use if none was saved
+     * @return The migrated queue, or null if there was nothing to migrate
+     */
+    public Snapshot migrate(final SharedPreferences preferences, final int defaultCardId) {
+        if (!preferences.contains(LEGACY_QUEUE)) {
+            return null;
+        }
+        final long[] queue = parseLegacyList(preferences.getString(LEGACY_QUEUE, ""));
+        final long[] history = parseLegacyList(preferences.getString(LEGACY_HISTORY, ""));
+        final int[] positions = new int[history != null ? history.length : 0];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = (int) history[i];
+        }
+        final int cardId = preferences.getInt(LEGACY_CARDID, defaultCardId);
+        Snapshot snapshot = null;
+        if (queue != null) {
+            snapshot = new Snapshot(cardId, queue, positions, null, -1, preferences.getInt(
+                    LEGACY_CURPOS, 0), preferences.getLong(LEGACY_SEEKPOS, 0));
+            save(snapshot);
+        }
+        final SharedPreferences.Editor editor = preferences.edit();
+        editor.remove(LEGACY_QUEUE);
+        editor.remove(LEGACY_HISTORY);
+        editor.remove(LEGACY_CARDID);
+        editor.remove(LEGACY_CURPOS);
+        editor.remove(LEGACY_SEEKPOS);
+        SharedPreferencesCompat.apply(editor);
+        return snapshot;
+    }
+
+    /**
+     * @param capacity The initial capacity in bytes
+     * @return A new little-endian buffer for journal records
+     */
+    private static ByteBuffer newOpsBuffer(final int capacity) {
+        final ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * Reads a whole file with a single bulk channel read
+     * 
+     * @param file The file to read
+     * @return A little-endian buffer holding the file, or null if it couldn't
+     *         be read
+     */
+    private static ByteBuffer readFully(final File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            final FileChannel channel = in.getChannel();
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return null;
+            }
+            final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            return buffer;
+        } catch (final IOException e) {
+            Log.w(TAG, "Unable to read " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (final IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a list saved as reverse hexadecimal numbers separated by ';'
+     * 
+     * @param q The saved list
+     * @return The numbers in the list, or null if the list is malformed
+     */
+    private static long[] parseLegacyList(final String q) {
+        final int qlen = q != null ? q.length() : 0;
+        if (qlen <= 1) {
+            return null;
+        }
+        long[] list = new long[16];
+        int len = 0;
+        long n = 0;
+        int shift = 0;
+        for (int i = 0; i < qlen; i++) {
+            final char c = q.charAt(i);
+            if (c == ';') {
+                if (len == list.length) {
+                    final long[] grown = new long[len * 2];
+                    System.arraycopy(list, 0, grown, 0, len);
+                    list = grown;
+                }
+                list[len++] = n;
+                n = 0;
+                shift = 0;
+            } else {
+                if (c >= '0' && c <= '9') {
+                    n += (long) (c - '0') << shift;
+                } else if (c >= 'a' && c <= 'f') {
+                    n += (long) (10 + c - 'a') << shift;
+                } else {
+                    return null;
+                }
+                shift += 4;
+            }
+        }
+        final long[] result = new long[len];
+        System.arraycopy(list, 0, result, 0, len);
+        return result;
+    }
+}
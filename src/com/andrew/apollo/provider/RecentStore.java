@@ -168,6 +168,35 @@ public class RecentStore extends SQLiteOpenHelper {
         return null;
     }
 
+    /**
+     * Used to retrieve every album listened to since a point in time
+     * 
+     * @param since The earliest time played to include, in milliseconds
+     * @return The album Ids, sorted
+     */
+    public long[] getAlbumIdsPlayedSince(final long since) {
+        final SQLiteDatabase database = getReadableDatabase();
+        final String[] projection = new String[] {
+                RecentStoreColumns.ID
+        };
+        final String selection = RecentStoreColumns.TIMEPLAYED + ">=?";
+        final String[] having = new String[] {
+                String.valueOf(since)
+        };
+        Cursor cursor = database.query(RecentStoreColumns.NAME, projection, selection, having,
+                null, null, RecentStoreColumns.ID + " ASC", null);
+        if (cursor == null) {
+            return new long[0];
+        }
+        final long[] albumIds = new long[cursor.getCount()];
+        for (int i = 0; i < albumIds.length && cursor.moveToNext(); i++) {
+            albumIds[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        cursor = null;
+        return albumIds;
+    }
+
     /**
      * {@inheritDoc}
      */
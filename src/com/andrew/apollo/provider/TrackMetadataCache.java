@@ -0,0 +1,302 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo.provider;
+
+import java.util.Arrays;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.BaseColumns;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Audio.AudioColumns;
+import android.provider.MediaStore.MediaColumns;
+
+import com.andrew.apollo.cache.LruCache;
+import com.andrew.apollo.model.TrackMetadata;
+
+/**
+ * Keeps the metadata of recently played and upcoming tracks, so changing
+ * tracks doesn't have to query the library.
+ * <p>
+ * {@link #prefetch(long[])} reads the tracks around the current one on a
+ * thread of its own, with one <code>_id IN (...)</code> query per batch.
+ * {@link #get(long)} falls back to querying the one track if it isn't
+ * cached. Anything cached is dropped when the library changes.
+ */
+public final class TrackMetadataCache {
+
+    /**
+     * The columns a {@link TrackMetadata} is read from, the ID first
+     */
+    public static final String[] PROJECTION = new String[] {
+            "audio._id AS _id", AudioColumns.ARTIST, AudioColumns.ALBUM, MediaColumns.TITLE,
+            MediaColumns.DATA, MediaColumns.MIME_TYPE, AudioColumns.ALBUM_ID,
+            AudioColumns.ARTIST_ID
+    };
+
+    /* The most tracks kept */
+    private static final int MAX_SIZE = 256;
+
+    /* The most IDs in one query for metadata */
+    private static final int BATCH_SIZE = 100;
+
+    /* The most IDs in one query that only checks the tracks exist */
+    private static final int FIND_BATCH_SIZE = 500;
+
+    private final Context mContext;
+
+    private final Handler mHandler;
+
+    private final LruCache<Long, TrackMetadata> mCache = new LruCache<Long, TrackMetadata>(
+            MAX_SIZE);
+
+    /**
+     * Drops everything cached when the library changes
+     */
+    private final ContentObserver mObserver;
+
+    /* The IDs the next prefetch reads, guarded by this */
+    private long[] mPendingIds;
+
+    /**
+     * Reads the tracks asked for by the latest call to
+     * {@link #prefetch(long[])}
+     */
+    private final Runnable mPrefetch = new Runnable() {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            final long[] ids;
+            synchronized (TrackMetadataCache.this) {
+                ids = mPendingIds;
+                mPendingIds = null;
+            }
+            if (ids != null) {
+                load(ids);
+            }
+        }
+    };
+
+    /**
+     * Constructor of <code>TrackMetadataCache</code>
+     *
+     * @param context The {@link Context} to use
+     */
+    public TrackMetadataCache(final Context context) {
+        mContext = context;
+        final HandlerThread thread = new HandlerThread("TrackMetadataCache",
+                android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        mObserver = new ContentObserver(mHandler) {
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void onChange(final boolean selfChange) {
+                mCache.evictAll();
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(
+                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, mObserver);
+    }
+
+    /**
+     * Returns the metadata of a track, querying the library if it isn't
+     * cached
+     *
+     * @param id The track's ID
+     * @return The track's metadata, or null if it isn't in the library
+     */
+    public TrackMetadata get(final long id) {
+        TrackMetadata metadata = mCache.get(id);
+        if (metadata != null) {
+            return metadata;
+        }
+        final Cursor cursor = query(MediaColumns._ID + "=" + id);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (cursor.moveToFirst()) {
+                metadata = read(cursor);
+                mCache.put(id, metadata);
+            }
+        } finally {
+            cursor.close();
+        }
+        return metadata;
+    }
+
+    /**
+     * Reads the tracks that aren't cached yet in the background. Only the
+     * latest call counts if several are waiting.
+     *
+     * @param ids The IDs of the tracks that are likely to play next
+     */
+    public void prefetch(final long[] ids) {
+        synchronized (this) {
+            final boolean posted = mPendingIds != null;
+            mPendingIds = ids;
+            if (posted) {
+                return;
+            }
+        }
+        mHandler.post(mPrefetch);
+    }
+
+    /**
+     * Drops everything cached
+     */
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    /**
+     * Stops watching the library and ends the prefetch thread
+     */
+    public void release() {
+        mContext.getContentResolver().unregisterContentObserver(mObserver);
+        mHandler.removeCallbacksAndMessages(null);
+        mHandler.getLooper().quit();
+    }
+
+    /**
+     * Reads a {@link TrackMetadata} from a cursor of {@link #PROJECTION}
+     *
+     * @param cursor The cursor, positioned on the track
+     * @return The track's metadata
+     */
+    public static TrackMetadata read(final Cursor cursor) {
+        return new TrackMetadata(cursor.getLong(0), cursor.getLong(cursor
+                .getColumnIndexOrThrow(AudioColumns.ARTIST_ID)), cursor.getLong(cursor
+                .getColumnIndexOrThrow(AudioColumns.ALBUM_ID)), cursor.getString(cursor
+                .getColumnIndexOrThrow(MediaColumns.TITLE)), cursor.getString(cursor
+                .getColumnIndexOrThrow(AudioColumns.ARTIST)), cursor.getString(cursor
+                .getColumnIndexOrThrow(AudioColumns.ALBUM)), cursor.getString(cursor
+                .getColumnIndexOrThrow(MediaColumns.DATA)));
+    }
+
+    /**
+     * Reads the tracks that aren't cached, a batch at a time
+     *
+     * @param ids The IDs to read
+     */
+    private void load(final long[] ids) {
+        final long[] missing = new long[ids.length];
+        int count = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] >= 0 && mCache.get(ids[i]) == null) {
+                missing[count++] = ids[i];
+            }
+        }
+        for (int i = 0; i < count; i += BATCH_SIZE) {
+            loadBatch(getSelection(missing, i, Math.min(count, i + BATCH_SIZE)));
+        }
+    }
+
+    /**
+     * Looks up which tracks are still in the library, a batch at a time
+     * 
+     * @param ids The IDs to look up
+     * @return The IDs that were found, sorted, or null if the library
+     *         couldn't be read
+     */
+    public long[] findExisting(final long[] ids) {
+        final long[] found = new long[ids.length];
+        int count = 0;
+        try {
+            for (int i = 0; i < ids.length; i += FIND_BATCH_SIZE) {
+                final Cursor cursor = mContext.getContentResolver().query(
+                        MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, new String[] {
+                            BaseColumns._ID
+                        }, getSelection(ids, i, Math.min(ids.length, i + FIND_BATCH_SIZE)),
+                        null, null);
+                if (cursor == null) {
+                    return null;
+                }
+                try {
+                    while (cursor.moveToNext() && count < found.length) {
+                        found[count++] = cursor.getLong(0);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        } catch (final RuntimeException e) {
+            // The storage went away
+            return null;
+        }
+        final long[] result = new long[count];
+        System.arraycopy(found, 0, result, 0, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * @param ids The IDs to select
+     * @param from The first ID to select
+     * @param to The index after the last ID to select
+     * @return An <code>_id IN (...)</code> selection
+     */
+    private static String getSelection(final long[] ids, final int from, final int to) {
+        final StringBuilder selection = new StringBuilder(MediaColumns._ID).append(" IN (");
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                selection.append(',');
+            }
+            selection.append(ids[i]);
+        }
+        return selection.append(')').toString();
+    }
+
+    /**
+     * Reads one batch of tracks into the cache
+     *
+     * @param selection The <code>_id IN (...)</code> selection
+     */
+    private void loadBatch(final String selection) {
+        final Cursor cursor;
+        try {
+            cursor = query(selection);
+        } catch (final RuntimeException e) {
+            // The storage went away, the tracks are read when they're played
+            return;
+        }
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                final TrackMetadata metadata = read(cursor);
+                mCache.put(metadata.mAudioId, metadata);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @param selection Which tracks to read
+     * @return A cursor of {@link #PROJECTION}, may be null
+     */
+    private Cursor query(final String selection) {
+        return mContext.getContentResolver().query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                PROJECTION, selection, null, null);
+    }
+}
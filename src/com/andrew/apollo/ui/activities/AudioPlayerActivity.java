@@ -24,11 +24,9 @@ import org.holoeverywhere.widget.TextView;
 
 import android.app.SearchManager;
 import android.app.SearchableInfo;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.media.AudioManager;
 import android.os.Bundle;
@@ -49,16 +47,18 @@ import com.actionbarsherlock.view.MenuItem;
 import com.actionbarsherlock.widget.SearchView;
 import com.actionbarsherlock.widget.SearchView.OnQueryTextListener;
 import com.andrew.apollo.IApolloService;
-import com.andrew.apollo.MusicPlaybackService;
 import com.andrew.apollo.R;
 import com.andrew.apollo.adapters.PagerAdapter;
 import com.andrew.apollo.cache.ImageFetcher;
+import com.andrew.apollo.model.PlaybackState;
+import com.andrew.apollo.model.TrackMetadata;
 import com.andrew.apollo.ui.fragments.LyricsFragment;
 import com.andrew.apollo.ui.fragments.QueueFragment;
 import com.andrew.apollo.utils.ApolloUtils;
 import com.andrew.apollo.utils.MusicUtils;
 import com.andrew.apollo.utils.MusicUtils.ServiceToken;
 import com.andrew.apollo.utils.NavUtils;
+import com.andrew.apollo.utils.PlaybackCallback;
 import com.andrew.apollo.utils.ThemeUtils;
 import com.andrew.apollo.widgets.PlayPauseButton;
 import com.andrew.apollo.widgets.RepeatButton;
@@ -74,46 +74,6 @@ import com.nineoldandroids.animation.ObjectAnimator;
 public class AudioPlayerActivity extends Activity implements ServiceConnection,
         OnSeekBarChangeListener {
 
-    /**
-     * Used to monitor the state of playback
-     */
-    private static final class PlaybackStatus extends BroadcastReceiver {
-
-        private final WeakReference<AudioPlayerActivity> mReference;
-
-        /**
-         * Constructor of <code>PlaybackStatus</code>
-         */
-        public PlaybackStatus(final AudioPlayerActivity activity) {
-            mReference = new WeakReference<AudioPlayerActivity>(activity);
-        }
-
-        /**
-         * {@inheritDoc}
-         */
-        @Override
-        public void onReceive(final Context context, final Intent intent) {
-            final String action = intent.getAction();
-            if (action.equals(MusicPlaybackService.META_CHANGED)) {
-                // Current info
-                mReference.get().updateNowPlayingInfo();
-                // Update the favorites icon
-                mReference.get().invalidateOptionsMenu();
-                // Update the lyrics
-                mReference.get().updateLyrics(false);
-            } else if (action.equals(MusicPlaybackService.PLAYSTATE_CHANGED)) {
-                // Set the play and pause image
-                mReference.get().mPlayPauseButton.updateState();
-            } else if (action.equals(MusicPlaybackService.REPEATMODE_CHANGED)
-                    || action.equals(MusicPlaybackService.SHUFFLEMODE_CHANGED)) {
-                // Set the repeat image
-                mReference.get().mRepeatButton.updateRepeatState();
-                // Set the shuffle image
-                mReference.get().mShuffleButton.updateShuffleState();
-            }
-        }
-    }
-
     /**
      * Used to update the current time string
      */
@@ -144,6 +104,9 @@ public class AudioPlayerActivity extends Activity implements ServiceConnection,
     // Message to refresh the time
     private static final int REFRESH_TIME = 1;
 
+    // How often the service sends the position while playing
+    private static final long POSITION_TICK_INTERVAL = 500;
+
     // Album art
     private ImageView mAlbumArt;
 
@@ -191,8 +154,9 @@ public class AudioPlayerActivity extends Activity implements ServiceConnection,
 
         @Override
         public void onClick(final View v) {
-            NavUtils.openAlbumProfile(AudioPlayerActivity.this, MusicUtils.getAlbumName(),
-                    MusicUtils.getArtistName());
+            final TrackMetadata metadata = MusicUtils.getTrackMetadata();
+            NavUtils.openAlbumProfile(AudioPlayerActivity.this, metadata.mAlbumName,
+                    metadata.mArtistName);
         }
     };
 
@@ -202,8 +166,53 @@ public class AudioPlayerActivity extends Activity implements ServiceConnection,
     // Pager adpater
     private PagerAdapter mPagerAdapter;
 
-    // Broadcast receiver
-    private PlaybackStatus mPlaybackStatus;
+    // Receives the state changes and position ticks from the service
+    private final PlaybackCallback mPlaybackCallback = new PlaybackCallback() {
+
+        @Override
+        protected void metaChanged(final TrackMetadata metadata) {
+            // Current info
+            updateNowPlayingInfo(metadata);
+            // Update the favorites icon
+            invalidateOptionsMenu();
+            // Update the lyrics
+            updateLyrics(false);
+        }
+
+        @Override
+        protected void playbackStateChanged(final PlaybackState state) {
+            mPosition = state.mPosition;
+            mDuration = state.mDuration;
+            mIsPlaying = state.mIsPlaying;
+            // Set the total time
+            mTotalTime.setText(MusicUtils.makeTimeString(AudioPlayerActivity.this,
+                    mDuration / 1000));
+            // Set the playback drawables
+            updatePlaybackControls();
+            // Update the current time
+            queueNextRefresh(refreshCurrentTime());
+        }
+
+        @Override
+        protected void positionChanged(final long position, final long duration) {
+            mPosition = position;
+            mDuration = duration;
+            queueNextRefresh(refreshCurrentTime());
+        }
+
+        @Override
+        protected void queueChanged(final int queueVersion) {
+            // Patch the queue
+            ((QueueFragment) mPagerAdapter.getFragment(0)).onQueueChanged(queueVersion);
+        }
+    };
+
+    // The last position, duration and play state the service sent
+    private long mPosition = -1;
+
+    private long mDuration = -1;
+
+    private boolean mIsPlaying = false;
 
     // Play and pause button
     private PlayPauseButton mPlayPauseButton;
@@ -429,9 +438,6 @@ public class AudioPlayerActivity extends Activity implements ServiceConnection,
         // Initialize the handler used to update the current time
         mTimeHandler = new TimeHandler(this);
 
-        // Initialize the broadcast receiver
-        mPlaybackStatus = new PlaybackStatus(this);
-
         // Theme the action bar
         final ActionBar actionBar = getSupportActionBar();
         mResources.themeActionBar(actionBar, getString(R.string.app_name));
@@ -500,13 +506,6 @@ public class AudioPlayerActivity extends Activity implements ServiceConnection,
             MusicUtils.unbindFromService(mToken);
             mToken = null;
         }
-
-        // Unregister the receiver
-        try {
-            unregisterReceiver(mPlaybackStatus);
-        } catch (final Throwable e) {
-            //$FALL-THROUGH$
-        }
     }
 
     /**
@@ -522,8 +521,7 @@ public class AudioPlayerActivity extends Activity implements ServiceConnection,
             case R.id.menu_shuffle:
                 // Shuffle all the songs
                 MusicUtils.shuffleAll(this);
-                // Refresh the queue
-                ((QueueFragment) mPagerAdapter.getFragment(0)).refreshQueue();
+                // The queue reloads once the service reports the change
                 return true;
             case R.id.menu_favorite:
                 // Toggle the current track as a favorite and update the menu
@@ -621,6 +619,8 @@ public class AudioPlayerActivity extends Activity implements ServiceConnection,
     @Override
     public void onServiceConnected(final ComponentName name, final IBinder service) {
         mService = IApolloService.Stub.asInterface(service);
+        // Listen for state changes and position ticks
+        MusicUtils.registerCallback(mPlaybackCallback, POSITION_TICK_INTERVAL);
         // Set the playback drawables
         updatePlaybackControls();
         // Current info
@@ -643,20 +643,20 @@ public class AudioPlayerActivity extends Activity implements ServiceConnection,
     @Override
     protected void onStart() {
         super.onStart();
-        final IntentFilter filter = new IntentFilter();
-        // Play and pause changes
-        filter.addAction(MusicPlaybackService.PLAYSTATE_CHANGED);
-        // Shuffle and repeat changes
-        filter.addAction(MusicPlaybackService.SHUFFLEMODE_CHANGED);
-        filter.addAction(MusicPlaybackService.REPEATMODE_CHANGED);
-        // Track changes
-        filter.addAction(MusicPlaybackService.META_CHANGED);
-        // Update a list, probably the playlist fragment's
-        filter.addAction(MusicPlaybackService.REFRESH);
-        registerReceiver(mPlaybackStatus, filter);
-        // Refresh the current time
-        final long next = refreshCurrentTime();
-        queueNextRefresh(next);
+        // Listen for state changes and position ticks, the service sends the
+        // current state straight away
+        MusicUtils.registerCallback(mPlaybackCallback, POSITION_TICK_INTERVAL);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // Nothing to show, stop the ticks
+        MusicUtils.unregisterCallback(mPlaybackCallback);
+        mTimeHandler.removeMessages(REFRESH_TIME);
     }
 
     /**
@@ -678,9 +678,13 @@ public class AudioPlayerActivity extends Activity implements ServiceConnection,
     }
 
     /**
-     * @param delay When to update
+     * @param delay When to update, or -1 to wait for the service
      */
     private void queueNextRefresh(final long delay) {
+        if (delay < 0) {
+            mTimeHandler.removeMessages(REFRESH_TIME);
+            return;
+        }
         if (!mIsPaused) {
             final Message message = mTimeHandler.obtainMessage(REFRESH_TIME);
             mTimeHandler.removeMessages(REFRESH_TIME);
@@ -688,53 +692,33 @@ public class AudioPlayerActivity extends Activity implements ServiceConnection,
         }
     }
 
-    /* Used to update the current time string */
+    /**
+     * Shows the last position the service sent, or the one being scanned to
+     * 
+     * @return When to update again while paused, to blink the counter, or -1
+     *         to wait for the next tick from the service
+     */
     private long refreshCurrentTime() {
-        if (mService == null) {
-            return 500;
-        }
-        try {
-            final long pos = mPosOverride < 0 ? MusicUtils.position() : mPosOverride;
-            if (pos >= 0 && MusicUtils.duration() > 0) {
-                mCurrentTime.setText(MusicUtils.makeTimeString(this, pos / 1000));
-                final int progress = (int) (1000 * pos / MusicUtils.duration());
-                mProgress.setProgress(progress);
-
-                if (MusicUtils.isPlaying()) {
-                    mCurrentTime.setVisibility(View.VISIBLE);
-                } else {
-                    // blink the counter
-                    final int vis = mCurrentTime.getVisibility();
-                    mCurrentTime.setVisibility(vis == View.INVISIBLE ? View.VISIBLE
-                            : View.INVISIBLE);
-                    return 500;
-                }
+        final long pos = mPosOverride < 0 ? mPosition : mPosOverride;
+        if (pos >= 0 && mDuration > 0) {
+            mCurrentTime.setText(MusicUtils.makeTimeString(this, pos / 1000));
+            final int progress = (int) (1000 * pos / mDuration);
+            mProgress.setProgress(progress);
+
+            if (mIsPlaying) {
+                mCurrentTime.setVisibility(View.VISIBLE);
             } else {
-                mCurrentTime.setText("--:--");
-                mProgress.setProgress(1000);
+                // blink the counter
+                final int vis = mCurrentTime.getVisibility();
+                mCurrentTime.setVisibility(vis == View.INVISIBLE ? View.VISIBLE
+                        : View.INVISIBLE);
+                return 500;
             }
-            // calculate the number of milliseconds until the next full second,
-            // so
-            // the counter can be updated at just the right time
-            final long remaining = 1000 - pos % 1000;
-            // approximate how often we would need to refresh the slider to
-            // move it smoothly
-            int width = mProgress.getWidth();
-            if (width == 0) {
-                width = 320;
-            }
-            final long smoothrefreshtime = MusicUtils.duration() / width;
-            if (smoothrefreshtime > remaining) {
-                return remaining;
-            }
-            if (smoothrefreshtime < 20) {
-                return 20;
-            }
-            return smoothrefreshtime;
-        } catch (final Exception ignored) {
-
+        } else {
+            mCurrentTime.setText("--:--");
+            mProgress.setProgress(1000);
         }
-        return 500;
+        return -1;
     }
 
     /**
@@ -825,13 +809,14 @@ public class AudioPlayerActivity extends Activity implements ServiceConnection,
      * /** Used to shared what the user is currently listening to
      */
     private void shareCurrentTrack() {
-        if (MusicUtils.getTrackName() == null || MusicUtils.getArtistName() == null) {
+        final TrackMetadata metadata = MusicUtils.getTrackMetadata();
+        if (metadata.mTrackName == null || metadata.mArtistName == null) {
             return;
         }
         final Intent shareIntent = new Intent();
         final String shareMessage = getString(R.string.now_listening_to) + " "
-                + MusicUtils.getTrackName() + " " + getString(R.string.by) + " "
-                + MusicUtils.getArtistName() + " " + getString(R.string.hash_apollo);
+                + metadata.mTrackName + " " + getString(R.string.by) + " "
+                + metadata.mArtistName + " " + getString(R.string.hash_apollo);
 
         shareIntent.setAction(Intent.ACTION_SEND);
         shareIntent.setType("text/plain");
@@ -866,18 +851,23 @@ public class AudioPlayerActivity extends Activity implements ServiceConnection,
      * Sets the track name, album name, and album art.
      */
     private void updateNowPlayingInfo() {
+        updateNowPlayingInfo(MusicUtils.getTrackMetadata());
+    }
+
+    /**
+     * Sets the track name, album name, and album art.
+     * 
+     * @param metadata The current track's metadata
+     */
+    private void updateNowPlayingInfo(final TrackMetadata metadata) {
         // Set the track name
-        mTrackName.setText(MusicUtils.getTrackName());
+        mTrackName.setText(metadata.mTrackName);
         // Set the artist name
-        mArtistName.setText(MusicUtils.getArtistName());
-        // Set the total time
-        mTotalTime.setText(MusicUtils.makeTimeString(this, MusicUtils.duration() / 1000));
+        mArtistName.setText(metadata.mArtistName);
         // Set the album art
-        mImageFetcher.loadCurrentArtwork(mAlbumArt);
+        mImageFetcher.loadTrackArtwork(metadata, mAlbumArt);
         // Set the small artwork
-        mImageFetcher.loadCurrentArtwork(mAlbumArtSmall);
-        // Update the current time
-        queueNextRefresh(1);
+        mImageFetcher.loadTrackArtwork(metadata, mAlbumArtSmall);
 
     };
 
@@ -13,6 +13,8 @@ package com.andrew.apollo.ui.activities;
 
 import static com.andrew.apollo.utils.MusicUtils.mService;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 
@@ -43,11 +45,15 @@ import com.andrew.apollo.IApolloService;
 import com.andrew.apollo.MusicPlaybackService;
 import com.andrew.apollo.MusicStateListener;
 import com.andrew.apollo.R;
+import com.andrew.apollo.cache.ImageCache;
+import com.andrew.apollo.model.PlaybackState;
+import com.andrew.apollo.model.TrackMetadata;
 import com.andrew.apollo.utils.ApolloUtils;
 import com.andrew.apollo.utils.Lists;
 import com.andrew.apollo.utils.MusicUtils;
 import com.andrew.apollo.utils.MusicUtils.ServiceToken;
 import com.andrew.apollo.utils.NavUtils;
+import com.andrew.apollo.utils.PlaybackCallback;
 import com.andrew.apollo.utils.ThemeUtils;
 import com.andrew.apollo.widgets.PlayPauseButton;
 import com.andrew.apollo.widgets.RepeatButton;
@@ -83,9 +89,9 @@ public abstract class BaseActivity extends Activity implements ServiceConnection
         @Override
         public void onReceive(final Context context, final Intent intent) {
             final String action = intent.getAction();
+            // The shared playback state is out of date now
+            MusicUtils.invalidatePlaybackState();
             if (action.equals(MusicPlaybackService.META_CHANGED)) {
-                // Current info
-                mReference.get().updateBottomActionBarInfo();
                 // Update the favorites icon
                 mReference.get().invalidateOptionsMenu();
                 // Let the listener know to the meta chnaged
@@ -94,15 +100,6 @@ public abstract class BaseActivity extends Activity implements ServiceConnection
                         listener.onMetaChanged();
                     }
                 }
-            } else if (action.equals(MusicPlaybackService.PLAYSTATE_CHANGED)) {
-                // Set the play and pause image
-                mReference.get().mPlayPauseButton.updateState();
-            } else if (action.equals(MusicPlaybackService.REPEATMODE_CHANGED)
-                    || action.equals(MusicPlaybackService.SHUFFLEMODE_CHANGED)) {
-                // Set the repeat image
-                mReference.get().mRepeatButton.updateRepeatState();
-                // Set the shuffle image
-                mReference.get().mShuffleButton.updateShuffleState();
             } else if (action.equals(MusicPlaybackService.REFRESH)) {
                 // Let the listener know to update a list
                 for (final MusicStateListener listener : mReference.get().mMusicStateListener) {
@@ -144,8 +141,9 @@ public abstract class BaseActivity extends Activity implements ServiceConnection
          */
         @Override
         public void onClick(final View v) {
-            NavUtils.openAlbumProfile(BaseActivity.this, MusicUtils.getAlbumName(),
-                    MusicUtils.getArtistName());
+            final TrackMetadata metadata = MusicUtils.getTrackMetadata();
+            NavUtils.openAlbumProfile(BaseActivity.this, metadata.mAlbumName,
+                    metadata.mArtistName);
             if (BaseActivity.this instanceof ProfileActivity) {
                 finish();
             }
@@ -175,6 +173,24 @@ public abstract class BaseActivity extends Activity implements ServiceConnection
      */
     private PlaybackStatus mPlaybackStatus;
 
+    /**
+     * Receives the track and state changes from the service (BAB)
+     */
+    private final PlaybackCallback mPlaybackCallback = new PlaybackCallback() {
+
+        @Override
+        protected void metaChanged(final TrackMetadata metadata) {
+            // Current info
+            updateBottomActionBarInfo(metadata);
+        }
+
+        @Override
+        protected void playbackStateChanged(final PlaybackState state) {
+            // Set the playback drawables
+            updatePlaybackControls();
+        }
+    };
+
     /**
      * Play and pause button (BAB)
      */
@@ -337,6 +353,16 @@ public abstract class BaseActivity extends Activity implements ServiceConnection
         mMusicStateListener.clear();
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void dump(final String prefix, final FileDescriptor fd, final PrintWriter writer,
+            final String[] args) {
+        super.dump(prefix, fd, writer, args);
+        ImageCache.getInstance(this).dump(prefix, writer);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -389,6 +415,8 @@ public abstract class BaseActivity extends Activity implements ServiceConnection
     @Override
     public void onServiceConnected(final ComponentName name, final IBinder service) {
         mService = IApolloService.Stub.asInterface(service);
+        // Listen for track and state changes, the bar needs no position
+        MusicUtils.registerCallback(mPlaybackCallback, 0);
         // Set the playback drawables
         updatePlaybackControls();
         // Current info
@@ -411,19 +439,26 @@ public abstract class BaseActivity extends Activity implements ServiceConnection
     @Override
     protected void onStart() {
         super.onStart();
+        // Listen for track and state changes, the service sends the current
+        // state straight away
+        MusicUtils.registerCallback(mPlaybackCallback, 0);
         final IntentFilter filter = new IntentFilter();
-        // Play and pause changes
-        filter.addAction(MusicPlaybackService.PLAYSTATE_CHANGED);
-        // Shuffle and repeat changes
-        filter.addAction(MusicPlaybackService.SHUFFLEMODE_CHANGED);
-        filter.addAction(MusicPlaybackService.REPEATMODE_CHANGED);
-        // Track changes
+        // Track changes, for the listeners
         filter.addAction(MusicPlaybackService.META_CHANGED);
         // Update a list, probably the playlist fragment's
         filter.addAction(MusicPlaybackService.REFRESH);
         registerReceiver(mPlaybackStatus, filter);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onStop() {
+        super.onStop();
+        MusicUtils.unregisterCallback(mPlaybackCallback);
+    }
+
     /**
      * @return The resource ID to be inflated.
      */
@@ -442,12 +477,21 @@ public abstract class BaseActivity extends Activity implements ServiceConnection
      * Sets the track name, album name, and album art.
      */
     private void updateBottomActionBarInfo() {
+        updateBottomActionBarInfo(MusicUtils.getTrackMetadata());
+    }
+
+    /**
+     * Sets the track name, album name, and album art.
+     * 
+     * @param metadata The current track's metadata
+     */
+    private void updateBottomActionBarInfo(final TrackMetadata metadata) {
         // Set the track name
-        mTrackName.setText(MusicUtils.getTrackName());
+        mTrackName.setText(metadata.mTrackName);
         // Set the artist name
-        mArtistName.setText(MusicUtils.getArtistName());
+        mArtistName.setText(metadata.mArtistName);
         // Set the album art
-        ApolloUtils.getImageFetcher(this).loadCurrentArtwork(mAlbumArt);
+        ApolloUtils.getImageFetcher(this).loadTrackArtwork(metadata, mAlbumArt);
     }
 
     /**
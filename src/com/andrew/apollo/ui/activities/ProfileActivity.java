@@ -36,6 +36,7 @@ import com.andrew.apollo.adapters.PagerAdapter;
 import com.andrew.apollo.cache.ImageFetcher;
 import com.andrew.apollo.menu.PhotoSelectionDialog;
 import com.andrew.apollo.menu.PhotoSelectionDialog.ProfileType;
+import com.andrew.apollo.model.QueueSource;
 import com.andrew.apollo.ui.fragments.profile.AlbumSongFragment;
 import com.andrew.apollo.ui.fragments.profile.ArtistAlbumFragment;
 import com.andrew.apollo.ui.fragments.profile.ArtistSongFragment;
@@ -435,25 +436,23 @@ public class ProfileActivity extends BaseActivity implements OnPageChangeListene
                 ApolloUtils.createShortcutIntent(name, id, mType, this);
                 return true;
             case R.id.menu_shuffle:
-                final String stringId = String.valueOf(mArguments.getLong(Config.ID));
-                long[] list = null;
+                final long longId = mArguments.getLong(Config.ID);
+                int type = -1;
                 if (isArtist()) {
-                    list = MusicUtils.getSongListForArtist(this, stringId);
+                    type = QueueSource.TYPE_ARTIST;
                 } else if (isAlbum()) {
-                    list = MusicUtils.getSongListForAlbum(this, stringId);
+                    type = QueueSource.TYPE_ALBUM;
                 } else if (isGenre()) {
-                    list = MusicUtils.getSongListForGenre(this, stringId);
+                    type = QueueSource.TYPE_GENRE;
                 }
                 if (isPlaylist()) {
-                    MusicUtils.playPlaylist(this, stringId);
+                    MusicUtils.playPlaylist(this, String.valueOf(longId));
                 } else if (isFavorites()) {
                     MusicUtils.playFavorites(this);
                 } else if (isLastAdded()) {
                     MusicUtils.playLastAdded(this);
-                } else {
-                    if (list != null && list.length > 0) {
-                        MusicUtils.playAll(this, list, 0, true);
-                    }
+                } else if (type != -1) {
+                    MusicUtils.playAll(this, new QueueSource(type, longId, null, 0), true);
                 }
                 return true;
             case R.id.menu_sort_by_az:
@@ -27,6 +27,7 @@ import com.andrew.apollo.R;
 import com.andrew.apollo.lyrics.LyricsProvider;
 import com.andrew.apollo.lyrics.LyricsProviderFactory;
 import com.andrew.apollo.lyrics.OfflineLyricsProvider;
+import com.andrew.apollo.model.TrackMetadata;
 import com.andrew.apollo.utils.ApolloUtils;
 import com.andrew.apollo.utils.MusicUtils;
 
@@ -52,8 +53,9 @@ public class LyricsFragment extends Fragment {
          * Constructor of <code>FetchLyrics</code>
          */
         public FetchLyrics() {
-            mArtist = MusicUtils.getArtistName();
-            mSong = MusicUtils.getTrackName();
+            final TrackMetadata metadata = MusicUtils.getTrackMetadata();
+            mArtist = metadata.mArtistName;
+            mSong = metadata.mTrackName;
         }
 
         /**
@@ -11,15 +11,12 @@
 
 package com.andrew.apollo.ui.fragments;
 
-import java.util.List;
-
 import org.holoeverywhere.LayoutInflater;
 import org.holoeverywhere.app.Fragment;
 
 import android.os.Bundle;
 import android.support.v4.app.LoaderManager.LoaderCallbacks;
 import android.support.v4.content.Loader;
-import android.text.TextUtils;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.View;
 import android.view.ViewGroup;
@@ -33,7 +30,7 @@ import com.actionbarsherlock.view.MenuInflater;
 import com.actionbarsherlock.view.MenuItem;
 import com.actionbarsherlock.view.SubMenu;
 import com.andrew.apollo.R;
-import com.andrew.apollo.adapters.SongAdapter;
+import com.andrew.apollo.adapters.QueueAdapter;
 import com.andrew.apollo.dragdrop.DragSortListView;
 import com.andrew.apollo.dragdrop.DragSortListView.DragScrollProfile;
 import com.andrew.apollo.dragdrop.DragSortListView.DropListener;
@@ -42,7 +39,6 @@ import com.andrew.apollo.loaders.NowPlayingCursor;
 import com.andrew.apollo.loaders.QueueLoader;
 import com.andrew.apollo.menu.CreateNewPlaylist;
 import com.andrew.apollo.menu.FragmentMenuItems;
-import com.andrew.apollo.model.Song;
 import com.andrew.apollo.provider.FavoritesStore;
 import com.andrew.apollo.recycler.RecycleHolder;
 import com.andrew.apollo.utils.MusicUtils;
@@ -54,7 +50,7 @@ import com.viewpagerindicator.TitlePageIndicator;
  * 
  * @author Andrew Neal (andrewdneal@gmail.com)
  */
-public class QueueFragment extends Fragment implements LoaderCallbacks<List<Song>>,
+public class QueueFragment extends Fragment implements LoaderCallbacks<NowPlayingCursor>,
         OnItemClickListener, DropListener, RemoveListener, DragScrollProfile {
 
     /**
@@ -70,7 +66,7 @@ public class QueueFragment extends Fragment implements LoaderCallbacks<List<Song
     /**
      * The adapter for the list
      */
-    private SongAdapter mAdapter;
+    private QueueAdapter mAdapter;
 
     /**
      * The list view
@@ -87,11 +83,6 @@ public class QueueFragment extends Fragment implements LoaderCallbacks<List<Song
      */
     private int mSelectedPosition;
 
-    /**
-     * Represents a song
-     */
-    private Song mSong;
-
     /**
      * Song, album, and artist name used in the context menu
      */
@@ -108,13 +99,11 @@ public class QueueFragment extends Fragment implements LoaderCallbacks<List<Song
      */
     @Override
     public void drop(final int from, final int to) {
-        mSong = mAdapter.getItem(from);
-        mAdapter.remove(mSong);
-        mAdapter.insert(mSong, to);
-        mAdapter.notifyDataSetChanged();
-        MusicUtils.moveQueueItem(from, to);
-        // Build the cache
-        mAdapter.buildCache();
+        final NowPlayingCursor queue = mAdapter.getCursor();
+        if (queue != null) {
+            queue.moveItem(from, to);
+            mAdapter.notifyDataSetChanged();
+        }
     }
 
     /**
@@ -122,12 +111,12 @@ public class QueueFragment extends Fragment implements LoaderCallbacks<List<Song
      *         currently playing song.
      */
     private int getItemPositionBySong() {
-        final String trackName = String.valueOf(MusicUtils.getCurrentAudioId());
-        if (mAdapter == null || TextUtils.isEmpty(trackName)) {
+        final long trackId = MusicUtils.getCurrentAudioId();
+        if (mAdapter == null || trackId < 0) {
             return 0;
         }
         for (int i = 0; i < mAdapter.getCount(); i++) {
-            if (mAdapter.getItem(i).mSongId.equals(trackName)) {
+            if (mAdapter.getItemId(i) == trackId) {
                 return i;
             }
         }
@@ -166,11 +155,10 @@ public class QueueFragment extends Fragment implements LoaderCallbacks<List<Song
         if (item.getGroupId() == GROUP_ID) {
             switch (item.getItemId()) {
                 case FragmentMenuItems.PLAY_NEXT:
-                    NowPlayingCursor queue = (NowPlayingCursor) QueueLoader
-                            .makeQueueCursor(getSupportActivity());
-                    queue.removeItem(mSelectedPosition);
-                    queue.close();
-                    queue = null;
+                    final NowPlayingCursor queue = mAdapter.getCursor();
+                    if (queue != null) {
+                        queue.removeItem(mSelectedPosition);
+                    }
                     MusicUtils.playNext(new long[] {
                             mSelectedId
                     });
@@ -218,7 +206,7 @@ public class QueueFragment extends Fragment implements LoaderCallbacks<List<Song
     public void onCreate(final Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         // Create the adpater
-        mAdapter = new SongAdapter(getSupportActivity(), R.layout.edit_track_list_item);
+        mAdapter = new QueueAdapter(getSupportActivity(), R.layout.edit_track_list_item);
     }
 
     /**
@@ -231,12 +219,12 @@ public class QueueFragment extends Fragment implements LoaderCallbacks<List<Song
         // Get the position of the selected item
         final AdapterContextMenuInfo info = (AdapterContextMenuInfo) menuInfo;
         mSelectedPosition = info.position;
-        // Creat a new song
-        mSong = mAdapter.getItem(mSelectedPosition);
-        mSelectedId = Long.valueOf(mSong.mSongId);
-        mSongName = mSong.mSongName;
-        mAlbumName = mSong.mAlbumName;
-        mArtistName = mSong.mArtistName;
+        // Read the song from the queue
+        mSelectedId = mAdapter.getItemId(mSelectedPosition);
+        final NowPlayingCursor queue = (NowPlayingCursor) mAdapter.getItem(mSelectedPosition);
+        mSongName = queue != null ? queue.getString(1) : null;
+        mArtistName = queue != null ? queue.getString(2) : null;
+        mAlbumName = queue != null ? queue.getString(3) : null;
 
         // Play the song next
         menu.add(GROUP_ID, FragmentMenuItems.PLAY_NEXT, Menu.NONE,
@@ -268,7 +256,7 @@ public class QueueFragment extends Fragment implements LoaderCallbacks<List<Song
      * {@inheritDoc}
      */
     @Override
-    public Loader<List<Song>> onCreateLoader(final int id, final Bundle args) {
+    public Loader<NowPlayingCursor> onCreateLoader(final int id, final Bundle args) {
         return new QueueLoader(getSupportActivity());
     }
 
@@ -325,29 +313,19 @@ public class QueueFragment extends Fragment implements LoaderCallbacks<List<Song
      * {@inheritDoc}
      */
     @Override
-    public void onLoaderReset(final Loader<List<Song>> loader) {
+    public void onLoaderReset(final Loader<NowPlayingCursor> loader) {
         // Clear the data in the adapter
-        mAdapter.unload();
+        mAdapter.swapCursor(null);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void onLoadFinished(final Loader<List<Song>> loader, final List<Song> data) {
-        // Check for any errors
-        if (data.isEmpty()) {
-            return;
-        }
-
-        // Start fresh
-        mAdapter.unload();
-        // Add the data to the adpater
-        for (final Song song : data) {
-            mAdapter.add(song);
-        }
-        // Build the cache
-        mAdapter.buildCache();
+    public void onLoadFinished(final Loader<NowPlayingCursor> loader,
+            final NowPlayingCursor data) {
+        // The loader closes the queue shown before
+        mAdapter.swapCursor(data);
     }
 
     /**
@@ -357,12 +335,8 @@ public class QueueFragment extends Fragment implements LoaderCallbacks<List<Song
     public boolean onOptionsItemSelected(final com.actionbarsherlock.view.MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_save_queue:
-                NowPlayingCursor queue = (NowPlayingCursor) QueueLoader
-                        .makeQueueCursor(getSupportActivity());
-                CreateNewPlaylist.getInstance(MusicUtils.getSongListForCursor(queue)).show(
-                        getFragmentManager(), "CreatePlaylist");
-                queue.close();
-                queue = null;
+                CreateNewPlaylist.getInstance(MusicUtils.getQueue()).show(getFragmentManager(),
+                        "CreatePlaylist");
                 return true;
             case R.id.menu_clear_queue:
                 MusicUtils.clearQueue();
@@ -383,17 +357,37 @@ public class QueueFragment extends Fragment implements LoaderCallbacks<List<Song
         }
     }
 
+    /**
+     * Brings the list up to date with the queue. The loader patches the edits
+     * made since the list was loaded in the background, or loads the whole
+     * queue again if the service no longer has them.
+     * 
+     * @param version The queue's new version
+     */
+    public void onQueueChanged(final int version) {
+        final NowPlayingCursor queue = mAdapter.getCursor();
+        if (!isAdded() || queue != null && version == queue.getQueueVersion()) {
+            return;
+        }
+        final Loader<NowPlayingCursor> loader = getLoaderManager().getLoader(LOADER);
+        if (loader != null) {
+            loader.onContentChanged();
+        } else {
+            refreshQueue();
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void remove(final int which) {
-        mSong = mAdapter.getItem(which);
-        mAdapter.remove(mSong);
-        mAdapter.notifyDataSetChanged();
-        MusicUtils.removeTrack(Long.valueOf(mSong.mSongId));
-        // Build the cache
-        mAdapter.buildCache();
+        final NowPlayingCursor queue = mAdapter.getCursor();
+        if (queue != null) {
+            // Every instance of the track goes, as it always has
+            queue.removeTrack(mAdapter.getItemId(which));
+            mAdapter.notifyDataSetChanged();
+        }
     }
 
     /**
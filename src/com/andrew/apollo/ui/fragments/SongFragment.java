@@ -19,7 +19,6 @@ import org.holoeverywhere.app.Fragment;
 import org.holoeverywhere.widget.ListView;
 import org.holoeverywhere.widget.TextView;
 
-import android.database.Cursor;
 import android.os.Bundle;
 import android.os.SystemClock;
 import android.support.v4.app.LoaderManager.LoaderCallbacks;
@@ -43,12 +42,14 @@ import com.andrew.apollo.loaders.SongLoader;
 import com.andrew.apollo.menu.CreateNewPlaylist;
 import com.andrew.apollo.menu.DeleteDialog;
 import com.andrew.apollo.menu.FragmentMenuItems;
+import com.andrew.apollo.model.QueueSource;
 import com.andrew.apollo.model.Song;
 import com.andrew.apollo.provider.FavoritesStore;
 import com.andrew.apollo.recycler.RecycleHolder;
 import com.andrew.apollo.ui.activities.BaseActivity;
 import com.andrew.apollo.utils.MusicUtils;
 import com.andrew.apollo.utils.NavUtils;
+import com.andrew.apollo.utils.PreferenceUtils;
 import com.viewpagerindicator.TitlePageIndicator;
 
 /**
@@ -290,11 +291,9 @@ public class SongFragment extends Fragment implements LoaderCallbacks<List<Song>
     @Override
     public void onItemClick(final AdapterView<?> parent, final View view, final int position,
             final long id) {
-        Cursor cursor = SongLoader.makeSongCursor(getSupportActivity());
-        final long[] list = MusicUtils.getSongListForCursor(cursor);
-        MusicUtils.playAll(getSupportActivity(), list, position, false);
-        cursor.close();
-        cursor = null;
+        MusicUtils.playAll(getSupportActivity(), new QueueSource(QueueSource.TYPE_ALL_SONGS, -1,
+                PreferenceUtils.getInstace(getSupportActivity()).getSongSortOrder(), position),
+                false);
     }
 
     /**
@@ -19,7 +19,6 @@ import org.holoeverywhere.app.Fragment;
 import org.holoeverywhere.widget.ListView;
 import org.holoeverywhere.widget.TextView;
 
-import android.database.Cursor;
 import android.os.Bundle;
 import android.os.SystemClock;
 import android.support.v4.app.LoaderManager.LoaderCallbacks;
@@ -41,6 +40,7 @@ import com.andrew.apollo.loaders.LastAddedLoader;
 import com.andrew.apollo.menu.CreateNewPlaylist;
 import com.andrew.apollo.menu.DeleteDialog;
 import com.andrew.apollo.menu.FragmentMenuItems;
+import com.andrew.apollo.model.QueueSource;
 import com.andrew.apollo.model.Song;
 import com.andrew.apollo.provider.FavoritesStore;
 import com.andrew.apollo.recycler.RecycleHolder;
@@ -283,11 +283,8 @@ public class LastAddedFragment extends Fragment implements LoaderCallbacks<List<
         if (position == 0) {
             return;
         }
-        Cursor cursor = LastAddedLoader.makeLastAddedCursor(getSupportActivity());
-        final long[] list = MusicUtils.getSongListForCursor(cursor);
-        MusicUtils.playAll(getSupportActivity(), list, position - 1, false);
-        cursor.close();
-        cursor = null;
+        MusicUtils.playAll(getSupportActivity(), new QueueSource(QueueSource.TYPE_LAST_ADDED,
+                -1, null, position - 1), false);
     }
 
     /**
@@ -17,7 +17,6 @@ import org.holoeverywhere.LayoutInflater;
 import org.holoeverywhere.app.Activity;
 import org.holoeverywhere.app.Fragment;
 
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.SystemClock;
@@ -46,6 +45,7 @@ import com.andrew.apollo.loaders.PlaylistSongLoader;
 import com.andrew.apollo.menu.CreateNewPlaylist;
 import com.andrew.apollo.menu.DeleteDialog;
 import com.andrew.apollo.menu.FragmentMenuItems;
+import com.andrew.apollo.model.QueueSource;
 import com.andrew.apollo.model.Song;
 import com.andrew.apollo.provider.FavoritesStore;
 import com.andrew.apollo.recycler.RecycleHolder;
@@ -324,12 +324,8 @@ public class PlaylistSongFragment extends Fragment implements LoaderCallbacks<Li
         if (position == 0) {
             return;
         }
-        Cursor cursor = PlaylistSongLoader.makePlaylistSongCursor(getSupportActivity(),
-                getArguments().getLong(Config.ID));
-        final long[] list = MusicUtils.getSongListForCursor(cursor);
-        MusicUtils.playAll(getSupportActivity(), list, position - 1, false);
-        cursor.close();
-        cursor = null;
+        MusicUtils.playAll(getSupportActivity(), new QueueSource(QueueSource.TYPE_PLAYLIST,
+                getArguments().getLong(Config.ID), null, position - 1), false);
     }
 
     /**
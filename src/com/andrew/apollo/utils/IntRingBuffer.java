@@ -0,0 +1,146 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo.utils;
+
+/**
+ * A fixed capacity list of primitive ints. Once it's full, adding a value
+ * drops the oldest one, so it never allocates after it's created.
+ */
+public final class IntRingBuffer {
+
+    private final int[] mValues;
+
+    /* Index of the oldest value */
+    private int mStart;
+
+    private int mSize;
+
+    /**
+     * Constructor of <code>IntRingBuffer</code>
+     *
+     * @param capacity The most values the buffer keeps
+     */
+    public IntRingBuffer(final int capacity) {
+        mValues = new int[capacity];
+    }
+
+    /**
+     * @return The number of values in the buffer
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return The most values the buffer keeps
+     */
+    public int capacity() {
+        return mValues.length;
+    }
+
+    /**
+     * @param index The index to read, 0 being the oldest value
+     * @return The value at <code>index</code>
+     */
+    public int get(final int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index=" + index + " size=" + mSize);
+        }
+        return mValues[(mStart + index) % mValues.length];
+    }
+
+    /**
+     * @param index The index to replace, 0 being the oldest value
+     * @param value The new value
+     */
+    public void set(final int index, final int value) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index=" + index + " size=" + mSize);
+        }
+        mValues[(mStart + index) % mValues.length] = value;
+    }
+
+    /**
+     * Appends a value, dropping the oldest one if the buffer is full
+     *
+     * @param value The value to append
+     */
+    public void add(final int value) {
+        if (mValues.length == 0) {
+            return;
+        }
+        if (mSize == mValues.length) {
+            mValues[mStart] = value;
+            mStart = (mStart + 1) % mValues.length;
+        } else {
+            mValues[(mStart + mSize) % mValues.length] = value;
+            mSize++;
+        }
+    }
+
+    /**
+     * Removes and returns the newest value
+     *
+     * @return The newest value
+     */
+    public int removeLast() {
+        if (mSize == 0) {
+            throw new IndexOutOfBoundsException("The buffer is empty");
+        }
+        mSize--;
+        return mValues[(mStart + mSize) % mValues.length];
+    }
+
+    /**
+     * Removes and returns the oldest value
+     *
+     * @return The oldest value
+     */
+    public int removeFirst() {
+        if (mSize == 0) {
+            throw new IndexOutOfBoundsException("The buffer is empty");
+        }
+        final int value = mValues[mStart];
+        mStart = (mStart + 1) % mValues.length;
+        mSize--;
+        return value;
+    }
+
+    /**
+     * Drops the newest values until only <code>size</code> are left
+     *
+     * @param size The number of values to keep
+     */
+    public void truncate(final int size) {
+        if (size < mSize) {
+            mSize = Math.max(0, size);
+        }
+    }
+
+    /**
+     * Removes every value
+     */
+    public void clear() {
+        mStart = 0;
+        mSize = 0;
+    }
+
+    /**
+     * @return A copy of the values, oldest first
+     */
+    public int[] toArray() {
+        final int[] result = new int[mSize];
+        for (int i = 0; i < mSize; i++) {
+            result[i] = mValues[(mStart + i) % mValues.length];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,524 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo.utils;
+
+import java.util.Random;
+
+/**
+ * An indexable list of primitive longs, stored as chunks of up to
+ * {@link #CHUNK_SIZE} values in a tree ordered by position (an implicit
+ * treap). Every node knows how many values its subtree holds, so reading,
+ * inserting, moving and removing at any position only walks one path from
+ * the root instead of shifting the whole tail of an array.
+ * <p>
+ * Neighbouring chunks are merged whenever two pieces are joined and fit in a
+ * single chunk, which keeps the tree from fragmenting after many small
+ * edits.
+ */
+public final class LongRope {
+
+    /* The most values a single node holds */
+    private static final int CHUNK_SIZE = 128;
+
+    private static final class Node {
+
+        final long[] mValues = new long[CHUNK_SIZE];
+
+        /* Number of values in this node */
+        int mCount;
+
+        /* Number of values in this subtree */
+        int mSize;
+
+        final int mPriority;
+
+        Node mLeft;
+
+        Node mRight;
+
+        /**
+         * Constructor of <code>Node</code>
+         *
+         * @param priority The heap priority of the node
+         */
+        Node(final int priority) {
+            mPriority = priority;
+        }
+
+        /**
+         * Recomputes the subtree size from the children
+         */
+        void update() {
+            mSize = mCount + size(mLeft) + size(mRight);
+        }
+    }
+
+    private final Random mRandom = new Random();
+
+    private Node mRoot;
+
+    /* Results of the last split */
+    private Node mSplitLeft;
+
+    private Node mSplitRight;
+
+    /**
+     * Constructor of <code>LongRope</code>
+     */
+    public LongRope() {
+        super();
+    }
+
+    /**
+     * @return The number of values in the list
+     */
+    public int size() {
+        return size(mRoot);
+    }
+
+    /**
+     * @param index The position to read
+     * @return The value at <code>index</code>
+     */
+    public long get(int index) {
+        checkIndex(index);
+        Node node = mRoot;
+        while (true) {
+            final int left = size(node.mLeft);
+            if (index < left) {
+                node = node.mLeft;
+            } else if (index < left + node.mCount) {
+                return node.mValues[index - left];
+            } else {
+                index -= left + node.mCount;
+                node = node.mRight;
+            }
+        }
+    }
+
+    /**
+     * @param index The position to replace
+     * @param value The new value
+     */
+    public void set(int index, final long value) {
+        checkIndex(index);
+        Node node = mRoot;
+        while (true) {
+            final int left = size(node.mLeft);
+            if (index < left) {
+                node = node.mLeft;
+            } else if (index < left + node.mCount) {
+                node.mValues[index - left] = value;
+                return;
+            } else {
+                index -= left + node.mCount;
+                node = node.mRight;
+            }
+        }
+    }
+
+    /**
+     * Appends a value to the end of the list
+     *
+     * @param value The value to append
+     */
+    public void add(final long value) {
+        insert(size(), new long[] {
+            value
+        }, 0, 1);
+    }
+
+    /**
+     * Inserts values into the list
+     *
+     * @param index The position to insert at
+     * @param values The values to insert
+     */
+    public void insert(final int index, final long[] values) {
+        insert(index, values, 0, values.length);
+    }
+
+    /**
+     * Inserts part of an array into the list
+     *
+     * @param index The position to insert at
+     * @param values The array holding the values to insert
+     * @param offset The first value in <code>values</code> to insert
+     * @param count The number of values to insert
+     */
+    public void insert(final int index, final long[] values, final int offset, final int count) {
+        if (index < 0 || index > size()) {
+            throw new IndexOutOfBoundsException("index=" + index + " size=" + size());
+        }
+        if (count <= 0) {
+            return;
+        }
+        if (count == 1 && insertInPlace(index, values[offset])) {
+            return;
+        }
+        split(mRoot, index);
+        final Node left = mSplitLeft;
+        final Node right = mSplitRight;
+        mRoot = join(join(left, build(values, offset, count)), right);
+    }
+
+    /**
+     * Removes a range of values
+     *
+     * @param from The first position to remove
+     * @param to One past the last position to remove
+     */
+    public void removeRange(final int from, final int to) {
+        if (from < 0 || to > size() || from > to) {
+            throw new IndexOutOfBoundsException("from=" + from + " to=" + to + " size="
+                    + size());
+        }
+        if (from == to) {
+            return;
+        }
+        if (to - from == 1 && removeInPlace(from)) {
+            return;
+        }
+        split(mRoot, to);
+        final Node right = mSplitRight;
+        split(mSplitLeft, from);
+        mRoot = join(mSplitLeft, right);
+    }
+
+    /**
+     * Moves a single value to a new position
+     *
+     * @param from The current position of the value
+     * @param to The position the value should end up at
+     */
+    public void move(final int from, final int to) {
+        checkIndex(from);
+        checkIndex(to);
+        if (from == to) {
+            return;
+        }
+        final long value = get(from);
+        removeRange(from, from + 1);
+        insert(to, new long[] {
+            value
+        }, 0, 1);
+    }
+
+    /**
+     * Removes every value
+     */
+    public void clear() {
+        mRoot = null;
+    }
+
+    /**
+     * Replaces the contents of the list
+     *
+     * @param values The new values
+     * @param count The number of values to take from <code>values</code>
+     */
+    public void setAll(final long[] values, final int count) {
+        mRoot = build(values, 0, count);
+    }
+
+    /**
+     * @return A copy of the list as an array
+     */
+    public long[] toArray() {
+        final long[] result = new long[size()];
+        copy(mRoot, 0, 0, result.length, result, 0);
+        return result;
+    }
+
+    /**
+     * Copies a range of values into an array
+     *
+     * @param from The first position to copy
+     * @param dest The array to copy into
+     * @param destOffset The position in <code>dest</code> to start at
+     * @param count The number of values to copy
+     */
+    public void copyTo(final int from, final long[] dest, final int destOffset, final int count) {
+        if (from < 0 || count < 0 || from + count > size()) {
+            throw new IndexOutOfBoundsException("from=" + from + " count=" + count + " size="
+                    + size());
+        }
+        copy(mRoot, 0, from, from + count, dest, destOffset - from);
+    }
+
+    /**
+     * @param node A node, may be null
+     * @return The number of values in the subtree
+     */
+    private static int size(final Node node) {
+        return node != null ? node.mSize : 0;
+    }
+
+    /**
+     * @param index The index to check
+     */
+    private void checkIndex(final int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index=" + index + " size=" + size());
+        }
+    }
+
+    /**
+     * Inserts a single value into the chunk that already covers
+     * <code>index</code>, if it has room, without reshaping the tree
+     *
+     * @param index The position to insert at
+     * @param value The value to insert
+     * @return True if the value was inserted
+     */
+    private boolean insertInPlace(final int index, final long value) {
+        Node node = mRoot;
+        int offset = index;
+        while (node != null) {
+            final int left = size(node.mLeft);
+            if (offset < left) {
+                node = node.mLeft;
+            } else if (offset <= left + node.mCount) {
+                break;
+            } else {
+                offset -= left + node.mCount;
+                node = node.mRight;
+            }
+        }
+        if (node == null || node.mCount == CHUNK_SIZE) {
+            return false;
+        }
+        final Node target = node;
+        offset -= size(target.mLeft);
+        System.arraycopy(target.mValues, offset, target.mValues, offset + 1, target.mCount
+                - offset);
+        target.mValues[offset] = value;
+        target.mCount++;
+        adjustSizes(index, target, 1);
+        return true;
+    }
+
+    /**
+     * Removes a single value from its chunk, as long as that leaves the chunk
+     * non-empty, without reshaping the tree
+     *
+     * @param index The position to remove
+     * @return True if the value was removed
+     */
+    private boolean removeInPlace(final int index) {
+        Node node = mRoot;
+        int offset = index;
+        while (true) {
+            final int left = size(node.mLeft);
+            if (offset < left) {
+                node = node.mLeft;
+            } else if (offset < left + node.mCount) {
+                break;
+            } else {
+                offset -= left + node.mCount;
+                node = node.mRight;
+            }
+        }
+        if (node.mCount == 1) {
+            return false;
+        }
+        offset -= size(node.mLeft);
+        System.arraycopy(node.mValues, offset + 1, node.mValues, offset, node.mCount - offset
+                - 1);
+        node.mCount--;
+        adjustSizes(index, node, -1);
+        return true;
+    }
+
+    /**
+     * Walks from the root down to <code>target</code>, adding
+     * <code>delta</code> to every subtree size on the way. The walk follows
+     * the same path taken to find <code>target</code> before its count
+     * changed.
+     *
+     * @param index The position used to find <code>target</code>
+     * @param target The node whose count changed
+     * @param delta The change in its count
+     */
+    private void adjustSizes(int index, final Node target, final int delta) {
+        Node node = mRoot;
+        while (node != target) {
+            node.mSize += delta;
+            final int left = size(node.mLeft);
+            if (index < left) {
+                node = node.mLeft;
+            } else {
+                index -= left + node.mCount;
+                node = node.mRight;
+            }
+        }
+        target.mSize += delta;
+    }
+
+    /**
+     * Copies the values of a subtree that fall in [from, to)
+     *
+     * @param node The subtree
+     * @param start The list position of the first value in the subtree
+     * @param from The first position to copy
+     * @param to One past the last position to copy
+     * @param dest The array to copy into
+     * @param shift Added to a list position to get its position in
+     *            <code>dest</code>
+     */
+    private static void copy(final Node node, final int start, final int from, final int to,
+            final long[] dest, final int shift) {
+        if (node == null || start >= to || start + node.mSize <= from) {
+            return;
+        }
+        copy(node.mLeft, start, from, to, dest, shift);
+        final int nodeStart = start + size(node.mLeft);
+        final int first = Math.max(from, nodeStart);
+        final int last = Math.min(to, nodeStart + node.mCount);
+        if (first < last) {
+            System.arraycopy(node.mValues, first - nodeStart, dest, first + shift, last - first);
+        }
+        copy(node.mRight, nodeStart + node.mCount, from, to, dest, shift);
+    }
+
+    /**
+     * Builds a tree holding part of an array
+     *
+     * @param values The array holding the values
+     * @param offset The first value to take
+     * @param count The number of values to take
+     * @return The root of the new tree
+     */
+    private Node build(final long[] values, final int offset, final int count) {
+        Node root = null;
+        for (int i = 0; i < count; i += CHUNK_SIZE) {
+            final Node node = new Node(mRandom.nextInt());
+            node.mCount = Math.min(CHUNK_SIZE, count - i);
+            System.arraycopy(values, offset + i, node.mValues, 0, node.mCount);
+            node.update();
+            root = merge(root, node);
+        }
+        return root;
+    }
+
+    /**
+     * Splits a tree into the first <code>index</code> values, left in
+     * {@link #mSplitLeft}, and the rest, left in {@link #mSplitRight}. A node
+     * straddling the split point is cut in two.
+     *
+     * @param node The tree to split
+     * @param index The number of values that go to the left
+     */
+    private void split(final Node node, final int index) {
+        if (node == null) {
+            mSplitLeft = null;
+            mSplitRight = null;
+            return;
+        }
+        final int left = size(node.mLeft);
+        if (index <= left) {
+            split(node.mLeft, index);
+            node.mLeft = mSplitRight;
+            node.update();
+            mSplitRight = node;
+        } else if (index >= left + node.mCount) {
+            split(node.mRight, index - left - node.mCount);
+            node.mRight = mSplitLeft;
+            node.update();
+            mSplitLeft = node;
+        } else {
+            // Cut the chunk itself. The tail keeps the same priority, which
+            // is still higher than anything in the right subtree
+            final int offset = index - left;
+            final Node tail = new Node(node.mPriority);
+            tail.mCount = node.mCount - offset;
+            System.arraycopy(node.mValues, offset, tail.mValues, 0, tail.mCount);
+            node.mCount = offset;
+            tail.mRight = node.mRight;
+            node.mRight = null;
+            node.update();
+            tail.update();
+            mSplitLeft = node;
+            mSplitRight = tail;
+        }
+    }
+
+    /**
+     * Merges two trees, all of <code>left</code> coming before
+     * <code>right</code>
+     *
+     * @param left The first tree
+     * @param right The second tree
+     * @return The root of the merged tree
+     */
+    private static Node merge(final Node left, final Node right) {
+        if (left == null) {
+            return right;
+        } else if (right == null) {
+            return left;
+        }
+        if (left.mPriority > right.mPriority) {
+            left.mRight = merge(left.mRight, right);
+            left.update();
+            return left;
+        }
+        right.mLeft = merge(left, right.mLeft);
+        right.update();
+        return right;
+    }
+
+    /**
+     * Merges two trees, first folding the first chunk of <code>right</code>
+     * into the last chunk of <code>left</code> if they fit together
+     *
+     * @param left The first tree
+     * @param right The second tree
+     * @return The root of the joined tree
+     */
+    private static Node join(final Node left, Node right) {
+        if (left == null || right == null) {
+            return merge(left, right);
+        }
+        Node last = left;
+        while (last.mRight != null) {
+            last = last.mRight;
+        }
+        Node first = right;
+        while (first.mLeft != null) {
+            first = first.mLeft;
+        }
+        if (last.mCount + first.mCount <= CHUNK_SIZE) {
+            System.arraycopy(first.mValues, 0, last.mValues, last.mCount, first.mCount);
+            last.mCount += first.mCount;
+            final int moved = first.mCount;
+            for (Node node = left; node != null; node = node.mRight) {
+                node.mSize += moved;
+            }
+            right = removeFirst(right);
+        }
+        return merge(left, right);
+    }
+
+    /**
+     * Unlinks the leftmost node of a tree
+     *
+     * @param node The tree
+     * @return The root of the tree without its leftmost node
+     */
+    private static Node removeFirst(final Node node) {
+        if (node.mLeft == null) {
+            return node.mRight;
+        }
+        node.mLeft = removeFirst(node.mLeft);
+        node.update();
+        return node;
+    }
+}
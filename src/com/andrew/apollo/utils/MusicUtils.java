@@ -29,8 +29,10 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.provider.MediaStore;
 import android.provider.MediaStore.Audio.AlbumColumns;
@@ -44,14 +46,18 @@ import android.util.Log;
 
 import com.actionbarsherlock.view.Menu;
 import com.actionbarsherlock.view.SubMenu;
+import com.andrew.apollo.IApolloCallback;
 import com.andrew.apollo.IApolloService;
 import com.andrew.apollo.MusicPlaybackService;
 import com.andrew.apollo.R;
 import com.andrew.apollo.loaders.FavoritesLoader;
 import com.andrew.apollo.loaders.LastAddedLoader;
 import com.andrew.apollo.loaders.PlaylistLoader;
-import com.andrew.apollo.loaders.SongLoader;
 import com.andrew.apollo.menu.FragmentMenuItems;
+import com.andrew.apollo.model.PlaybackState;
+import com.andrew.apollo.model.QueueChanges;
+import com.andrew.apollo.model.QueueSource;
+import com.andrew.apollo.model.TrackMetadata;
 import com.andrew.apollo.provider.FavoritesStore;
 import com.andrew.apollo.provider.FavoritesStore.FavoriteColumns;
 import com.andrew.apollo.provider.RecentStore;
@@ -114,6 +120,15 @@ public final class MusicUtils {
 
     public static IApolloService mService = null;
 
+    /**
+     * How long a playback state is shared, in milliseconds
+     */
+    private static final long PLAYBACK_STATE_MAX_AGE = 50;
+
+    private static PlaybackState mPlaybackState = null;
+
+    private static long mPlaybackStateTime;
+
     private static final long[] sEmptyList;
 
     static {
@@ -241,6 +256,7 @@ public final class MusicUtils {
      * Cycles through the repeat options.
      */
     public static void cycleRepeat() {
+        invalidatePlaybackState();
         try {
             if (mService != null) {
                 switch (mService.getRepeatMode()) {
@@ -266,6 +282,7 @@ public final class MusicUtils {
      * Cycles through the shuffle options.
      */
     public static void cycleShuffle() {
+        invalidatePlaybackState();
         try {
             if (mService != null) {
                 switch (mService.getShuffleMode()) {
@@ -314,11 +331,22 @@ public final class MusicUtils {
         if (c != null) {
             // Step 1: Remove selected tracks from the current playlist, as well
             // as from the album art cache
+            // Remove from current playlist, off the main thread as the removal
+            // waits for the service
+            ApolloUtils.execute(false, new AsyncTask<long[], Void, Void>() {
+
+                /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                protected Void doInBackground(final long[]... ids) {
+                    removeTracksById(ids[0]);
+                    return null;
+                }
+            }, list);
             c.moveToFirst();
             while (!c.isAfterLast()) {
-                // Remove from current playlist
                 final long id = c.getLong(0);
-                removeTrack(id);
                 // Remove from the favorites playlist
                 FavoritesStore.getInstance(context).removeItem(id);
                 // Remove any items in the recents database
@@ -400,6 +428,100 @@ public final class MusicUtils {
         return artistName;
     }
 
+    /**
+     * Returns the position, duration, play state and modes in one call to the
+     * service. The result is shared for {@link #PLAYBACK_STATE_MAX_AGE}
+     * milliseconds, so the views drawn in the same frame only ask once.
+     * 
+     * @return The current playback state.
+     */
+    public static final PlaybackState getPlaybackState() {
+        final long now = SystemClock.uptimeMillis();
+        if (mPlaybackState != null && now - mPlaybackStateTime < PLAYBACK_STATE_MAX_AGE) {
+            return mPlaybackState;
+        }
+        PlaybackState state = null;
+        if (mService != null) {
+            try {
+                state = mService.getPlaybackState();
+            } catch (final RemoteException ignored) {
+            }
+        }
+        if (state == null) {
+            mPlaybackState = null;
+            return PlaybackState.EMPTY;
+        }
+        mPlaybackState = state;
+        mPlaybackStateTime = now;
+        return state;
+    }
+
+    /**
+     * Forgets the shared playback state, called when it's known to have
+     * changed.
+     */
+    public static void invalidatePlaybackState() {
+        mPlaybackState = null;
+    }
+
+    /**
+     * Shares a playback state the service pushed, see
+     * {@link PlaybackCallback}.
+     * 
+     * @param state The state to share.
+     */
+    public static void putPlaybackState(final PlaybackState state) {
+        mPlaybackState = state;
+        mPlaybackStateTime = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Registers a callback for the service's state changes. Position ticks
+     * only cost anything while something is playing.
+     * 
+     * @param callback The callback to register.
+     * @param positionInterval How often to send the position while playing,
+     *            in milliseconds, or 0 for never.
+     */
+    public static void registerCallback(final IApolloCallback callback,
+            final long positionInterval) {
+        if (mService != null) {
+            try {
+                mService.registerCallback(callback, positionInterval);
+            } catch (final RemoteException ignored) {
+            }
+        }
+    }
+
+    /**
+     * @param callback The callback to unregister.
+     */
+    public static void unregisterCallback(final IApolloCallback callback) {
+        if (mService != null) {
+            try {
+                mService.unregisterCallback(callback);
+            } catch (final RemoteException ignored) {
+            }
+        }
+    }
+
+    /**
+     * @return The metadata of the current track, all in one call to the
+     *         service.
+     */
+    public static final TrackMetadata getTrackMetadata() {
+        if (mService != null) {
+            try {
+                final TrackMetadata metadata = mService.getTrackMetadata();
+                if (metadata != null) {
+                    return metadata;
+                }
+            } catch (final RemoteException ignored) {
+            }
+        }
+        return TrackMetadata.EMPTY;
+    }
+
     /**
      * @return The current album name.
      */
@@ -581,6 +703,37 @@ public final class MusicUtils {
         return sEmptyList;
     }
 
+    /**
+     * @param offset The position of the first track.
+     * @param length The most tracks to return.
+     * @return Part of the queue.
+     */
+    public static final long[] getQueueSlice(final int offset, final int length) {
+        try {
+            if (mService != null) {
+                return mService.getQueueSlice(offset, length);
+            }
+        } catch (final RemoteException ignored) {
+        }
+        return sEmptyList;
+    }
+
+    /**
+     * @param version The version of the queue the caller has, or -1 to only
+     *            read the current version and length.
+     * @return The edits made to the queue since then, or null if the service
+     *         isn't there.
+     */
+    public static final QueueChanges getQueueChanges(final int version) {
+        try {
+            if (mService != null) {
+                return mService.getQueueChangesSince(version);
+            }
+        } catch (final RemoteException ignored) {
+        }
+        return null;
+    }
+
     /**
      * @return The position of the current track in the queue.
      */
@@ -852,6 +1005,65 @@ public final class MusicUtils {
         return sEmptyList;
     }
 
+    /**
+     * @param context The {@link Context} to use
+     * @param source The list to read
+     * @return A cursor of the track IDs in the list, in column 0, or null
+     */
+    public static final Cursor makeQueueSourceCursor(final Context context,
+            final QueueSource source) {
+        final ContentResolver resolver = context.getContentResolver();
+        final String[] projection = new String[] {
+                BaseColumns._ID
+        };
+        final String sortOrder = source.mSortOrder;
+        switch (source.mType) {
+            case QueueSource.TYPE_ALL_SONGS:
+                return resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection,
+                        AudioColumns.IS_MUSIC + "=1 AND " + MediaColumns.TITLE + " != ''", null,
+                        sortOrder);
+            case QueueSource.TYPE_ALBUM:
+                return resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection,
+                        AudioColumns.ALBUM_ID + "=" + source.mId + " AND "
+                                + AudioColumns.IS_MUSIC + "=1", null, sortOrder != null
+                                ? sortOrder : AudioColumns.TRACK + ", "
+                                        + MediaStore.Audio.Media.DEFAULT_SORT_ORDER);
+            case QueueSource.TYPE_ARTIST:
+                return resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection,
+                        AudioColumns.ARTIST_ID + "=" + source.mId + " AND "
+                                + AudioColumns.IS_MUSIC + "=1", null, sortOrder != null
+                                ? sortOrder : AudioColumns.ALBUM_KEY + "," + AudioColumns.TRACK);
+            case QueueSource.TYPE_GENRE:
+                return resolver.query(
+                        MediaStore.Audio.Genres.Members.getContentUri("external", source.mId),
+                        projection, AudioColumns.IS_MUSIC + "=1 AND " + MediaColumns.TITLE
+                                + "!=''", null, sortOrder);
+            case QueueSource.TYPE_PLAYLIST:
+                return resolver.query(
+                        MediaStore.Audio.Playlists.Members.getContentUri("external", source.mId),
+                        new String[] {
+                            MediaStore.Audio.Playlists.Members.AUDIO_ID
+                        }, AudioColumns.IS_MUSIC + "=1 AND " + MediaColumns.TITLE + " != ''",
+                        null, sortOrder != null ? sortOrder
+                                : MediaStore.Audio.Playlists.Members.DEFAULT_SORT_ORDER);
+            case QueueSource.TYPE_LAST_ADDED:
+                final int fourWeeks = 4 * 3600 * 24 * 7;
+                return resolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, projection,
+                        AudioColumns.IS_MUSIC + "=1 AND " + MediaColumns.TITLE + " != '' AND "
+                                + MediaColumns.DATE_ADDED + ">"
+                                + (System.currentTimeMillis() / 1000 - fourWeeks), null,
+                        sortOrder != null ? sortOrder : MediaColumns.DATE_ADDED + " DESC");
+            case QueueSource.TYPE_FAVORITES:
+                return FavoritesStore.getInstance(context).getReadableDatabase().query(
+                        FavoriteColumns.NAME, new String[] {
+                            FavoriteColumns.ID
+                        }, null, null, null, null,
+                        sortOrder != null ? sortOrder : FavoriteColumns.PLAYCOUNT + " DESC");
+            default:
+                return null;
+        }
+    }
+
     /**
      * @return The current track name.
      */
@@ -1043,6 +1255,7 @@ public final class MusicUtils {
      * Changes to the next track
      */
     public static void next() {
+        invalidatePlaybackState();
         try {
             if (mService != null) {
                 mService.next();
@@ -1086,13 +1299,44 @@ public final class MusicUtils {
         }
     }
 
+    /**
+     * Plays a list the service reads itself, so it doesn't have to be built
+     * here and sent over.
+     * 
+     * @param context The {@link Context} to use.
+     * @param source The list of songs to play, and where to start.
+     * @param forceShuffle True to force a shuffle, false otherwise.
+     */
+    public static void playAll(final Context context, final QueueSource source,
+            final boolean forceShuffle) {
+        if (mService == null) {
+            return;
+        }
+        try {
+            if (forceShuffle) {
+                mService.setShuffleMode(MusicPlaybackService.SHUFFLE_NORMAL);
+            } else {
+                mService.setShuffleMode(MusicPlaybackService.SHUFFLE_NONE);
+            }
+            if (source.mPosition != -1 && getQueuePosition() == source.mPosition
+                    && source.isSameList(mService.getQueueSource())) {
+                mService.play();
+                return;
+            }
+            mService.openSource(forceShuffle ? new QueueSource(source.mType, source.mId,
+                    source.mSortOrder, -1) : source);
+            mService.play();
+        } catch (final RemoteException ignored) {
+        }
+    }
+
     /**
      * Play the songs that have been marked as favorites.
      * 
      * @param context The {@link Context} to use
      */
     public static void playFavorites(final Context context) {
-        playAll(context, getSongListForFavorites(context), 0, false);
+        playAll(context, new QueueSource(QueueSource.TYPE_FAVORITES, -1, null, 0), false);
     }
 
     /**
@@ -1101,7 +1345,7 @@ public final class MusicUtils {
      * @param context The {@link Context} to use
      */
     public static void playLastAdded(final Context context) {
-        playAll(context, getSongListForLastAdded(context), 0, false);
+        playAll(context, new QueueSource(QueueSource.TYPE_LAST_ADDED, -1, null, 0), false);
     }
 
     /**
@@ -1121,6 +1365,7 @@ public final class MusicUtils {
      * Plays or pauses the music.
      */
     public static void playOrPause() {
+        invalidatePlaybackState();
         try {
             if (mService != null) {
                 if (mService.isPlaying()) {
@@ -1140,10 +1385,8 @@ public final class MusicUtils {
      * @param playlistId The playlist Id.
      */
     public static void playPlaylist(final Context context, final String playlistId) {
-        final long[] playlistList = getSongListForPlaylist(context, playlistId);
-        if (playlistList != null) {
-            playAll(context, playlistList, -1, false);
-        }
+        playAll(context, new QueueSource(QueueSource.TYPE_PLAYLIST, Long.valueOf(playlistId),
+                null, -1), false);
     }
 
     /**
@@ -1174,6 +1417,7 @@ public final class MusicUtils {
      *       previously listened track.
      */
     public static void previous(final Context context) {
+        invalidatePlaybackState();
         final Intent previous = new Intent(context, MusicPlaybackService.class);
         previous.setAction(MusicPlaybackService.PREVIOUS_ACTION);
         context.startService(previous);
@@ -1205,12 +1449,44 @@ public final class MusicUtils {
         return 0;
     }
 
+    /**
+     * @param position The position in the queue of the track to remove.
+     * @return True if the track was removed.
+     */
+    public static final boolean removeQueueItem(final int position) {
+        try {
+            if (mService != null) {
+                return mService.removeTracks(position, position) > 0;
+            }
+        } catch (final RemoteException ingored) {
+        }
+        return false;
+    }
+
+    /**
+     * Waits for the service, so it shouldn't be called from the main thread.
+     *
+     * @param ids The IDs of the tracks to remove.
+     * @return The number of tracks removed from the queue, or -1 if the
+     *         removal didn't finish in time and will still happen.
+     */
+    public static final int removeTracksById(final long[] ids) {
+        try {
+            if (mService != null) {
+                return mService.removeTracksById(ids);
+            }
+        } catch (final RemoteException ingored) {
+        }
+        return 0;
+    }
+
     /**
      * Seeks the current track to a desired position
      * 
      * @param position The position to seek to
      */
     public static void seek(final long position) {
+        invalidatePlaybackState();
         if (mService != null) {
             try {
                 mService.seek(position);
@@ -1223,6 +1499,7 @@ public final class MusicUtils {
      * @param position The position to move the queue to
      */
     public static void setQueuePosition(final int position) {
+        invalidatePlaybackState();
         if (mService != null) {
             try {
                 mService.setQueuePosition(position);
@@ -1274,30 +1551,8 @@ public final class MusicUtils {
      * @param context The {@link Context} to use.
      */
     public static void shuffleAll(final Context context) {
-        Cursor cursor = SongLoader.makeSongCursor(context);
-        final long[] mTrackList = getSongListForCursor(cursor);
-        final int position = 0;
-        if (mTrackList.length == 0 || mService == null) {
-            return;
-        }
-        try {
-            mService.setShuffleMode(MusicPlaybackService.SHUFFLE_NORMAL);
-            final long mCurrentId = mService.getAudioId();
-            final int mCurrentQueuePosition = getQueuePosition();
-            if (position != -1 && mCurrentQueuePosition == position
-                    && mCurrentId == mTrackList[position]) {
-                final long[] mPlaylist = getQueue();
-                if (Arrays.equals(mTrackList, mPlaylist)) {
-                    mService.play();
-                    return;
-                }
-            }
-            mService.open(mTrackList, -1);
-            mService.play();
-            cursor.close();
-            cursor = null;
-        } catch (final RemoteException ignored) {
-        }
+        playAll(context, new QueueSource(QueueSource.TYPE_ALL_SONGS, -1, PreferenceUtils
+                .getInstace(context).getSongSortOrder(), -1), true);
     }
 
     /**
@@ -0,0 +1,539 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo.utils;
+
+import java.util.Random;
+
+/**
+ * Picks tracks for party shuffle. Every track has a small integer weight
+ * between 1 and {@link #MAX_WEIGHT}, and tracks that were picked recently are
+ * left out until enough other tracks have been picked after them.
+ * <p>
+ * Tracks are grouped by weight. Each group keeps the tracks that may be
+ * picked at the front of its array and the recently picked ones at the back,
+ * so a draw picks a group in proportion to its weight times the number of
+ * tracks it can offer, then a slot in that group, without retrying. Adding,
+ * removing or re-weighting a track, or moving it in or out of the recent
+ * set, swaps a couple of slots.
+ */
+public final class PartyShuffler {
+
+    /* The heaviest weight a track can have */
+    public static final int MAX_WEIGHT = 4;
+
+    private static final int EMPTY = -1;
+
+    private final Random mRandom = new Random();
+
+    /* Recently picked tracks, oldest first */
+    private final IntRingBuffer mRecent;
+
+    /* The audio ID of each track */
+    private long[] mIds = new long[64];
+
+    /* The weight of each track */
+    private int[] mWeights = new int[64];
+
+    /* The slot of each track in its group */
+    private int[] mSlots = new int[64];
+
+    /* Stamp of the last update that saw each track */
+    private int[] mStamps = new int[64];
+
+    private int mSize;
+
+    /* The tracks in each group, indexed by weight */
+    private final int[][] mGroups = new int[MAX_WEIGHT + 1][];
+
+    /* The number of tracks in each group */
+    private final int[] mGroupSizes = new int[MAX_WEIGHT + 1];
+
+    /* The number of tracks in each group that may be picked */
+    private final int[] mAvailable = new int[MAX_WEIGHT + 1];
+
+    /* Open addressing table from audio ID to track */
+    private long[] mKeys = new long[128];
+
+    private int[] mValues = new int[128];
+
+    private int mStamp;
+
+    /**
+     * Constructor of <code>PartyShuffler</code>
+     *
+     * @param recentSize The most tracks kept out of the draw at once
+     */
+    public PartyShuffler(final int recentSize) {
+        mRecent = new IntRingBuffer(recentSize);
+        for (int i = 1; i <= MAX_WEIGHT; i++) {
+            mGroups[i] = new int[16];
+        }
+        clearTable();
+    }
+
+    /**
+     * @return The number of tracks that can be picked from
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Starts bringing the tracks in line with the library in several steps.
+     * Every track still in the library should be passed to
+     * {@link #put(long, int)} before {@link #endUpdate()} is called.
+     */
+    public void beginUpdate() {
+        mStamp++;
+    }
+
+    /**
+     * Drops every track that wasn't passed to {@link #put(long, int)} since
+     * {@link #beginUpdate()} was called
+     */
+    public void endUpdate() {
+        for (int track = mSize - 1; track >= 0; track--) {
+            if (mStamps[track] != mStamp) {
+                remove(track);
+            }
+        }
+    }
+
+    /**
+     * Adds a track, or changes its weight if it's already known. Either way
+     * the track is kept by the update in progress.
+     *
+     * @param id The audio ID of the track
+     * @param weight The weight of the track
+     */
+    public void put(final long id, final int weight) {
+        final int track = find(id);
+        if (track == EMPTY) {
+            add(id, weight);
+        } else {
+            setWeight(track, weight);
+            mStamps[track] = mStamp;
+        }
+    }
+
+    /**
+     * Removes a track
+     *
+     * @param id The audio ID of the track
+     */
+    public void remove(final long id) {
+        final int track = find(id);
+        if (track != EMPTY) {
+            remove(track);
+        }
+    }
+
+    /**
+     * Picks a track and keeps it out of the next draws for a while
+     *
+     * @return The audio ID of the track, or -1 if there are no tracks
+     */
+    public long next() {
+        if (mSize == 0) {
+            return -1;
+        }
+        long total = 0;
+        for (int weight = 1; weight <= MAX_WEIGHT; weight++) {
+            total += (long) weight * mAvailable[weight];
+        }
+        if (total == 0) {
+            // Everything was played recently, start over
+            while (mRecent.size() > 0) {
+                release();
+            }
+            return next();
+        }
+        long pick = (long) (mRandom.nextDouble() * total);
+        for (int weight = 1; weight <= MAX_WEIGHT; weight++) {
+            final long span = (long) weight * mAvailable[weight];
+            if (pick < span) {
+                final int track = mGroups[weight][(int) (pick / weight)];
+                markPlayed(track);
+                return mIds[track];
+            }
+            pick -= span;
+        }
+        // Only reachable through rounding, take the last available track
+        for (int weight = MAX_WEIGHT; weight >= 1; weight--) {
+            if (mAvailable[weight] > 0) {
+                final int track = mGroups[weight][mAvailable[weight] - 1];
+                markPlayed(track);
+                return mIds[track];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Keeps a track out of the next draws, as if it had just been picked
+     *
+     * @param id The audio ID of the track
+     */
+    public void markPlayed(final long id) {
+        final int track = find(id);
+        if (track != EMPTY) {
+            markPlayed(track);
+        }
+    }
+
+    /**
+     * @return The audio IDs of the tracks kept out of the draw, the oldest
+     *         first
+     */
+    public long[] getRecent() {
+        final long[] ids = new long[mRecent.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = mIds[mRecent.get(i)];
+        }
+        return ids;
+    }
+
+    /**
+     * @return The audio IDs of every track
+     */
+    public long[] getIds() {
+        final long[] ids = new long[mSize];
+        System.arraycopy(mIds, 0, ids, 0, mSize);
+        return ids;
+    }
+
+    /**
+     * Lets every track be picked again
+     */
+    public void clearRecent() {
+        while (mRecent.size() > 0) {
+            release();
+        }
+    }
+
+    /**
+     * @param track A track
+     * @return True if the track is in the recent set
+     */
+    private boolean isRecent(final int track) {
+        return mSlots[track] >= mAvailable[mWeights[track]];
+    }
+
+    /**
+     * Moves a track into the recent set, letting the oldest one out if the
+     * set is full. At most half of the tracks are held back so there's always
+     * a choice.
+     *
+     * @param track The track
+     */
+    private void markPlayed(final int track) {
+        if (isRecent(track)) {
+            return;
+        }
+        final int limit = Math.min(mRecent.capacity(), mSize / 2);
+        if (limit == 0) {
+            return;
+        }
+        while (mRecent.size() >= limit) {
+            release();
+        }
+        final int weight = mWeights[track];
+        swap(weight, mSlots[track], mAvailable[weight] - 1);
+        mAvailable[weight]--;
+        mRecent.add(track);
+    }
+
+    /**
+     * Lets the oldest recently picked track be picked again
+     */
+    private void release() {
+        final int track = mRecent.removeFirst();
+        final int weight = mWeights[track];
+        swap(weight, mSlots[track], mAvailable[weight]);
+        mAvailable[weight]++;
+    }
+
+    /**
+     * Adds a new track to the end of the tracks and to its group
+     *
+     * @param id The audio ID of the track
+     * @param weight The weight of the track
+     */
+    private void add(final long id, final int weight) {
+        if (mSize == mIds.length) {
+            final int capacity = mSize * 2;
+            mIds = grow(mIds, capacity);
+            mWeights = grow(mWeights, capacity);
+            mSlots = grow(mSlots, capacity);
+            mStamps = grow(mStamps, capacity);
+        }
+        final int track = mSize++;
+        mIds[track] = id;
+        mStamps[track] = mStamp;
+        mWeights[track] = clamp(weight);
+        insertIntoGroup(track);
+        if ((mSize + 1) * 2 > mKeys.length) {
+            rehash(mKeys.length * 2);
+        } else {
+            putKey(id, track);
+        }
+    }
+
+    /**
+     * Removes a track, moving the last track into its place
+     *
+     * @param track The track to remove
+     */
+    private void remove(final int track) {
+        if (isRecent(track)) {
+            // Drop it from the recent set, keeping the rest in order
+            int keep = 0;
+            for (int i = 0; i < mRecent.size(); i++) {
+                final int value = mRecent.get(i);
+                if (value != track) {
+                    mRecent.set(keep++, value);
+                }
+            }
+            mRecent.truncate(keep);
+            final int weight = mWeights[track];
+            swap(weight, mSlots[track], mAvailable[weight]);
+            mAvailable[weight]++;
+        }
+        removeFromGroup(track);
+        removeKey(mIds[track]);
+
+        final int last = --mSize;
+        if (track != last) {
+            final int weight = mWeights[last];
+            mIds[track] = mIds[last];
+            mWeights[track] = weight;
+            mSlots[track] = mSlots[last];
+            mStamps[track] = mStamps[last];
+            mGroups[weight][mSlots[track]] = track;
+            putKey(mIds[track], track);
+            for (int i = 0; i < mRecent.size(); i++) {
+                if (mRecent.get(i) == last) {
+                    mRecent.set(i, track);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves a track to another group, keeping it in or out of the recent set
+     *
+     * @param track The track
+     * @param weight The new weight
+     */
+    private void setWeight(final int track, final int weight) {
+        final int clamped = clamp(weight);
+        if (mWeights[track] == clamped) {
+            return;
+        }
+        final boolean recent = isRecent(track);
+        if (recent) {
+            final int old = mWeights[track];
+            swap(old, mSlots[track], mAvailable[old]);
+            mAvailable[old]++;
+        }
+        removeFromGroup(track);
+        mWeights[track] = clamped;
+        insertIntoGroup(track);
+        if (recent) {
+            swap(clamped, mSlots[track], mAvailable[clamped] - 1);
+            mAvailable[clamped]--;
+        }
+    }
+
+    /**
+     * Adds a track to the available part of its group
+     *
+     * @param track The track
+     */
+    private void insertIntoGroup(final int track) {
+        final int weight = mWeights[track];
+        int[] group = mGroups[weight];
+        final int size = mGroupSizes[weight];
+        if (size == group.length) {
+            group = grow(group, size * 2);
+            mGroups[weight] = group;
+        }
+        if (mAvailable[weight] < size) {
+            // The first recent track moves to the end to make room
+            group[size] = group[mAvailable[weight]];
+            mSlots[group[size]] = size;
+        }
+        group[mAvailable[weight]] = track;
+        mSlots[track] = mAvailable[weight];
+        mAvailable[weight]++;
+        mGroupSizes[weight]++;
+    }
+
+    /**
+     * Removes an available track from its group
+     *
+     * @param track The track
+     */
+    private void removeFromGroup(final int track) {
+        final int weight = mWeights[track];
+        final int[] group = mGroups[weight];
+        final int lastAvailable = mAvailable[weight] - 1;
+        swap(weight, mSlots[track], lastAvailable);
+        // Fill the hole with the last recent track
+        final int last = mGroupSizes[weight] - 1;
+        group[lastAvailable] = group[last];
+        mSlots[group[lastAvailable]] = lastAvailable;
+        mAvailable[weight]--;
+        mGroupSizes[weight]--;
+    }
+
+    /**
+     * Swaps two slots in a group
+     *
+     * @param weight The group
+     * @param a The first slot
+     * @param b The second slot
+     */
+    private void swap(final int weight, final int a, final int b) {
+        final int[] group = mGroups[weight];
+        final int first = group[a];
+        final int second = group[b];
+        group[a] = second;
+        group[b] = first;
+        mSlots[second] = a;
+        mSlots[first] = b;
+    }
+
+    /**
+     * @param id An audio ID
+     * @return The track with that ID, or {@link #EMPTY}
+     */
+    private int find(final long id) {
+        final int mask = mKeys.length - 1;
+        int index = hash(id) & mask;
+        while (mValues[index] != EMPTY) {
+            if (mKeys[index] == id) {
+                return mValues[index];
+            }
+            index = (index + 1) & mask;
+        }
+        return EMPTY;
+    }
+
+    /**
+     * Maps an audio ID to a track, replacing any existing mapping
+     *
+     * @param id The audio ID
+     * @param track The track
+     */
+    private void putKey(final long id, final int track) {
+        final int mask = mKeys.length - 1;
+        int index = hash(id) & mask;
+        while (mValues[index] != EMPTY && mKeys[index] != id) {
+            index = (index + 1) & mask;
+        }
+        mKeys[index] = id;
+        mValues[index] = track;
+    }
+
+    /**
+     * Removes the mapping for an audio ID, shifting back the entries that
+     * probed past it
+     *
+     * @param id The audio ID
+     */
+    private void removeKey(final long id) {
+        final int mask = mKeys.length - 1;
+        int index = hash(id) & mask;
+        while (mValues[index] != EMPTY && mKeys[index] != id) {
+            index = (index + 1) & mask;
+        }
+        if (mValues[index] == EMPTY) {
+            return;
+        }
+        int hole = index;
+        int next = (hole + 1) & mask;
+        while (mValues[next] != EMPTY) {
+            final int home = hash(mKeys[next]) & mask;
+            // Move the entry back if the hole lies between its home and where
+            // it ended up
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                mKeys[hole] = mKeys[next];
+                mValues[hole] = mValues[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        mValues[hole] = EMPTY;
+    }
+
+    /**
+     * Rebuilds the table with a new capacity
+     *
+     * @param capacity The new capacity, a power of two
+     */
+    private void rehash(final int capacity) {
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        clearTable();
+        for (int track = 0; track < mSize; track++) {
+            putKey(mIds[track], track);
+        }
+    }
+
+    /**
+     * Marks every entry in the table as empty
+     */
+    private void clearTable() {
+        for (int i = 0; i < mValues.length; i++) {
+            mValues[i] = EMPTY;
+        }
+    }
+
+    /**
+     * @param id An audio ID
+     * @return The hash of the ID
+     */
+    private static int hash(final long id) {
+        final long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * @param weight A weight
+     * @return The weight, kept between 1 and {@link #MAX_WEIGHT}
+     */
+    private static int clamp(final int weight) {
+        return Math.max(1, Math.min(MAX_WEIGHT, weight));
+    }
+
+    /**
+     * @param array The array to grow
+     * @param capacity The new capacity
+     * @return A copy of the array with the new capacity
+     */
+    private static int[] grow(final int[] array, final int capacity) {
+        final int[] grown = new int[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    /**
+     * @param array The array to grow
+     * @param capacity The new capacity
+     * @return A copy of the array with the new capacity
+     */
+    private static long[] grow(final long[] array, final int capacity) {
+        final long[] grown = new long[capacity];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.andrew.apollo.IApolloCallback;
+import com.andrew.apollo.model.PlaybackState;
+import com.andrew.apollo.model.TrackMetadata;
+
+/**
+ * An {@link IApolloCallback} that hands what the service pushes over to the
+ * UI thread. Override the methods that matter and register it with
+ * {@link MusicUtils#registerCallback(IApolloCallback, long)}.
+ */
+public abstract class PlaybackCallback extends IApolloCallback.Stub {
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final void onMetaChanged(final TrackMetadata metadata) {
+        mHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                metaChanged(metadata);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final void onPlaybackStateChanged(final PlaybackState state) {
+        mHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                // Anything that reads the state while handling this gets it
+                // without asking the service again
+                MusicUtils.putPlaybackState(state);
+                playbackStateChanged(state);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final void onQueueChanged(final int queueVersion) {
+        mHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                queueChanged(queueVersion);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final void onPositionChanged(final long position, final long duration) {
+        mHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                positionChanged(position, duration);
+            }
+        });
+    }
+
+    /**
+     * Called on the UI thread when the track changes, and once on
+     * registering
+     * 
+     * @param metadata The current track's metadata
+     */
+    protected void metaChanged(final TrackMetadata metadata) {
+    }
+
+    /**
+     * Called on the UI thread when the play state, the modes or the queue
+     * change, and once on registering
+     * 
+     * @param state The current playback state
+     */
+    protected void playbackStateChanged(final PlaybackState state) {
+    }
+
+    /**
+     * Called on the UI thread when the queue changes
+     * 
+     * @param queueVersion The queue's new version
+     */
+    protected void queueChanged(final int queueVersion) {
+    }
+
+    /**
+     * Called on the UI thread at the interval asked for while playing
+     * 
+     * @param position The position in the current track, in milliseconds
+     * @param duration The duration of the current track, in milliseconds
+     */
+    protected void positionChanged(final long position, final long duration) {
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo.utils;
+
+/**
+ * The version of the queue and the most recent edits made to it, so a client
+ * that has the queue as of an older version can patch its copy instead of
+ * reading the whole queue again.
+ * <p>
+ * Every edit moves the version on by one. Edits that can't be described as
+ * an insert, a remove or a move, like replacing the whole queue, drop what's
+ * logged, and only the last {@link #CAPACITY} edits are kept, so a client
+ * that is too far behind has to reload.
+ * <p>
+ * Edits are packed three ints at a time: the op, then its two arguments.
+ */
+public final class QueueChangeLog {
+
+    /**
+     * Tracks were inserted. The arguments are the position and the number of
+     * tracks.
+     */
+    public static final int OP_INSERT = 1;
+
+    /**
+     * A range of tracks was removed. The arguments are the first and the last
+     * position removed.
+     */
+    public static final int OP_REMOVE = 2;
+
+    /**
+     * A track was moved. The arguments are the position it was moved from
+     * and the position it was moved to.
+     */
+    public static final int OP_MOVE = 3;
+
+    /**
+     * The most edits kept
+     */
+    public static final int CAPACITY = 64;
+
+    /* The edits, a ring of CAPACITY ops of three ints each */
+    private final int[] mOps = new int[CAPACITY * 3];
+
+    /* Index of the oldest op in the ring */
+    private int mStart;
+
+    private int mCount;
+
+    /* The version after the newest op */
+    private int mVersion;
+
+    /**
+     * @return The version of the queue
+     */
+    public synchronized int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Records that tracks were inserted
+     *
+     * @param position The position they were inserted at
+     * @param count The number of tracks
+     */
+    public void insert(final int position, final int count) {
+        if (count > 0) {
+            add(OP_INSERT, position, count);
+        }
+    }
+
+    /**
+     * Records that a range of tracks was removed
+     *
+     * @param first The first position removed
+     * @param last The last position removed
+     */
+    public void remove(final int first, final int last) {
+        if (last >= first) {
+            add(OP_REMOVE, first, last);
+        }
+    }
+
+    /**
+     * Records that a track was moved
+     *
+     * @param from The position it was moved from
+     * @param to The position it was moved to
+     */
+    public void move(final int from, final int to) {
+        if (from != to) {
+            add(OP_MOVE, from, to);
+        }
+    }
+
+    /**
+     * Records an edit that can't be patched, so every client has to reload
+     */
+    public synchronized void reset() {
+        mVersion++;
+        mStart = 0;
+        mCount = 0;
+    }
+
+    /**
+     * Returns the edits made since a version
+     *
+     * @param version The version the client has
+     * @return The edits since then, packed, which is empty if the client is
+     *         up to date, or null if it has to reload the queue
+     */
+    public synchronized int[] getChangesSince(final int version) {
+        // The version the oldest op was made on
+        final int oldest = mVersion - mCount;
+        if (version < oldest || version > mVersion) {
+            return null;
+        }
+        final int count = mVersion - version;
+        final int[] changes = new int[count * 3];
+        for (int i = 0; i < count; i++) {
+            final int slot = (mStart + mCount - count + i) % CAPACITY;
+            System.arraycopy(mOps, slot * 3, changes, i * 3, 3);
+        }
+        return changes;
+    }
+
+    /**
+     * Appends an op, dropping the oldest one if the ring is full
+     *
+     * @param op The op
+     * @param first Its first argument
+     * @param second Its second argument
+     */
+    private synchronized void add(final int op, final int first, final int second) {
+        if (mCount == CAPACITY) {
+            mStart = (mStart + 1) % CAPACITY;
+            mCount--;
+        }
+        final int slot = (mStart + mCount) % CAPACITY * 3;
+        mOps[slot] = op;
+        mOps[slot + 1] = first;
+        mOps[slot + 2] = second;
+        mCount++;
+        mVersion++;
+    }
+}
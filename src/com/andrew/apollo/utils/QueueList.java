@@ -0,0 +1,222 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo.utils;
+
+import android.database.Cursor;
+
+/**
+ * The audio IDs in the playback queue. A queue opened from a query keeps the
+ * query's {@link Cursor} and reads an ID only when it's asked for, so the
+ * cursor's window fills one page at a time as playback moves through it. The
+ * first edit copies the IDs into a {@link LongRope}, closes the cursor and
+ * every later edit goes to the rope.
+ * <p>
+ * A cursor has a single position, so every method is synchronized.
+ */
+public final class QueueList {
+
+    private final LongRope mRope = new LongRope();
+
+    /* The query the IDs are read from, or null once they are in the rope */
+    private Cursor mCursor;
+
+    /* The number of rows the cursor counted */
+    private int mCursorSize;
+
+    /**
+     * Constructor of <code>QueueList</code>
+     */
+    public QueueList() {
+        super();
+    }
+
+    /**
+     * Replaces the contents of the list with the IDs of a query. The list
+     * closes the cursor when it's done with it.
+     *
+     * @param cursor A cursor with the audio IDs in its first column
+     */
+    public synchronized void setCursor(final Cursor cursor) {
+        clear();
+        mCursor = cursor;
+        mCursorSize = Math.max(0, cursor.getCount());
+    }
+
+    /**
+     * @return True if the IDs are still read from a query
+     */
+    public synchronized boolean isBackedByCursor() {
+        return mCursor != null;
+    }
+
+    /**
+     * @return The number of IDs in the list
+     */
+    public synchronized int size() {
+        return mCursor != null ? mCursorSize : mRope.size();
+    }
+
+    /**
+     * @param index The position to read
+     * @return The ID at <code>index</code>, or -1 if the query no longer has
+     *         that row
+     */
+    public synchronized long get(final int index) {
+        if (mCursor == null) {
+            return mRope.get(index);
+        }
+        checkIndex(index);
+        return read(index);
+    }
+
+    /**
+     * Appends an ID to the end of the list
+     *
+     * @param value The ID to append
+     */
+    public synchronized void add(final long value) {
+        materialize();
+        mRope.add(value);
+    }
+
+    /**
+     * Inserts IDs into the list
+     *
+     * @param index The position to insert at
+     * @param values The IDs to insert
+     */
+    public synchronized void insert(final int index, final long[] values) {
+        materialize();
+        mRope.insert(index, values);
+    }
+
+    /**
+     * Removes a range of IDs
+     *
+     * @param from The first position to remove
+     * @param to One past the last position to remove
+     */
+    public synchronized void removeRange(final int from, final int to) {
+        materialize();
+        mRope.removeRange(from, to);
+    }
+
+    /**
+     * Moves a single ID to a new position
+     *
+     * @param from The current position of the ID
+     * @param to The position the ID should end up at
+     */
+    public synchronized void move(final int from, final int to) {
+        materialize();
+        mRope.move(from, to);
+    }
+
+    /**
+     * Removes every ID
+     */
+    public synchronized void clear() {
+        closeCursor();
+        mRope.clear();
+    }
+
+    /**
+     * Replaces the contents of the list
+     *
+     * @param values The new IDs
+     * @param count The number of IDs to take from <code>values</code>
+     */
+    public synchronized void setAll(final long[] values, final int count) {
+        closeCursor();
+        mRope.setAll(values, count);
+    }
+
+    /**
+     * @return A copy of the list as an array
+     */
+    public synchronized long[] toArray() {
+        if (mCursor == null) {
+            return mRope.toArray();
+        }
+        final long[] result = new long[mCursorSize];
+        copyTo(0, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Copies a range of IDs into an array
+     *
+     * @param from The first position to copy
+     * @param dest The array to copy into
+     * @param destOffset The position in <code>dest</code> to start at
+     * @param count The number of IDs to copy
+     */
+    public synchronized void copyTo(final int from, final long[] dest, final int destOffset,
+            final int count) {
+        if (mCursor == null) {
+            mRope.copyTo(from, dest, destOffset, count);
+            return;
+        }
+        if (from < 0 || count < 0 || from + count > mCursorSize) {
+            throw new IndexOutOfBoundsException("from=" + from + " count=" + count + " size="
+                    + mCursorSize);
+        }
+        for (int i = 0; i < count; i++) {
+            dest[destOffset + i] = read(from + i);
+        }
+    }
+
+    /**
+     * Copies the IDs of the query into the rope before an edit and lets the
+     * cursor go
+     */
+    private void materialize() {
+        if (mCursor == null) {
+            return;
+        }
+        final long[] values = toArray();
+        closeCursor();
+        mRope.setAll(values, values.length);
+    }
+
+    /**
+     * @param index A position within the cursor's count
+     * @return The ID in that row, or -1 if the query no longer has it
+     */
+    private long read(final int index) {
+        try {
+            return mCursor.moveToPosition(index) ? mCursor.getLong(0) : -1;
+        } catch (final RuntimeException e) {
+            // The storage holding the library went away
+            return -1;
+        }
+    }
+
+    /**
+     * Closes the cursor, if there is one
+     */
+    private void closeCursor() {
+        if (mCursor != null) {
+            mCursor.close();
+            mCursor = null;
+            mCursorSize = 0;
+        }
+    }
+
+    /**
+     * @param index The index to check
+     */
+    private void checkIndex(final int index) {
+        if (index < 0 || index >= mCursorSize) {
+            throw new IndexOutOfBoundsException("index=" + index + " size=" + mCursorSize);
+        }
+    }
+}
@@ -0,0 +1,536 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo.utils;
+
+import java.util.Random;
+
+/**
+ * The order tracks are played in when the queue is shuffled.
+ * <p>
+ * The order is a permutation of the queue positions with a cursor in it.
+ * Everything up to the cursor has been played in the current pass, the
+ * cursor is the current track and everything after it is still to come. The
+ * permutation is drawn lazily, one Fisher-Yates step at a time, so picking
+ * the next track is O(1) and starting a new pass only resets the cursor.
+ * <p>
+ * A second array maps every position back to its slot in the permutation, so
+ * queue edits patch the order in place rather than throwing it away. The
+ * tracks played before the current one are kept in an {@link IntRingBuffer}
+ * so going back retraces them exactly, across passes.
+ * <p>
+ * Patching the permutation is linear in the length of the queue, so it's
+ * only built once a track is picked from it. After {@link #reset(int)} the
+ * queue edits only track its length and the history until then, which is
+ * what keeps them cheap while the queue isn't shuffled.
+ */
+public final class ShuffleOrder {
+
+    private final Random mRandom = new Random();
+
+    private final IntRingBuffer mHistory;
+
+    /* The permutation, mOrder[slot] is a queue position */
+    private int[] mOrder = new int[16];
+
+    /* The inverse permutation, mRank[position] is a slot */
+    private int[] mRank = new int[16];
+
+    private int mSize;
+
+    /* Slot of the current track, or -1 before the first one of a pass */
+    private int mCursor = -1;
+
+    /* Last slot whose track is fixed, slots after it are still undrawn */
+    private int mDrawn = -1;
+
+    /* False until the permutation is needed, it's the identity until then */
+    private boolean mBuilt = false;
+
+    /**
+     * Constructor of <code>ShuffleOrder</code>
+     *
+     * @param historySize The number of played tracks to remember
+     */
+    public ShuffleOrder(final int historySize) {
+        mHistory = new IntRingBuffer(historySize);
+    }
+
+    /**
+     * @return The number of positions in the order
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Starts over with a queue of the given length. The history is kept. The
+     * permutation isn't built until a track is picked from it.
+     *
+     * @param size The length of the queue
+     */
+    public void reset(final int size) {
+        mSize = size;
+        mCursor = -1;
+        mDrawn = -1;
+        mBuilt = false;
+    }
+
+    /**
+     * Restores a saved order. Anything that doesn't describe a permutation of
+     * <code>size</code> positions is ignored and a fresh order is used
+     * instead.
+     *
+     * @param size The length of the queue
+     * @param order The saved order, may be null
+     * @param cursor The saved cursor
+     * @param history The saved history, may be null
+     */
+    public void restore(final int size, final int[] order, final int cursor, final int[] history) {
+        reset(size);
+        mHistory.clear();
+        if (history != null) {
+            for (int i = 0; i < history.length; i++) {
+                if (history[i] >= 0 && history[i] < size) {
+                    mHistory.add(history[i]);
+                }
+            }
+        }
+        if (order == null || order.length != size || cursor < -1 || cursor >= size) {
+            return;
+        }
+        build();
+        for (int i = 0; i < size; i++) {
+            mRank[i] = -1;
+        }
+        for (int i = 0; i < size; i++) {
+            final int position = order[i];
+            if (position < 0 || position >= size || mRank[position] >= 0) {
+                reset(size);
+                build();
+                return;
+            }
+            mOrder[i] = position;
+            mRank[position] = i;
+        }
+        mCursor = cursor;
+        mDrawn = cursor;
+    }
+
+    /**
+     * @return A copy of the order, for saving
+     */
+    public int[] getOrder() {
+        build();
+        final int[] order = new int[mSize];
+        System.arraycopy(mOrder, 0, order, 0, mSize);
+        return order;
+    }
+
+    /**
+     * @return The slot of the current track in the order, for saving
+     */
+    public int getCursor() {
+        return mCursor;
+    }
+
+    /**
+     * @return A copy of the history, oldest first, for saving
+     */
+    public int[] getHistory() {
+        return mHistory.toArray();
+    }
+
+    /**
+     * Forgets the tracks played so far
+     */
+    public void clearHistory() {
+        mHistory.clear();
+    }
+
+    /**
+     * Returns the track to play after the current one, drawing it if that
+     * hasn't happened yet. Calling this again without moving returns the same
+     * position.
+     *
+     * @return The next position, or -1 if every track has been played in this
+     *         pass
+     */
+    public int peekNext() {
+        return peek(1);
+    }
+
+    /**
+     * Returns the track that plays a number of tracks after the current one,
+     * drawing every track up to it that hasn't been drawn yet
+     *
+     * @param offset How far ahead to look, 1 for the next track
+     * @return The position, or -1 if the pass ends before then
+     */
+    public int peek(final int offset) {
+        final int slot = mCursor + offset;
+        if (offset < 1 || slot >= mSize) {
+            return -1;
+        }
+        build();
+        for (int next = Math.max(mDrawn, mCursor) + 1; next <= slot; next++) {
+            swap(next, next + mRandom.nextInt(mSize - next));
+            mDrawn = next;
+        }
+        return mOrder[slot];
+    }
+
+    /**
+     * Returns a track from the history without going back to it
+     *
+     * @param offset How far back to look, 1 for the track played last
+     * @return The position, or -1 if the history is shorter than that
+     */
+    public int peekPrevious(final int offset) {
+        final int index = mHistory.size() - offset;
+        if (offset < 1 || index < 0) {
+            return -1;
+        }
+        return mHistory.get(index);
+    }
+
+    /**
+     * Starts a new pass over the queue. The current track counts as played
+     * so it isn't picked again straight away, unless it's the only one.
+     */
+    public void newPass() {
+        final int current = mCursor >= 0 ? mOrder[mCursor] : -1;
+        mCursor = -1;
+        mDrawn = -1;
+        if (current >= 0 && mSize > 1) {
+            setCurrent(current);
+        }
+    }
+
+    /**
+     * Makes a position the current track, marking it played in this pass
+     *
+     * @param position The position that is now playing
+     */
+    public void setCurrent(final int position) {
+        if (position < 0 || position >= mSize) {
+            return;
+        }
+        build();
+        final int slot = mRank[position];
+        if (slot <= mCursor) {
+            // Already played in this pass, just make it the current one
+            swap(slot, mCursor);
+        } else {
+            swap(slot, mCursor + 1);
+            mCursor++;
+            if (mDrawn < mCursor) {
+                mDrawn = mCursor;
+            }
+        }
+    }
+
+    /**
+     * Moves on from the current track to another one, remembering the current
+     * track in the history
+     *
+     * @param current The position that was playing, or -1
+     * @param position The position that is now playing
+     */
+    public void advance(final int current, final int position) {
+        if (current >= 0 && current < mSize) {
+            mHistory.add(current);
+        }
+        setCurrent(position);
+    }
+
+    /**
+     * Goes back to the track played before the current one. The current track
+     * becomes the next one again, so moving forward retraces the same steps.
+     *
+     * @return The previous position, or -1 if there's no history
+     */
+    public int previous() {
+        if (mHistory.size() == 0) {
+            return -1;
+        }
+        final int position = mHistory.removeLast();
+        if (mCursor < 0) {
+            setCurrent(position);
+            return position;
+        }
+        final int slot = mRank[position];
+        if (slot < mCursor) {
+            // Played in this pass, the current track is already after it
+            mCursor--;
+            swap(slot, mCursor);
+        } else if (slot > mCursor) {
+            // Played in an earlier pass. The current track moves up a slot to
+            // make room, so the track goes back among the played ones rather
+            // than the current one going among the undrawn.
+            swap(mCursor, mCursor + 1);
+            swap(mRank[position], mCursor);
+        }
+        if (mDrawn < mCursor + 1 && mCursor + 1 < mSize) {
+            mDrawn = mCursor + 1;
+        }
+        return position;
+    }
+
+    /**
+     * Patches the order after tracks were inserted into the queue. The new
+     * tracks haven't been played yet.
+     *
+     * @param position The position the tracks were inserted at
+     * @param count The number of tracks inserted
+     */
+    public void insert(final int position, final int count) {
+        if (count <= 0 || position < 0 || position > mSize) {
+            return;
+        }
+        if (mBuilt) {
+            ensureCapacity(mSize + count);
+            for (int i = position; i < mSize; i++) {
+                mOrder[mRank[i]] += count;
+            }
+            System.arraycopy(mRank, position, mRank, position + count, mSize - position);
+            for (int i = 0; i < count; i++) {
+                mOrder[mSize + i] = position + i;
+                mRank[position + i] = mSize + i;
+            }
+        }
+        mSize += count;
+        for (int i = 0; i < mHistory.size(); i++) {
+            final int value = mHistory.get(i);
+            if (value >= position) {
+                mHistory.set(i, value + count);
+            }
+        }
+    }
+
+    /**
+     * Patches the order after a range of tracks was removed from the queue
+     *
+     * @param first The first position removed
+     * @param last The last position removed
+     */
+    public void remove(final int first, final int last) {
+        if (first < 0 || last < first || last >= mSize) {
+            return;
+        }
+        final int count = last - first + 1;
+        if (mBuilt) {
+            removeFromOrder(first, last);
+        } else {
+            mSize -= count;
+        }
+
+        int keep = 0;
+        for (int i = 0; i < mHistory.size(); i++) {
+            final int value = mHistory.get(i);
+            if (value < first) {
+                mHistory.set(keep++, value);
+            } else if (value > last) {
+                mHistory.set(keep++, value - count);
+            }
+        }
+        mHistory.truncate(keep);
+    }
+
+    /**
+     * Drops a range of positions from the permutation
+     *
+     * @param first The first position removed
+     * @param last The last position removed
+     */
+    private void removeFromOrder(final int first, final int last) {
+        final int count = last - first + 1;
+        int cursor = mCursor;
+        int drawn = mDrawn;
+        int write = 0;
+        for (int slot = 0; slot < mSize; slot++) {
+            final int value = mOrder[slot];
+            if (value >= first && value <= last) {
+                if (slot <= mCursor) {
+                    cursor--;
+                }
+                if (slot <= mDrawn) {
+                    drawn--;
+                }
+                continue;
+            }
+            final int position = value > last ? value - count : value;
+            mOrder[write] = position;
+            mRank[position] = write;
+            write++;
+        }
+        mSize = write;
+        mCursor = cursor;
+        mDrawn = Math.max(cursor, drawn);
+    }
+
+    /**
+     * Patches the order after any number of tracks were removed from the
+     * queue at once
+     *
+     * @param map The new position of every old position, or -1 for the
+     *            positions that were removed
+     */
+    public void remove(final int[] map) {
+        if (map.length != mSize) {
+            return;
+        }
+        if (!mBuilt) {
+            for (int i = 0; i < map.length; i++) {
+                if (map[i] < 0) {
+                    mSize--;
+                }
+            }
+        } else {
+            removeFromOrder(map);
+        }
+
+        int keep = 0;
+        for (int i = 0; i < mHistory.size(); i++) {
+            final int value = mHistory.get(i);
+            if (value < map.length && map[value] >= 0) {
+                mHistory.set(keep++, map[value]);
+            }
+        }
+        mHistory.truncate(keep);
+    }
+
+    /**
+     * Drops the positions a removal mapped to -1 from the permutation
+     *
+     * @param map The new position of every old position, or -1 for the
+     *            positions that were removed
+     */
+    private void removeFromOrder(final int[] map) {
+        int cursor = mCursor;
+        int drawn = mDrawn;
+        int write = 0;
+        for (int slot = 0; slot < mSize; slot++) {
+            final int position = map[mOrder[slot]];
+            if (position < 0) {
+                if (slot <= mCursor) {
+                    cursor--;
+                }
+                if (slot <= mDrawn) {
+                    drawn--;
+                }
+                continue;
+            }
+            mOrder[write] = position;
+            mRank[position] = write;
+            write++;
+        }
+        mSize = write;
+        mCursor = cursor;
+        mDrawn = Math.max(cursor, drawn);
+    }
+
+    /**
+     * Patches the order after a track was moved within the queue. Only the
+     * positions between <code>from</code> and <code>to</code> are touched.
+     *
+     * @param from The position the track was moved from
+     * @param to The position the track was moved to
+     */
+    public void move(final int from, final int to) {
+        if (from == to || from < 0 || from >= mSize || to < 0 || to >= mSize) {
+            return;
+        }
+        if (mBuilt) {
+            final int slot = mRank[from];
+            if (from < to) {
+                for (int i = from + 1; i <= to; i++) {
+                    mOrder[mRank[i]] = i - 1;
+                }
+                System.arraycopy(mRank, from + 1, mRank, from, to - from);
+            } else {
+                for (int i = to; i < from; i++) {
+                    mOrder[mRank[i]] = i + 1;
+                }
+                System.arraycopy(mRank, to, mRank, to + 1, from - to);
+            }
+            mOrder[slot] = to;
+            mRank[to] = slot;
+        }
+
+        for (int i = 0; i < mHistory.size(); i++) {
+            final int value = mHistory.get(i);
+            if (value == from) {
+                mHistory.set(i, to);
+            } else if (from < to && value > from && value <= to) {
+                mHistory.set(i, value - 1);
+            } else if (to < from && value >= to && value < from) {
+                mHistory.set(i, value + 1);
+            }
+        }
+    }
+
+    /**
+     * Builds the permutation as the identity if it hasn't been built since
+     * the last {@link #reset(int)}
+     */
+    private void build() {
+        if (mBuilt) {
+            return;
+        }
+        if (mSize > mOrder.length) {
+            // Nothing in the arrays is kept
+            final int capacity = Math.max(mSize, mOrder.length * 2);
+            mOrder = new int[capacity];
+            mRank = new int[capacity];
+        }
+        for (int i = 0; i < mSize; i++) {
+            mOrder[i] = i;
+            mRank[i] = i;
+        }
+        mBuilt = true;
+    }
+
+    /**
+     * Swaps two slots of the order
+     *
+     * @param a The first slot
+     * @param b The second slot
+     */
+    private void swap(final int a, final int b) {
+        if (a == b) {
+            return;
+        }
+        final int first = mOrder[a];
+        final int second = mOrder[b];
+        mOrder[a] = second;
+        mOrder[b] = first;
+        mRank[second] = a;
+        mRank[first] = b;
+    }
+
+    /**
+     * Grows the arrays to hold at least <code>size</code> positions
+     *
+     * @param size The number of positions needed
+     */
+    private void ensureCapacity(final int size) {
+        if (size <= mOrder.length) {
+            return;
+        }
+        final int capacity = Math.max(size, mOrder.length * 2);
+        final int[] order = new int[capacity];
+        final int[] rank = new int[capacity];
+        System.arraycopy(mOrder, 0, order, 0, mSize);
+        System.arraycopy(mRank, 0, rank, 0, mSize);
+        mOrder = order;
+        mRank = rank;
+    }
+}
@@ -90,7 +90,7 @@ public class PlayPauseButton extends ImageButton implements OnClickListener, OnL
      * Sets the correct drawable for playback.
      */
     public void updateState() {
-        if (MusicUtils.isPlaying()) {
+        if (MusicUtils.getPlaybackState().mIsPlaying) {
             setContentDescription(getResources().getString(R.string.accessibility_pause));
             setImageDrawable(mResources.getDrawable(PAUSE));
         } else {
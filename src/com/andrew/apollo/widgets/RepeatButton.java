@@ -96,7 +96,7 @@ public class RepeatButton extends ImageButton implements OnClickListener, OnLong
      * Sets the correct drawable for the repeat state.
      */
     public void updateRepeatState() {
-        switch (MusicUtils.getRepeatMode()) {
+        switch (MusicUtils.getPlaybackState().mRepeatMode) {
             case MusicPlaybackService.REPEAT_ALL:
                 setContentDescription(getResources().getString(R.string.accessibility_repeat_all));
                 setImageDrawable(mResources.getDrawable(REPEAT_ALL));
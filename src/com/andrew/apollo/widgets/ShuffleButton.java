@@ -89,7 +89,7 @@ public class ShuffleButton extends ImageButton implements OnClickListener, OnLon
      * Sets the correct drawable for the shuffle state.
      */
     public void updateShuffleState() {
-        switch (MusicUtils.getShuffleMode()) {
+        switch (MusicUtils.getPlaybackState().mShuffleMode) {
             case MusicPlaybackService.SHUFFLE_NORMAL:
                 setContentDescription(getResources().getString(R.string.accessibility_shuffle_all));
                 setImageDrawable(mResources.getDrawable(SHUFFLE_ALL));
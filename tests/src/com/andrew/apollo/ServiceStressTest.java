@@ -0,0 +1,260 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.database.Cursor;
+import android.os.IBinder;
+import android.provider.BaseColumns;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Audio.AudioColumns;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+/**
+ * Hammers {@link MusicPlaybackService} with commands from one thread while
+ * others read its state, and logs how long the calls took. The getters read
+ * published state, so their p99 shouldn't move much however busy the player
+ * thread is; run it on a build before and after a change to the service to
+ * compare the numbers logged under this class's tag.
+ * <p>
+ * It needs a device with some music on it, and is skipped otherwise.
+ */
+public class ServiceStressTest extends InstrumentationTestCase {
+
+    private static final String TAG = ServiceStressTest.class.getSimpleName();
+
+    /* The number of threads reading the state */
+    private static final int READERS = 4;
+
+    /* The number of commands sent */
+    private static final int COMMANDS = 2000;
+
+    /* The most calls timed per reader */
+    private static final int MAX_SAMPLES = 20000;
+
+    /* The number of tracks queued */
+    private static final int TRACKS = 50;
+
+    /* How long to wait for the service, in milliseconds */
+    private static final long TIMEOUT = 10000;
+
+    private IApolloService mService;
+
+    private ServiceConnection mConnection;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final CountDownLatch connected = new CountDownLatch(1);
+        mConnection = new ServiceConnection() {
+
+            @Override
+            public void onServiceConnected(final ComponentName name, final IBinder service) {
+                mService = IApolloService.Stub.asInterface(service);
+                connected.countDown();
+            }
+
+            @Override
+            public void onServiceDisconnected(final ComponentName name) {
+                mService = null;
+            }
+        };
+        final Context context = getInstrumentation().getTargetContext();
+        assertTrue(context.bindService(new Intent(context, MusicPlaybackService.class),
+                mConnection, Context.BIND_AUTO_CREATE));
+        assertTrue(connected.await(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        if (mService != null) {
+            mService.stop();
+        }
+        getInstrumentation().getTargetContext().unbindService(mConnection);
+        super.tearDown();
+    }
+
+    /**
+     * Sends next, prev and seek commands as fast as it can while the readers
+     * time the getters, then checks the service settled on a sane state
+     */
+    public void testCommandsUnderLoad() throws Exception {
+        final long[] tracks = queryTracks(TRACKS);
+        if (tracks.length < 2) {
+            Log.w(TAG, "No music on the device, skipped");
+            return;
+        }
+        mService.open(tracks, 0);
+
+        final long[][] samples = new long[READERS][MAX_SAMPLES];
+        final int[] counts = new int[READERS];
+        final Throwable[] failures = new Throwable[READERS];
+        final Thread[] readers = new Thread[READERS];
+        final boolean[] done = new boolean[1];
+        for (int i = 0; i < READERS; i++) {
+            final int reader = i;
+            readers[i] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        while (!isDone(done) && counts[reader] < MAX_SAMPLES) {
+                            final long start = System.nanoTime();
+                            mService.getPlaybackState();
+                            final int position = mService.getQueuePosition();
+                            mService.position();
+                            samples[reader][counts[reader]++] = System.nanoTime() - start;
+                            assertTrue(position >= -1 && position < tracks.length);
+                        }
+                    } catch (final Throwable e) {
+                        failures[reader] = e;
+                    }
+                }
+            }, TAG + " reader " + i);
+            readers[i].start();
+        }
+
+        final Random random = new Random(0);
+        final long[] commands = new long[COMMANDS];
+        for (int i = 0; i < COMMANDS; i++) {
+            final long start = System.nanoTime();
+            switch (i % 4) {
+                case 0:
+                    mService.next();
+                    break;
+                case 1:
+                    mService.prev();
+                    break;
+                default:
+                    // Past either end too, the service clamps it
+                    final long whereto = mService.seek(random.nextInt(20 * 60 * 1000)
+                            - 60 * 1000);
+                    assertTrue("seek returned " + whereto, whereto >= -1);
+                    break;
+            }
+            commands[i] = System.nanoTime() - start;
+        }
+        synchronized (done) {
+            done[0] = true;
+        }
+        for (final Thread reader : readers) {
+            reader.join(TIMEOUT);
+        }
+        for (final Throwable failure : failures) {
+            if (failure != null) {
+                throw new AssertionError(failure);
+            }
+        }
+
+        int total = 0;
+        for (final int count : counts) {
+            total += count;
+        }
+        final long[] getters = new long[total];
+        total = 0;
+        for (int i = 0; i < READERS; i++) {
+            System.arraycopy(samples[i], 0, getters, total, counts[i]);
+            total += counts[i];
+        }
+        Log.i(TAG, "getters: " + describe(getters));
+        Log.i(TAG, "commands: " + describe(commands));
+
+        // A removal waits for every command queued before it, and this one
+        // removes nothing
+        assertEquals(0, mService.removeTracksById(new long[] {
+            -1
+        }));
+        final long[] queue = mService.getQueue();
+        final int position = mService.getQueuePosition();
+        assertTrue(position >= 0 && position < queue.length);
+        assertEquals(queue[position], mService.getAudioId());
+    }
+
+    /**
+     * @param done The flag the readers stop on
+     * @return True once the commands are sent
+     */
+    private static boolean isDone(final boolean[] done) {
+        synchronized (done) {
+            return done[0];
+        }
+    }
+
+    /**
+     * @param times Call times, in nanoseconds
+     * @return The number of calls and their p50, p99 and slowest times
+     */
+    private static String describe(final long[] times) {
+        if (times.length == 0) {
+            return "no calls";
+        }
+        final long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted.length + " calls, p50 " + micros(percentile(sorted, 50)) + ", p99 "
+                + micros(percentile(sorted, 99)) + ", max " + micros(sorted[sorted.length - 1]);
+    }
+
+    /**
+     * @param sorted Sorted times
+     * @param percent The percentile to pick
+     * @return The time at that percentile
+     */
+    private static long percentile(final long[] sorted, final int percent) {
+        final int index = (int) Math.ceil(sorted.length * percent / 100.0) - 1;
+        return sorted[Math.max(0, index)];
+    }
+
+    /**
+     * @param nanos A time in nanoseconds
+     * @return It in microseconds, for the log
+     */
+    private static String micros(final long nanos) {
+        return nanos / 1000 + "us";
+    }
+
+    /**
+     * @param limit The most tracks to return
+     * @return The IDs of some music on the device
+     */
+    private long[] queryTracks(final int limit) {
+        final Cursor cursor = getInstrumentation().getTargetContext().getContentResolver()
+                .query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, new String[] {
+                    BaseColumns._ID
+                }, AudioColumns.IS_MUSIC + "=1", null, null);
+        if (cursor == null) {
+            return new long[0];
+        }
+        try {
+            final long[] ids = new long[Math.min(limit, cursor.getCount())];
+            for (int i = 0; i < ids.length && cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+}
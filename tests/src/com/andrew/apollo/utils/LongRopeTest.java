@@ -0,0 +1,322 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required
+ * by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package com.andrew.apollo.utils;
+
+import java.util.Random;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs the queue's edits against {@link LongRope} and against a plain array
+ * edited the way the queue used to be, checks they agree and logs how long
+ * each took. Edits that shift the tail of the array have to be faster on the
+ * rope.
+ */
+public class LongRopeTest extends TestCase {
+
+    private static final String TAG = "LongRopeTest";
+
+    /* The length of the queue the timings are taken with */
+    private static final int QUEUE_SIZE = 50000;
+
+    /* The number of edits per timing */
+    private static final int EDITS = 2000;
+
+    /* The number of times each timing is run, the first ones warm up */
+    private static final int ROUNDS = 5;
+
+    /**
+     * A mix of every edit, checked against the array after each one
+     */
+    public void testMatchesArray() {
+        final Random random = new Random(0);
+        final LongRope rope = new LongRope();
+        final ArrayQueue array = new ArrayQueue();
+        for (int i = 0; i < 5000; i++) {
+            final int size = array.size();
+            switch (random.nextInt(5)) {
+                case 0:
+                    final long[] values = values(random, 1 + random.nextInt(300));
+                    final int index = random.nextInt(size + 1);
+                    rope.insert(index, values);
+                    array.insert(index, values);
+                    break;
+                case 1:
+                    if (size > 0) {
+                        final int from = random.nextInt(size);
+                        final int to = from + random.nextInt(Math.min(size - from, 200) + 1);
+                        rope.removeRange(from, to);
+                        array.removeRange(from, to);
+                    }
+                    break;
+                case 2:
+                    if (size > 0) {
+                        final int from = random.nextInt(size);
+                        final int to = random.nextInt(size);
+                        rope.move(from, to);
+                        array.move(from, to);
+                    }
+                    break;
+                case 3:
+                    if (size > 0) {
+                        final int position = random.nextInt(size);
+                        final long value = random.nextLong();
+                        rope.set(position, value);
+                        array.set(position, value);
+                    }
+                    break;
+                default:
+                    final long value = random.nextLong();
+                    rope.add(value);
+                    array.insert(size, new long[] {
+                        value
+                    });
+                    break;
+            }
+            assertMatches(array, rope);
+        }
+    }
+
+    /**
+     * Copies a range out of the middle of the list
+     */
+    public void testCopyTo() {
+        final LongRope rope = new LongRope();
+        final long[] values = values(new Random(1), 1000);
+        rope.setAll(values, values.length);
+        final long[] dest = new long[310];
+        rope.copyTo(345, dest, 10, 300);
+        for (int i = 0; i < 300; i++) {
+            assertEquals(values[345 + i], dest[10 + i]);
+        }
+    }
+
+    /**
+     * Dragging tracks around near the top of a long queue
+     */
+    public void testTimeMovesNearTop() {
+        // Only a few values shift in the array, so this one just has to agree
+        time("moves near the top", false, new Edits() {
+
+            @Override
+            public void run(final Random random, final LongRope rope, final ArrayQueue array) {
+                final int from = random.nextInt(20);
+                final int to = random.nextInt(20);
+                if (rope != null) {
+                    rope.move(from, to);
+                } else {
+                    array.move(from, to);
+                }
+            }
+        });
+    }
+
+    /**
+     * "Play next" right after the current track, near the top of the queue
+     */
+    public void testTimePlayNext() {
+        time("play next", true, new Edits() {
+
+            @Override
+            public void run(final Random random, final LongRope rope, final ArrayQueue array) {
+                final long[] values = new long[] {
+                    random.nextLong()
+                };
+                if (rope != null) {
+                    rope.insert(10, values);
+                } else {
+                    array.insert(10, values);
+                }
+            }
+        });
+    }
+
+    /**
+     * Removing a few tracks anywhere in the queue, as deleting an album does
+     */
+    public void testTimeRemoveRanges() {
+        time("remove ranges", true, new Edits() {
+
+            @Override
+            public void run(final Random random, final LongRope rope, final ArrayQueue array) {
+                final int size = rope != null ? rope.size() : array.size();
+                final int from = random.nextInt(size - 10);
+                if (rope != null) {
+                    rope.removeRange(from, from + 10);
+                } else {
+                    array.removeRange(from, from + 10);
+                }
+            }
+        });
+    }
+
+    /**
+     * Times a kind of edit on both lists, checks they end up the same and
+     * logs the fastest round of each
+     *
+     * @param name What the edits are, for the log
+     * @param ropeFaster True if the rope has to beat the array
+     * @param edits The edits to make
+     */
+    private static void time(final String name, final boolean ropeFaster, final Edits edits) {
+        final long[] queue = values(new Random(2), QUEUE_SIZE);
+        long ropeTime = Long.MAX_VALUE;
+        long arrayTime = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            final LongRope rope = new LongRope();
+            rope.setAll(queue, queue.length);
+            Random random = new Random(round);
+            long start = System.nanoTime();
+            for (int i = 0; i < EDITS; i++) {
+                edits.run(random, rope, null);
+            }
+            ropeTime = Math.min(ropeTime, System.nanoTime() - start);
+
+            final ArrayQueue array = new ArrayQueue();
+            array.insert(0, queue);
+            random = new Random(round);
+            start = System.nanoTime();
+            for (int i = 0; i < EDITS; i++) {
+                edits.run(random, null, array);
+            }
+            arrayTime = Math.min(arrayTime, System.nanoTime() - start);
+
+            assertMatches(array, rope);
+        }
+        Log.i(TAG, name + ": " + EDITS + " edits on " + QUEUE_SIZE + " tracks, rope "
+                + ropeTime / 1000 + "us, array " + arrayTime / 1000 + "us");
+        if (ropeFaster) {
+            assertTrue(name + ": rope " + ropeTime + "ns, array " + arrayTime + "ns",
+                    ropeTime < arrayTime);
+        }
+    }
+
+    /**
+     * @param expected The array
+     * @param actual The rope
+     */
+    private static void assertMatches(final ArrayQueue expected, final LongRope actual) {
+        assertEquals("size", expected.size(), actual.size());
+        final long[] values = actual.toArray();
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals("index " + i, expected.get(i), values[i]);
+        }
+    }
+
+    /**
+     * @param random The random numbers to use
+     * @param count The number of values
+     * @return Random values
+     */
+    private static long[] values(final Random random, final int count) {
+        final long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = random.nextLong();
+        }
+        return values;
+    }
+
+    /**
+     * A kind of edit, made on either list with the same random numbers
+     */
+    private interface Edits {
+
+        /**
+         * @param random The random numbers to use
+         * @param rope The rope to edit, or null
+         * @param array The array to edit if the rope is null
+         */
+        void run(Random random, LongRope rope, ArrayQueue array);
+    }
+
+    /**
+     * The queue as it was kept before {@link LongRope}: an array and a
+     * length, with edits shifting the tail
+     */
+    private static final class ArrayQueue {
+
+        private long[] mList = new long[16];
+
+        private int mLength;
+
+        /**
+         * @return The number of values
+         */
+        int size() {
+            return mLength;
+        }
+
+        /**
+         * @param index A position
+         * @return The value there
+         */
+        long get(final int index) {
+            return mList[index];
+        }
+
+        /**
+         * @param index A position
+         * @param value The new value there
+         */
+        void set(final int index, final long value) {
+            mList[index] = value;
+        }
+
+        /**
+         * @param index The position to insert at
+         * @param values The values to insert
+         */
+        void insert(final int index, final long[] values) {
+            if (mLength + values.length > mList.length) {
+                final long[] list = new long[(mLength + values.length) * 2];
+                System.arraycopy(mList, 0, list, 0, mLength);
+                mList = list;
+            }
+            for (int i = mLength - 1; i >= index; i--) {
+                mList[i + values.length] = mList[i];
+            }
+            System.arraycopy(values, 0, mList, index, values.length);
+            mLength += values.length;
+        }
+
+        /**
+         * @param from The first position to remove
+         * @param to One past the last position to remove
+         */
+        void removeRange(final int from, final int to) {
+            final int count = to - from;
+            for (int i = to; i < mLength; i++) {
+                mList[i - count] = mList[i];
+            }
+            mLength -= count;
+        }
+
+        /**
+         * @param from The current position of a value
+         * @param to The position it should end up at
+         */
+        void move(final int from, final int to) {
+            final long value = mList[from];
+            if (from < to) {
+                for (int i = from; i < to; i++) {
+                    mList[i] = mList[i + 1];
+                }
+            } else {
+                for (int i = from; i > to; i--) {
+                    mList[i] = mList[i - 1];
+                }
+            }
+            mList[to] = value;
+        }
+    }
+}